@@ -0,0 +1,68 @@
+#!/usr/bin/env bash
+# Compare platform vs virtual threads under concurrent blocking requests.
+#
+# Fires CONCURRENCY parallel clients at a blocking endpoint for DURATION seconds and samples the
+# backend's live thread count and heap usage from actuator while the load runs. Run it once
+# against a backend started normally and once against a -Pjava21 build started with
+# SPRING_THREADS_VIRTUAL_ENABLED=true, then compare the two summaries.
+# Until both runs are recorded in docs/chat-architecture.md, the virtual-thread mode stays
+# experimental and off by default.
+#
+# Usage:
+#   backend/scripts/load_test_threads.sh [BASE_URL]
+# Environment:
+#   CONCURRENCY (default 400)  DURATION seconds (default 30)
+#   ENDPOINT (default /api/admin/rate-limits, which blocks on the upstream API)
+
+set -euo pipefail
+
+BASE_URL=${1:-http://localhost:8080}
+CONCURRENCY=${CONCURRENCY:-400}
+DURATION=${DURATION:-30}
+ENDPOINT=${ENDPOINT:-/api/admin/rate-limits}
+
+metric() {
+    curl -sf "$BASE_URL/actuator/metrics/$1${2:+?tag=$2}" \
+        | sed -n 's/.*"statistic":"VALUE","value":\([0-9.E+]*\).*/\1/p'
+}
+
+client() {
+    local end=$((SECONDS + DURATION)) ok=0 failed=0
+    while ((SECONDS < end)); do
+        if curl -sf -o /dev/null --max-time 15 "$BASE_URL$ENDPOINT"; then
+            ok=$((ok + 1))
+        else
+            failed=$((failed + 1))
+        fi
+    done
+    echo "$ok $failed"
+}
+
+echo "Idle: threads=$(metric jvm.threads.live) heap=$(metric jvm.memory.used area:heap) bytes"
+
+results=$(mktemp)
+trap 'rm -f "$results"' EXIT
+for _ in $(seq "$CONCURRENCY"); do
+    client >>"$results" &
+done
+
+peak_threads=0
+peak_heap=0
+end=$((SECONDS + DURATION))
+while ((SECONDS < end)); do
+    threads=$(metric jvm.threads.live || echo 0)
+    heap=$(metric jvm.memory.used area:heap || echo 0)
+    threads=${threads%.*}
+    heap=$(printf '%.0f' "${heap:-0}")
+    ((threads > peak_threads)) && peak_threads=$threads
+    ((heap > peak_heap)) && peak_heap=$heap
+    sleep 1
+done
+wait
+
+awk -v c="$CONCURRENCY" -v d="$DURATION" -v t="$peak_threads" -v h="$peak_heap" '
+    { ok += $1; failed += $2 }
+    END {
+        printf "Load: %d clients for %ds -> %d ok (%.1f req/s), %d failed\n", c, d, ok, ok / d, failed
+        printf "Peak: threads=%d heap=%.1f MB\n", t, h / 1048576
+    }' "$results"
@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+# Run the JMH microbenchmarks under src/test (classes named *Benchmark).
+#
+# Builds the test classes, then runs JMH on the test classpath; arguments go straight to JMH, so
+# the first one is usually a benchmark name pattern and "-prof gc" adds allocation rates.
+#
+# Usage:
+#   backend/scripts/run_benchmarks.sh [PATTERN] [JMH OPTIONS...]
+# Examples:
+#   backend/scripts/run_benchmarks.sh SseDeltaParserBenchmark -prof gc
+#   backend/scripts/run_benchmarks.sh -l
+
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+classpath=$(mktemp)
+trap 'rm -f "$classpath"' EXIT
+
+mvn -B -q test-compile dependency:build-classpath \
+    -Dmdep.includeScope=test -Dmdep.outputFile="$classpath"
+exec java -cp "target/test-classes:target/classes:$(cat "$classpath")" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+# Check BpeTokenizer estimates against the token counts upstream reported (usage_logs).
+#
+# Output side: each successful turn's reply is stored with our estimate (messages.token_count)
+# and logged with upstream's completion_tokens for the same text (usage_logs.output_tokens), so
+# their ratio is the estimator's error. Replies that used extended thinking or tools are billed
+# for more than their text and show up as low ratios.
+# Input side: upstream's prompt count also covers the CLI's own system prompt and, on a bound
+# session, earlier turns, so it is fitted against the packed context estimate: the slope is the
+# scale error and the intercept the fixed overhead per request.
+# Rows marked usage_estimated were counted by us and are left out.
+#
+# Usage:
+#   backend/scripts/tokenizer_accuracy.sh [DAYS]
+# Environment:
+#   PSQL (default: psql in the compose postgres container, with POSTGRES_USER and POSTGRES_DB)
+
+set -euo pipefail
+
+DAYS=${1:-7}
+if [[ -z "${PSQL:-}" ]]; then
+    PSQL="docker compose exec -T postgres psql -U ${POSTGRES_USER:-postgres} -d ${POSTGRES_DB:-postgres}"
+fi
+
+$PSQL -v ON_ERROR_STOP=1 -v days="$DAYS" <<'SQL'
+\echo 'Output tokens: estimate / upstream, per model'
+WITH turns AS (
+    SELECT u.model, u.output_tokens AS upstream, m.token_count AS estimate
+    FROM usage_logs u
+    CROSS JOIN LATERAL (
+        SELECT token_count FROM messages
+        WHERE conversation_id = u.conversation_id AND role = 'assistant'
+          AND created_at BETWEEN u.created_at - INTERVAL '1 minute' AND u.created_at + INTERVAL '1 minute'
+        ORDER BY abs(extract(EPOCH FROM created_at - u.created_at))
+        LIMIT 1
+    ) m
+    WHERE u.status = 'SUCCESS' AND NOT u.usage_estimated AND u.output_tokens > 0
+      AND u.created_at > NOW() - make_interval(days => :days)
+)
+SELECT model,
+       count(*) AS turns,
+       round((percentile_cont(0.5) WITHIN GROUP (ORDER BY estimate::numeric / upstream))::numeric, 3) AS median,
+       round((percentile_cont(0.1) WITHIN GROUP (ORDER BY estimate::numeric / upstream))::numeric, 3) AS p10,
+       round((percentile_cont(0.9) WITHIN GROUP (ORDER BY estimate::numeric / upstream))::numeric, 3) AS p90,
+       round(avg(abs(estimate - upstream)::numeric / upstream), 3) AS mean_abs_error
+FROM turns
+GROUP BY model
+ORDER BY turns DESC;
+
+\echo 'Input tokens: upstream prompt = slope * packed context estimate + intercept, per model'
+SELECT model,
+       count(*) AS turns,
+       round(regr_slope(input_tokens, context_tokens)::numeric, 3) AS slope,
+       round(regr_intercept(input_tokens, context_tokens)::numeric) AS intercept,
+       round(regr_r2(input_tokens, context_tokens)::numeric, 3) AS r2
+FROM usage_logs
+WHERE status = 'SUCCESS' AND NOT usage_estimated AND context_tokens > 0
+  AND created_at > NOW() - make_interval(days => :days)
+GROUP BY model
+ORDER BY turns DESC;
+SQL
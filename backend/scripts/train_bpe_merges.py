@@ -0,0 +1,169 @@
+#!/usr/bin/env python3
+"""Train the byte-level BPE merge table used by BpeTokenizer.
+
+The table is written as one merge per line, "<left id> <right id>", where ids 0-255 are raw
+bytes and the merge on line N (0-based, ignoring comments) creates token id 256 + N. Text is
+split into chunks with exactly the rules of BpeTokenizer.forEachChunk before merges are learned,
+so the two must be changed together.
+
+Usage:
+    python3 backend/scripts/train_bpe_merges.py [--merges 8000] [--out FILE] PATH...
+
+PATH may be files or directories (walked for text files). By default the repository's own
+sources and docs are used; for better estimates train on an export of real chat messages, e.g.
+    psql -Atc "SELECT content FROM messages" > corpus.txt
+"""
+
+import argparse
+import collections
+import heapq
+import os
+import sys
+
+TEXT_EXTENSIONS = {".java", ".ts", ".tsx", ".js", ".mjs", ".py", ".md", ".sql", ".yml", ".yaml",
+                   ".json", ".sh", ".css", ".html", ".txt", ".conf"}
+SKIP_DIRS = {"node_modules", "target", ".git", "dist", "build", "__pycache__", ".venv"}
+SKIP_FILES = {"package-lock.json", "bpe-merges.txt"}
+MAX_CHUNK_BYTES = 64
+
+
+def is_letter(c):
+    return c.isalpha()
+
+
+def is_digit(c):
+    return c.isdigit()
+
+
+def chunks(text):
+    """Mirror of BpeTokenizer.forEachChunk."""
+    n = len(text)
+    i = 0
+    while i < n:
+        start = i
+        c = text[i]
+        if c == " " and i + 1 < n and is_letter(text[i + 1]):
+            i += 1
+            while i < n and is_letter(text[i]):
+                i += 1
+        elif is_letter(c):
+            while i < n and is_letter(text[i]):
+                i += 1
+        elif is_digit(c):
+            while i < n and i - start < 3 and is_digit(text[i]):
+                i += 1
+        elif c.isspace():
+            while i < n and text[i].isspace():
+                i += 1
+            # Leave a single trailing space to lead the next word
+            if i < n and i - start > 1 and text[i - 1] == " " and is_letter(text[i]):
+                i -= 1
+        else:
+            while i < n and not (is_letter(text[i]) or is_digit(text[i]) or text[i].isspace()):
+                i += 1
+        data = text[start:i].encode("utf-8")
+        for off in range(0, len(data), MAX_CHUNK_BYTES):
+            yield data[off:off + MAX_CHUNK_BYTES]
+
+
+def read_corpus(paths):
+    for path in paths:
+        if os.path.isdir(path):
+            for root, dirs, files in os.walk(path):
+                dirs[:] = [d for d in dirs if d not in SKIP_DIRS]
+                for name in sorted(files):
+                    if os.path.splitext(name)[1] in TEXT_EXTENSIONS and name not in SKIP_FILES:
+                        yield from read_file(os.path.join(root, name))
+        else:
+            yield from read_file(path)
+
+
+def read_file(path):
+    try:
+        with open(path, encoding="utf-8") as f:
+            yield f.read()
+    except (UnicodeDecodeError, OSError):
+        pass
+
+
+def train(word_counts, num_merges):
+    words = [list(w) for w in word_counts]
+    freqs = list(word_counts.values())
+    pair_counts = collections.Counter()
+    pair_words = collections.defaultdict(set)
+    for idx, word in enumerate(words):
+        for pair in zip(word, word[1:]):
+            pair_counts[pair] += freqs[idx]
+            pair_words[pair].add(idx)
+
+    # Max-heap with lazy invalidation: stale entries are skipped when popped
+    heap = [(-count, pair) for pair, count in pair_counts.items()]
+    heapq.heapify(heap)
+
+    def bump(pair, delta):
+        count = pair_counts[pair] + delta
+        if count > 0:
+            pair_counts[pair] = count
+            heapq.heappush(heap, (-count, pair))
+        else:
+            pair_counts.pop(pair, None)
+
+    merges = []
+    next_id = 256
+    while len(merges) < num_merges and heap:
+        neg, best = heapq.heappop(heap)
+        if pair_counts.get(best) != -neg:
+            continue
+        if -neg < 2:
+            break
+        merges.append(best)
+        for idx in pair_words.pop(best, ()):
+            word = words[idx]
+            freq = freqs[idx]
+            merged = []
+            i = 0
+            while i < len(word):
+                if i + 1 < len(word) and (word[i], word[i + 1]) == best:
+                    merged.append(next_id)
+                    i += 2
+                else:
+                    merged.append(word[i])
+                    i += 1
+            if len(merged) == len(word):
+                continue
+            for pair in zip(word, word[1:]):
+                bump(pair, -freq)
+            for pair in zip(merged, merged[1:]):
+                bump(pair, freq)
+                pair_words[pair].add(idx)
+            words[idx] = merged
+        pair_counts.pop(best, None)
+        next_id += 1
+    return merges
+
+
+def main():
+    repo = os.path.abspath(os.path.join(os.path.dirname(__file__), "..", ".."))
+    parser = argparse.ArgumentParser(description=__doc__, formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument("paths", nargs="*", default=[os.path.join(repo, d) for d in
+                        ("backend/src", "frontend/src", "claude-code-api", "docs", "database", "README.md")])
+    parser.add_argument("--merges", type=int, default=8000)
+    parser.add_argument("--out", default=os.path.join(repo, "backend/src/main/resources/tokenizer/bpe-merges.txt"))
+    args = parser.parse_args()
+
+    word_counts = collections.Counter()
+    for text in read_corpus(args.paths):
+        word_counts.update(c for c in chunks(text) if len(c) > 1)
+    merges = train(word_counts, args.merges)
+
+    os.makedirs(os.path.dirname(args.out), exist_ok=True)
+    with open(args.out, "w", encoding="ascii") as f:
+        f.write("# Byte-level BPE merges for BpeTokenizer, generated by backend/scripts/train_bpe_merges.py\n")
+        f.write("# Line N (0-based, comments excluded) merges <left> <right> into token 256 + N\n")
+        for left, right in merges:
+            f.write(f"{left} {right}\n")
+    print(f"{len(merges)} merges from {sum(word_counts.values())} chunks -> {args.out}", file=sys.stderr)
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,47 @@
+package com.claudeplatform.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Scheduler for blocking persistence work offloaded from reactive pipelines (turn recording,
+ * summarization reads and writes, post-flush checks).
+ * With spring.threads.virtual.enabled on Java 21 (build with -Pjava21) each task gets a virtual
+ * thread, and a semaphore sized to the JDBC pool keeps the number touching the database bounded;
+ * otherwise Reactor's boundedElastic pool is used. The virtual-thread mode is experimental and off
+ * by default until it has been load-tested against platform threads (scripts/load_test_threads.sh).
+ */
+@Configuration
+@Slf4j
+public class ExecutionConfig {
+
+    @Bean
+    public Scheduler persistenceScheduler(
+            Environment environment,
+            @Value("${app.persistence.max-concurrency:${spring.datasource.hikari.maximum-pool-size:10}}") int maxConcurrency) {
+        if (!Threading.VIRTUAL.isActive(environment)) {
+            return Schedulers.boundedElastic();
+        }
+        log.warn("Virtual threads are experimental and not load-tested yet; persistence work runs on them, "
+                + "at most {} at a time", maxConcurrency);
+        VirtualThreadTaskExecutor virtualThreads = new VirtualThreadTaskExecutor("persistence-");
+        Semaphore permits = new Semaphore(maxConcurrency);
+        return Schedulers.fromExecutor(task -> virtualThreads.execute(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        }));
+    }
+}
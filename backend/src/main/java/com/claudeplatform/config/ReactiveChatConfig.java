@@ -0,0 +1,130 @@
+package com.claudeplatform.config;
+
+import com.claudeplatform.controller.ReactiveChatHandler;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.http.server.reactive.ReactorHttpHandlerAdapter;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.server.HandlerStrategies;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.time.Duration;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.POST;
+
+/**
+ * Reactive chat stack, enabled with app.chat.reactive.enabled.
+ * POST /api/chat/completions is served by a Reactor Netty server on its own port
+ * (app.chat.reactive.port) and persists through R2DBC, so a stream holds neither a servlet
+ * thread nor a JDBC connection. The rest of the API stays on the servlet server; route the chat
+ * path to this port at the proxy.
+ * Boot's R2DBC auto-configuration is excluded in application.yml so its transaction manager does
+ * not displace the JPA one; the pool here is used by the reactive repositories only.
+ */
+@Configuration
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@Slf4j
+public class ReactiveChatConfig {
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionPool chatConnectionFactory(
+            @Value("${app.chat.reactive.r2dbc-url:}") String r2dbcUrl,
+            @Value("${spring.datasource.url}") String jdbcUrl,
+            @Value("${spring.datasource.username}") String username,
+            @Value("${spring.datasource.password}") String password,
+            @Value("${app.chat.reactive.pool-size:20}") int poolSize) {
+        // Default to the JDBC datasource's database
+        String url = StringUtils.hasText(r2dbcUrl) ? r2dbcUrl : jdbcUrl.replaceFirst("^jdbc:", "r2dbc:");
+        ConnectionFactory connectionFactory = ConnectionFactories.get(ConnectionFactoryOptions.parse(url).mutate()
+                .option(ConnectionFactoryOptions.USER, username)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory)
+                .name("chat-r2dbc")
+                .initialSize(Math.min(2, poolSize))
+                .maxSize(poolSize)
+                .maxIdleTime(Duration.ofMinutes(10))
+                .build());
+    }
+
+    @Bean
+    public DatabaseClient chatDatabaseClient(ConnectionFactory chatConnectionFactory) {
+        return DatabaseClient.create(chatConnectionFactory);
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> reactiveChatRoutes(ReactiveChatHandler handler) {
+        return RouterFunctions.route(POST("/api/chat/completions"), handler::completions);
+    }
+
+    @Bean
+    public ReactiveChatServer reactiveChatServer(
+            RouterFunction<ServerResponse> reactiveChatRoutes,
+            ObjectMapper objectMapper,
+            @Value("${app.chat.reactive.port:8081}") int port) {
+        HttpHandler httpHandler = RouterFunctions.toHttpHandler(reactiveChatRoutes, HandlerStrategies.builder()
+                .codecs(codecs -> {
+                    codecs.defaultCodecs().jackson2JsonDecoder(new Jackson2JsonDecoder(objectMapper));
+                    codecs.defaultCodecs().jackson2JsonEncoder(new Jackson2JsonEncoder(objectMapper));
+                })
+                .build());
+        return new ReactiveChatServer(httpHandler, port);
+    }
+
+    /**
+     * Starts the Netty server with the application context and stops it before the beans it
+     * uses are destroyed.
+     */
+    public static class ReactiveChatServer implements SmartLifecycle {
+
+        private final HttpHandler httpHandler;
+        private final int port;
+        private volatile DisposableServer server;
+
+        ReactiveChatServer(HttpHandler httpHandler, int port) {
+            this.httpHandler = httpHandler;
+            this.port = port;
+        }
+
+        @Override
+        public void start() {
+            server = HttpServer.create()
+                    .port(port)
+                    .handle(new ReactorHttpHandlerAdapter(httpHandler))
+                    .bindNow();
+            log.info("Reactive chat endpoint listening on port {}", server.port());
+        }
+
+        @Override
+        public void stop() {
+            DisposableServer current = server;
+            if (current != null) {
+                current.disposeNow(Duration.ofSeconds(10));
+                server = null;
+            }
+        }
+
+        @Override
+        public boolean isRunning() {
+            return server != null;
+        }
+    }
+}
@@ -1,23 +1,164 @@
 package com.claudeplatform.config;
 
+import com.claudeplatform.exception.ServiceOverloadedException;
+import com.claudeplatform.service.UpstreamCircuitBreaker;
+import com.claudeplatform.service.UpstreamPool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
+import java.time.Duration;
+
+/**
+ * WebClients for claude-code-api, each on its own Reactor Netty connection pool. Chat streams
+ * hold a connection for minutes, so control-plane calls (health, auth, rate limits, summarize,
+ * session ends) use a separate pool and never queue behind them.
+ * Pools are bounded per instance, with a bounded pending-acquire queue; running out fails fast
+ * as a 503 counted in {@code upstream.pool.exhausted} rather than a timeout. Idle connections are
+ * evicted before claude-code-api's keep-alive would close them. Pool gauges are published as
+ * {@code reactor.netty.connection.provider.*}, tagged with the pool name.
+ * Each client also has its own {@link UpstreamCircuitBreaker}; a stream call answers with its
+ * first chunk, a control call with its response.
+ */
 @Configuration
+@Slf4j
 public class WebClientConfig {
 
+    private static final String PREFIX = "app.claude-code-api.http.";
+    private static final String BREAKER_PREFIX = "app.claude-code-api.circuit-breaker.";
+
     @Value("${app.claude-code-api.url}")
     private String claudeCodeApiUrl;
 
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider claudeCodeApiStreamConnections(Environment environment) {
+        return connectionProvider(environment, "stream", 64, 128, 5000);
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider claudeCodeApiControlConnections(Environment environment) {
+        return connectionProvider(environment, "control", 16, 64, 3000);
+    }
+
+    @Bean
+    public HttpClient claudeCodeApiStreamHttpClient(ConnectionProvider claudeCodeApiStreamConnections,
+                                                    Environment environment) {
+        // Silence between reads is bounded by the 5-minute stream timeout, not here
+        return httpClient(claudeCodeApiStreamConnections, environment, "stream", 300000);
+    }
+
+    @Bean
+    public HttpClient claudeCodeApiControlHttpClient(ConnectionProvider claudeCodeApiControlConnections,
+                                                     Environment environment) {
+        return httpClient(claudeCodeApiControlConnections, environment, "control", 90000);
+    }
+
+    @Bean
+    public UpstreamCircuitBreaker claudeCodeApiStreamBreaker(Environment environment, MeterRegistry meterRegistry) {
+        return circuitBreaker(environment, meterRegistry, "stream", true, 30000);
+    }
+
+    @Bean
+    public UpstreamCircuitBreaker claudeCodeApiControlBreaker(Environment environment, MeterRegistry meterRegistry) {
+        // Summaries answer only once generated, well within their 60 s timeout
+        return circuitBreaker(environment, meterRegistry, "control", false, 45000);
+    }
+
+    @Bean
+    public WebClient claudeCodeApiClient(HttpClient claudeCodeApiStreamHttpClient,
+                                         UpstreamCircuitBreaker claudeCodeApiStreamBreaker,
+                                         UpstreamPool upstreamPool, MeterRegistry meterRegistry) {
+        return webClient(claudeCodeApiStreamHttpClient, claudeCodeApiStreamBreaker, upstreamPool, meterRegistry,
+                "stream");
+    }
+
     @Bean
-    public WebClient claudeCodeApiClient() {
+    public WebClient claudeCodeApiControlClient(HttpClient claudeCodeApiControlHttpClient,
+                                                UpstreamCircuitBreaker claudeCodeApiControlBreaker,
+                                                UpstreamPool upstreamPool, MeterRegistry meterRegistry) {
+        return webClient(claudeCodeApiControlHttpClient, claudeCodeApiControlBreaker, upstreamPool, meterRegistry,
+                "control");
+    }
+
+    private static ConnectionProvider connectionProvider(Environment environment, String pool, int maxConnections,
+                                                         int pendingAcquireMax, long pendingAcquireTimeoutMs) {
+        String prefix = PREFIX + pool + ".";
+        return ConnectionProvider.builder("claude-code-api-" + pool)
+                .maxConnections(environment.getProperty(prefix + "max-connections", Integer.class, maxConnections))
+                .pendingAcquireMaxCount(environment.getProperty(prefix + "pending-acquire-max", Integer.class,
+                        pendingAcquireMax))
+                .pendingAcquireTimeout(Duration.ofMillis(environment.getProperty(prefix + "pending-acquire-timeout-ms",
+                        Long.class, pendingAcquireTimeoutMs)))
+                .maxIdleTime(Duration.ofMillis(environment.getProperty(prefix + "max-idle-ms", Long.class, 60000L)))
+                .maxLifeTime(Duration.ofMillis(environment.getProperty(prefix + "max-life-ms", Long.class, 600000L)))
+                .evictInBackground(Duration.ofMillis(environment.getProperty(PREFIX + "evict-interval-ms",
+                        Long.class, 30000L)))
+                .metrics(true)
+                .build();
+    }
+
+    private static HttpClient httpClient(ConnectionProvider connections, Environment environment, String pool,
+                                         long responseTimeoutMs) {
+        return HttpClient.create(connections)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+                        environment.getProperty(PREFIX + "connect-timeout-ms", Integer.class, 5000))
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .responseTimeout(Duration.ofMillis(environment.getProperty(
+                        PREFIX + pool + ".response-timeout-ms", Long.class, responseTimeoutMs)));
+    }
+
+    private static UpstreamCircuitBreaker circuitBreaker(Environment environment, MeterRegistry meterRegistry,
+                                                         String client, boolean untilFirstChunk, long slowCallMs) {
+        return new UpstreamCircuitBreaker(client, meterRegistry,
+                environment.getProperty(BREAKER_PREFIX + "enabled", Boolean.class, true),
+                untilFirstChunk,
+                environment.getProperty(BREAKER_PREFIX + "window-size", Integer.class, 50),
+                environment.getProperty(BREAKER_PREFIX + "minimum-calls", Integer.class, 10),
+                environment.getProperty(BREAKER_PREFIX + "failure-rate", Double.class, 0.5),
+                environment.getProperty(BREAKER_PREFIX + "slow-call-rate", Double.class, 0.8),
+                environment.getProperty(BREAKER_PREFIX + client + ".slow-call-ms", Long.class, slowCallMs),
+                environment.getProperty(BREAKER_PREFIX + "open-ms", Long.class, 30000L),
+                environment.getProperty(BREAKER_PREFIX + "half-open-calls", Integer.class, 3));
+    }
+
+    private WebClient webClient(HttpClient httpClient, UpstreamCircuitBreaker circuitBreaker,
+                                UpstreamPool upstreamPool, MeterRegistry meterRegistry, String pool) {
         return WebClient.builder()
                 .baseUrl(claudeCodeApiUrl)
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .filter(poolExhaustion(meterRegistry, pool))
+                .filter(circuitBreaker)
+                .filter(upstreamPool)
                 .codecs(configurer -> configurer
                         .defaultCodecs()
                         .maxInMemorySize(10 * 1024 * 1024)) // 10MB
                 .build();
     }
+
+    /**
+     * Report a full connection pool as overload (503 + Retry-After) instead of an opaque error.
+     */
+    private static ExchangeFilterFunction poolExhaustion(MeterRegistry meterRegistry, String pool) {
+        Counter exhausted = Counter.builder("upstream.pool.exhausted").tag("pool", pool)
+                .description("Requests refused because the claude-code-api connection pool was full")
+                .register(meterRegistry);
+        return (request, next) -> next.exchange(request)
+                .onErrorResume(UpstreamPool::isPoolExhausted, e -> {
+                    exhausted.increment();
+                    log.warn("claude-code-api {} connection pool exhausted: {}", pool, e.getMessage());
+                    return Mono.error(new ServiceOverloadedException(
+                            "Upstream " + pool + " connection pool exhausted", 1));
+                });
+    }
 }
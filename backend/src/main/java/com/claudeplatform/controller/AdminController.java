@@ -12,6 +12,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.reactive.function.client.WebClient;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -24,7 +25,7 @@ public class AdminController {
     private final UserRepository userRepository;
     private final ActiveSessionRepository activeSessionRepository;
     private final UsageTrackingService usageTrackingService;
-    private final WebClient claudeCodeApiClient;
+    private final WebClient claudeCodeApiControlClient;
 
     @GetMapping("/users")
     public ResponseEntity<List<User>> listUsers() {
@@ -59,11 +60,11 @@ public class AdminController {
 
     @GetMapping(value = "/rate-limits", produces = "application/json")
     public ResponseEntity<String> rateLimits() {
-        String body = claudeCodeApiClient.get()
+        String body = claudeCodeApiControlClient.get()
                 .uri("/v1/rate-limits")
                 .retrieve()
                 .bodyToMono(String.class)
-                .block();
+                .block(Duration.ofSeconds(10));
         return ResponseEntity.ok(body);
     }
 
@@ -2,12 +2,19 @@ package com.claudeplatform.controller;
 
 import com.claudeplatform.config.DefaultUserConfig;
 import com.claudeplatform.model.dto.ChatRequest;
+import com.claudeplatform.security.ApiKeyAuthFilter;
 import com.claudeplatform.service.ChatProxyService;
+import com.claudeplatform.service.ChatStreamRegistry;
+import com.claudeplatform.service.SseCoalescer;
+import com.claudeplatform.service.SseResponseWriter;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import reactor.core.publisher.Flux;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.util.UUID;
 
 @RestController
 @RequestMapping("/api/chat")
@@ -15,9 +22,49 @@ import reactor.core.publisher.Flux;
 public class ChatController {
 
     private final ChatProxyService chatProxyService;
+    private final SseResponseWriter sseResponseWriter;
+    private final ChatStreamRegistry chatStreamRegistry;
+    private final SseCoalescer sseCoalescer;
 
     @PostMapping(value = "/completions", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<String> chatCompletions(@Valid @RequestBody ChatRequest request) {
-        return chatProxyService.streamChat(request, DefaultUserConfig.getDefaultUserId());
+    public ResponseEntity<ResponseBodyEmitter> chatCompletions(
+            @Valid @RequestBody ChatRequest request,
+            @RequestHeader(name = "Idempotency-Key", required = false) String idempotencyKey,
+            @RequestAttribute(name = ApiKeyAuthFilter.API_KEY_ID_ATTRIBUTE, required = false) UUID apiKeyId) {
+        return sseResponseWriter.write(chatProxyService.streamChat(request, userId(), apiKeyId, idempotencyKey));
+    }
+
+    /**
+     * Reconnect to a chat stream by the streamId from its metadata event: replays the events after
+     * Last-Event-ID (or the lastEventId parameter, for clients that cannot set the header), then
+     * follows the stream until it ends. Only the key and user that started a stream can resume or
+     * cancel it; anyone else gets 404.
+     */
+    @GetMapping(value = "/streams/{streamId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<ResponseBodyEmitter> resumeStream(
+            @PathVariable UUID streamId,
+            @RequestHeader(name = "Last-Event-ID", required = false) Long lastEventIdHeader,
+            @RequestParam(name = "lastEventId", required = false) Long lastEventIdParam,
+            @RequestAttribute(name = ApiKeyAuthFilter.API_KEY_ID_ATTRIBUTE, required = false) UUID apiKeyId) {
+        long lastEventId = lastEventIdHeader != null ? lastEventIdHeader
+                : lastEventIdParam != null ? lastEventIdParam : 0L;
+        return sseResponseWriter.write(sseCoalescer.coalesce(
+                chatStreamRegistry.resume(streamId, apiKeyId, userId(), lastEventId), streamId));
+    }
+
+    /**
+     * Stop a stream's generation now rather than when the reconnect grace period runs out.
+     */
+    @DeleteMapping("/streams/{streamId}")
+    public ResponseEntity<Void> cancelStream(
+            @PathVariable UUID streamId,
+            @RequestAttribute(name = ApiKeyAuthFilter.API_KEY_ID_ATTRIBUTE, required = false) UUID apiKeyId) {
+        chatStreamRegistry.cancel(streamId, apiKeyId, userId());
+        return ResponseEntity.noContent().build();
+    }
+
+    // The user chat turns run as; streams are bound to it
+    private UUID userId() {
+        return DefaultUserConfig.getDefaultUserId();
     }
 }
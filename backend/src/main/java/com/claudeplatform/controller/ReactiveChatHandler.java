@@ -0,0 +1,224 @@
+package com.claudeplatform.controller;
+
+import com.claudeplatform.config.DefaultUserConfig;
+import com.claudeplatform.exception.ConflictException;
+import com.claudeplatform.exception.NotFoundException;
+import com.claudeplatform.exception.ServiceOverloadedException;
+import com.claudeplatform.model.dto.ChatRequest;
+import com.claudeplatform.model.entity.ApiKey;
+import com.claudeplatform.service.ApiKeyService;
+import com.claudeplatform.service.ContextManagementService;
+import com.claudeplatform.service.IdempotencyService;
+import com.claudeplatform.service.RateLimitService;
+import com.claudeplatform.service.ReactiveChatService;
+import com.claudeplatform.service.SseResponseWriter;
+import jakarta.validation.Validator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * POST /api/chat/completions on the reactive server (see ReactiveChatConfig).
+ * Does what ApiKeyAuthFilter, ChatController and GlobalExceptionHandler do for the servlet
+ * endpoint, with the same status codes and bodies: optional API key with rate limiting,
+ * validation, Idempotency-Key, 503 when the upstream is saturated, then the SSE stream with
+ * heartbeats.
+ */
+@Component
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class ReactiveChatHandler {
+
+    private final ReactiveChatService reactiveChatService;
+    private final IdempotencyService idempotencyService;
+    private final ApiKeyService apiKeyService;
+    private final ContextManagementService contextManagementService;
+    private final RateLimitService rateLimitService;
+    private final SseResponseWriter sseResponseWriter;
+    private final Validator validator;
+    private final Scheduler persistenceScheduler;
+
+    public Mono<ServerResponse> completions(ServerRequest request) {
+        String apiKey = extractApiKey(request.headers());
+        String idempotencyKey = idempotencyService.isEnabled()
+                ? request.headers().firstHeader("Idempotency-Key")
+                : null;
+        return request.bodyToMono(ChatRequest.class)
+                .flatMap(body -> {
+                    String invalid = validate(body);
+                    if (invalid != null) {
+                        return error(HttpStatus.BAD_REQUEST, invalid);
+                    }
+                    // No key -> internal web UI
+                    if (apiKey == null) {
+                        return stream(body, null, idempotencyKey, headers -> { });
+                    }
+                    if (!apiKey.startsWith("cpk_")) {
+                        return unauthorized("Invalid API key format");
+                    }
+                    // Key lookup is JPA plus BCrypt, so it runs off the event loop
+                    return Mono.fromCallable(() -> apiKeyService.validateApiKey(apiKey))
+                            .subscribeOn(persistenceScheduler)
+                            .flatMap(validated -> validated.isPresent()
+                                    ? admitKey(body, validated.get(), idempotencyKey)
+                                    : unauthorized("Invalid or revoked API key"));
+                })
+                .switchIfEmpty(Mono.defer(() -> error(HttpStatus.BAD_REQUEST, "Request body is required")))
+                .onErrorResume(ServiceOverloadedException.class, ex -> ServerResponse
+                        .status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()))
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(errorBody(HttpStatus.SERVICE_UNAVAILABLE, ex.getMessage())))
+                .onErrorResume(ConflictException.class, ex -> error(HttpStatus.CONFLICT, ex.getMessage()))
+                .onErrorResume(NotFoundException.class, ex -> error(HttpStatus.NOT_FOUND, ex.getMessage()))
+                .onErrorResume(IllegalArgumentException.class, ex -> error(HttpStatus.BAD_REQUEST, ex.getMessage()))
+                .onErrorResume(ResponseStatusException.class, ex ->
+                        error(HttpStatus.valueOf(ex.getStatusCode().value()), ex.getReason()));
+    }
+
+    private Mono<ServerResponse> admitKey(ChatRequest body, ApiKey key, String idempotencyKey) {
+        RateLimitService.Decision decision = rateLimitService.tryAcquire(key.getId(), key.getUserId());
+        Consumer<HttpHeaders> rateLimitHeaders = headers -> writeRateLimitHeaders(headers, decision);
+        if (!decision.allowed()) {
+            return ServerResponse.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .headers(rateLimitHeaders)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(decision.retryAfterSeconds()))
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(Map.of("error", "Rate limit exceeded"));
+        }
+        log.debug("API key authenticated: prefix={}", key.getKeyPrefix());
+        return stream(body, key.getId(), idempotencyKey, rateLimitHeaders);
+    }
+
+    private Mono<ServerResponse> stream(ChatRequest body, UUID apiKeyId, String idempotencyKey,
+                                       Consumer<HttpHeaders> extraHeaders) {
+        UUID userId = DefaultUserConfig.getDefaultUserId();
+        if (idempotencyKey != null) {
+            // The key table is JDBC
+            return Mono.fromCallable(() -> idempotencyService.claim(apiKeyId, idempotencyKey, body))
+                    .subscribeOn(persistenceScheduler)
+                    .flatMap(claim -> claim.isStarted()
+                            ? start(body, userId, apiKeyId, claim, extraHeaders)
+                            : eventStream(idempotencyService.replay(claim, apiKeyId, userId), extraHeaders));
+        }
+        Flux<byte[]> running = reactiveChatService.joinRunning(body, userId, apiKeyId);
+        if (running != null) {
+            return eventStream(running, extraHeaders);
+        }
+        return start(body, userId, apiKeyId, null, extraHeaders);
+    }
+
+    private Mono<ServerResponse> start(ChatRequest body, UUID userId, UUID apiKeyId, IdempotencyService.Claim claim,
+                                       Consumer<HttpHeaders> extraHeaders) {
+        // A completion-cache hit is replayed without waiting for an upstream permit
+        return reactiveChatService.prepare(body, apiKeyId)
+                .flatMap(turn -> turn.needsUpstream()
+                        ? reactiveChatService.admit(apiKeyId)
+                                .flatMap(permit -> eventStream(reactiveChatService.streamChat(
+                                        body, userId, apiKeyId, turn, permit, claim), extraHeaders))
+                        : eventStream(reactiveChatService.streamChat(
+                                body, userId, apiKeyId, turn, null, claim), extraHeaders))
+                .doOnError(e -> {
+                    if (claim != null) {
+                        idempotencyService.release(claim);
+                    }
+                });
+    }
+
+    private Mono<ServerResponse> eventStream(Flux<byte[]> frames, Consumer<HttpHeaders> extraHeaders) {
+        return ServerResponse.ok()
+                .contentType(MediaType.TEXT_EVENT_STREAM)
+                .header("Cache-Control", "no-cache")
+                .header("X-Accel-Buffering", "no")
+                .headers(extraHeaders)
+                .body(flushEachFrame(sseResponseWriter.withHeartbeats(frames)));
+    }
+
+    /**
+     * Write the already-encoded frames as they are, flushing after each one.
+     */
+    private static BodyInserter<Flux<byte[]>, ReactiveHttpOutputMessage> flushEachFrame(Flux<byte[]> frames) {
+        return (message, context) -> message.writeAndFlushWith(
+                frames.map(frame -> Mono.just(message.bufferFactory().wrap(frame))));
+    }
+
+    private String validate(ChatRequest body) {
+        var violations = validator.validate(body);
+        if (violations.isEmpty()) {
+            try {
+                contextManagementService.checkMessage(body.getMessage());
+                return null;
+            } catch (IllegalArgumentException e) {
+                return e.getMessage();
+            }
+        }
+        return violations.stream()
+                .map(v -> v.getPropertyPath() + ": " + v.getMessage())
+                .sorted()
+                .collect(Collectors.joining(", "));
+    }
+
+    private static String extractApiKey(ServerRequest.Headers headers) {
+        String header = headers.firstHeader(HttpHeaders.AUTHORIZATION);
+        if (StringUtils.hasText(header) && header.startsWith("Bearer ")) {
+            return header.substring(7);
+        }
+        String xApiKey = headers.firstHeader("X-API-Key");
+        if (StringUtils.hasText(xApiKey)) {
+            return xApiKey;
+        }
+        return null;
+    }
+
+    private static void writeRateLimitHeaders(HttpHeaders headers, RateLimitService.Decision decision) {
+        if (decision.requestLimit() > 0) {
+            headers.set("X-RateLimit-Limit-Requests", String.valueOf(decision.requestLimit()));
+            headers.set("X-RateLimit-Remaining-Requests", String.valueOf(decision.requestsRemaining()));
+            headers.set("X-RateLimit-Reset-Requests", decision.resetSeconds() + "s");
+        }
+        if (decision.tokenLimit() > 0) {
+            headers.set("X-RateLimit-Limit-Tokens", String.valueOf(decision.tokenLimit()));
+            headers.set("X-RateLimit-Remaining-Tokens", String.valueOf(decision.tokensRemaining()));
+        }
+    }
+
+    private static Mono<ServerResponse> unauthorized(String message) {
+        return ServerResponse.status(HttpStatus.UNAUTHORIZED)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("error", message));
+    }
+
+    private static Mono<ServerResponse> error(HttpStatus status, String message) {
+        return ServerResponse.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(errorBody(status, message));
+    }
+
+    // Same shape as GlobalExceptionHandler
+    private static Map<String, Object> errorBody(HttpStatus status, String message) {
+        return Map.of(
+                "error", message != null ? message : "Unknown error",
+                "status", status.value(),
+                "timestamp", OffsetDateTime.now().toString());
+    }
+}
@@ -3,6 +3,7 @@ package com.claudeplatform.controller;
 import com.claudeplatform.model.dto.SettingsRequest;
 import com.claudeplatform.model.dto.SettingsResponse;
 import com.claudeplatform.service.SettingsService;
+import com.claudeplatform.service.UpstreamPool;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -22,7 +23,9 @@ import java.util.Map;
 public class SettingsController {
 
     private final SettingsService settingsService;
-    private final WebClient claudeCodeApiClient;
+    private final WebClient claudeCodeApiControlClient;
+    // OAuth login state lives on one claude-code-api instance, so auth calls go to the primary
+    private final UpstreamPool upstreamPool;
     private final ObjectMapper objectMapper;
 
     @GetMapping
@@ -38,7 +41,7 @@ public class SettingsController {
     @GetMapping("/test-connection")
     public ResponseEntity<Map<String, Object>> testConnection() {
         try {
-            String result = claudeCodeApiClient.get()
+            String result = claudeCodeApiControlClient.get()
                     .uri("/health")
                     .retrieve()
                     .bodyToMono(String.class)
@@ -59,8 +62,9 @@ public class SettingsController {
     @GetMapping("/auth/status")
     public ResponseEntity<Map<String, Object>> authStatus() {
         try {
-            String result = claudeCodeApiClient.get()
+            String result = claudeCodeApiControlClient.get()
                     .uri("/auth/status")
+                    .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, upstreamPool.primary())
                     .retrieve()
                     .bodyToMono(String.class)
                     .block(java.time.Duration.ofSeconds(10));
@@ -77,8 +81,9 @@ public class SettingsController {
             Map<String, String> payload = body != null && body.containsKey("serverUrl")
                     ? Map.of("serverUrl", body.get("serverUrl"))
                     : Map.of();
-            String result = claudeCodeApiClient.post()
+            String result = claudeCodeApiControlClient.post()
                     .uri("/auth/login/start")
+                    .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, upstreamPool.primary())
                     .bodyValue(payload)
                     .retrieve()
                     .bodyToMono(String.class)
@@ -93,8 +98,9 @@ public class SettingsController {
     @PostMapping("/auth/login/code")
     public ResponseEntity<Map<String, Object>> authLoginCode(@RequestBody Map<String, String> body) {
         try {
-            String result = claudeCodeApiClient.post()
+            String result = claudeCodeApiControlClient.post()
                     .uri("/auth/login/code")
+                    .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, upstreamPool.primary())
                     .bodyValue(body)
                     .retrieve()
                     .bodyToMono(String.class)
@@ -135,8 +141,9 @@ public class SettingsController {
         log.info("OAuth callback received code (length={}), exchanging for tokens...", code.length());
 
         try {
-            String result = claudeCodeApiClient.post()
+            String result = claudeCodeApiControlClient.post()
                     .uri("/auth/login/code")
+                    .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, upstreamPool.primary())
                     .bodyValue(Map.of("code", code))
                     .retrieve()
                     .bodyToMono(String.class)
@@ -8,4 +8,7 @@ public class ApiKeyRequest {
     @NotBlank
     private String name;
     private String permissions;
+    private Integer rateLimitRpm;
+    private Integer rateLimitTpm;
+    private Boolean completionCache;
 }
@@ -16,6 +16,9 @@ public class ApiKeyResponse {
     private String keyPrefix;
     private String permissions;
     private Boolean isActive;
+    private Integer rateLimitRpm;
+    private Integer rateLimitTpm;
+    private Boolean completionCache;
     private OffsetDateTime lastUsedAt;
     private OffsetDateTime createdAt;
     private String fullKey; // Only returned on creation
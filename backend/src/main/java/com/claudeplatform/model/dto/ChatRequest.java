@@ -1,6 +1,7 @@
 package com.claudeplatform.model.dto;
 
 import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Positive;
 import jakarta.validation.constraints.Size;
 import lombok.Data;
 
@@ -17,6 +18,10 @@ public class ChatRequest {
     private String model;
     private List<ChatMessage> messages;
 
+    // Optional cap on context prompt tokens for latency-sensitive callers
+    @Positive(message = "Context budget must be positive")
+    private Integer contextBudgetTokens;
+
     @Data
     public static class ChatMessage {
         private String role;
@@ -29,6 +29,7 @@ public class ConversationDto {
         private String role;
         private String content;
         private Integer tokenCount;
+        private Boolean truncated;
         private OffsetDateTime createdAt;
     }
 }
@@ -24,8 +24,20 @@ public class ActiveSession {
     @Column(name = "session_id", nullable = false, unique = true)
     private String sessionId;
 
+    // claude-code-api instance holding the session (host:port)
+    private String endpoint;
+
     private String model;
 
+    // Conversation bound to this upstream session and the last message seq the session has seen
+    @Column(name = "conversation_id")
+    private UUID conversationId;
+
+    @Column(name = "last_seq")
+    private Long lastSeq;
+
+    private Integer turns;
+
     @CreationTimestamp
     @Column(name = "started_at")
     private OffsetDateTime startedAt;
@@ -37,6 +37,17 @@ public class ApiKey {
     @Builder.Default
     private Boolean isActive = true;
 
+    // Per-key overrides of the default rate limits; null means use the default
+    @Column(name = "rate_limit_rpm")
+    private Integer rateLimitRpm;
+
+    @Column(name = "rate_limit_tpm")
+    private Integer rateLimitTpm;
+
+    // Per-key completion cache switch; null means use the default
+    @Column(name = "completion_cache")
+    private Boolean completionCache;
+
     @Column(name = "last_used_at")
     private OffsetDateTime lastUsedAt;
 
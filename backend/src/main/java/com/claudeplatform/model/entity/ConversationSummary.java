@@ -27,6 +27,10 @@ public class ConversationSummary {
     @Column(name = "covered_until_message_id", nullable = false)
     private UUID coveredUntilMessageId;
 
+    @Column(name = "covered_until_seq", nullable = false)
+    @Builder.Default
+    private Long coveredUntilSeq = 0L;
+
     @Column(name = "covered_message_count", nullable = false)
     @Builder.Default
     private Integer coveredMessageCount = 0;
@@ -21,6 +21,10 @@ public class Message {
     @Column(name = "conversation_id", nullable = false)
     private UUID conversationId;
 
+    // Position within the conversation (1, 2, ...), assigned by WriteBehindService
+    @Column(nullable = false)
+    private Long seq;
+
     @Column(nullable = false)
     private String role;
 
@@ -31,6 +35,11 @@ public class Message {
     @Builder.Default
     private Integer tokenCount = 0;
 
+    // Reply cut short because the client disconnected before generation finished
+    @Column(nullable = false)
+    @Builder.Default
+    private Boolean truncated = false;
+
     @CreationTimestamp
     @Column(name = "created_at")
     private OffsetDateTime createdAt;
@@ -43,6 +43,25 @@ public class UsageLog {
     @Builder.Default
     private Long responseTimeMs = 0L;
 
+    @Column(name = "ttft_ms")
+    private Long ttftMs;
+
+    @Column(name = "context_tokens")
+    @Builder.Default
+    private Integer contextTokens = 0;
+
+    @Column(name = "cache_read_tokens")
+    @Builder.Default
+    private Integer cacheReadTokens = 0;
+
+    @Column(name = "cache_creation_tokens")
+    @Builder.Default
+    private Integer cacheCreationTokens = 0;
+
+    @Column(name = "usage_estimated")
+    @Builder.Default
+    private Boolean usageEstimated = false;
+
     @Builder.Default
     private String status = "SUCCESS";
 
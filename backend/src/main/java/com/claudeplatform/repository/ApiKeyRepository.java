@@ -2,6 +2,7 @@ package com.claudeplatform.repository;
 
 import com.claudeplatform.model.entity.ApiKey;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
 import java.util.List;
 import java.util.Optional;
@@ -11,4 +12,10 @@ public interface ApiKeyRepository extends JpaRepository<ApiKey, UUID> {
     List<ApiKey> findByUserIdAndIsActiveTrue(UUID userId);
     Optional<ApiKey> findByKeyHash(String keyHash);
     List<ApiKey> findByKeyPrefixAndIsActiveTrue(String keyPrefix);
+
+    @Query("SELECT k FROM ApiKey k WHERE k.isActive = true AND (k.rateLimitRpm IS NOT NULL OR k.rateLimitTpm IS NOT NULL)")
+    List<ApiKey> findActiveWithRateLimits();
+
+    @Query("SELECT k FROM ApiKey k WHERE k.isActive = true AND k.completionCache IS NOT NULL")
+    List<ApiKey> findActiveWithCompletionCache();
 }
@@ -1,22 +1,29 @@
 package com.claudeplatform.repository;
 
 import com.claudeplatform.model.entity.Message;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 
-import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 
 public interface MessageRepository extends JpaRepository<Message, UUID> {
-    List<Message> findByConversationIdOrderByCreatedAtAsc(UUID conversationId);
+    List<Message> findByConversationIdOrderBySeqAsc(UUID conversationId);
 
-    List<Message> findByConversationIdAndCreatedAtAfterOrderByCreatedAtAsc(
-            UUID conversationId, OffsetDateTime after);
+    List<Message> findByConversationIdAndSeqGreaterThanOrderBySeqAsc(UUID conversationId, long afterSeq);
 
-    @Query("SELECT COALESCE(SUM(m.tokenCount), 0) FROM Message m WHERE m.conversationId = :id AND m.createdAt > :after")
-    int sumTokenCountAfter(@Param("id") UUID conversationId, @Param("after") OffsetDateTime after);
+    /**
+     * Newest messages after {@code afterSeq}, newest first; walks the (conversation_id, seq) index backwards.
+     */
+    List<Message> findByConversationIdAndSeqGreaterThanOrderBySeqDesc(UUID conversationId, long afterSeq, Limit limit);
+
+    @Query("SELECT COALESCE(SUM(m.tokenCount), 0) FROM Message m WHERE m.conversationId = :id AND m.seq > :afterSeq")
+    int sumTokenCountAfterSeq(@Param("id") UUID conversationId, @Param("afterSeq") long afterSeq);
+
+    @Query("SELECT COALESCE(MAX(m.seq), 0) FROM Message m WHERE m.conversationId = :id")
+    long findMaxSeq(@Param("id") UUID conversationId);
 
     @Query("SELECT COALESCE(SUM(m.tokenCount), 0) FROM Message m WHERE m.conversationId = :id")
     int sumTokenCount(@Param("id") UUID conversationId);
@@ -0,0 +1,61 @@
+package com.claudeplatform.repository.reactive;
+
+import com.claudeplatform.model.entity.Conversation;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Conversation writes for the reactive chat path.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ReactiveConversationRepository {
+
+    private static final String INSERT =
+            "INSERT INTO conversations (id, user_id, title, model, created_at, updated_at) " +
+            "VALUES (:id, :userId, :title, :model, :createdAt, :createdAt)";
+
+    // Same statement as the write-behind touch
+    private static final String TOUCH =
+            "UPDATE conversations SET updated_at = :at, " +
+            "title = CASE WHEN title = 'New Conversation' THEN COALESCE(CAST(:title AS VARCHAR), title) ELSE title END " +
+            "WHERE id = :id";
+
+    private final DatabaseClient chatDatabaseClient;
+
+    public Mono<Conversation> insert(Conversation conversation) {
+        if (conversation.getId() == null) {
+            conversation.setId(UUID.randomUUID());
+        }
+        if (conversation.getCreatedAt() == null) {
+            conversation.setCreatedAt(OffsetDateTime.now());
+            conversation.setUpdatedAt(conversation.getCreatedAt());
+        }
+        return chatDatabaseClient.sql(INSERT)
+                .bind("id", conversation.getId())
+                .bind("userId", conversation.getUserId())
+                .bind("title", conversation.getTitle())
+                .bind("model", SqlParams.nullable(conversation.getModel(), String.class))
+                .bind("createdAt", conversation.getCreatedAt())
+                .then()
+                .thenReturn(conversation);
+    }
+
+    /**
+     * Bump updated_at, and set the title if the conversation still has the default one.
+     */
+    public Mono<Void> touch(UUID conversationId, String titleIfNew) {
+        return chatDatabaseClient.sql(TOUCH)
+                .bind("at", OffsetDateTime.now())
+                .bind("title", SqlParams.nullable(titleIfNew, String.class))
+                .bind("id", conversationId)
+                .then();
+    }
+}
@@ -0,0 +1,53 @@
+package com.claudeplatform.repository.reactive;
+
+import com.claudeplatform.model.entity.ConversationSummary;
+import io.r2dbc.spi.Readable;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Summary reads for the reactive chat path. Summaries are still written by the summarization
+ * worker through JPA.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ReactiveConversationSummaryRepository {
+
+    private static final String FIND_LATEST_BY_STATUS =
+            "SELECT id, conversation_id, summary_text, covered_until_message_id, covered_until_seq, " +
+            "covered_message_count, covered_token_count, summary_version, status, created_at " +
+            "FROM conversation_summaries WHERE conversation_id = :conversationId AND status = :status " +
+            "ORDER BY summary_version DESC LIMIT 1";
+
+    private final DatabaseClient chatDatabaseClient;
+
+    public Mono<ConversationSummary> findLatest(UUID conversationId, String status) {
+        return chatDatabaseClient.sql(FIND_LATEST_BY_STATUS)
+                .bind("conversationId", conversationId)
+                .bind("status", status)
+                .map(ReactiveConversationSummaryRepository::toSummary)
+                .one();
+    }
+
+    private static ConversationSummary toSummary(Readable row) {
+        return ConversationSummary.builder()
+                .id(row.get("id", UUID.class))
+                .conversationId(row.get("conversation_id", UUID.class))
+                .summaryText(row.get("summary_text", String.class))
+                .coveredUntilMessageId(row.get("covered_until_message_id", UUID.class))
+                .coveredUntilSeq(row.get("covered_until_seq", Long.class))
+                .coveredMessageCount(row.get("covered_message_count", Integer.class))
+                .coveredTokenCount(row.get("covered_token_count", Integer.class))
+                .summaryVersion(row.get("summary_version", Integer.class))
+                .status(row.get("status", String.class))
+                .createdAt(row.get("created_at", OffsetDateTime.class))
+                .build();
+    }
+}
@@ -0,0 +1,96 @@
+package com.claudeplatform.repository.reactive;
+
+import com.claudeplatform.model.entity.Message;
+import io.r2dbc.spi.Readable;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Message reads and writes for the reactive chat path.
+ * Inserts take the next sequence number in the statement itself, so they need no in-memory
+ * tracker; two writers racing for the same number get a unique violation and the loser retries.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ReactiveMessageRepository {
+
+    private static final int MAX_SEQ_RETRIES = 3;
+
+    private static final String INSERT_NEXT_SEQ =
+            "INSERT INTO messages (id, conversation_id, seq, role, content, token_count, truncated, created_at) " +
+            "VALUES (:id, :conversationId, " +
+            "(SELECT COALESCE(MAX(seq), 0) + 1 FROM messages WHERE conversation_id = :conversationId), " +
+            ":role, :content, :tokenCount, :truncated, :createdAt) RETURNING seq";
+
+    private static final String FIND_NEWEST_AFTER_SEQ =
+            "SELECT id, conversation_id, seq, role, content, token_count, truncated, created_at FROM messages " +
+            "WHERE conversation_id = :conversationId AND seq > :afterSeq ORDER BY seq DESC LIMIT :limit";
+
+    private static final String SUM_TOKENS_AFTER_SEQ =
+            "SELECT COALESCE(SUM(token_count), 0) FROM messages WHERE conversation_id = :conversationId AND seq > :afterSeq";
+
+    private final DatabaseClient chatDatabaseClient;
+
+    /**
+     * Insert a message as the last of its conversation; the assigned seq is set on the message
+     * and emitted.
+     */
+    public Mono<Long> insert(Message message) {
+        return chatDatabaseClient.sql(INSERT_NEXT_SEQ)
+                .bind("id", message.getId())
+                .bind("conversationId", message.getConversationId())
+                .bind("role", message.getRole())
+                .bind("content", message.getContent())
+                .bind("tokenCount", message.getTokenCount())
+                .bind("truncated", message.getTruncated())
+                .bind("createdAt", message.getCreatedAt())
+                .map(row -> row.get("seq", Long.class))
+                .one()
+                .retryWhen(Retry.max(MAX_SEQ_RETRIES).filter(DuplicateKeyException.class::isInstance))
+                .doOnNext(message::setSeq);
+    }
+
+    /**
+     * Newest messages after {@code afterSeq}, newest first; walks the (conversation_id, seq) index backwards.
+     */
+    public Flux<Message> findNewestAfterSeq(UUID conversationId, long afterSeq, int limit) {
+        return chatDatabaseClient.sql(FIND_NEWEST_AFTER_SEQ)
+                .bind("conversationId", conversationId)
+                .bind("afterSeq", afterSeq)
+                .bind("limit", limit)
+                .map(ReactiveMessageRepository::toMessage)
+                .all();
+    }
+
+    public Mono<Integer> sumTokenCountAfterSeq(UUID conversationId, long afterSeq) {
+        return chatDatabaseClient.sql(SUM_TOKENS_AFTER_SEQ)
+                .bind("conversationId", conversationId)
+                .bind("afterSeq", afterSeq)
+                .map(row -> row.get(0, Long.class))
+                .one()
+                .map(Long::intValue);
+    }
+
+    private static Message toMessage(Readable row) {
+        return Message.builder()
+                .id(row.get("id", UUID.class))
+                .conversationId(row.get("conversation_id", UUID.class))
+                .seq(row.get("seq", Long.class))
+                .role(row.get("role", String.class))
+                .content(row.get("content", String.class))
+                .tokenCount(row.get("token_count", Integer.class))
+                .truncated(row.get("truncated", Boolean.class))
+                .createdAt(row.get("created_at", OffsetDateTime.class))
+                .build();
+    }
+}
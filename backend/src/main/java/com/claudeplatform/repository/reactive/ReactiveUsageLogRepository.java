@@ -0,0 +1,49 @@
+package com.claudeplatform.repository.reactive;
+
+import com.claudeplatform.model.entity.UsageLog;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Mono;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Usage rows for the reactive chat path; same columns as the write-behind insert.
+ */
+@Repository
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ReactiveUsageLogRepository {
+
+    private static final String INSERT =
+            "INSERT INTO usage_logs (id, user_id, conversation_id, model, input_tokens, output_tokens, " +
+            "total_tokens, response_time_ms, ttft_ms, context_tokens, cache_read_tokens, cache_creation_tokens, " +
+            "usage_estimated, status, created_at) VALUES (:id, :userId, :conversationId, :model, :inputTokens, " +
+            ":outputTokens, :totalTokens, :responseTimeMs, :ttftMs, :contextTokens, :cacheReadTokens, " +
+            ":cacheCreationTokens, :usageEstimated, :status, :createdAt)";
+
+    private final DatabaseClient chatDatabaseClient;
+
+    public Mono<Void> insert(UsageLog u) {
+        return chatDatabaseClient.sql(INSERT)
+                .bind("id", u.getId() != null ? u.getId() : UUID.randomUUID())
+                .bind("userId", SqlParams.nullable(u.getUserId(), UUID.class))
+                .bind("conversationId", SqlParams.nullable(u.getConversationId(), UUID.class))
+                .bind("model", SqlParams.nullable(u.getModel(), String.class))
+                .bind("inputTokens", SqlParams.nullable(u.getInputTokens(), Integer.class))
+                .bind("outputTokens", SqlParams.nullable(u.getOutputTokens(), Integer.class))
+                .bind("totalTokens", SqlParams.nullable(u.getTotalTokens(), Integer.class))
+                .bind("responseTimeMs", SqlParams.nullable(u.getResponseTimeMs(), Long.class))
+                .bind("ttftMs", SqlParams.nullable(u.getTtftMs(), Long.class))
+                .bind("contextTokens", SqlParams.nullable(u.getContextTokens(), Integer.class))
+                .bind("cacheReadTokens", SqlParams.nullable(u.getCacheReadTokens(), Integer.class))
+                .bind("cacheCreationTokens", SqlParams.nullable(u.getCacheCreationTokens(), Integer.class))
+                .bind("usageEstimated", SqlParams.nullable(u.getUsageEstimated(), Boolean.class))
+                .bind("status", SqlParams.nullable(u.getStatus(), String.class))
+                .bind("createdAt", u.getCreatedAt() != null ? u.getCreatedAt() : OffsetDateTime.now())
+                .then();
+    }
+}
@@ -0,0 +1,19 @@
+package com.claudeplatform.repository.reactive;
+
+import io.r2dbc.spi.Parameters;
+
+/**
+ * Bind helpers for the DatabaseClient statements.
+ */
+final class SqlParams {
+
+    private SqlParams() {
+    }
+
+    /**
+     * The value, or a typed null; DatabaseClient rejects a plain null in bind().
+     */
+    static Object nullable(Object value, Class<?> type) {
+        return value != null ? value : Parameters.in(type);
+    }
+}
@@ -2,6 +2,7 @@ package com.claudeplatform.security;
 
 import com.claudeplatform.model.entity.ApiKey;
 import com.claudeplatform.repository.ApiKeyRepository;
+import com.claudeplatform.service.RateLimitService;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -27,7 +28,10 @@ import java.util.Optional;
 @Slf4j
 public class ApiKeyAuthFilter extends OncePerRequestFilter {
 
+    public static final String API_KEY_ID_ATTRIBUTE = "apiKeyId";
+
     private final ApiKeyRepository apiKeyRepository;
+    private final RateLimitService rateLimitService;
     private final AntPathMatcher pathMatcher = new AntPathMatcher();
 
     private static final List<String> PROTECTED_PATHS = List.of(
@@ -69,6 +73,14 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
         }
 
         ApiKey key = validated.get();
+        RateLimitService.Decision decision = rateLimitService.tryAcquire(key.getId(), key.getUserId());
+        writeRateLimitHeaders(response, decision);
+        if (!decision.allowed()) {
+            sendTooManyRequests(response, decision);
+            return;
+        }
+        request.setAttribute(API_KEY_ID_ATTRIBUTE, key.getId());
+
         var auth = new UsernamePasswordAuthenticationToken(
                 key.getUserId(), null,
                 List.of(new SimpleGrantedAuthority("ROLE_API_USER"))
@@ -111,6 +123,25 @@ public class ApiKeyAuthFilter extends OncePerRequestFilter {
         return null;
     }
 
+    private void writeRateLimitHeaders(HttpServletResponse response, RateLimitService.Decision decision) {
+        if (decision.requestLimit() > 0) {
+            response.setHeader("X-RateLimit-Limit-Requests", String.valueOf(decision.requestLimit()));
+            response.setHeader("X-RateLimit-Remaining-Requests", String.valueOf(decision.requestsRemaining()));
+            response.setHeader("X-RateLimit-Reset-Requests", decision.resetSeconds() + "s");
+        }
+        if (decision.tokenLimit() > 0) {
+            response.setHeader("X-RateLimit-Limit-Tokens", String.valueOf(decision.tokenLimit()));
+            response.setHeader("X-RateLimit-Remaining-Tokens", String.valueOf(decision.tokensRemaining()));
+        }
+    }
+
+    private void sendTooManyRequests(HttpServletResponse response, RateLimitService.Decision decision) throws IOException {
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf(decision.retryAfterSeconds()));
+        response.setContentType("application/json");
+        response.getWriter().write("{\"error\":\"Rate limit exceeded\"}");
+    }
+
     private void sendUnauthorized(HttpServletResponse response, String message) throws IOException {
         response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
         response.setContentType("application/json");
@@ -32,6 +32,9 @@ public class ApiKeyService {
                 .keyHash(keyHash)
                 .keyPrefix(keyPrefix)
                 .permissions(request.getPermissions() != null ? request.getPermissions() : "READ_WRITE")
+                .rateLimitRpm(request.getRateLimitRpm())
+                .rateLimitTpm(request.getRateLimitTpm())
+                .completionCache(request.getCompletionCache())
                 .build();
 
         apiKey = apiKeyRepository.save(apiKey);
@@ -42,6 +45,9 @@ public class ApiKeyService {
                 .keyPrefix(apiKey.getKeyPrefix())
                 .permissions(apiKey.getPermissions())
                 .isActive(apiKey.getIsActive())
+                .rateLimitRpm(apiKey.getRateLimitRpm())
+                .rateLimitTpm(apiKey.getRateLimitTpm())
+                .completionCache(apiKey.getCompletionCache())
                 .createdAt(apiKey.getCreatedAt())
                 .fullKey(rawKey) // Only returned on creation
                 .build();
@@ -56,6 +62,9 @@ public class ApiKeyService {
                         .keyPrefix(k.getKeyPrefix())
                         .permissions(k.getPermissions())
                         .isActive(k.getIsActive())
+                        .rateLimitRpm(k.getRateLimitRpm())
+                        .rateLimitTpm(k.getRateLimitTpm())
+                        .completionCache(k.getCompletionCache())
                         .lastUsedAt(k.getLastUsedAt())
                         .createdAt(k.getCreatedAt())
                         .build())
@@ -0,0 +1,314 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process byte-level BPE token counter, used for context budgets, the summarization threshold
+ * and usage estimates when upstream reports none.
+ * Text is split into word/number/space/symbol chunks by a hand-written scanner (no regex), each
+ * chunk's UTF-8 bytes are merged by rank using the table in tokenizer/bpe-merges.txt, and the
+ * number of remaining symbols is the count. The merge table lives in two primitive arrays
+ * (open addressing on the packed pair), so counting allocates almost nothing.
+ * The vocabulary is ours (see backend/scripts/train_bpe_merges.py), not the model's, so counts
+ * are estimates; they track Korean text and code far better than a chars/4 rule.
+ * Counts of longer texts are cached by a 128-bit hash of their content, so a message kept in
+ * context is only tokenized once and two texts only share an entry if both 64-bit halves collide.
+ */
+@Component
+public class BpeTokenizer {
+
+    private static final String MERGES_RESOURCE = "tokenizer/bpe-merges.txt";
+    private static final int MAX_CHUNK_BYTES = 64;
+    private static final int CACHE_MIN_LENGTH = 32;
+    private static final long EMPTY = -1L;
+    private static final long SEED1 = 0xcbf29ce484222325L;
+    private static final long SEED2 = 0x9e3779b97f4a7c15L;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long[] pairKeys;
+    private final int[] pairRanks;
+    private final int pairMask;
+
+    // Direct-mapped count cache; entries are immutable, so a racing reader sees a whole one or none
+    private final AtomicReferenceArray<CachedCount> countCache;
+    private final int cacheMask;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public BpeTokenizer(MeterRegistry meterRegistry,
+                        @Value("${app.tokenizer.cache-size:65536}") int cacheSize) {
+        int[] merges = loadMerges();
+        int pairs = merges.length / 2;
+        int capacity = Integer.highestOneBit(Math.max(16, pairs * 2 - 1)) << 1;
+        this.pairKeys = new long[capacity];
+        this.pairRanks = new int[capacity];
+        this.pairMask = capacity - 1;
+        Arrays.fill(pairKeys, EMPTY);
+        for (int rank = 0; rank < pairs; rank++) {
+            long key = pairKey(merges[2 * rank], merges[2 * rank + 1]);
+            int slot = (int) mix(key) & pairMask;
+            while (pairKeys[slot] != EMPTY) {
+                slot = (slot + 1) & pairMask;
+            }
+            pairKeys[slot] = key;
+            pairRanks[slot] = rank;
+        }
+
+        int slots = Integer.highestOneBit(Math.max(1024, cacheSize));
+        this.countCache = new AtomicReferenceArray<>(slots);
+        this.cacheMask = slots - 1;
+        FunctionCounter.builder("tokenizer.cache.requests", cacheHits, LongAdder::sum)
+                .tag("result", "hit").register(meterRegistry);
+        FunctionCounter.builder("tokenizer.cache.requests", cacheMisses, LongAdder::sum)
+                .tag("result", "miss").register(meterRegistry);
+    }
+
+    /**
+     * Estimated number of tokens in {@code text}.
+     */
+    public int countTokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        if (text.length() < CACHE_MIN_LENGTH) {
+            return countUncached(text);
+        }
+        // Two independent 64-bit lanes over the content, four chars per step; a pass over the
+        // chars is far cheaper than tokenizing them
+        int n = text.length();
+        long h1 = SEED1;
+        long h2 = SEED2;
+        for (int i = 0; i < n; i += 4) {
+            long word = text.charAt(i);
+            for (int j = 1; j < 4 && i + j < n; j++) {
+                word |= (long) text.charAt(i + j) << (16 * j);
+            }
+            h1 = Long.rotateLeft(h1 ^ word * C1, 31) * C2;
+            h2 = Long.rotateLeft(h2 + word * C2, 29) * C1;
+        }
+        long hashHi = mix(h1 ^ n);
+        long hashLo = mix(h2 + n);
+        int slot = (int) hashLo & cacheMask;
+        CachedCount entry = countCache.get(slot);
+        if (entry != null && entry.hashHi == hashHi && entry.hashLo == hashLo) {
+            cacheHits.increment();
+            return entry.count;
+        }
+        cacheMisses.increment();
+        int count = countUncached(text);
+        countCache.lazySet(slot, new CachedCount(hashHi, hashLo, count));
+        return count;
+    }
+
+    int countUncached(String text) {
+        int[] buf = new int[MAX_CHUNK_BYTES];
+        int[] ranks = new int[MAX_CHUNK_BYTES];
+        int total = 0;
+        int n = text.length();
+        int i = 0;
+        while (i < n) {
+            int end = chunkEnd(text, i);
+            total += countChunk(text, i, end, buf, ranks);
+            i = end;
+        }
+        return total;
+    }
+
+    /**
+     * End of the chunk starting at {@code start}: an optional leading space plus letters, up to
+     * three digits, a whitespace run (leaving a final space to lead the next word), or a run of
+     * anything else. Must match chunks() in train_bpe_merges.py.
+     */
+    private static int chunkEnd(String text, int start) {
+        int n = text.length();
+        int cp = text.codePointAt(start);
+        int i = start;
+        if (cp == ' ' && i + 1 < n && Character.isLetter(text.codePointAt(i + 1))) {
+            i++;
+            return skipLetters(text, i);
+        }
+        if (Character.isLetter(cp)) {
+            return skipLetters(text, i);
+        }
+        if (Character.isDigit(cp)) {
+            int digits = 0;
+            while (i < n && digits < 3 && Character.isDigit(text.codePointAt(i))) {
+                i += Character.charCount(text.codePointAt(i));
+                digits++;
+            }
+            return i;
+        }
+        if (Character.isWhitespace(cp)) {
+            while (i < n && Character.isWhitespace(text.charAt(i))) {
+                i++;
+            }
+            if (i < n && i - start > 1 && text.charAt(i - 1) == ' ' && Character.isLetter(text.codePointAt(i))) {
+                i--;
+            }
+            return i;
+        }
+        while (i < n) {
+            int c = text.codePointAt(i);
+            if (Character.isLetter(c) || Character.isDigit(c) || Character.isWhitespace(c)) {
+                break;
+            }
+            i += Character.charCount(c);
+        }
+        return i;
+    }
+
+    private static int skipLetters(String text, int i) {
+        int n = text.length();
+        while (i < n) {
+            int cp = text.codePointAt(i);
+            if (!Character.isLetter(cp)) {
+                break;
+            }
+            i += Character.charCount(cp);
+        }
+        return i;
+    }
+
+    // UTF-8 encode chars [start, end) into 64-byte pieces and BPE each piece
+    private int countChunk(String text, int start, int end, int[] buf, int[] ranks) {
+        int tokens = 0;
+        int len = 0;
+        for (int i = start; i < end; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            int lead;
+            int continuation;
+            if (cp < 0x80) {
+                lead = cp;
+                continuation = 0;
+            } else if (cp < 0x800) {
+                lead = 0xC0 | (cp >> 6);
+                continuation = 1;
+            } else if (cp < 0x10000) {
+                lead = 0xE0 | (cp >> 12);
+                continuation = 2;
+            } else {
+                lead = 0xF0 | (cp >> 18);
+                continuation = 3;
+            }
+            if (len == MAX_CHUNK_BYTES) {
+                tokens += merge(buf, len, ranks);
+                len = 0;
+            }
+            buf[len++] = lead;
+            for (int shift = 6 * (continuation - 1); shift >= 0; shift -= 6) {
+                if (len == MAX_CHUNK_BYTES) {
+                    tokens += merge(buf, len, ranks);
+                    len = 0;
+                }
+                buf[len++] = 0x80 | ((cp >> shift) & 0x3F);
+            }
+        }
+        return tokens + merge(buf, len, ranks);
+    }
+
+    /**
+     * Apply merges to {@code buf[0, len)} in rank order and return the number of symbols left.
+     * Always merges the leftmost lowest-rank pair; a merge only creates pairs of higher rank,
+     * so only the two neighbouring pair ranks need to be looked up again.
+     */
+    private int merge(int[] buf, int len, int[] ranks) {
+        for (int i = 0; i + 1 < len; i++) {
+            ranks[i] = rank(buf[i], buf[i + 1]);
+        }
+        while (len > 1) {
+            int bestRank = Integer.MAX_VALUE;
+            int pos = -1;
+            for (int i = 0; i + 1 < len; i++) {
+                if (ranks[i] < bestRank) {
+                    bestRank = ranks[i];
+                    pos = i;
+                }
+            }
+            if (pos < 0) {
+                break;
+            }
+            buf[pos] = 256 + bestRank;
+            System.arraycopy(buf, pos + 2, buf, pos + 1, len - pos - 2);
+            if (len - pos - 3 > 0) {
+                System.arraycopy(ranks, pos + 2, ranks, pos + 1, len - pos - 3);
+            }
+            len--;
+            if (pos > 0) {
+                ranks[pos - 1] = rank(buf[pos - 1], buf[pos]);
+            }
+            if (pos + 1 < len) {
+                ranks[pos] = rank(buf[pos], buf[pos + 1]);
+            }
+        }
+        return len;
+    }
+
+    private int rank(int left, int right) {
+        long key = pairKey(left, right);
+        int slot = (int) mix(key) & pairMask;
+        while (true) {
+            long k = pairKeys[slot];
+            if (k == key) {
+                return pairRanks[slot];
+            }
+            if (k == EMPTY) {
+                return Integer.MAX_VALUE;
+            }
+            slot = (slot + 1) & pairMask;
+        }
+    }
+
+    private static long pairKey(int left, int right) {
+        return ((long) left << 32) | right;
+    }
+
+    private record CachedCount(long hashHi, long hashLo, int count) {
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static int[] loadMerges() {
+        int[] merges = new int[16384];
+        int n = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ClassPathResource(MERGES_RESOURCE).getInputStream(), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank() || line.charAt(0) == '#') {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                if (n + 2 > merges.length) {
+                    merges = Arrays.copyOf(merges, merges.length * 2);
+                }
+                merges[n++] = Integer.parseInt(line, 0, space, 10);
+                merges[n++] = Integer.parseInt(line, space + 1, line.length(), 10);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load " + MERGES_RESOURCE, e);
+        }
+        return Arrays.copyOf(merges, n);
+    }
+}
@@ -1,174 +1,164 @@
 package com.claudeplatform.service;
 
 import com.claudeplatform.model.dto.ChatRequest;
-import com.claudeplatform.model.entity.Conversation;
+import com.claudeplatform.model.entity.Message;
 import com.claudeplatform.model.entity.UsageLog;
-import com.claudeplatform.repository.ConversationRepository;
-import com.claudeplatform.repository.UsageLogRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.scheduler.Schedulers;
+import reactor.core.scheduler.Scheduler;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
-import java.time.Duration;
-import java.util.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class ChatProxyService {
 
-    private final WebClient claudeCodeApiClient;
+    private final UpstreamChatClient upstreamChatClient;
     private final ConversationService conversationService;
-    private final ConversationRepository conversationRepository;
-    private final UsageLogRepository usageLogRepository;
+    private final WriteBehindService writeBehindService;
+    private final UpstreamConcurrencyLimiter concurrencyLimiter;
     private final ContextManagementService contextManagementService;
+    private final RateLimitService rateLimitService;
+    private final SummarizationJobService summarizationJobService;
+    private final Scheduler persistenceScheduler;
+    private final SseFrames sseFrames;
+    private final SseCoalescer sseCoalescer;
+    private final ChatStreamRegistry chatStreamRegistry;
+    private final IdempotencyService idempotencyService;
+    private final CompletionCache completionCache;
+    private final UpstreamSessionService upstreamSessionService;
+    private final ChatTurnFinalizer chatTurnFinalizer;
+
+    /**
+     * Start a chat turn, or attach to it if the same request is still generating (another tab, a
+     * client retry). Admission to the upstream happens here, on the caller's thread, so an
+     * overloaded upstream surfaces as a plain 503 before any SSE response has been committed (and a
+     * message too large for the model as a 400). The context is built and the completion cache
+     * checked first: a hit is replayed without waiting for an upstream slot.
+     *
+     * @param apiKeyId       the authenticating API key, or null for the web UI; its token bucket is
+     *                       charged once the response is complete
+     * @param idempotencyKey the request's Idempotency-Key, or null; a retry with the same key gets
+     *                       the first request's stream or stored response instead of a new turn
+     */
+    public Flux<byte[]> streamChat(ChatRequest request, UUID userId, UUID apiKeyId, String idempotencyKey) {
+        contextManagementService.checkMessage(request.getMessage());
+        IdempotencyService.Claim claim = idempotencyKey != null && idempotencyService.isEnabled()
+                ? idempotencyService.claim(apiKeyId, idempotencyKey, request)
+                : null;
+        if (claim != null && !claim.isStarted()) {
+            return idempotencyService.replay(claim, apiKeyId, userId);
+        }
+        UUID streamId = claim != null ? claim.streamId() : UUID.randomUUID();
+        // A keyed request is already deduplicated by its key
+        ChatStreamRegistry.TurnKey turn = claim == null ? chatStreamRegistry.turnKey(request, apiKeyId, userId) : null;
+        Flux<byte[]> frames = chatStreamRegistry.open(streamId, apiKeyId, userId, turn, () -> {
+            UpstreamConcurrencyLimiter.Permit permit = null;
+            try {
+                Prepared prepared = prepare(request, apiKeyId);
+                if (prepared.cached() == null) {
+                    permit = concurrencyLimiter.acquire(apiKeyId != null
+                            ? UpstreamConcurrencyLimiter.Priority.API
+                            : UpstreamConcurrencyLimiter.Priority.INTERACTIVE);
+                }
+                return streamChat(request, userId, apiKeyId, prepared, permit, streamId, claim);
+            } catch (RuntimeException e) {
+                if (permit != null) {
+                    permit.release(UpstreamConcurrencyLimiter.Outcome.IGNORED);
+                }
+                if (claim != null) {
+                    idempotencyService.release(claim);
+                }
+                throw e;
+            }
+        });
+        return sseCoalescer.coalesce(frames, streamId);
+    }
 
-    public Flux<String> streamChat(ChatRequest request, UUID userId) {
+    /**
+     * A turn's context and upstream request, built before admission.
+     *
+     * @param cacheKey completion-cache key, or null when the caller does not use the cache
+     * @param cached   the cached response, or null
+     */
+    private record Prepared(String model, ContextPacker.PackedContext context, Map<String, Object> body,
+                            CompletionCache.Key cacheKey, CompletionCache.Hit cached) {
+    }
+
+    /**
+     * Build the context (a new conversation has none yet) and look the request up in the
+     * completion cache.
+     */
+    private Prepared prepare(ChatRequest request, UUID apiKeyId) {
+        String model = request.getModel() != null ? request.getModel() : UpstreamChatClient.DEFAULT_MODEL;
+        ContextPacker.PackedContext context = request.getConversationId() != null
+                ? contextManagementService.buildContextPrompt(request.getConversationId(), model,
+                        request.getContextBudgetTokens(), request.getMessage())
+                : contextManagementService.buildContextPrompt(ConversationContextCache.Snapshot.EMPTY, model,
+                        request.getContextBudgetTokens(), request.getMessage());
+        Map<String, Object> body = upstreamChatClient.requestBody(request, model, context);
+        CompletionCache.Key cacheKey = completionCache.keyFor(apiKeyId, model, body);
+        return new Prepared(model, context, body, cacheKey, cacheKey != null ? completionCache.get(cacheKey) : null);
+    }
+
+    /**
+     * @param permit the upstream permit, or null when the turn is answered from the cache
+     */
+    private Flux<byte[]> streamChat(ChatRequest request, UUID userId, UUID apiKeyId, Prepared prepared,
+                                    UpstreamConcurrencyLimiter.Permit permit, UUID streamId,
+                                    IdempotencyService.Claim claim) {
         UUID conversationId = request.getConversationId();
-        String model = request.getModel() != null ? request.getModel() : "claude-haiku-4-5-20251001";
+        String model = prepared.model();
 
         if (conversationId == null) {
             var conversation = conversationService.createConversation(userId, null, model);
             conversationId = conversation.getId();
         }
 
-        conversationService.saveMessage(conversationId, "user", request.getMessage());
-
-        Map<String, Object> body = new HashMap<>();
-        body.put("model", model);
-        body.put("stream", true);
-
-        List<Map<String, String>> messages = new ArrayList<>();
-        if (request.getMessages() != null) {
-            for (var msg : request.getMessages()) {
-                messages.add(Map.of("role", msg.getRole(), "content", msg.getContent()));
-            }
-        }
         final UUID finalConversationId = conversationId;
 
-        String contextPrompt = contextManagementService.buildContextPrompt(
-                finalConversationId, request.getMessage());
-        messages.add(Map.of("role", "user", "content", contextPrompt));
-        body.put("messages", messages);
+        ContextPacker.PackedContext context = prepared.context();
+        Message userMessage = conversationService.queueMessage(finalConversationId, "user", request.getMessage());
+        Map<String, Object> body = prepared.body();
         final long startTime = System.currentTimeMillis();
-        StringBuffer responseAccumulator = new StringBuffer();
-
-        // Send conversationId as first SSE event so frontend can track it
-        // Raw JSON only - Spring SSE serializer adds "data: " prefix and "\n\n" automatically
-        Flux<String> metadataFlux = Flux.just(
-                "{\"metadata\":{\"conversationId\":\"" + finalConversationId + "\"}}");
-
-        Flux<String> chatFlux = claudeCodeApiClient.post()
-                .uri("/v1/chat/completions")
-                .contentType(MediaType.APPLICATION_JSON)
-                .bodyValue(body)
-                .exchangeToFlux(response -> {
-                    if (response.statusCode().is2xxSuccessful()) {
-                        return response.bodyToFlux(String.class);
-                    }
-                    // Non-2xx: read body and return as SSE error
-                    return response.bodyToMono(String.class)
-                            .defaultIfEmpty("{\"error\":\"Unknown error\"}")
-                            .flatMapMany(errorBody -> {
-                                log.error("Claude API error: HTTP {} - {}", response.statusCode(), errorBody);
-                                // Try to extract the actual error message from JSON
-                                String errorMsg = "API error (HTTP " + response.statusCode().value() + ")";
-                                String errorType = "api_error";
-                                try {
-                                    ObjectMapper mapper = new ObjectMapper();
-                                    JsonNode root = mapper.readTree(errorBody);
-                                    JsonNode detail = root.path("detail");
-                                    if (detail.isObject() && detail.has("error")) {
-                                        JsonNode err = detail.path("error");
-                                        if (err.has("message")) errorMsg = err.path("message").asText();
-                                        if (err.has("type")) errorType = err.path("type").asText();
-                                    } else if (root.has("error")) {
-                                        JsonNode err = root.path("error");
-                                        if (err.isObject() && err.has("message")) {
-                                            errorMsg = err.path("message").asText();
-                                            if (err.has("type")) errorType = err.path("type").asText();
-                                        } else if (err.isTextual()) {
-                                            errorMsg = err.asText();
-                                        }
-                                    } else if (root.has("detail") && detail.isTextual()) {
-                                        errorMsg = detail.asText();
-                                    }
-                                } catch (Exception e) {
-                                    log.warn("Failed to parse error body", e);
-                                }
-                                String safeMsg = errorMsg
-                                        .replace("\\", "\\\\")
-                                        .replace("\"", "\\\"")
-                                        .replace("\n", " ");
-                                // Return raw JSON payloads - Spring SSE serializer adds "data:" prefix
-                                String errorJson = "{\"error\":{\"message\":\"" + safeMsg +
-                                        "\",\"type\":\"" + errorType + "\"}}";
-                                return Flux.just(errorJson, "[DONE]");
-                            });
-                })
-                .timeout(Duration.ofMinutes(5))
-                .doOnNext(chunk -> {
-                    // WebClient strips the "data:" SSE prefix, so chunk is raw JSON
-                    // Extract delta.content from OpenAI-compatible SSE chunks
-                    String trimmed = chunk.trim();
-                    if (trimmed.isEmpty() || "[DONE]".equals(trimmed)) return;
-                    try {
-                        ObjectMapper mapper = new ObjectMapper();
-                        JsonNode root = mapper.readTree(trimmed);
-                        JsonNode delta = root.path("choices").path(0).path("delta");
-                        String content = delta.path("content").asText(null);
-                        if (content != null) {
-                            responseAccumulator.append(content);
-                        }
-                    } catch (Exception e) {
-                        // Not a valid SSE chunk, skip
-                    }
-                })
-                .doOnComplete(() -> {
-                    Mono.fromRunnable(() -> {
-                        String fullResponse = responseAccumulator.toString();
-                        long elapsed = System.currentTimeMillis() - startTime;
+        final long startNanos = System.nanoTime();
+        StreamAccumulator accumulator = new StreamAccumulator();
+        Turn turn = new Turn(request, userId, apiKeyId, finalConversationId, model, context, accumulator,
+                startTime, startNanos);
+        AtomicReference<UpstreamConcurrencyLimiter.Outcome> upstreamOutcome =
+                new AtomicReference<>(UpstreamConcurrencyLimiter.Outcome.SUCCESS);
 
-                        conversationService.saveMessage(finalConversationId, "assistant", fullResponse);
-
-                        Conversation conv = conversationRepository.findById(finalConversationId).orElse(null);
-                        if (conv != null && "New Conversation".equals(conv.getTitle())) {
-                            String title = request.getMessage();
-                            if (title.length() > 50) {
-                                title = title.substring(0, 50) + "...";
-                            }
-                            conv.setTitle(title);
-                            conversationRepository.save(conv);
-                        }
-
-                        // Trigger async summarization if threshold exceeded
-                        if (contextManagementService.shouldSummarize(finalConversationId)) {
-                            contextManagementService.triggerSummarizationAsync(finalConversationId);
-                        }
-
-                        int inputTokens = estimateTokens(request.getMessage());
-                        int outputTokens = estimateTokens(fullResponse);
-                        UsageLog usageLog = UsageLog.builder()
-                                .userId(userId)
-                                .conversationId(finalConversationId)
-                                .model(model)
-                                .inputTokens(inputTokens)
-                                .outputTokens(outputTokens)
-                                .totalTokens(inputTokens + outputTokens)
-                                .responseTimeMs(elapsed)
-                                .status("SUCCESS")
-                                .build();
-                        usageLogRepository.save(usageLog);
-                    }).subscribeOn(Schedulers.boundedElastic()).subscribe();
-                })
+        // Send conversationId (and the id to resume the stream with) as first SSE event so frontend can track it
+        Flux<byte[]> metadataFlux = Flux.just(sseFrames.metadata(finalConversationId,
+                chatStreamRegistry.isEnabled() ? streamId : null));
+
+        if (prepared.cached() != null) {
+            return replayCached(turn, prepared.cached(), metadataFlux, claim);
+        }
+        CompletionCache.Fill fill = prepared.cacheKey() != null ? completionCache.fill(prepared.cacheKey()) : null;
+        UpstreamSessionService.Session session =
+                upstreamSessionService.acquire(finalConversationId, model, userMessage.getSeq() - 1);
+        Flux<byte[]> upstream = session != null
+                ? upstreamChatClient.stream(upstreamChatClient.sessionRequestBody(request, model, session.id()),
+                        session.endpoint(), body, accumulator, permit, upstreamOutcome,
+                        () -> upstreamSessionService.unavailable(finalConversationId, session))
+                : upstreamChatClient.stream(body, accumulator, permit, upstreamOutcome);
+        if (fill != null) {
+            upstream = upstream.doOnNext(fill::capture);
+        }
+        ChatTurnFinalizer.Upstream settled = new ChatTurnFinalizer.Upstream(finalConversationId, accumulator,
+                permit, upstreamOutcome, fill, claim, session);
+
+        Flux<byte[]> chatFlux = upstream
+                .doFinally(signal -> chatTurnFinalizer.finish(signal, settled, (cancelled, succeeded) ->
+                        Mono.fromRunnable(() -> recordTurn(turn, cancelled, succeeded))
+                                .subscribeOn(persistenceScheduler).subscribe()))
                 .doOnError(error -> {
                     log.error("Chat streaming error", error);
                     Mono.fromRunnable(() -> {
@@ -178,27 +168,93 @@ public class ChatProxyService {
                                 .conversationId(finalConversationId)
                                 .model(model)
                                 .responseTimeMs(elapsed)
+                                .ttftMs(accumulator.timeToFirstTokenMs(startNanos))
+                                .contextTokens(context.tokens())
                                 .status("ERROR")
                                 .build();
-                        usageLogRepository.save(usageLog);
-                    }).subscribeOn(Schedulers.boundedElastic()).subscribe();
+                        writeBehindService.enqueueUsage(usageLog, null);
+                    }).subscribeOn(persistenceScheduler).subscribe();
                 })
                 .onErrorResume(error -> {
                     log.error("Chat error, returning SSE error", error);
-                    String msg = error.getMessage() != null ? error.getMessage() : "Connection error";
-                    String safeMsg = msg.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", " ");
-                    if (safeMsg.length() > 300) {
-                        safeMsg = safeMsg.substring(0, 300);
-                    }
-                    // Return raw JSON payloads - Spring SSE serializer adds "data:" prefix
-                    String errorJson = "{\"error\":{\"message\":\"" + safeMsg + "\",\"type\":\"stream_error\"}}";
-                    return Flux.just(errorJson, "[DONE]");
+                    return upstreamChatClient.streamErrorFrames(error);
                 });
 
-        return Flux.concat(metadataFlux, chatFlux);
+        Flux<byte[]> frames = Flux.concat(metadataFlux, chatFlux);
+        return claim != null ? frames.doOnNext(claim::capture) : frames;
     }
 
-    private int estimateTokens(String text) {
-        return text != null ? text.length() / 4 : 0;
+    /**
+     * Answer a turn from the completion cache: the stored frames go out in one write and the turn
+     * is recorded like any other, minus the upstream tokens it did not use.
+     */
+    private Flux<byte[]> replayCached(Turn turn, CompletionCache.Hit hit, Flux<byte[]> metadataFlux,
+                                      IdempotencyService.Claim claim) {
+        log.debug("Chat turn for conversation {} answered from the completion cache", turn.conversationId());
+        Flux<byte[]> frames = Flux.concat(metadataFlux, Flux.just(hit.frames()));
+        if (claim != null) {
+            frames = frames.doOnNext(claim::capture);
+        }
+        return frames.doFinally(signal -> chatTurnFinalizer.finishCached(signal, claim, () ->
+                Mono.fromRunnable(() -> recordTurn(turn, hit.content(), "CACHED", false))
+                        .subscribeOn(persistenceScheduler).subscribe()));
+    }
+
+    /**
+     * Everything needed to record a turn once its stream ends.
+     */
+    private record Turn(ChatRequest request, UUID userId, UUID apiKeyId, UUID conversationId, String model,
+                        ContextPacker.PackedContext context, StreamAccumulator accumulator,
+                        long startTime, long startNanos) {
+    }
+
+    private void recordTurn(Turn turn, boolean cancelled, boolean succeeded) {
+        recordTurn(turn, turn.accumulator().contentAsString(), cancelled ? "CANCELLED" : "SUCCESS", succeeded);
+    }
+
+    /**
+     * Store the assistant reply, touch the conversation and log usage. A cancelled turn keeps
+     * whatever was generated before the client went away, flagged as truncated. A CACHED turn
+     * used no upstream tokens, so its usage row has none and the key's token bucket is not charged.
+     *
+     * @param bindSession whether the turn succeeded on the session that served it, which then
+     *                    becomes the conversation's
+     */
+    private void recordTurn(Turn turn, String fullResponse, String status, boolean bindSession) {
+        boolean cancelled = "CANCELLED".equals(status);
+        long elapsed = System.currentTimeMillis() - turn.startTime();
+        UUID conversationId = turn.conversationId();
+
+        if (!cancelled || !fullResponse.isEmpty()) {
+            Message reply = conversationService.queueMessage(conversationId, "assistant", fullResponse, cancelled);
+            if (bindSession) {
+                upstreamSessionService.bind(conversationId, turn.userId(), turn.model(),
+                        UpstreamSessionService.served(turn.accumulator()), reply.getSeq());
+            }
+        }
+
+        writeBehindService.enqueueConversationTouch(conversationId,
+                UpstreamChatClient.titleFor(turn.request().getMessage()));
+
+        UsageLog usageLog = UsageLog.builder()
+                .userId(turn.userId())
+                .conversationId(conversationId)
+                .model(turn.model())
+                .responseTimeMs(elapsed)
+                .ttftMs(turn.accumulator().timeToFirstTokenMs(turn.startNanos()))
+                .contextTokens(turn.context().tokens())
+                .status(status)
+                .build();
+        if (!"CACHED".equals(status)) {
+            upstreamChatClient.applyTokenUsage(usageLog, turn.accumulator(), turn.request(), turn.context(),
+                    fullResponse);
+            rateLimitService.recordTokens(turn.apiKeyId(), turn.userId(), usageLog.getTotalTokens());
+        }
+        // Queue a summarization job if threshold exceeded, once the turn is committed
+        writeBehindService.enqueueUsage(usageLog, () -> {
+            if (contextManagementService.shouldSummarize(conversationId)) {
+                summarizationJobService.enqueue(conversationId);
+            }
+        });
     }
 }
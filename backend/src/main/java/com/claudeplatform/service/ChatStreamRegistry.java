@@ -0,0 +1,481 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ConflictException;
+import com.claudeplatform.exception.NotFoundException;
+import com.claudeplatform.model.dto.ChatRequest;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps in-flight chat streams resumable. Each registered stream is consumed by the registry
+ * rather than by the response, its events are numbered ("id:" lines) and kept in a per-stream
+ * ring, and clients attach to it: the first one from the start, a reconnecting one after the
+ * Last-Event-ID it last saw, replaying what it missed before following the live tail.
+ * When the last client detaches the upstream is cancelled as before, unless a grace period is
+ * configured, in which case generation keeps going that long so a dropped connection can come
+ * back. A finished stream
+ * stays replayable for a TTL. Ring memory is capped per stream and in total; over the total,
+ * finished streams are dropped first (oldest first), then the oldest events of the growing one.
+ * A stream is also indexed by its turn while it runs, so the same request arriving again (a
+ * second tab, a client retry) attaches to the running generation instead of starting another.
+ * Every client has its own buffer, so a slow one holds up neither the upstream nor the others.
+ * That buffer is bounded: a client that falls further behind is dropped (its response ends after
+ * what it already has) and picks up again from the ring with Last-Event-ID.
+ */
+@Component
+@Slf4j
+public class ChatStreamRegistry {
+
+    private static final long DROPPED_RECONNECT_MS = 10000;
+
+    private final SseFrames sseFrames;
+    private final boolean enabled;
+    private final long streamMaxBytes;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final long detachGraceMs;
+    private final long clientBufferBytes;
+    private final Scheduler timer = Schedulers.parallel();
+
+    private final Map<UUID, ResumableStream> streams = new ConcurrentHashMap<>();
+    private final Map<TurnKey, ResumableStream> turns = new ConcurrentHashMap<>();
+    private final Queue<ResumableStream> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final Counter resumes;
+    private final Counter evictedEvents;
+    private final Counter joins;
+    private final Counter droppedClients;
+
+    public ChatStreamRegistry(SseFrames sseFrames,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.chat.resume.enabled:true}") boolean enabled,
+                              @Value("${app.chat.resume.stream-max-bytes:1048576}") long streamMaxBytes,
+                              @Value("${app.chat.resume.max-bytes:67108864}") long maxBytes,
+                              @Value("${app.chat.resume.ttl-ms:60000}") long ttlMs,
+                              @Value("${app.chat.resume.detach-grace-ms:0}") long detachGraceMs,
+                              @Value("${app.chat.resume.client-buffer-bytes:1048576}") long clientBufferBytes) {
+        this.sseFrames = sseFrames;
+        this.enabled = enabled;
+        this.streamMaxBytes = streamMaxBytes;
+        this.maxBytes = Math.max(streamMaxBytes, maxBytes);
+        this.ttlMs = ttlMs;
+        this.detachGraceMs = detachGraceMs;
+        this.clientBufferBytes = clientBufferBytes;
+
+        Gauge.builder("chat.stream.resumable.active", streams, Map::size)
+                .description("Chat streams that can be resumed").register(meterRegistry);
+        Gauge.builder("chat.stream.resumable.bytes", bufferedBytes, AtomicLong::get)
+                .description("Bytes held in resume buffers").baseUnit("bytes").register(meterRegistry);
+        this.resumes = Counter.builder("chat.stream.resumes")
+                .description("Reconnects to a chat stream").register(meterRegistry);
+        this.evictedEvents = Counter.builder("chat.stream.resumable.evicted")
+                .description("Events dropped from resume buffers to stay within the memory limit")
+                .register(meterRegistry);
+        this.joins = Counter.builder("chat.stream.joins")
+                .description("Chat requests attached to a generation already running for the same turn")
+                .register(meterRegistry);
+        this.droppedClients = Counter.builder("chat.stream.clients.dropped")
+                .description("Clients dropped for falling too far behind; they resume from the ring")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The turn a request would start, for matching it against running streams. Only requests on
+     * an existing conversation can match; a new conversation is always a new turn.
+     */
+    public TurnKey turnKey(ChatRequest request, UUID apiKeyId, UUID userId) {
+        return enabled && request.getConversationId() != null ? new TurnKey(apiKeyId, userId, request) : null;
+    }
+
+    /**
+     * The running generation for {@code turn}, from its first event, or null if there is none.
+     */
+    public Flux<byte[]> join(TurnKey turn) {
+        ResumableStream running = turn != null ? turns.get(turn) : null;
+        if (running == null) {
+            return null;
+        }
+        joins.increment();
+        log.debug("Attaching to running chat stream {}", running.streamId);
+        return running.attach(0);
+    }
+
+    /**
+     * Attach to the generation already running for {@code turn}, or start one from {@code frames}
+     * under {@code streamId} and return the first client's view of it. The supplier runs only
+     * when a new generation starts, so it is where admission and the user message belong; the
+     * upstream is subscribed when a client view is. Disabled, the supplier's frames are returned
+     * as they are.
+     *
+     * @param apiKeyId the key that started the stream (null for the web UI)
+     * @param userId   the user the turn runs as; only the same key and user can resume, join or
+     *                 cancel the stream, so web UI streams are bound to their user too
+     * @param turn     from {@link #turnKey}, or null if the stream cannot be joined
+     */
+    public Flux<byte[]> open(UUID streamId, UUID apiKeyId, UUID userId, TurnKey turn,
+                             Supplier<Flux<byte[]>> frames) {
+        if (!enabled) {
+            return frames.get();
+        }
+        ResumableStream stream = new ResumableStream(streamId, apiKeyId, userId, turn);
+        if (turn != null) {
+            ResumableStream running = turns.putIfAbsent(turn, stream);
+            if (running != null) {
+                joins.increment();
+                log.debug("Attaching to running chat stream {}", running.streamId);
+                return running.attach(0);
+            }
+        }
+        Flux<byte[]> source;
+        try {
+            source = frames.get();
+        } catch (RuntimeException e) {
+            stream.failToStart(e);
+            throw e;
+        }
+        streams.put(streamId, stream);
+        stream.ready(source);
+        return stream.attach(0);
+    }
+
+    /**
+     * Events after {@code lastEventId}, then the live tail until the stream ends.
+     */
+    public Flux<byte[]> resume(UUID streamId, UUID apiKeyId, UUID userId, long lastEventId) {
+        ResumableStream stream = find(streamId, apiKeyId, userId);
+        stream.checkReplayable(lastEventId);
+        resumes.increment();
+        log.debug("Resuming chat stream {} after event {}", streamId, lastEventId);
+        return stream.attach(lastEventId);
+    }
+
+    /**
+     * Stop generation now instead of after the detach grace period.
+     */
+    public void cancel(UUID streamId, UUID apiKeyId, UUID userId) {
+        find(streamId, apiKeyId, userId).abandon(true);
+    }
+
+    // Someone else's stream looks the same as a missing one
+    private ResumableStream find(UUID streamId, UUID apiKeyId, UUID userId) {
+        ResumableStream stream = enabled ? streams.get(streamId) : null;
+        if (stream == null || !Objects.equals(stream.apiKeyId, apiKeyId) || !Objects.equals(stream.userId, userId)) {
+            throw new NotFoundException("Chat stream not found or expired");
+        }
+        return stream;
+    }
+
+    /**
+     * Drop finished streams, oldest first, until the total is back under the limit.
+     */
+    private void evictFinished() {
+        ResumableStream oldest;
+        while (bufferedBytes.get() > maxBytes && (oldest = finished.poll()) != null) {
+            oldest.remove();
+        }
+    }
+
+    /**
+     * A request as it would reach the upstream, plus the key and user that sent it.
+     */
+    public record TurnKey(UUID apiKeyId, UUID userId, ChatRequest request) {
+    }
+
+    private record Event(long id, byte[] frame) {
+    }
+
+    /**
+     * One attached client: its sink and the bytes pushed to it that it has not taken yet.
+     */
+    private static final class Client {
+
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private FluxSink<byte[]> sink;
+        private boolean dropped;
+    }
+
+    private final class ResumableStream {
+
+        private final UUID streamId;
+        private final UUID apiKeyId;
+        private final UUID userId;
+        private final TurnKey turn;
+        private final SseEventSplitter splitter = new SseEventSplitter();
+        private final ArrayDeque<Event> ring = new ArrayDeque<>();
+        // A client can cancel from inside sink.next, which detaches it while append is iterating
+        private final List<Client> subscribers = new CopyOnWriteArrayList<>();
+        private final Disposable.Swap upstream = Disposables.swap();
+        private long nextId = 1;
+        // Lowest id still in the ring; a resume from before it would leave a gap
+        private long firstRetainedId = 1;
+        private long bytes;
+        // Set once the generation is set up; clients attaching before that wait for it
+        private Flux<byte[]> frames;
+        private boolean started;
+        private boolean done;
+        private boolean removed;
+        private Disposable detachTimer;
+
+        private ResumableStream(UUID streamId, UUID apiKeyId, UUID userId, TurnKey turn) {
+            this.streamId = streamId;
+            this.apiKeyId = apiKeyId;
+            this.userId = userId;
+            this.turn = turn;
+        }
+
+        void ready(Flux<byte[]> source) {
+            synchronized (this) {
+                frames = source;
+                if (subscribers.isEmpty() || started || done) {
+                    return;
+                }
+                started = true;
+            }
+            upstream.update(source.subscribe(this::onChunk, this::onError, this::onComplete));
+        }
+
+        /**
+         * The generation could not be set up (e.g. the upstream is saturated): the client that
+         * asked gets the exception, clients that joined meanwhile get it as an SSE error.
+         */
+        void failToStart(RuntimeException error) {
+            List<FluxSink<byte[]>> attached;
+            synchronized (this) {
+                String message = error.getMessage() != null ? error.getMessage() : "Chat stream failed to start";
+                append(sseFrames.error(message, "stream_error"));
+                append(sseFrames.done());
+                attached = finish();
+            }
+            attached.forEach(FluxSink::complete);
+        }
+
+        synchronized void checkReplayable(long lastEventId) {
+            if (lastEventId + 1 < firstRetainedId) {
+                throw new ConflictException("Chat stream events after " + lastEventId + " are no longer buffered");
+            }
+        }
+
+        Flux<byte[]> attach(long lastEventId) {
+            // Each client gets its own buffer, so a slow one does not hold up the upstream
+            return Flux.defer(() -> {
+                Client client = new Client();
+                return Flux.<byte[]>create(sink -> {
+                    client.sink = sink;
+                    sink.onDispose(() -> detach(client));
+                    boolean start;
+                    synchronized (this) {
+                        if (removed) {
+                            sink.error(new NotFoundException("Chat stream not found or expired"));
+                            return;
+                        }
+                        if (lastEventId + 1 < firstRetainedId) {
+                            sink.error(new ConflictException(
+                                    "Chat stream events after " + lastEventId + " are no longer buffered"));
+                            return;
+                        }
+                        // Added before the replay, so a client that cancels during it is detached normally
+                        if (!done) {
+                            subscribers.add(client);
+                            if (detachTimer != null) {
+                                detachTimer.dispose();
+                                detachTimer = null;
+                            }
+                        }
+                        for (Event event : ring) {
+                            if (event.id() > lastEventId && !offer(client, event.frame())) {
+                                return;
+                            }
+                        }
+                        if (done) {
+                            sink.complete();
+                            return;
+                        }
+                        start = !started && frames != null;
+                        started |= start;
+                    }
+                    if (start) {
+                        upstream.update(frames.subscribe(this::onChunk, this::onError, this::onComplete));
+                    }
+                }, FluxSink.OverflowStrategy.BUFFER).doOnNext(frame -> client.pendingBytes.addAndGet(-frame.length));
+            });
+        }
+
+        /**
+         * Push a frame to a client, or drop the client if that would take its backlog past the
+         * limit: its response ends after what it already has, and it resumes from the ring.
+         * A single frame larger than the limit still goes to a client that has caught up.
+         */
+        private boolean offer(Client client, byte[] frame) {
+            long pending = client.pendingBytes.addAndGet(frame.length);
+            if (pending > clientBufferBytes && pending > frame.length) {
+                client.pendingBytes.addAndGet(-frame.length);
+                subscribers.remove(client);
+                client.dropped = true;
+                droppedClients.increment();
+                log.debug("Chat stream {}: dropping a client {} bytes behind", streamId, pending - frame.length);
+                client.sink.complete();
+                return false;
+            }
+            client.sink.next(frame);
+            return true;
+        }
+
+        private void detach(Client client) {
+            synchronized (this) {
+                // Nothing to cancel before the generation is set up; its starting client is still to come
+                if (!subscribers.remove(client) && !client.dropped || !subscribers.isEmpty() || done
+                        || frames == null) {
+                    return;
+                }
+                // A dropped client is expected back, so it gets a reconnect window even without a grace period
+                long graceMs = client.dropped ? Math.max(detachGraceMs, DROPPED_RECONNECT_MS) : detachGraceMs;
+                if (graceMs > 0) {
+                    if (detachTimer != null) {
+                        detachTimer.dispose();
+                    }
+                    detachTimer = timer.schedule(() -> abandon(false), graceMs, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            abandon(false);
+        }
+
+        /**
+         * Cancel the upstream if no client came back (or unconditionally when {@code force}).
+         * Cancelling records the partial turn, the same as a client disconnect used to.
+         */
+        void abandon(boolean force) {
+            List<FluxSink<byte[]>> attached;
+            synchronized (this) {
+                if (done || (!force && !subscribers.isEmpty())) {
+                    return;
+                }
+                log.info("Chat stream {} abandoned; cancelling upstream", streamId);
+                attached = finish();
+            }
+            upstream.dispose();
+            attached.forEach(FluxSink::complete);
+        }
+
+        private synchronized void onChunk(byte[] chunk) {
+            if (done) {
+                // Already abandoned; the cancel has not reached the upstream yet
+                return;
+            }
+            for (byte[] event : splitter.feed(chunk)) {
+                append(event);
+            }
+        }
+
+        private void onComplete() {
+            List<FluxSink<byte[]>> attached;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                byte[] rest = splitter.remainder();
+                if (rest != null) {
+                    append(rest);
+                }
+                attached = finish();
+            }
+            attached.forEach(FluxSink::complete);
+        }
+
+        private void onError(Throwable error) {
+            // Chat fluxes turn their own errors into SSE error frames, so this is unexpected
+            log.error("Chat stream {} failed", streamId, error);
+            List<FluxSink<byte[]>> attached;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                attached = finish();
+            }
+            attached.forEach(sink -> sink.error(error));
+        }
+
+        private void append(byte[] event) {
+            byte[] frame = sseFrames.withId(nextId, event);
+            ring.addLast(new Event(nextId++, frame));
+            bytes += frame.length;
+            bufferedBytes.addAndGet(frame.length);
+            for (Client client : subscribers) {
+                offer(client, frame);
+            }
+            if (bufferedBytes.get() > maxBytes) {
+                evictFinished();
+            }
+            while (ring.size() > 1 && (bytes > streamMaxBytes || bufferedBytes.get() > maxBytes)) {
+                Event oldest = ring.removeFirst();
+                firstRetainedId = oldest.id() + 1;
+                bytes -= oldest.frame().length;
+                bufferedBytes.addAndGet(-oldest.frame().length);
+                evictedEvents.increment();
+            }
+        }
+
+        /**
+         * Mark the stream done and schedule its removal; returns the clients to complete, which
+         * is done outside the lock.
+         */
+        private List<FluxSink<byte[]>> finish() {
+            done = true;
+            if (detachTimer != null) {
+                detachTimer.dispose();
+                detachTimer = null;
+            }
+            List<FluxSink<byte[]>> attached = new ArrayList<>();
+            for (Client client : subscribers) {
+                attached.add(client.sink);
+            }
+            subscribers.clear();
+            if (turn != null) {
+                turns.remove(turn, this);
+            }
+            finished.add(this);
+            timer.schedule(this::remove, ttlMs, TimeUnit.MILLISECONDS);
+            return attached;
+        }
+
+        synchronized void remove() {
+            if (removed) {
+                return;
+            }
+            removed = true;
+            streams.remove(streamId, this);
+            finished.remove(this);
+            bufferedBytes.addAndGet(-bytes);
+            bytes = 0;
+            ring.clear();
+        }
+    }
+}
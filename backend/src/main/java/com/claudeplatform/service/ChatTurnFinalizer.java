@@ -0,0 +1,125 @@
+package com.claudeplatform.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.SignalType;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * What the end of a chat turn's stream means, for both chat paths ({@link ChatProxyService} and
+ * {@link ReactiveChatService}): the upstream permit is released with the turn's outcome, the
+ * response goes into the completion cache, the Idempotency-Key claim is completed or freed and the
+ * upstream session is kept or dropped. Only recording the turn differs between the paths, so it
+ * is passed in.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+class ChatTurnFinalizer {
+
+    private final CompletionCache completionCache;
+    private final IdempotencyService idempotencyService;
+    private final UpstreamSessionService upstreamSessionService;
+
+    /**
+     * Records a finished turn the way its chat path persists it.
+     */
+    interface Recorder {
+
+        /**
+         * @param cancelled whether the client went away before the turn completed
+         * @param succeeded whether the turn completed with a reply, so its session may be bound
+         */
+        void record(boolean cancelled, boolean succeeded);
+    }
+
+    /**
+     * The state a turn sent upstream holds until its stream ends.
+     *
+     * @param fill    frames collected for the completion cache, or null
+     * @param claim   the request's started Idempotency-Key claim, or null
+     * @param session the upstream session acquired for the turn, or null
+     */
+    record Upstream(UUID conversationId, StreamAccumulator accumulator, UpstreamConcurrencyLimiter.Permit permit,
+                    AtomicReference<UpstreamConcurrencyLimiter.Outcome> outcome, CompletionCache.Fill fill,
+                    IdempotencyService.Claim claim, UpstreamSessionService.Session session) {
+    }
+
+    /**
+     * Settle a turn sent upstream once its stream ends with {@code signal}. Call it from
+     * doFinally, which runs once per stream, so a late cancel after completion cannot settle the
+     * turn twice. CANCEL means the client went away (SseResponseWriter disposed the subscription)
+     * and, with resumable streams, did not come back within the grace period; the exchange is
+     * already cut, which closes the upstream connection and stops generation. A completed or
+     * cancelled turn is recorded; a failed one is left to the path's error handling.
+     */
+    void finish(SignalType signal, Upstream turn, Recorder recorder) {
+        UpstreamConcurrencyLimiter.Outcome outcome = turn.outcome().get();
+        turn.permit().release(switch (signal) {
+            case ON_COMPLETE -> outcome;
+            case ON_ERROR -> UpstreamConcurrencyLimiter.Outcome.FAILURE;
+            default -> UpstreamConcurrencyLimiter.Outcome.IGNORED;
+        });
+        StreamAccumulator accumulator = turn.accumulator();
+        if (signal == SignalType.CANCEL) {
+            log.info("Chat stream for conversation {} cancelled by client after {} chars",
+                    turn.conversationId(), accumulator.getContent().length());
+        }
+        boolean succeeded = succeeded(signal, outcome, accumulator);
+        if (signal == SignalType.ON_COMPLETE || signal == SignalType.CANCEL) {
+            recorder.record(signal == SignalType.CANCEL, succeeded);
+        }
+        // Both are replayed for a long time (cache TTL, key retention), so only a real reply
+        if (turn.fill() != null && succeeded) {
+            completionCache.put(turn.fill(), accumulator.contentAsString(),
+                    accumulator.getPromptTokens() + accumulator.getCompletionTokens());
+        }
+        if (turn.claim() != null) {
+            settle(turn.claim(), succeeded);
+        }
+        // The session that served the turn holds the conversation as stored only if it succeeded
+        if (!succeeded) {
+            upstreamSessionService.discard(turn.conversationId(), turn.session(),
+                    UpstreamSessionService.served(accumulator));
+        }
+    }
+
+    /**
+     * Settle a turn answered from the completion cache: recorded like any other if the replay
+     * completed or was cancelled, and its claim kept only if it completed.
+     *
+     * @param claim the request's started Idempotency-Key claim, or null
+     */
+    void finishCached(SignalType signal, IdempotencyService.Claim claim, Runnable recorder) {
+        if (signal == SignalType.ON_COMPLETE || signal == SignalType.CANCEL) {
+            recorder.run();
+        }
+        if (claim != null) {
+            settle(claim, signal == SignalType.ON_COMPLETE);
+        }
+    }
+
+    /**
+     * Whether a turn completed with a reply: a 2xx stream can still end in an in-band error frame
+     * or carry no content.
+     */
+    static boolean succeeded(SignalType signal, UpstreamConcurrencyLimiter.Outcome outcome,
+                             StreamAccumulator accumulator) {
+        return signal == SignalType.ON_COMPLETE && outcome == UpstreamConcurrencyLimiter.Outcome.SUCCESS
+                && !accumulator.getContent().isEmpty() && !accumulator.isErrorReported();
+    }
+
+    /**
+     * Keep the response for retries, or free the key so a retry starts a new turn.
+     */
+    private void settle(IdempotencyService.Claim claim, boolean keep) {
+        if (keep) {
+            idempotencyService.complete(claim);
+        } else {
+            idempotencyService.release(claim);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ApiKey;
+import com.claudeplatform.repository.ApiKeyRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exact-match cache of completed chat responses, keyed on the model and a hash of the final
+ * upstream request (packed context prompt plus any caller-supplied messages). A hit is replayed
+ * as the stored SSE frames in one write, without taking an upstream slot. Only responses that
+ * completed successfully are stored. Bounded by entry count and retained bytes with LRU eviction;
+ * entries expire after a TTL.
+ * Off unless enabled; API keys follow {@code default-for-keys} unless their completion_cache
+ * column says otherwise, and the web UI follows {@code web-ui}.
+ */
+@Component
+@Slf4j
+public class CompletionCache {
+
+    // Rough per-entry overhead used for the retained-size estimate
+    private static final long ENTRY_OVERHEAD = 160;
+
+    private final ApiKeyRepository apiKeyRepository;
+    private final ObjectWriter keyWriter;
+    private final boolean enabled;
+    private final boolean defaultForKeys;
+    private final boolean webUi;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private volatile Map<UUID, Boolean> keyOverrides = Map.of();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter bytesSaved;
+    private final Counter tokensSaved;
+
+    public CompletionCache(ApiKeyRepository apiKeyRepository,
+                           ObjectMapper objectMapper,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.chat.completion-cache.enabled:false}") boolean enabled,
+                           @Value("${app.chat.completion-cache.default-for-keys:false}") boolean defaultForKeys,
+                           @Value("${app.chat.completion-cache.web-ui:false}") boolean webUi,
+                           @Value("${app.chat.completion-cache.max-entries:1000}") int maxEntries,
+                           @Value("${app.chat.completion-cache.max-bytes:67108864}") long maxBytes,
+                           @Value("${app.chat.completion-cache.max-entry-bytes:262144}") int maxEntryBytes,
+                           @Value("${app.chat.completion-cache.ttl-ms:600000}") long ttlMs) {
+        this.apiKeyRepository = apiKeyRepository;
+        this.keyWriter = objectMapper.writer().with(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+        this.enabled = enabled;
+        this.defaultForKeys = defaultForKeys;
+        this.webUi = webUi;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+
+        Gauge.builder("chat.completion.cache.entries", this, CompletionCache::size)
+                .description("Responses held in the completion cache").register(meterRegistry);
+        Gauge.builder("chat.completion.cache.bytes", this, CompletionCache::bytes)
+                .description("Estimated memory retained by the completion cache")
+                .baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("chat.completion.cache.hit.ratio", this, CompletionCache::hitRatio)
+                .description("Share of cacheable chat requests answered from the completion cache")
+                .register(meterRegistry);
+        this.hits = Counter.builder("chat.completion.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("chat.completion.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.evictions = Counter.builder("chat.completion.cache.evictions").register(meterRegistry);
+        this.bytesSaved = Counter.builder("chat.completion.cache.bytes.saved")
+                .description("Response bytes served from the cache instead of the upstream")
+                .baseUnit("bytes").register(meterRegistry);
+        this.tokensSaved = Counter.builder("chat.completion.cache.tokens.saved")
+                .description("Upstream tokens the cached responses originally cost")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Cache key of a request whose caller has the cache enabled.
+     */
+    public record Key(String model, String contextHash) {
+    }
+
+    /**
+     * A cached response.
+     *
+     * @param frames  the SSE frames of the original stream, after its metadata event
+     * @param content the assistant reply
+     * @param tokens  upstream tokens (prompt plus completion) the original turn used
+     */
+    public record Hit(byte[] frames, String content, int tokens) {
+    }
+
+    private record Entry(Hit hit, long bytes, long storedAtNanos) {
+    }
+
+    @PostConstruct
+    void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.warn("Could not load per-key completion cache settings, using defaults", e);
+        }
+    }
+
+    /**
+     * Reload which API keys override the default.
+     */
+    @Scheduled(fixedDelayString = "${app.chat.completion-cache.reload-interval-ms:30000}",
+            initialDelayString = "${app.chat.completion-cache.reload-interval-ms:30000}")
+    public void reload() {
+        if (!enabled) {
+            return;
+        }
+        Map<UUID, Boolean> overrides = new HashMap<>();
+        for (ApiKey key : apiKeyRepository.findActiveWithCompletionCache()) {
+            overrides.put(key.getId(), key.getCompletionCache());
+        }
+        keyOverrides = Map.copyOf(overrides);
+    }
+
+    /**
+     * Key for this upstream request body, or null when the caller does not use the cache.
+     *
+     * @param apiKeyId the authenticating API key, or null for the web UI
+     */
+    public Key keyFor(UUID apiKeyId, String model, Map<String, Object> body) {
+        if (!enabled) {
+            return null;
+        }
+        boolean on = apiKeyId != null ? keyOverrides.getOrDefault(apiKeyId, defaultForKeys) : webUi;
+        if (!on) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(keyWriter.writeValueAsBytes(body));
+            return new Key(model, HexFormat.of().formatHex(digest));
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to hash chat request", e);
+        }
+    }
+
+    /**
+     * Cached response for {@code key}, or null on a miss.
+     */
+    public Hit get(Key key) {
+        Hit hit = null;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.storedAtNanos() < ttlNanos) {
+                    hit = entry.hit();
+                } else {
+                    remove(key);
+                }
+            }
+        }
+        if (hit == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        bytesSaved.increment(hit.frames().length);
+        tokensSaved.increment(hit.tokens());
+        return hit;
+    }
+
+    /**
+     * Collects the frames of a stream that may be cached once it completes.
+     */
+    public Fill fill(Key key) {
+        return new Fill(key, maxEntryBytes);
+    }
+
+    /**
+     * Store a completed response; ignored if it outgrew the per-entry limit.
+     */
+    public void put(Fill fill, String content, int tokens) {
+        byte[] frames = fill.captured();
+        if (frames == null) {
+            return;
+        }
+        Hit hit = new Hit(frames, content, tokens);
+        long bytes = ENTRY_OVERHEAD + frames.length + 2L * content.length();
+        synchronized (this) {
+            remove(fill.key());
+            entries.put(fill.key(), new Entry(hit, bytes, System.nanoTime()));
+            totalBytes += bytes;
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || totalBytes > maxBytes) && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                it.remove();
+                totalBytes -= eldest.getValue().bytes();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            totalBytes -= removed.bytes();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    private double hitRatio() {
+        double total = hits.count() + misses.count();
+        return total > 0 ? hits.count() / total : 0;
+    }
+
+    /**
+     * Frames of one stream, captured up to the per-entry limit.
+     */
+    public static final class Fill {
+
+        private final Key key;
+        private final int limit;
+        private ByteArrayOutputStream captured;
+        private boolean overflowed;
+
+        private Fill(Key key, int limit) {
+            this.key = key;
+            this.limit = limit;
+        }
+
+        Key key() {
+            return key;
+        }
+
+        public void capture(byte[] frame) {
+            if (overflowed) {
+                return;
+            }
+            if (captured == null) {
+                captured = new ByteArrayOutputStream(Math.min(limit, 8192));
+            }
+            if (captured.size() + frame.length > limit) {
+                overflowed = true;
+                captured = null;
+                return;
+            }
+            captured.writeBytes(frame);
+        }
+
+        // Null when the response outgrew the limit or nothing was captured
+        byte[] captured() {
+            return overflowed || captured == null ? null : captured.toByteArray();
+        }
+    }
+}
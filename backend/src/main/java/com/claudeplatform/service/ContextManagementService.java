@@ -8,10 +8,13 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
 
+import java.time.Duration;
 import java.util.*;
 
 @Service
@@ -21,7 +24,13 @@ public class ContextManagementService {
 
     private final ConversationSummaryRepository summaryRepository;
     private final MessageRepository messageRepository;
-    private final WebClient claudeCodeApiClient;
+    private final WebClient claudeCodeApiControlClient;
+    private final UpstreamHedging upstreamHedging;
+    private final UpstreamConcurrencyLimiter concurrencyLimiter;
+    private final ConversationContextCache contextCache;
+    private final ContextPacker contextPacker;
+    private final Scheduler persistenceScheduler;
+    private final TransactionTemplate transactionTemplate;
 
     @Value("${app.context.enabled:true}")
     private boolean contextEnabled;
@@ -29,78 +38,50 @@ public class ContextManagementService {
     @Value("${app.context.summarization-threshold-tokens:8000}")
     private int summarizationThreshold;
 
-    @Value("${app.context.recent-messages-to-keep:6}")
-    private int recentMessagesToKeep;
-
-    private static final int MAX_MESSAGE_LENGTH_IN_CONTEXT = 2000;
     private static final int MAX_MESSAGE_LENGTH_IN_SUMMARY = 3000;
 
     /**
-     * Build a context-enriched prompt combining summary + recent messages + current message.
-     * Note: The current user message is already saved to DB before this method is called,
-     * so we must exclude it from the "recent messages" to avoid duplication.
+     * Build a context-enriched prompt combining summary + recent messages + current message,
+     * packed into the model's token budget.
+     * The current message is never cut, and with context disabled it is sent as it is.
+     * Note: The current user message is queued for persistence only after this method returns,
+     * so every stored message is "previous" history.
+     *
+     * @param requestedBudget optional caller-supplied token budget; can only lower the model's budget
      */
-    public String buildContextPrompt(UUID conversationId, String currentMessage) {
+    public ContextPacker.PackedContext buildContextPrompt(UUID conversationId, String model,
+                                                          Integer requestedBudget, String currentMessage) {
         if (!contextEnabled) {
-            return currentMessage;
+            return contextPacker.packAlone(currentMessage, contextPacker.budgetFor(model, requestedBudget));
         }
+        return buildContextPrompt(contextCache.get(conversationId), model, requestedBudget, currentMessage);
+    }
 
-        // Fetch all messages; the last one is the just-saved current user message
-        List<Message> allMessages = messageRepository
-                .findByConversationIdOrderByCreatedAtAsc(conversationId);
-
-        // Exclude the last message (current user message) from history
-        List<Message> previousMessages = allMessages.size() > 1
-                ? allMessages.subList(0, allMessages.size() - 1)
-                : Collections.emptyList();
+    /**
+     * Same as {@link #buildContextPrompt(UUID, String, Integer, String)} for a snapshot the caller
+     * already loaded (the reactive chat path reads it without blocking).
+     */
+    public ContextPacker.PackedContext buildContextPrompt(ConversationContextCache.Snapshot context, String model,
+                                                          Integer requestedBudget, String currentMessage) {
+        int budget = contextPacker.budgetFor(model, requestedBudget);
 
         // For very short conversations (0-1 previous messages), return as-is
-        if (previousMessages.size() <= 1) {
-            return currentMessage;
+        if (!contextEnabled || context.summary() == null && context.recentMessages().size() <= 1) {
+            return contextPacker.packAlone(currentMessage, budget);
         }
 
-        Optional<ConversationSummary> latestSummary = summaryRepository
-                .findTopByConversationIdAndStatusOrderBySummaryVersionDesc(conversationId, "COMPLETED");
-
-        StringBuilder contextBuilder = new StringBuilder();
-
-        if (latestSummary.isPresent()) {
-            ConversationSummary summary = latestSummary.get();
-
-            // Add summary section
-            contextBuilder.append("[CONVERSATION CONTEXT]\n");
-            contextBuilder.append("The following is a summary of our earlier conversation:\n");
-            contextBuilder.append(summary.getSummaryText());
-            contextBuilder.append("\n\n");
-
-            // Get only messages after the summary coverage point
-            Message coveredMessage = messageRepository.findById(summary.getCoveredUntilMessageId()).orElse(null);
-            List<Message> recentMessages;
-            if (coveredMessage != null && coveredMessage.getCreatedAt() != null) {
-                recentMessages = previousMessages.stream()
-                        .filter(m -> m.getCreatedAt().isAfter(coveredMessage.getCreatedAt()))
-                        .toList();
-            } else {
-                recentMessages = limitMessages(previousMessages, recentMessagesToKeep);
-            }
-
-            if (!recentMessages.isEmpty()) {
-                contextBuilder.append("[RECENT MESSAGES]\n");
-                appendMessages(contextBuilder, limitMessages(recentMessages, recentMessagesToKeep));
-                contextBuilder.append("\n");
-            }
-        } else {
-            // No summary yet - include recent previous messages for context
-            List<Message> recentMessages = limitMessages(previousMessages, recentMessagesToKeep);
-            contextBuilder.append("[RECENT MESSAGES]\n");
-            appendMessages(contextBuilder, recentMessages);
-            contextBuilder.append("\n");
-        }
+        return contextPacker.pack(context.summary(), context.recentMessages(), currentMessage, budget);
+    }
 
-        contextBuilder.append("[CURRENT MESSAGE]\n");
-        contextBuilder.append(currentMessage);
+    /**
+     * Reject a message too large for the model on its own (400), whether or not context is on.
+     */
+    public void checkMessage(String currentMessage) {
+        contextPacker.checkMessage(currentMessage);
+    }
 
-        return contextBuilder.toString();
+    public boolean isContextEnabled() {
+        return contextEnabled;
     }
 
     /**
@@ -111,97 +92,101 @@ public class ContextManagementService {
             return false;
         }
 
-        // Don't start if already in progress
-        if (summaryRepository.existsByConversationIdAndStatus(conversationId, "IN_PROGRESS")) {
-            return false;
-        }
-
-        Optional<ConversationSummary> latestSummary = summaryRepository
-                .findTopByConversationIdAndStatusOrderBySummaryVersionDesc(conversationId, "COMPLETED");
-
-        int unsummarizedTokens;
-        if (latestSummary.isPresent()) {
-            Message coveredMessage = messageRepository
-                    .findById(latestSummary.get().getCoveredUntilMessageId()).orElse(null);
-            if (coveredMessage != null && coveredMessage.getCreatedAt() != null) {
-                unsummarizedTokens = messageRepository
-                        .sumTokenCountAfter(conversationId, coveredMessage.getCreatedAt());
-            } else {
-                unsummarizedTokens = messageRepository.sumTokenCount(conversationId);
-            }
-        } else {
-            unsummarizedTokens = messageRepository.sumTokenCount(conversationId);
-        }
+        return exceedsSummarizationThreshold(contextCache.get(conversationId).unsummarizedTokens());
+    }
 
-        return unsummarizedTokens > summarizationThreshold;
+    public boolean exceedsSummarizationThreshold(int unsummarizedTokens) {
+        return contextEnabled && unsummarizedTokens > summarizationThreshold;
     }
 
     /**
-     * Trigger summarization asynchronously.
+     * Summarize the conversation and store the result as the next summary version.
+     * Runs without holding a thread: history is read on the persistence scheduler, the upstream permit and
+     * the /v1/summarize call are asynchronous. Errors are propagated so the job can be retried.
+     *
+     * @param beforeCommit runs in the transaction that stores the summary; throwing rolls it back
      */
-    @Async
-    public void triggerSummarizationAsync(UUID conversationId) {
+    public Mono<Void> summarize(UUID conversationId, Runnable beforeCommit) {
+        return Mono.fromCallable(() -> prepareSummarization(conversationId))
+                .subscribeOn(persistenceScheduler)
+                .flatMap(plan -> Mono.fromFuture(() -> concurrencyLimiter.acquireAsync(
+                                UpstreamConcurrencyLimiter.Priority.BACKGROUND))
+                        .flatMap(permit -> requestSummary(plan.prompt())
+                                .doOnSuccess(text -> permit.release(UpstreamConcurrencyLimiter.Outcome.SUCCESS))
+                                .doOnError(e -> permit.release(UpstreamConcurrencyLimiter.Outcome.FAILURE))
+                                .doFinally(signal -> permit.release(UpstreamConcurrencyLimiter.Outcome.IGNORED)))
+                        .publishOn(persistenceScheduler)
+                        .doOnNext(summaryText -> saveSummary(conversationId, plan, summaryText, beforeCommit)))
+                .then();
+    }
+
+    private SummaryPlan prepareSummarization(UUID conversationId) {
         log.info("Starting summarization for conversation: {}", conversationId);
 
         // Get latest summary for version tracking
-        Optional<ConversationSummary> latestSummary = summaryRepository
-                .findTopByConversationIdAndStatusOrderBySummaryVersionDesc(conversationId, "COMPLETED");
-        int nextVersion = latestSummary.map(s -> s.getSummaryVersion() + 1).orElse(1);
-
-        // Get the last message to mark as covered
-        List<Message> allMessages = messageRepository.findByConversationIdOrderByCreatedAtAsc(conversationId);
-        if (allMessages.isEmpty()) {
-            return;
+        ConversationSummary previous = summaryRepository
+                .findTopByConversationIdAndStatusOrderBySummaryVersionDesc(conversationId, "COMPLETED")
+                .orElse(null);
+        long coveredSeq = previous != null ? previous.getCoveredUntilSeq() : 0L;
+
+        // Only messages the previous summary does not cover yet
+        List<Message> newMessages = messageRepository
+                .findByConversationIdAndSeqGreaterThanOrderBySeqAsc(conversationId, coveredSeq);
+        if (newMessages.isEmpty()) {
+            return null;
         }
-        Message lastMessage = allMessages.get(allMessages.size() - 1);
-
-        // Create IN_PROGRESS record
-        ConversationSummary inProgress = ConversationSummary.builder()
-                .conversationId(conversationId)
-                .summaryText("")
-                .coveredUntilMessageId(lastMessage.getId())
-                .coveredMessageCount(allMessages.size())
-                .coveredTokenCount(messageRepository.sumTokenCount(conversationId))
-                .summaryVersion(nextVersion)
-                .status("IN_PROGRESS")
-                .build();
-        inProgress = summaryRepository.save(inProgress);
-
-        try {
-            // Build summarization prompt
-            String prompt = buildSummarizationPrompt(latestSummary.orElse(null), allMessages);
-
-            // Call summarize endpoint
-            Map<String, Object> requestBody = new HashMap<>();
-            requestBody.put("prompt", prompt);
-            requestBody.put("max_tokens", 1024);
-            requestBody.put("model", "claude-haiku-4-5-20251001");
+        Message lastMessage = newMessages.get(newMessages.size() - 1);
+        int newTokens = newMessages.stream().mapToInt(m -> m.getTokenCount() != null ? m.getTokenCount() : 0).sum();
+
+        return new SummaryPlan(
+                buildSummarizationPrompt(previous, newMessages),
+                lastMessage.getId(),
+                lastMessage.getSeq(),
+                (previous != null ? previous.getCoveredMessageCount() : 0) + newMessages.size(),
+                (previous != null ? previous.getCoveredTokenCount() : 0) + newTokens,
+                previous != null ? previous.getSummaryVersion() + 1 : 1);
+    }
 
-            String summaryText = claudeCodeApiClient.post()
-                    .uri("/v1/summarize")
-                    .contentType(MediaType.APPLICATION_JSON)
-                    .bodyValue(requestBody)
-                    .retrieve()
-                    .bodyToMono(java.util.Map.class)
-                    .map(response -> (String) response.get("summary"))
-                    .block(java.time.Duration.ofSeconds(60));
+    private Mono<String> requestSummary(String prompt) {
+        Map<String, Object> requestBody = new HashMap<>();
+        requestBody.put("prompt", prompt);
+        requestBody.put("max_tokens", 1024);
+        requestBody.put("model", "claude-haiku-4-5-20251001");
+
+        return upstreamHedging.call("summarize", endpoint -> claudeCodeApiControlClient.post()
+                        .uri("/v1/summarize")
+                        .attributes(attributes -> {
+                            if (endpoint != null) {
+                                attributes.put(UpstreamPool.ENDPOINT_ATTRIBUTE, endpoint);
+                            }
+                        })
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(requestBody)
+                        .retrieve()
+                        .bodyToMono(Map.class)
+                        .map(response -> response.get("summary") instanceof String text ? text : "")
+                        .filter(text -> !text.isBlank())
+                        .switchIfEmpty(Mono.error(new IllegalStateException("Summarization returned an empty summary"))))
+                .timeout(Duration.ofSeconds(60));
+    }
 
-            if (summaryText != null && !summaryText.isBlank()) {
-                inProgress.setSummaryText(summaryText);
-                inProgress.setStatus("COMPLETED");
-                summaryRepository.save(inProgress);
-                log.info("Summarization completed for conversation: {}, version: {}",
-                        conversationId, nextVersion);
-            } else {
-                inProgress.setStatus("FAILED");
-                summaryRepository.save(inProgress);
-                log.warn("Summarization returned empty for conversation: {}", conversationId);
-            }
-        } catch (Exception e) {
-            log.error("Summarization failed for conversation: {}", conversationId, e);
-            inProgress.setStatus("FAILED");
-            summaryRepository.save(inProgress);
-        }
+    private void saveSummary(UUID conversationId, SummaryPlan plan, String summaryText, Runnable beforeCommit) {
+        ConversationSummary saved = transactionTemplate.execute(status -> {
+            ConversationSummary summary = summaryRepository.save(ConversationSummary.builder()
+                    .conversationId(conversationId)
+                    .summaryText(summaryText)
+                    .coveredUntilMessageId(plan.coveredUntilMessageId())
+                    .coveredUntilSeq(plan.coveredUntilSeq())
+                    .coveredMessageCount(plan.coveredMessageCount())
+                    .coveredTokenCount(plan.coveredTokenCount())
+                    .summaryVersion(plan.version())
+                    .status("COMPLETED")
+                    .build());
+            beforeCommit.run();
+            return summary;
+        });
+        contextCache.onSummary(saved);
+        log.info("Summarization completed for conversation: {}, version: {}", conversationId, plan.version());
     }
 
     /**
@@ -223,14 +208,6 @@ public class ContextManagementService {
             prompt.append("Previous summary:\n");
             prompt.append(previousSummary.getSummaryText());
             prompt.append("\n\nNew messages since last summary:\n");
-
-            // Only include messages after the previous summary's coverage
-            Message coveredMessage = messageRepository
-                    .findById(previousSummary.getCoveredUntilMessageId()).orElse(null);
-            if (coveredMessage != null && coveredMessage.getCreatedAt() != null) {
-                messages = messageRepository.findByConversationIdAndCreatedAtAfterOrderByCreatedAtAsc(
-                        messages.get(0).getConversationId(), coveredMessage.getCreatedAt());
-            }
         } else {
             prompt.append("Conversation:\n");
         }
@@ -246,20 +223,7 @@ public class ContextManagementService {
         return prompt.toString();
     }
 
-    private List<Message> limitMessages(List<Message> messages, int max) {
-        if (messages.size() <= max) {
-            return messages;
-        }
-        return messages.subList(messages.size() - max, messages.size());
-    }
-
-    private void appendMessages(StringBuilder sb, List<Message> messages) {
-        for (Message msg : messages) {
-            String content = msg.getContent();
-            if (content.length() > MAX_MESSAGE_LENGTH_IN_CONTEXT) {
-                content = content.substring(0, MAX_MESSAGE_LENGTH_IN_CONTEXT) + "... [truncated]";
-            }
-            sb.append(msg.getRole().toUpperCase()).append(": ").append(content).append("\n");
-        }
+    private record SummaryPlan(String prompt, UUID coveredUntilMessageId, long coveredUntilSeq,
+                               int coveredMessageCount, int coveredTokenCount, int version) {
     }
 }
@@ -0,0 +1,311 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ConversationSummary;
+import com.claudeplatform.model.entity.Message;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Fits the context prompt into a per-model token budget.
+ * The current message is always sent whole and counts against the budget first; what is left
+ * goes to the conversation summary, then to history from the newest turn backwards. A summary or
+ * history message that does not fit whole is cut to its head and tail (long code pastes keep
+ * their opening and their end), and older turns are dropped once the budget is spent. No single
+ * history message may take more than half of what is left, so one large paste cannot crowd out
+ * the rest of the conversation. A message too large for the model's window on its own is
+ * rejected up front ({@link #checkMessage}) rather than cut.
+ * <p>
+ * With prefix caching on, the packed context is also returned as separate parts so the upstream
+ * can cache its start: the summary, then a block of older turns that stays the same for several
+ * turns, then the newer turns and the current message. The history window is aligned to blocks of
+ * {@code recent-messages-to-keep} messages counted from the summary, so the older block only moves
+ * when a new block fills up (or a new summary lands), as long as it fits the budget whole.
+ */
+@Component
+@Slf4j
+public class ContextPacker {
+
+    private static final String CONTEXT_HEADER =
+            "[CONVERSATION CONTEXT]\nThe following is a summary of our earlier conversation:\n";
+    private static final String RECENT_HEADER = "[RECENT MESSAGES]\n";
+    private static final String CURRENT_HEADER = "[CURRENT MESSAGE]\n";
+    private static final String OMITTED = "\n... [%d chars omitted] ...\n";
+
+    // Parts with less room than this are dropped rather than cut down to a stub
+    private static final int MIN_PART_TOKENS = 48;
+    private static final double HEAD_SHARE = 0.6;
+    private static final int MAX_FIT_ATTEMPTS = 4;
+
+    private final BpeTokenizer tokenizer;
+    private final int contextHeaderTokens;
+    private final int recentHeaderTokens;
+    private final int currentHeaderTokens;
+    private final int defaultBudget;
+    private final Map<String, Integer> modelBudgets = new LinkedHashMap<>();
+    private final int maxHistoryMessages;
+    private final int maxMessageTokens;
+    private final boolean prefixCache;
+    private final DistributionSummary promptTokens;
+
+    public ContextPacker(
+            BpeTokenizer tokenizer,
+            MeterRegistry meterRegistry,
+            @Value("${app.context.budget.default-tokens:6000}") int defaultBudget,
+            @Value("${app.context.budget.models:haiku=4000,sonnet=8000,opus=12000}") String modelBudgets,
+            @Value("${app.context.recent-messages-to-keep:6}") int maxHistoryMessages,
+            @Value("${app.context.max-message-tokens:180000}") int maxMessageTokens,
+            @Value("${app.context.prefix-cache.enabled:true}") boolean prefixCache) {
+        this.tokenizer = tokenizer;
+        this.contextHeaderTokens = tokenizer.countTokens(CONTEXT_HEADER);
+        this.recentHeaderTokens = tokenizer.countTokens(RECENT_HEADER);
+        this.currentHeaderTokens = tokenizer.countTokens(CURRENT_HEADER);
+        this.defaultBudget = defaultBudget;
+        this.maxHistoryMessages = maxHistoryMessages;
+        this.maxMessageTokens = maxMessageTokens;
+        this.prefixCache = prefixCache;
+        for (String pair : modelBudgets.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length == 2 && !parts[0].isBlank()) {
+                try {
+                    this.modelBudgets.put(parts[0].trim().toLowerCase(Locale.ROOT), Integer.parseInt(parts[1].trim()));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring invalid context budget '{}'", pair);
+                }
+            }
+        }
+        this.promptTokens = DistributionSummary.builder("context.prompt.tokens")
+                .description("Estimated tokens in the packed context prompt")
+                .publishPercentiles(0.5, 0.95)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @param prompt           the prompt to send upstream
+     * @param tokens           estimated tokens in {@code prompt}
+     * @param budget           the budget it was packed into
+     * @param historyMessages  number of history messages included (whole or cut)
+     * @param truncated        whether anything was cut or dropped to fit
+     * @param summary          with prefix caching, the summary part (with its header), or null
+     * @param cachedHistory    with prefix caching, the older block of history, oldest first
+     * @param recentHistory    with prefix caching, the history after that block, oldest first
+     * @param current          with prefix caching, the current message; null when {@code prompt} is
+     *                         the only form (prefix caching off, or nothing to put before it)
+     */
+    public record PackedContext(String prompt, int tokens, int budget, int historyMessages, boolean truncated,
+                                String summary, List<ContextMessage> cachedHistory,
+                                List<ContextMessage> recentHistory, String current) {
+
+        public boolean isStructured() {
+            return current != null;
+        }
+    }
+
+    /**
+     * One history message of a structured context.
+     */
+    public record ContextMessage(String role, String content) {
+    }
+
+    /**
+     * Budget for a model: the first configured entry whose key occurs in the model name, else the
+     * default. A caller-requested budget can only lower it.
+     */
+    public int budgetFor(String model, Integer requestedBudget) {
+        int budget = defaultBudget;
+        if (model != null) {
+            String name = model.toLowerCase(Locale.ROOT);
+            for (Map.Entry<String, Integer> entry : modelBudgets.entrySet()) {
+                if (name.contains(entry.getKey())) {
+                    budget = entry.getValue();
+                    break;
+                }
+            }
+        }
+        if (requestedBudget != null && requestedBudget > 0) {
+            budget = Math.min(budget, requestedBudget);
+        }
+        return Math.max(budget, MIN_PART_TOKENS * 2);
+    }
+
+    /**
+     * Reject a message the model could not take even without any context. Called before the
+     * stream starts, so the caller gets a 400 instead of an error event.
+     *
+     * @throws IllegalArgumentException if the message alone exceeds {@code max-message-tokens}
+     */
+    public void checkMessage(String currentMessage) {
+        int tokens = tokenizer.countTokens(currentMessage);
+        if (tokens > maxMessageTokens) {
+            throw new IllegalArgumentException("Message is too long: about " + tokens
+                    + " tokens, the model accepts at most " + maxMessageTokens);
+        }
+    }
+
+    /**
+     * Send the current message on its own, as it is (no history to add, or context disabled).
+     */
+    public PackedContext packAlone(String currentMessage, int budget) {
+        PackedContext packed = new PackedContext(currentMessage, tokenizer.countTokens(currentMessage), budget, 0,
+                false, null, List.of(), List.of(), null);
+        promptTokens.record(packed.tokens());
+        return packed;
+    }
+
+    /**
+     * @param history messages not covered by the summary, oldest first
+     */
+    public PackedContext pack(ConversationSummary summary, List<Message> history, String currentMessage, int budget) {
+        boolean truncated = false;
+
+        // Never cut: a large message leaves less (or no) room for context instead
+        String current = currentMessage;
+        int remaining = budget - currentHeaderTokens - tokenizer.countTokens(current);
+
+        String summaryText = null;
+        if (summary != null && summary.getSummaryText() != null && !summary.getSummaryText().isBlank()) {
+            int room = remaining - contextHeaderTokens - 1;
+            String fitted = room >= MIN_PART_TOKENS ? fit(summary.getSummaryText(), room) : "";
+            if (!fitted.isEmpty()) {
+                summaryText = fitted;
+                truncated |= summaryText.length() != summary.getSummaryText().length();
+                remaining -= contextHeaderTokens + tokenizer.countTokens(summaryText) + 1;
+            } else {
+                truncated = true;
+            }
+        }
+
+        // With prefix caching the window starts at a block boundary; messages up to the last full
+        // block (by seq since the summary) form the cached block
+        long coveredSeq = summary != null ? summary.getCoveredUntilSeq() : 0L;
+        long cachedUntilSeq = coveredSeq;
+        int window = maxHistoryMessages;
+        if (prefixCache && !history.isEmpty() && history.get(history.size() - 1).getSeq() != null) {
+            long count = history.get(history.size() - 1).getSeq() - coveredSeq;
+            cachedUntilSeq = coveredSeq + count / maxHistoryMessages * maxHistoryMessages;
+            long windowStartSeq = Math.max(coveredSeq, cachedUntilSeq - maxHistoryMessages);
+            window = 0;
+            for (int i = history.size() - 1; i >= 0; i--) {
+                Long seq = history.get(i).getSeq();
+                if (seq == null || seq <= windowStartSeq) {
+                    break;
+                }
+                window++;
+            }
+        }
+
+        // Newest first until the budget or the message cap runs out
+        List<String> lines = new ArrayList<>();
+        List<ContextMessage> cachedHistory = new ArrayList<>();
+        List<ContextMessage> recentHistory = new ArrayList<>();
+        remaining -= recentHeaderTokens + 1;
+        int considered = 0;
+        for (int i = history.size() - 1; i >= 0 && considered < window; i--, considered++) {
+            Message message = history.get(i);
+            String prefix = message.getRole().toUpperCase(Locale.ROOT) + ": ";
+            int prefixTokens = tokenizer.countTokens(prefix);
+            int room = Math.min(remaining, Math.max(remaining / 2, MIN_PART_TOKENS)) - prefixTokens - 1;
+            if (room < MIN_PART_TOKENS) {
+                truncated = true;
+                break;
+            }
+            String content = fit(message.getContent(), room);
+            if (content.isEmpty() && !message.getContent().isEmpty()) {
+                truncated = true;
+                break;
+            }
+            truncated |= content.length() != message.getContent().length();
+            lines.add(prefix + content);
+            Long seq = message.getSeq();
+            (seq != null && seq <= cachedUntilSeq ? cachedHistory : recentHistory)
+                    .add(new ContextMessage(message.getRole(), content));
+            remaining -= prefixTokens + tokenizer.countTokens(content) + 1;
+        }
+        truncated |= considered < history.size();
+        Collections.reverse(cachedHistory);
+        Collections.reverse(recentHistory);
+
+        StringBuilder prompt = new StringBuilder();
+        if (summaryText != null) {
+            prompt.append(CONTEXT_HEADER).append(summaryText).append("\n\n");
+        }
+        if (!lines.isEmpty()) {
+            prompt.append(RECENT_HEADER);
+            for (int i = lines.size() - 1; i >= 0; i--) {
+                prompt.append(lines.get(i)).append('\n');
+            }
+            prompt.append('\n');
+        }
+        prompt.append(CURRENT_HEADER).append(current);
+
+        String text = prompt.toString();
+        boolean structured = prefixCache && (summaryText != null || !lines.isEmpty());
+        PackedContext packed = new PackedContext(text, tokenizer.countTokens(text), budget, lines.size(), truncated,
+                structured && summaryText != null ? CONTEXT_HEADER + summaryText : null,
+                structured ? cachedHistory : List.of(), structured ? recentHistory : List.of(),
+                structured ? current : null);
+        promptTokens.record(packed.tokens());
+        log.debug("Packed context: {} of {} tokens, {} history messages, truncated={}",
+                packed.tokens(), budget, packed.historyMessages(), truncated);
+        return packed;
+    }
+
+    /**
+     * Cut text to at most {@code maxTokens}, keeping its head and tail and preferring line breaks
+     * as cut points so code keeps whole lines. The kept length starts from the text's own
+     * chars-per-token ratio and is shrunk by the measured overshoot a few times; if that still
+     * does not fit, the last cut is returned.
+     */
+    String fit(String text, int maxTokens) {
+        if (text == null) {
+            return "";
+        }
+        int tokens = tokenizer.countTokens(text);
+        if (tokens <= maxTokens) {
+            return text;
+        }
+        double charsPerToken = (double) text.length() / tokens;
+        int keepChars = (int) (maxTokens * charsPerToken);
+        String cut = text;
+        for (int attempt = 0; attempt < MAX_FIT_ATTEMPTS && keepChars > 0; attempt++) {
+            cut = cutMiddle(text, keepChars);
+            int over = tokenizer.countTokens(cut) - maxTokens;
+            if (over <= 0) {
+                return cut;
+            }
+            keepChars -= (int) Math.ceil(over * charsPerToken) + 1;
+        }
+        return keepChars > 0 ? cut : "";
+    }
+
+    private static String cutMiddle(String text, int keepChars) {
+        int headEnd = lineBreakNear(text, (int) (keepChars * HEAD_SHARE), true);
+        int tailStart = lineBreakNear(text, text.length() - (keepChars - headEnd), false);
+        if (tailStart <= headEnd) {
+            return text.substring(0, Math.min(text.length(), keepChars));
+        }
+        return text.substring(0, headEnd)
+                + String.format(OMITTED, tailStart - headEnd)
+                + text.substring(tailStart);
+    }
+
+    // Move a cut point to a nearby newline (within 200 chars) without growing the kept text
+    private static int lineBreakNear(String text, int index, boolean head) {
+        index = Math.max(0, Math.min(text.length(), index));
+        if (head) {
+            int nl = text.lastIndexOf('\n', index);
+            return nl >= 0 && index - nl <= 200 ? nl : index;
+        }
+        int nl = text.indexOf('\n', index);
+        return nl >= 0 && nl - index <= 200 ? nl + 1 : index;
+    }
+}
@@ -0,0 +1,341 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ConversationSummary;
+import com.claudeplatform.model.entity.Message;
+import com.claudeplatform.repository.ConversationSummaryRepository;
+import com.claudeplatform.repository.MessageRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LRU cache of what context assembly needs per conversation: the latest completed summary, a ring
+ * of the newest messages and the token count not yet covered by the summary.
+ * Entries are filled from the database on a miss and then kept current by write-through calls
+ * ({@link #onMessage}, {@link #onSummary}, {@link #evict}), so a turn on a warm conversation does
+ * not read Postgres at all. Bounded by entry count and by an estimate of retained bytes; entries
+ * also expire after a TTL so rows written by another instance are eventually picked up.
+ * <p>
+ * A write to a conversation that is not cached is not applied anywhere, so a load that read its
+ * rows before that write must not be cached either. Every write gets a stamp; loads take one
+ * before reading ({@link #writeStamp}) and {@link #fill} only caches rows no later write has
+ * touched, going by a bounded record of recent writes to uncached conversations.
+ */
+@Component
+public class ConversationContextCache {
+
+    // Rough per-object overheads used for the retained-size estimate
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final long MESSAGE_OVERHEAD = 96;
+    // Writes to uncached conversations remembered for loads in flight
+    private static final int MAX_UNCACHED_WRITES = 4096;
+
+    private final ConversationSummaryRepository summaryRepository;
+    private final MessageRepository messageRepository;
+    private final WriteBehindService writeBehindService;
+    private final int ringSize;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+    private long writeStamp;
+    // Stamp of the latest write to each recently written, uncached conversation
+    private final LinkedHashMap<UUID, Long> uncachedWrites = new LinkedHashMap<>();
+    // Newest stamp dropped from uncachedWrites; loads older than it cannot be checked
+    private long forgottenWriteStamp;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter staleLoads;
+
+    public ConversationContextCache(
+            ConversationSummaryRepository summaryRepository,
+            MessageRepository messageRepository,
+            WriteBehindService writeBehindService,
+            MeterRegistry meterRegistry,
+            @Value("${app.context.cache.ring-size:16}") int ringSize,
+            @Value("${app.context.recent-messages-to-keep:6}") int recentMessagesToKeep,
+            @Value("${app.context.cache.max-entries:5000}") int maxEntries,
+            @Value("${app.context.cache.max-bytes:67108864}") long maxBytes,
+            @Value("${app.context.cache.ttl-ms:600000}") long ttlMs) {
+        this.summaryRepository = summaryRepository;
+        this.messageRepository = messageRepository;
+        this.writeBehindService = writeBehindService;
+        // Room for an aligned history window (see ContextPacker), which spans up to two blocks
+        this.ringSize = Math.max(ringSize, 2 * recentMessagesToKeep);
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+
+        Gauge.builder("context.cache.entries", this, ConversationContextCache::size)
+                .description("Conversations held in the context cache").register(meterRegistry);
+        Gauge.builder("context.cache.bytes", this, ConversationContextCache::bytes)
+                .description("Estimated memory retained by the context cache")
+                .baseUnit("bytes").register(meterRegistry);
+        this.hits = Counter.builder("context.cache.requests").tag("result", "hit").register(meterRegistry);
+        this.misses = Counter.builder("context.cache.requests").tag("result", "miss").register(meterRegistry);
+        this.evictions = Counter.builder("context.cache.evictions").register(meterRegistry);
+        this.staleLoads = Counter.builder("context.cache.stale.loads")
+                .description("Loads not cached because the conversation was written to meanwhile")
+                .register(meterRegistry);
+        // The entry lacks the message that took the seq; reload it from the table
+        writeBehindService.onResequenced(this::evict);
+    }
+
+    /**
+     * Context view of one conversation.
+     *
+     * @param summary             latest completed summary, or null
+     * @param recentMessages      newest messages not covered by the summary, oldest first (at most the ring size)
+     * @param unsummarizedTokens  tokens in messages not covered by the summary
+     */
+    public record Snapshot(ConversationSummary summary, List<Message> recentMessages, int unsummarizedTokens) {
+
+        // A conversation with nothing stored yet
+        public static final Snapshot EMPTY = new Snapshot(null, List.of(), 0);
+
+        public List<Message> lastMessages(int max) {
+            int size = recentMessages.size();
+            return size <= max ? recentMessages : recentMessages.subList(size - max, size);
+        }
+    }
+
+    public Snapshot get(UUID conversationId) {
+        Snapshot cached = getIfCached(conversationId);
+        return cached != null ? cached : load(conversationId);
+    }
+
+    /**
+     * Cached snapshot, or null on a miss; for callers that load the rows themselves and then
+     * {@link #fill} the cache (the reactive chat path, which must not block on JPA).
+     */
+    public Snapshot getIfCached(UUID conversationId) {
+        synchronized (this) {
+            Entry entry = entries.get(conversationId);
+            if (entry != null && System.nanoTime() - entry.loadedAtNanos < ttlNanos) {
+                hits.increment();
+                return entry.snapshot();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stamp to take before reading a conversation's rows and pass to {@link #fill}.
+     */
+    public synchronized long writeStamp() {
+        return writeStamp;
+    }
+
+    /**
+     * Cache rows loaded by the caller after a {@link #getIfCached} miss, unless the conversation
+     * was written to after {@code stamp}; the rows are returned either way.
+     *
+     * @param stamp {@link #writeStamp} taken before the rows were read
+     * @param tail  newest messages after the summary, oldest first (at most {@link #ringSize()})
+     */
+    public Snapshot fill(UUID conversationId, long stamp, ConversationSummary summary, List<Message> tail,
+                         int unsummarizedTokens) {
+        Entry loaded = newEntry(summary, tail, unsummarizedTokens);
+        synchronized (this) {
+            Entry current = entries.get(conversationId);
+            if (current != null && System.nanoTime() - current.loadedAtNanos < ttlNanos) {
+                // Another caller loaded it meanwhile and may already have newer writes applied
+                return current.snapshot();
+            }
+            Long written = uncachedWrites.get(conversationId);
+            if (written != null && written > stamp || forgottenWriteStamp > stamp) {
+                // Written while loading: the rows may miss it, so the next turn loads again
+                staleLoads.increment();
+                return loaded.snapshot();
+            }
+            put(conversationId, loaded);
+            return loaded.snapshot();
+        }
+    }
+
+    public int ringSize() {
+        return ringSize;
+    }
+
+    /**
+     * Apply a newly queued message to a cached conversation. Uncached conversations are only
+     * stamped, so a load in flight is not cached.
+     */
+    public synchronized void onMessage(Message message) {
+        Entry entry = written(message.getConversationId());
+        if (entry == null || message.getSeq() == null || message.getSeq() <= entry.lastSeq) {
+            return;
+        }
+        long before = entry.bytes;
+        entry.append(message);
+        totalBytes += entry.bytes - before;
+        evictOverflow();
+    }
+
+    /**
+     * Apply a newly completed summary to a cached conversation.
+     */
+    public synchronized void onSummary(ConversationSummary summary) {
+        Entry entry = written(summary.getConversationId());
+        if (entry == null) {
+            return;
+        }
+        if (entry.summary != null && entry.summary.getSummaryVersion() >= summary.getSummaryVersion()) {
+            return;
+        }
+        long before = entry.bytes;
+        entry.applySummary(summary);
+        totalBytes += entry.bytes - before;
+        evictOverflow();
+    }
+
+    public synchronized void evict(UUID conversationId) {
+        Entry removed = entries.remove(conversationId);
+        if (removed != null) {
+            totalBytes -= removed.bytes;
+        }
+        written(conversationId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return totalBytes;
+    }
+
+    private Snapshot load(UUID conversationId) {
+        long stamp = writeStamp();
+        // Queued writes are applied to cached entries only, so make sure the rows are readable
+        writeBehindService.awaitFlushed(conversationId);
+        ConversationSummary summary = summaryRepository
+                .findTopByConversationIdAndStatusOrderBySummaryVersionDesc(conversationId, "COMPLETED")
+                .orElse(null);
+        long coveredSeq = summary != null ? summary.getCoveredUntilSeq() : 0L;
+        List<Message> tail = new ArrayList<>(messageRepository
+                .findByConversationIdAndSeqGreaterThanOrderBySeqDesc(conversationId, coveredSeq, Limit.of(ringSize)));
+        Collections.reverse(tail);
+        int unsummarizedTokens = messageRepository.sumTokenCountAfterSeq(conversationId, coveredSeq);
+        return fill(conversationId, stamp, summary, tail, unsummarizedTokens);
+    }
+
+    // Stamp a write; the conversation's entry if cached, otherwise it is remembered as written
+    private Entry written(UUID conversationId) {
+        writeStamp++;
+        Entry entry = entries.get(conversationId);
+        if (entry == null) {
+            uncachedWrites.remove(conversationId);
+            uncachedWrites.put(conversationId, writeStamp);
+            if (uncachedWrites.size() > MAX_UNCACHED_WRITES) {
+                Iterator<Long> oldest = uncachedWrites.values().iterator();
+                forgottenWriteStamp = oldest.next();
+                oldest.remove();
+            }
+        }
+        return entry;
+    }
+
+    private Entry newEntry(ConversationSummary summary, List<Message> tail, int unsummarizedTokens) {
+        Entry entry = new Entry(ringSize, summary);
+        tail.forEach(entry::append);
+        // Tokens of the loaded tail are already part of the sum
+        entry.unsummarizedTokens = unsummarizedTokens;
+        return entry;
+    }
+
+    private void put(UUID conversationId, Entry entry) {
+        Entry previous = entries.put(conversationId, entry);
+        if (previous != null) {
+            totalBytes -= previous.bytes;
+        }
+        totalBytes += entry.bytes;
+        evictOverflow();
+    }
+
+    private void evictOverflow() {
+        Iterator<Map.Entry<UUID, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && eldest.hasNext()) {
+            totalBytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long sizeOf(String text) {
+        return text != null ? 40 + 2L * text.length() : 0;
+    }
+
+    /**
+     * Mutable per-conversation state; only touched while holding the cache's lock.
+     */
+    private static final class Entry {
+
+        private final Message[] ring;
+        private final long loadedAtNanos = System.nanoTime();
+        private int start;
+        private int count;
+        private long lastSeq;
+        private ConversationSummary summary;
+        private int unsummarizedTokens;
+        private long bytes;
+
+        private Entry(int capacity, ConversationSummary summary) {
+            this.ring = new Message[capacity];
+            this.summary = summary;
+            this.lastSeq = summary != null ? summary.getCoveredUntilSeq() : 0L;
+            this.bytes = ENTRY_OVERHEAD + 8L * capacity + (summary != null ? sizeOf(summary.getSummaryText()) : 0);
+        }
+
+        private void append(Message message) {
+            int slot = (start + count) % ring.length;
+            if (count == ring.length) {
+                bytes -= MESSAGE_OVERHEAD + sizeOf(ring[slot].getContent());
+                start = (start + 1) % ring.length;
+            } else {
+                count++;
+            }
+            ring[slot] = message;
+            bytes += MESSAGE_OVERHEAD + sizeOf(message.getContent());
+            lastSeq = Math.max(lastSeq, message.getSeq());
+            unsummarizedTokens += message.getTokenCount() != null ? message.getTokenCount() : 0;
+        }
+
+        private void applySummary(ConversationSummary newSummary) {
+            int previouslyCovered = summary != null ? summary.getCoveredTokenCount() : 0;
+            unsummarizedTokens = Math.max(0, unsummarizedTokens - (newSummary.getCoveredTokenCount() - previouslyCovered));
+            bytes -= summary != null ? sizeOf(summary.getSummaryText()) : 0;
+            bytes += sizeOf(newSummary.getSummaryText());
+            summary = newSummary;
+        }
+
+        private Snapshot snapshot() {
+            long coveredSeq = summary != null ? summary.getCoveredUntilSeq() : 0L;
+            List<Message> recent = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Message message = ring[(start + i) % ring.length];
+                if (message.getSeq() > coveredSeq) {
+                    recent.add(message);
+                }
+            }
+            return new Snapshot(summary, recent, unsummarizedTokens);
+        }
+    }
+}
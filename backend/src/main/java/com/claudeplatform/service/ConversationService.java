@@ -12,6 +12,7 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.OffsetDateTime;
 import java.util.List;
 import java.util.UUID;
 
@@ -22,6 +23,9 @@ public class ConversationService {
     private final ConversationRepository conversationRepository;
     private final MessageRepository messageRepository;
     private final ConversationSummaryRepository summaryRepository;
+    private final WriteBehindService writeBehindService;
+    private final ConversationContextCache contextCache;
+    private final BpeTokenizer tokenizer;
 
     public List<ConversationDto> getUserConversations(UUID userId) {
         return conversationRepository.findByUserIdOrderByUpdatedAtDesc(userId)
@@ -50,13 +54,14 @@ public class ConversationService {
         }
 
         List<ConversationDto.MessageDto> messages = messageRepository
-                .findByConversationIdOrderByCreatedAtAsc(conversationId)
+                .findByConversationIdOrderBySeqAsc(conversationId)
                 .stream()
                 .map(m -> ConversationDto.MessageDto.builder()
                         .id(m.getId())
                         .role(m.getRole())
                         .content(m.getContent())
                         .tokenCount(m.getTokenCount())
+                        .truncated(m.getTruncated())
                         .createdAt(m.getCreatedAt())
                         .build())
                 .toList();
@@ -124,20 +129,42 @@ public class ConversationService {
         }
 
         conversationRepository.delete(conversation);
+        contextCache.evict(conversationId);
     }
 
-    public Message saveMessage(UUID conversationId, String role, String content) {
+    /**
+     * Queue a message on the write-behind stage instead of inserting it on the caller's thread.
+     * The id and timestamp are assigned here and the sequence number on enqueue, so ordering
+     * follows the call order. Meant for the message that starts a turn: if the stage stays full
+     * it fails with a 503 rather than wait.
+     */
+    public Message queueMessage(UUID conversationId, String role, String content) {
+        return queueMessage(conversationId, role, content, false, true);
+    }
+
+    /**
+     * Queue a turn's reply. Waits for room if the write-behind stage is full, since a reply
+     * cannot be regenerated.
+     *
+     * @param truncated whether the content was cut short (the client disconnected mid-reply)
+     */
+    public Message queueMessage(UUID conversationId, String role, String content, boolean truncated) {
+        return queueMessage(conversationId, role, content, truncated, false);
+    }
+
+    private Message queueMessage(UUID conversationId, String role, String content, boolean truncated,
+                                 boolean rejectWhenFull) {
         Message message = Message.builder()
+                .id(UUID.randomUUID())
                 .conversationId(conversationId)
                 .role(role)
                 .content(content)
-                .tokenCount(estimateTokens(content))
+                .tokenCount(tokenizer.countTokens(content))
+                .truncated(truncated)
+                .createdAt(OffsetDateTime.now())
                 .build();
-        return messageRepository.save(message);
-    }
-
-    private int estimateTokens(String text) {
-        // Rough estimation: ~4 chars per token
-        return text != null ? text.length() / 4 : 0;
+        writeBehindService.enqueueMessage(message, rejectWhenFull);
+        contextCache.onMessage(message);
+        return message;
     }
 }
@@ -0,0 +1,377 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ConflictException;
+import com.claudeplatform.model.dto.ChatRequest;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Idempotency-Key handling for chat completions. The first request with a key claims it and
+ * streams as usual; a retry with the same key and request attaches to that stream while it
+ * runs, or gets the stored SSE response once it has completed (within the retention window).
+ * Only successful streams are kept; a failed or abandoned one frees the key for another try.
+ * The chat_idempotency_keys table is the record, so keys survive restarts and are shared by
+ * instances. A retry that reaches another instance while the stream is still running there gets
+ * a 409, since the live stream is only in that instance's memory. A small LRU index of recent
+ * keys (request hash, stream id, state) saves the table lookup for local retries.
+ */
+@Service
+@Slf4j
+public class IdempotencyService {
+
+    private static final UUID WEB_UI_SCOPE = new UUID(0L, 0L);
+    private static final int MAX_KEY_LENGTH = 255;
+
+    private static final String CLAIM =
+            "INSERT INTO chat_idempotency_keys (scope, idempotency_key, request_hash, owner, stream_id, expires_at) " +
+            "VALUES (?, ?, ?, ?, ?, NOW() + (? * INTERVAL '1 millisecond')) " +
+            "ON CONFLICT (scope, idempotency_key) DO NOTHING";
+
+    // An expired row (a finished retention window, or a stream whose instance died) is taken over
+    private static final String CLAIM_EXPIRED =
+            "UPDATE chat_idempotency_keys SET request_hash = ?, status = 'IN_PROGRESS', owner = ?, stream_id = ?, " +
+            "response = NULL, created_at = NOW(), expires_at = NOW() + (? * INTERVAL '1 millisecond') " +
+            "WHERE scope = ? AND idempotency_key = ? AND expires_at < NOW()";
+
+    private static final String FIND =
+            "SELECT request_hash, status, owner, stream_id, response, expires_at FROM chat_idempotency_keys " +
+            "WHERE scope = ? AND idempotency_key = ?";
+
+    private static final String COMPLETE =
+            "UPDATE chat_idempotency_keys SET status = 'COMPLETED', response = ?, " +
+            "expires_at = NOW() + (? * INTERVAL '1 millisecond') " +
+            "WHERE scope = ? AND idempotency_key = ? AND stream_id = ?";
+
+    private static final String RELEASE =
+            "DELETE FROM chat_idempotency_keys WHERE scope = ? AND idempotency_key = ? AND stream_id = ?";
+
+    private static final String PURGE = "DELETE FROM chat_idempotency_keys WHERE expires_at < NOW()";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper objectMapper;
+    private final ChatStreamRegistry chatStreamRegistry;
+    private final SseCoalescer sseCoalescer;
+    private final Scheduler persistenceScheduler;
+    private final String owner;
+    private final Map<Key, Entry> index;
+
+    private final Counter replayedCompleted;
+    private final Counter attachedRunning;
+
+    @Value("${app.chat.idempotency.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.chat.idempotency.retention-ms:86400000}")
+    private long retentionMs;
+
+    // How long a claim holds while its stream runs; past this a crashed instance's key is reclaimed
+    @Value("${app.chat.idempotency.in-progress-ttl-ms:600000}")
+    private long inProgressTtlMs;
+
+    @Value("${app.chat.idempotency.max-response-bytes:1048576}")
+    private int maxResponseBytes;
+
+    public IdempotencyService(JdbcTemplate jdbcTemplate,
+                              ObjectMapper objectMapper,
+                              ChatStreamRegistry chatStreamRegistry,
+                              SseCoalescer sseCoalescer,
+                              Scheduler persistenceScheduler,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.chat.idempotency.max-entries:100000}") int maxEntries) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.objectMapper = objectMapper;
+        this.chatStreamRegistry = chatStreamRegistry;
+        this.sseCoalescer = sseCoalescer;
+        this.persistenceScheduler = persistenceScheduler;
+        this.owner = hostName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+        this.index = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        this.replayedCompleted = Counter.builder("chat.idempotency.replays")
+                .description("Retries answered from a completed Idempotency-Key")
+                .tag("state", "completed").register(meterRegistry);
+        this.attachedRunning = Counter.builder("chat.idempotency.replays")
+                .description("Retries attached to the running stream of their Idempotency-Key")
+                .tag("state", "running").register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Claim {@code idempotencyKey} for this request. Blocks on the database on a local miss, so
+     * reactive callers run it on the persistence scheduler.
+     *
+     * @return a {@link Claim#isStarted() started} claim if the caller should stream the request
+     * itself (and {@link #complete} or {@link #release} it), otherwise one to {@link #replay}
+     * @throws ConflictException if the key was used for a different request, or its stream is
+     *                           running on another instance
+     */
+    public Claim claim(UUID apiKeyId, String idempotencyKey, ChatRequest request) {
+        if (idempotencyKey.isBlank() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Idempotency-Key must be 1 to " + MAX_KEY_LENGTH + " characters");
+        }
+        Key key = new Key(apiKeyId != null ? apiKeyId : WEB_UI_SCOPE, idempotencyKey);
+        long requestHash = requestHash(request);
+
+        Entry local = cached(key);
+        if (local != null) {
+            checkSameRequest(local.requestHash(), requestHash);
+            if (!local.completed()) {
+                return running(key, local.streamId());
+            }
+        } else {
+            UUID streamId = UUID.randomUUID();
+            if (jdbcTemplate.update(CLAIM, key.scope(), key.key(), requestHash, owner, streamId, inProgressTtlMs) > 0
+                    || jdbcTemplate.update(CLAIM_EXPIRED, requestHash, owner, streamId, inProgressTtlMs,
+                            key.scope(), key.key()) > 0) {
+                remember(key, new Entry(requestHash, streamId, false, System.currentTimeMillis() + inProgressTtlMs));
+                return new Claim(key, requestHash, streamId, true, null, maxResponseBytes);
+            }
+        }
+
+        List<Row> rows = jdbcTemplate.query(FIND, (rs, i) -> new Row(rs.getLong(1), rs.getString(2),
+                rs.getString(3), rs.getObject(4, UUID.class), rs.getBytes(5), rs.getTimestamp(6)), key.scope(), key.key());
+        if (rows.isEmpty()) {
+            // Released between the insert and the read; the client can simply retry
+            throw new ConflictException("Request with this Idempotency-Key is being retried concurrently");
+        }
+        Row row = rows.get(0);
+        checkSameRequest(row.requestHash(), requestHash);
+        if ("COMPLETED".equals(row.status())) {
+            remember(key, new Entry(row.requestHash(), row.streamId(), true, row.expiresAt().getTime()));
+            if (row.response() == null) {
+                throw new ConflictException("Request with this Idempotency-Key already completed; "
+                        + "its response was too large to keep");
+            }
+            replayedCompleted.increment();
+            return new Claim(key, requestHash, row.streamId(), false, row.response(), 0);
+        }
+        if (owner.equals(row.owner())) {
+            return running(key, row.streamId());
+        }
+        throw new ConflictException("Request with this Idempotency-Key is still in progress");
+    }
+
+    /**
+     * The response for a claim that was not started here: the stored SSE body, or the running
+     * stream from its first event.
+     */
+    public Flux<byte[]> replay(Claim claim, UUID apiKeyId, UUID userId) {
+        if (claim.response() != null) {
+            return Flux.just(claim.response());
+        }
+        return sseCoalescer.coalesce(chatStreamRegistry.resume(claim.streamId(), apiKeyId, userId, 0),
+                claim.streamId());
+    }
+
+    /**
+     * Store the captured response of a successful stream; runs on the persistence scheduler.
+     */
+    public void complete(Claim claim) {
+        if (!claim.settle()) {
+            return;
+        }
+        byte[] response = claim.capturedResponse();
+        Mono.fromRunnable(() -> {
+                    jdbcTemplate.update(COMPLETE, response, retentionMs, claim.key().scope(), claim.key().key(),
+                            claim.streamId());
+                    remember(claim.key(), new Entry(claim.requestHash(), claim.streamId(), true,
+                            System.currentTimeMillis() + retentionMs));
+                })
+                .subscribeOn(persistenceScheduler)
+                .subscribe(null, e -> log.error("Failed to store idempotent response for stream {}",
+                        claim.streamId(), e));
+    }
+
+    /**
+     * Free the key after a failed, cancelled or unstarted stream so a retry runs it again; runs on
+     * the persistence scheduler. A claim is completed or released once; later calls are ignored.
+     */
+    public void release(Claim claim) {
+        if (!claim.settle()) {
+            return;
+        }
+        Mono.fromRunnable(() -> {
+                    jdbcTemplate.update(RELEASE, claim.key().scope(), claim.key().key(), claim.streamId());
+                    synchronized (index) {
+                        Entry entry = index.get(claim.key());
+                        if (entry != null && entry.streamId().equals(claim.streamId())) {
+                            index.remove(claim.key());
+                        }
+                    }
+                })
+                .subscribeOn(persistenceScheduler)
+                .subscribe(null, e -> log.error("Failed to release Idempotency-Key for stream {}",
+                        claim.streamId(), e));
+    }
+
+    @Scheduled(fixedDelayString = "${app.chat.idempotency.purge-interval-ms:300000}")
+    public void purgeExpired() {
+        if (!enabled) {
+            return;
+        }
+        int purged = jdbcTemplate.update(PURGE);
+        long now = System.currentTimeMillis();
+        synchronized (index) {
+            index.values().removeIf(entry -> entry.expiresAt() < now);
+        }
+        if (purged > 0) {
+            log.debug("Purged {} expired idempotency keys", purged);
+        }
+    }
+
+    private Claim running(Key key, UUID streamId) {
+        if (!chatStreamRegistry.isEnabled()) {
+            throw new ConflictException("Request with this Idempotency-Key is still in progress");
+        }
+        attachedRunning.increment();
+        return new Claim(key, 0L, streamId, false, null, 0);
+    }
+
+    private Entry cached(Key key) {
+        synchronized (index) {
+            Entry entry = index.get(key);
+            return entry != null && entry.expiresAt() > System.currentTimeMillis() ? entry : null;
+        }
+    }
+
+    private void remember(Key key, Entry entry) {
+        synchronized (index) {
+            index.put(key, entry);
+        }
+    }
+
+    private static void checkSameRequest(long stored, long requestHash) {
+        if (stored != requestHash) {
+            throw new ConflictException("Idempotency-Key was already used for a different request");
+        }
+    }
+
+    /**
+     * First 64 bits of the SHA-256 of the request as JSON.
+     */
+    private long requestHash(ChatRequest request) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(objectMapper.writeValueAsBytes(request));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed to hash chat request", e);
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    private record Key(UUID scope, String key) {
+    }
+
+    private record Entry(long requestHash, UUID streamId, boolean completed, long expiresAt) {
+    }
+
+    private record Row(long requestHash, String status, String owner, UUID streamId, byte[] response,
+                       Timestamp expiresAt) {
+    }
+
+    /**
+     * Outcome of {@link #claim}. A started claim captures the frames of the stream it runs, up to
+     * the response size limit, for {@link #complete}.
+     */
+    public static final class Claim {
+
+        private final Key key;
+        private final long requestHash;
+        private final UUID streamId;
+        private final boolean started;
+        private final byte[] response;
+        private final int captureLimit;
+        private ByteArrayOutputStream captured;
+        private boolean overflowed;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Claim(Key key, long requestHash, UUID streamId, boolean started, byte[] response, int captureLimit) {
+            this.key = key;
+            this.requestHash = requestHash;
+            this.streamId = streamId;
+            this.started = started;
+            this.response = response;
+            this.captureLimit = captureLimit;
+        }
+
+        public boolean isStarted() {
+            return started;
+        }
+
+        public UUID streamId() {
+            return streamId;
+        }
+
+        byte[] response() {
+            return response;
+        }
+
+        Key key() {
+            return key;
+        }
+
+        long requestHash() {
+            return requestHash;
+        }
+
+        public void capture(byte[] frame) {
+            if (overflowed) {
+                return;
+            }
+            if (captured == null) {
+                captured = new ByteArrayOutputStream(Math.min(captureLimit, 8192));
+            }
+            if (captured.size() + frame.length > captureLimit) {
+                overflowed = true;
+                captured = null;
+                return;
+            }
+            captured.writeBytes(frame);
+        }
+
+        boolean settle() {
+            return settled.compareAndSet(false, true);
+        }
+
+        // Null when the response outgrew the limit
+        byte[] capturedResponse() {
+            return overflowed || captured == null ? null : captured.toByteArray();
+        }
+    }
+}
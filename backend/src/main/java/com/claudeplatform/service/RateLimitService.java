@@ -0,0 +1,225 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ApiKey;
+import com.claudeplatform.model.entity.AppSetting;
+import com.claudeplatform.repository.ApiKeyRepository;
+import com.claudeplatform.repository.AppSettingRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-API-key and per-user request and token limits for /api/chat/**.
+ * Buckets live in memory ({@link TokenBucket}), so the hot path never touches the database.
+ * Limits come from application.yml, can be overridden globally through app_settings
+ * ("rate_limit.*" keys) and per key through api_keys.rate_limit_rpm / rate_limit_tpm;
+ * both are re-read on a fixed delay so changes apply without a restart. New limits apply to the
+ * existing buckets; a bucket is only dropped once it has refilled completely, and all
+ * consumption happens under its map entry's lock so a bucket cannot be dropped mid-request.
+ * A limit of 0 or less means unlimited.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class RateLimitService {
+
+    private static final String SETTING_PREFIX = "rate_limit.";
+
+    private final ApiKeyRepository apiKeyRepository;
+    private final AppSettingRepository appSettingRepository;
+
+    @Value("${app.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.rate-limit.key-requests-per-minute:60}")
+    private long keyRequestsPerMinute;
+
+    @Value("${app.rate-limit.key-tokens-per-minute:200000}")
+    private long keyTokensPerMinute;
+
+    @Value("${app.rate-limit.user-requests-per-minute:120}")
+    private long userRequestsPerMinute;
+
+    @Value("${app.rate-limit.user-tokens-per-minute:400000}")
+    private long userTokensPerMinute;
+
+    @Value("${app.rate-limit.burst-seconds:60}")
+    private long burstSeconds;
+
+    private volatile Limits defaults;
+    private volatile Map<UUID, Limits> keyLimits = Map.of();
+
+    private final ConcurrentHashMap<UUID, TokenBucket> keyRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, TokenBucket> keyTokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, TokenBucket> userRequests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<UUID, TokenBucket> userTokens = new ConcurrentHashMap<>();
+
+    public record Limits(long keyRpm, long keyTpm, long userRpm, long userTpm, long burstSeconds) {
+    }
+
+    public record Decision(boolean allowed, long requestLimit, long requestsRemaining,
+                           long tokenLimit, long tokensRemaining, long resetSeconds, long retryAfterSeconds) {
+    }
+
+    @PostConstruct
+    void init() {
+        defaults = new Limits(keyRequestsPerMinute, keyTokensPerMinute,
+                userRequestsPerMinute, userTokensPerMinute, burstSeconds);
+        try {
+            reload();
+        } catch (Exception e) {
+            log.warn("Could not load rate limit overrides, using defaults", e);
+        }
+    }
+
+    /**
+     * Admit one request for this key. Token limits are only checked here (the bucket must not be
+     * in debt); the actual tokens are charged by {@link #recordTokens} when the response is done.
+     */
+    public Decision tryAcquire(UUID apiKeyId, UUID userId) {
+        Limits limits = keyLimits.getOrDefault(apiKeyId, defaults);
+        if (!enabled) {
+            return new Decision(true, 0, 0, 0, 0, 0, 0);
+        }
+        // Missing token buckets are full; reading them needs no lock
+        long wait = Math.max(waitNanos(keyTokens.get(apiKeyId), limits.keyTpm(), limits),
+                waitNanos(userTokens.get(userId), limits.userTpm(), limits));
+        if (wait == 0) {
+            wait = tryConsume(keyRequests, apiKeyId, limits.keyRpm(), limits);
+            if (wait == 0) {
+                wait = tryConsume(userRequests, userId, limits.userRpm(), limits);
+                if (wait > 0 && limits.keyRpm() > 0) {
+                    // Not full after the consume above, so reload has not dropped it
+                    keyRequests.computeIfPresent(apiKeyId, (id, bucket) -> {
+                        bucket.refund(1, limits.keyRpm());
+                        return bucket;
+                    });
+                }
+            }
+        }
+
+        TokenBucket keyReq = keyRequests.get(apiKeyId);
+        return new Decision(wait == 0,
+                limits.keyRpm(), remaining(keyReq, limits.keyRpm(), limits),
+                limits.keyTpm(), remaining(keyTokens.get(apiKeyId), limits.keyTpm(), limits),
+                toSeconds(keyReq != null ? keyReq.nanosUntilFull() : 0), toSeconds(wait));
+    }
+
+    /**
+     * Charge a finished response's tokens to its key and the key's owner.
+     */
+    public void recordTokens(UUID apiKeyId, UUID userId, int tokens) {
+        if (!enabled || apiKeyId == null || tokens <= 0) {
+            return;
+        }
+        Limits limits = keyLimits.getOrDefault(apiKeyId, defaults);
+        consume(keyTokens, apiKeyId, tokens, limits.keyTpm());
+        if (userId != null) {
+            consume(userTokens, userId, tokens, limits.userTpm());
+        }
+    }
+
+    /**
+     * Re-read limit overrides and drop buckets that have refilled completely
+     * (a full bucket is indistinguishable from a new one).
+     */
+    @Scheduled(fixedDelayString = "${app.rate-limit.reload-interval-ms:30000}",
+            initialDelayString = "${app.rate-limit.reload-interval-ms:30000}")
+    public void reload() {
+        Map<String, String> settings = new HashMap<>();
+        for (AppSetting setting : appSettingRepository.findBySettingKeyStartingWith(SETTING_PREFIX)) {
+            settings.put(setting.getSettingKey().substring(SETTING_PREFIX.length()), setting.getSettingValue());
+        }
+        Limits base = new Limits(
+                setting(settings, "key_rpm", keyRequestsPerMinute),
+                setting(settings, "key_tpm", keyTokensPerMinute),
+                setting(settings, "user_rpm", userRequestsPerMinute),
+                setting(settings, "user_tpm", userTokensPerMinute),
+                setting(settings, "burst_seconds", burstSeconds));
+
+        Map<UUID, Limits> overrides = new HashMap<>();
+        for (ApiKey key : apiKeyRepository.findActiveWithRateLimits()) {
+            overrides.put(key.getId(), new Limits(
+                    key.getRateLimitRpm() != null ? key.getRateLimitRpm() : base.keyRpm(),
+                    key.getRateLimitTpm() != null ? key.getRateLimitTpm() : base.keyTpm(),
+                    base.userRpm(), base.userTpm(), base.burstSeconds()));
+        }
+        defaults = base;
+        keyLimits = Map.copyOf(overrides);
+
+        evictFull(keyRequests);
+        evictFull(keyTokens);
+        evictFull(userRequests);
+        evictFull(userTokens);
+    }
+
+    // Re-checked under the entry's lock, so a bucket consumed from concurrently is kept
+    private static void evictFull(ConcurrentHashMap<UUID, TokenBucket> buckets) {
+        for (UUID id : buckets.keySet()) {
+            buckets.computeIfPresent(id, (key, bucket) -> bucket.nanosUntilFull() == 0 ? null : bucket);
+        }
+    }
+
+    private static long tryConsume(ConcurrentHashMap<UUID, TokenBucket> buckets, UUID id, long perMinute,
+                                   Limits limits) {
+        if (perMinute <= 0) {
+            return 0;
+        }
+        long[] wait = new long[1];
+        buckets.compute(id, (key, bucket) -> {
+            TokenBucket b = bucket != null ? bucket : new TokenBucket();
+            wait[0] = b.tryConsume(1, perMinute, limits.burstSeconds());
+            return b;
+        });
+        return wait[0];
+    }
+
+    private static void consume(ConcurrentHashMap<UUID, TokenBucket> buckets, UUID id, long cost, long perMinute) {
+        if (perMinute <= 0) {
+            return;
+        }
+        buckets.compute(id, (key, bucket) -> {
+            TokenBucket b = bucket != null ? bucket : new TokenBucket();
+            b.consume(cost, perMinute);
+            return b;
+        });
+    }
+
+    private long waitNanos(TokenBucket bucket, long perMinute, Limits limits) {
+        return perMinute > 0 && bucket != null ? bucket.waitNanos(perMinute, limits.burstSeconds()) : 0;
+    }
+
+    private long remaining(TokenBucket bucket, long perMinute, Limits limits) {
+        if (perMinute <= 0) {
+            return 0;
+        }
+        return bucket != null ? bucket.remaining(perMinute, limits.burstSeconds())
+                : Math.max(1, perMinute * limits.burstSeconds() / 60);
+    }
+
+    private static long toSeconds(long nanos) {
+        return nanos > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toSeconds(nanos + 999_999_999L)) : 0;
+    }
+
+    private static long setting(Map<String, String> settings, String key, long fallback) {
+        String value = settings.get(key);
+        if (value == null || value.isBlank()) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid app setting {}{}={}", SETTING_PREFIX, key, value);
+            return fallback;
+        }
+    }
+}
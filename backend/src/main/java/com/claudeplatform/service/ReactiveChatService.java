@@ -0,0 +1,370 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.dto.ChatRequest;
+import com.claudeplatform.model.entity.Conversation;
+import com.claudeplatform.model.entity.ConversationSummary;
+import com.claudeplatform.model.entity.Message;
+import com.claudeplatform.model.entity.UsageLog;
+import com.claudeplatform.repository.reactive.ReactiveConversationRepository;
+import com.claudeplatform.repository.reactive.ReactiveConversationSummaryRepository;
+import com.claudeplatform.repository.reactive.ReactiveMessageRepository;
+import com.claudeplatform.repository.reactive.ReactiveUsageLogRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Chat turns for the reactive endpoint (app.chat.reactive.enabled). Same behaviour as
+ * {@link ChatProxyService}, but nothing blocks: admission waits on the limiter's future, the
+ * context comes from {@link ConversationContextCache} or R2DBC reads on a miss, and the turn is
+ * recorded through the reactive repositories instead of the write-behind stage. Only the
+ * summarization enqueue (rare, one row) is still JDBC and runs on the persistence scheduler.
+ */
+@Service
+@ConditionalOnProperty(name = "app.chat.reactive.enabled", havingValue = "true")
+@RequiredArgsConstructor
+@Slf4j
+public class ReactiveChatService {
+
+    private final UpstreamChatClient upstreamChatClient;
+    private final UpstreamConcurrencyLimiter concurrencyLimiter;
+    private final ContextManagementService contextManagementService;
+    private final ConversationContextCache contextCache;
+    private final RateLimitService rateLimitService;
+    private final SummarizationJobService summarizationJobService;
+    private final BpeTokenizer tokenizer;
+    private final Scheduler persistenceScheduler;
+    private final SseFrames sseFrames;
+    private final SseCoalescer sseCoalescer;
+    private final ChatStreamRegistry chatStreamRegistry;
+    private final IdempotencyService idempotencyService;
+    private final CompletionCache completionCache;
+    private final UpstreamSessionService upstreamSessionService;
+    private final ChatTurnFinalizer chatTurnFinalizer;
+    private final ReactiveConversationRepository conversationRepository;
+    private final ReactiveMessageRepository messageRepository;
+    private final ReactiveUsageLogRepository usageLogRepository;
+    private final ReactiveConversationSummaryRepository summaryRepository;
+
+    /**
+     * A turn's context and upstream request, built before admission so that a completion-cache
+     * hit is replayed without an upstream permit.
+     *
+     * @param cacheKey completion-cache key, or null when the caller does not use the cache
+     * @param cached   the cached response, or null
+     */
+    public record PreparedTurn(String model, ConversationContextCache.Snapshot snapshot,
+                               ContextPacker.PackedContext context, Map<String, Object> body,
+                               CompletionCache.Key cacheKey, CompletionCache.Hit cached) {
+
+        public boolean needsUpstream() {
+            return cached == null;
+        }
+    }
+
+    /**
+     * Load the context (a new conversation has none yet, and is only created once the turn
+     * starts) and look the request up in the completion cache.
+     */
+    public Mono<PreparedTurn> prepare(ChatRequest request, UUID apiKeyId) {
+        String model = request.getModel() != null ? request.getModel() : UpstreamChatClient.DEFAULT_MODEL;
+        Mono<ConversationContextCache.Snapshot> snapshot = request.getConversationId() != null
+                ? loadContext(request.getConversationId())
+                : Mono.just(ConversationContextCache.Snapshot.EMPTY);
+        return snapshot.map(loaded -> {
+            ContextPacker.PackedContext context = contextManagementService.buildContextPrompt(
+                    loaded, model, request.getContextBudgetTokens(), request.getMessage());
+            Map<String, Object> body = upstreamChatClient.requestBody(request, model, context);
+            CompletionCache.Key cacheKey = completionCache.keyFor(apiKeyId, model, body);
+            return new PreparedTurn(model, loaded, context, body, cacheKey,
+                    cacheKey != null ? completionCache.get(cacheKey) : null);
+        });
+    }
+
+    /**
+     * Admission to the upstream, without holding a thread while queued. Fails with
+     * {@link com.claudeplatform.exception.ServiceOverloadedException} before any response is written.
+     */
+    public Mono<UpstreamConcurrencyLimiter.Permit> admit(UUID apiKeyId) {
+        return Mono.fromFuture(() -> concurrencyLimiter.acquireAsync(apiKeyId != null
+                ? UpstreamConcurrencyLimiter.Priority.API
+                : UpstreamConcurrencyLimiter.Priority.INTERACTIVE));
+    }
+
+    /**
+     * The generation already running for this request (another tab, a client retry), or null.
+     * Checked before admission so joining one does not wait for a permit.
+     */
+    public Flux<byte[]> joinRunning(ChatRequest request, UUID userId, UUID apiKeyId) {
+        Flux<byte[]> running = chatStreamRegistry.join(chatStreamRegistry.turnKey(request, apiKeyId, userId));
+        return running != null ? sseCoalescer.coalesce(running, UUID.randomUUID()) : null;
+    }
+
+    /**
+     * Stream a prepared chat turn under an admitted permit, which is released when the stream ends
+     * (or right away if the same request started generating in the meantime and this one joins it).
+     *
+     * @param permit the upstream permit, or null for a turn answered from the completion cache
+     * @param claim  the request's started Idempotency-Key claim, or null
+     */
+    public Flux<byte[]> streamChat(ChatRequest request, UUID userId, UUID apiKeyId, PreparedTurn prepared,
+                                   UpstreamConcurrencyLimiter.Permit permit, IdempotencyService.Claim claim) {
+        UUID streamId = claim != null ? claim.streamId() : UUID.randomUUID();
+        // A keyed request is already deduplicated by its key
+        ChatStreamRegistry.TurnKey turn = claim == null ? chatStreamRegistry.turnKey(request, apiKeyId, userId) : null;
+        boolean[] started = new boolean[1];
+        Flux<byte[]> frames = chatStreamRegistry.open(streamId, apiKeyId, userId, turn, () -> {
+            started[0] = true;
+            return frames(request, userId, apiKeyId, prepared, permit, streamId, claim);
+        });
+        if (!started[0] && permit != null) {
+            permit.release(UpstreamConcurrencyLimiter.Outcome.IGNORED);
+        }
+        return sseCoalescer.coalesce(frames, streamId);
+    }
+
+    private Flux<byte[]> frames(ChatRequest request, UUID userId, UUID apiKeyId, PreparedTurn prepared,
+                                UpstreamConcurrencyLimiter.Permit permit, UUID streamId,
+                                IdempotencyService.Claim claim) {
+        Flux<byte[]> frames = conversationId(request, userId, prepared.model())
+                .flatMapMany(conversationId -> {
+                    Turn turn = new Turn(request, userId, apiKeyId, conversationId, prepared.model(),
+                            prepared.context(), new StreamAccumulator(), System.currentTimeMillis(), System.nanoTime());
+                    // Inserted alongside the upstream call; the reply is only recorded after it,
+                    // so it gets the later seq
+                    Mono<Long> userMessageSaved = saveMessage(conversationId, "user", request.getMessage(), false)
+                            .cache();
+                    userMessageSaved.subscribe(null, e -> log.error(
+                            "Failed to save user message for conversation {}", conversationId, e));
+                    return Flux.concat(
+                            Mono.just(sseFrames.metadata(conversationId,
+                                    chatStreamRegistry.isEnabled() ? streamId : null)),
+                            prepared.needsUpstream()
+                                    ? upstream(turn, prepared, permit, userMessageSaved, claim)
+                                    : replayCached(turn, prepared.cached(), userMessageSaved, claim));
+                })
+                // The upstream stream releases with its outcome first; this only covers a failure
+                // or cancel before it started (release is idempotent)
+                .doFinally(signal -> {
+                    if (permit != null) {
+                        permit.release(UpstreamConcurrencyLimiter.Outcome.IGNORED);
+                    }
+                    // This runs before the upstream's own doFinally, which settles a completed claim
+                    if (claim != null && signal != SignalType.ON_COMPLETE) {
+                        idempotencyService.release(claim);
+                    }
+                })
+                .onErrorResume(error -> {
+                    log.error("Chat setup error, returning SSE error", error);
+                    return upstreamChatClient.streamErrorFrames(error);
+                });
+        return claim != null ? frames.doOnNext(claim::capture) : frames;
+    }
+
+    /**
+     * @param historySeq seq of the newest message before this turn's, for session affinity
+     */
+    private Flux<byte[]> upstream(Turn turn, PreparedTurn prepared, UpstreamConcurrencyLimiter.Permit permit,
+                                  Mono<Long> userMessageSaved, IdempotencyService.Claim claim) {
+        Map<String, Object> body = prepared.body();
+        AtomicReference<UpstreamConcurrencyLimiter.Outcome> upstreamOutcome =
+                new AtomicReference<>(UpstreamConcurrencyLimiter.Outcome.SUCCESS);
+
+        CompletionCache.Fill fill = prepared.cacheKey() != null ? completionCache.fill(prepared.cacheKey()) : null;
+        UpstreamSessionService.Session session = upstreamSessionService.acquire(turn.conversationId(), turn.model(),
+                historySeq(prepared.snapshot()));
+        Flux<byte[]> upstream = session != null
+                ? upstreamChatClient.stream(
+                        upstreamChatClient.sessionRequestBody(turn.request(), turn.model(), session.id()),
+                        session.endpoint(), body, turn.accumulator(), permit, upstreamOutcome,
+                        () -> upstreamSessionService.unavailable(turn.conversationId(), session))
+                : upstreamChatClient.stream(body, turn.accumulator(), permit, upstreamOutcome);
+        if (fill != null) {
+            upstream = upstream.doOnNext(fill::capture);
+        }
+        ChatTurnFinalizer.Upstream settled = new ChatTurnFinalizer.Upstream(turn.conversationId(),
+                turn.accumulator(), permit, upstreamOutcome, fill, claim, session);
+
+        return upstream
+                .doFinally(signal -> chatTurnFinalizer.finish(signal, settled, (cancelled, succeeded) ->
+                        record(turn, userMessageSaved, recordTurn(turn, cancelled, succeeded))))
+                .doOnError(error -> {
+                    log.error("Chat streaming error", error);
+                    usageLogRepository.insert(UsageLog.builder()
+                                    .userId(turn.userId())
+                                    .conversationId(turn.conversationId())
+                                    .model(turn.model())
+                                    .responseTimeMs(System.currentTimeMillis() - turn.startTime())
+                                    .ttftMs(turn.accumulator().timeToFirstTokenMs(turn.startNanos()))
+                                    .contextTokens(turn.context().tokens())
+                                    .status("ERROR")
+                                    .build())
+                            .subscribe(null, e -> log.error("Failed to write usage log", e));
+                })
+                .onErrorResume(error -> {
+                    log.error("Chat error, returning SSE error", error);
+                    return upstreamChatClient.streamErrorFrames(error);
+                });
+    }
+
+    /**
+     * Answer a turn from the completion cache in one write; recorded like any other turn, minus
+     * the upstream tokens it did not use.
+     */
+    private Flux<byte[]> replayCached(Turn turn, CompletionCache.Hit hit, Mono<Long> userMessageSaved,
+                                      IdempotencyService.Claim claim) {
+        log.debug("Chat turn for conversation {} answered from the completion cache", turn.conversationId());
+        return Flux.just(hit.frames())
+                .doFinally(signal -> chatTurnFinalizer.finishCached(signal, claim, () ->
+                        record(turn, userMessageSaved, recordTurn(turn, hit.content(), "CACHED", false))));
+    }
+
+    // Records the turn once the user message is in, so the reply gets the later seq
+    private void record(Turn turn, Mono<Long> userMessageSaved, Mono<Void> recorded) {
+        userMessageSaved.onErrorComplete().then(recorded)
+                .subscribe(null, e -> log.error("Failed to record chat turn for conversation {}",
+                        turn.conversationId(), e));
+    }
+
+    private static long historySeq(ConversationContextCache.Snapshot snapshot) {
+        List<Message> recent = snapshot.recentMessages();
+        if (!recent.isEmpty()) {
+            return recent.get(recent.size() - 1).getSeq();
+        }
+        return snapshot.summary() != null ? snapshot.summary().getCoveredUntilSeq() : 0L;
+    }
+
+    private Mono<UUID> conversationId(ChatRequest request, UUID userId, String model) {
+        if (request.getConversationId() != null) {
+            return Mono.just(request.getConversationId());
+        }
+        return conversationRepository.insert(Conversation.builder()
+                        .userId(userId)
+                        .model(model)
+                        .build())
+                .map(Conversation::getId);
+    }
+
+    /**
+     * Context snapshot from the cache, or read with R2DBC and cached. Messages this path writes
+     * are inserted directly (no write-behind queue), so the rows are already readable.
+     */
+    private Mono<ConversationContextCache.Snapshot> loadContext(UUID conversationId) {
+        if (!contextManagementService.isContextEnabled()) {
+            return Mono.just(ConversationContextCache.Snapshot.EMPTY);
+        }
+        ConversationContextCache.Snapshot cached = contextCache.getIfCached(conversationId);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        long stamp = contextCache.writeStamp();
+        return summaryRepository.findLatest(conversationId, "COMPLETED")
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty())
+                .flatMap(latest -> {
+                    ConversationSummary summary = latest.orElse(null);
+                    long coveredSeq = summary != null ? summary.getCoveredUntilSeq() : 0L;
+                    return Mono.zip(
+                                    messageRepository.findNewestAfterSeq(conversationId, coveredSeq, contextCache.ringSize())
+                                            .collectList(),
+                                    messageRepository.sumTokenCountAfterSeq(conversationId, coveredSeq))
+                            .map(rows -> {
+                                List<Message> tail = rows.getT1();
+                                Collections.reverse(tail);
+                                return contextCache.fill(conversationId, stamp, summary, tail, rows.getT2());
+                            });
+                });
+    }
+
+    private Mono<Long> saveMessage(UUID conversationId, String role, String content, boolean truncated) {
+        Message message = Message.builder()
+                .id(UUID.randomUUID())
+                .conversationId(conversationId)
+                .role(role)
+                .content(content)
+                .tokenCount(tokenizer.countTokens(content))
+                .truncated(truncated)
+                .createdAt(OffsetDateTime.now())
+                .build();
+        return messageRepository.insert(message)
+                .doOnNext(seq -> contextCache.onMessage(message));
+    }
+
+    private Mono<Void> recordTurn(Turn turn, boolean cancelled, boolean succeeded) {
+        return recordTurn(turn, turn.accumulator().contentAsString(), cancelled ? "CANCELLED" : "SUCCESS", succeeded);
+    }
+
+    /**
+     * Store the assistant reply, touch the conversation and log usage; a cancelled turn keeps
+     * what was generated, flagged as truncated, and a CACHED one charges no tokens.
+     * Summarization is queued once the rows are in. {@code bindSession}: the turn succeeded, so
+     * the session that served it becomes the conversation's.
+     */
+    private Mono<Void> recordTurn(Turn turn, String fullResponse, String status, boolean bindSession) {
+        boolean cancelled = "CANCELLED".equals(status);
+        UUID conversationId = turn.conversationId();
+
+        UsageLog usageLog = UsageLog.builder()
+                .userId(turn.userId())
+                .conversationId(conversationId)
+                .model(turn.model())
+                .responseTimeMs(System.currentTimeMillis() - turn.startTime())
+                .ttftMs(turn.accumulator().timeToFirstTokenMs(turn.startNanos()))
+                .contextTokens(turn.context().tokens())
+                .status(status)
+                .build();
+        if (!"CACHED".equals(status)) {
+            upstreamChatClient.applyTokenUsage(usageLog, turn.accumulator(), turn.request(), turn.context(),
+                    fullResponse);
+            rateLimitService.recordTokens(turn.apiKeyId(), turn.userId(), usageLog.getTotalTokens());
+        }
+
+        Mono<Long> reply = cancelled && fullResponse.isEmpty()
+                ? Mono.empty()
+                : saveMessage(conversationId, "assistant", fullResponse, cancelled);
+        if (bindSession) {
+            reply = reply.doOnNext(seq -> upstreamSessionService.bind(conversationId, turn.userId(), turn.model(),
+                    UpstreamSessionService.served(turn.accumulator()), seq));
+        }
+        return reply
+                .then(Mono.when(
+                        conversationRepository.touch(conversationId,
+                                UpstreamChatClient.titleFor(turn.request().getMessage())),
+                        usageLogRepository.insert(usageLog)))
+                .then(Mono.defer(() -> shouldSummarize(conversationId)))
+                .filter(Boolean::booleanValue)
+                .flatMap(due -> Mono.fromRunnable(() -> summarizationJobService.enqueue(conversationId))
+                        .subscribeOn(persistenceScheduler))
+                .then();
+    }
+
+    private Mono<Boolean> shouldSummarize(UUID conversationId) {
+        if (!contextManagementService.isContextEnabled()) {
+            return Mono.just(false);
+        }
+        ConversationContextCache.Snapshot cached = contextCache.getIfCached(conversationId);
+        if (cached != null) {
+            return Mono.just(contextManagementService.exceedsSummarizationThreshold(cached.unsummarizedTokens()));
+        }
+        return loadContext(conversationId)
+                .map(snapshot -> contextManagementService.exceedsSummarizationThreshold(snapshot.unsummarizedTokens()));
+    }
+
+    private record Turn(ChatRequest request, UUID userId, UUID apiKeyId, UUID conversationId, String model,
+                        ContextPacker.PackedContext context, StreamAccumulator accumulator,
+                        long startTime, long startNanos) {
+    }
+}
@@ -0,0 +1,206 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges consecutive SSE chunks of a chat stream into fewer, larger writes.
+ * Chunks are concatenated in order, so partial upstream lines in passthrough mode stay intact.
+ * A batch is written when it reaches the byte threshold or its time window ends, but only if the
+ * writer has asked for more; while the client socket pushes back, chunks keep merging into the
+ * pending batch and the window doubles (up to the max) for the following batches, then decays
+ * again once writes keep up. Disabled, chunks pass through unchanged.
+ * Upstream and written frame counts and bytes are recorded per stream either way.
+ */
+@Component
+@Slf4j
+public class SseCoalescer {
+
+    private final boolean enabled;
+    private final long windowNanos;
+    private final long maxWindowNanos;
+    private final int maxBytes;
+    private final Scheduler timer = Schedulers.parallel();
+
+    private final DistributionSummary upstreamFrames;
+    private final DistributionSummary writtenFrames;
+    private final DistributionSummary streamBytes;
+    private final Counter stalls;
+
+    public SseCoalescer(MeterRegistry meterRegistry,
+                        @Value("${app.chat.coalesce.enabled:false}") boolean enabled,
+                        @Value("${app.chat.coalesce.window-ms:20}") long windowMs,
+                        @Value("${app.chat.coalesce.max-window-ms:200}") long maxWindowMs,
+                        @Value("${app.chat.coalesce.max-bytes:4096}") int maxBytes) {
+        this.enabled = enabled;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, windowMs));
+        this.maxWindowNanos = Math.max(windowNanos, TimeUnit.MILLISECONDS.toNanos(maxWindowMs));
+        this.maxBytes = Math.max(1, maxBytes);
+
+        this.upstreamFrames = DistributionSummary.builder("chat.stream.frames")
+                .description("Chunks per chat stream").tag("stage", "upstream")
+                .publishPercentiles(0.5, 0.95).register(meterRegistry);
+        this.writtenFrames = DistributionSummary.builder("chat.stream.frames")
+                .description("Chunks per chat stream").tag("stage", "written")
+                .publishPercentiles(0.5, 0.95).register(meterRegistry);
+        this.streamBytes = DistributionSummary.builder("chat.stream.bytes")
+                .description("Bytes per chat stream").baseUnit("bytes")
+                .publishPercentiles(0.5, 0.95).register(meterRegistry);
+        this.stalls = Counter.builder("chat.stream.coalesce.stalls")
+                .description("Batches held back because the client was not reading")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Flux<byte[]> coalesce(Flux<byte[]> frames, UUID streamId) {
+        if (!enabled) {
+            return Flux.defer(() -> {
+                long[] counts = new long[2];
+                return frames
+                        .doOnNext(frame -> {
+                            counts[0]++;
+                            counts[1] += frame.length;
+                        })
+                        .doFinally(signal -> record(streamId, counts[0], counts[0], counts[1]));
+            });
+        }
+        return Flux.create(sink -> {
+            Batcher batcher = new Batcher(sink, streamId);
+            Disposable.Swap upstream = Disposables.swap();
+            sink.onRequest(n -> batcher.onDemand());
+            sink.onDispose(() -> {
+                upstream.dispose();
+                batcher.finish();
+            });
+            upstream.update(frames.subscribe(batcher::add, batcher::error, batcher::complete));
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    private void record(UUID streamId, long framesIn, long framesOut, long bytes) {
+        upstreamFrames.record(framesIn);
+        writtenFrames.record(framesOut);
+        streamBytes.record(bytes);
+        log.debug("Chat stream {}: {} upstream frames, {} writes, {} bytes", streamId, framesIn, framesOut, bytes);
+    }
+
+    /**
+     * Pending batch of one stream. Every method runs under the batcher's lock, including the
+     * emit, so batches flushed from the upstream, timer and request threads stay in order.
+     */
+    private final class Batcher {
+
+        private final FluxSink<byte[]> sink;
+        private final UUID streamId;
+        private byte[] buffer = new byte[512];
+        private int length;
+        private long window = windowNanos;
+        private Disposable flushTimer;
+        private boolean waitingForDemand;
+        private boolean done;
+        private boolean finished;
+        private long framesIn;
+        private long framesOut;
+        private long bytes;
+
+        private Batcher(FluxSink<byte[]> sink, UUID streamId) {
+            this.sink = sink;
+            this.streamId = streamId;
+        }
+
+        synchronized void add(byte[] frame) {
+            framesIn++;
+            bytes += frame.length;
+            if (length + frame.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + frame.length));
+            }
+            System.arraycopy(frame, 0, buffer, length, frame.length);
+            length += frame.length;
+            if (length >= maxBytes) {
+                flush();
+            } else if (flushTimer == null) {
+                flushTimer = timer.schedule(this::onWindowEnd, window, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        synchronized void onDemand() {
+            if (waitingForDemand) {
+                flush();
+            }
+        }
+
+        synchronized void complete() {
+            done = true;
+            flush();
+        }
+
+        synchronized void error(Throwable error) {
+            if (length > 0) {
+                framesOut++;
+                sink.next(Arrays.copyOf(buffer, length));
+                length = 0;
+            }
+            sink.error(error);
+        }
+
+        synchronized void finish() {
+            if (flushTimer != null) {
+                flushTimer.dispose();
+                flushTimer = null;
+            }
+            if (!finished) {
+                finished = true;
+                record(streamId, framesIn, framesOut, bytes);
+            }
+        }
+
+        private synchronized void onWindowEnd() {
+            flushTimer = null;
+            flush();
+        }
+
+        private void flush() {
+            if (flushTimer != null) {
+                flushTimer.dispose();
+                flushTimer = null;
+            }
+            if (length > 0) {
+                if (!done && sink.requestedFromDownstream() == 0) {
+                    // Client is not reading: keep merging, and use longer windows from now on
+                    if (!waitingForDemand) {
+                        waitingForDemand = true;
+                        window = Math.min(window * 2, maxWindowNanos);
+                        stalls.increment();
+                    }
+                    return;
+                }
+                if (!waitingForDemand) {
+                    window = Math.max(windowNanos, window / 2);
+                }
+                waitingForDemand = false;
+                framesOut++;
+                sink.next(Arrays.copyOf(buffer, length));
+                length = 0;
+            }
+            if (done) {
+                sink.complete();
+            }
+        }
+    }
+}
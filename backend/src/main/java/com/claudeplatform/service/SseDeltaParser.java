@@ -0,0 +1,159 @@
+package com.claudeplatform.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Token-level reader for OpenAI-compatible stream chunks.
+ * Walks the JSON once with a streaming parser and copies only the fields we care about
+ * (choices[0].delta.content, choices[0].finish_reason, usage, and whether an error was reported)
+ * into a {@link StreamAccumulator}, instead of materializing a JsonNode tree per chunk.
+ */
+@Component
+public class SseDeltaParser {
+
+    private static final String DONE = "[DONE]";
+
+    private final JsonFactory jsonFactory;
+
+    public SseDeltaParser(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * Parse one SSE data payload (without the "data:" prefix).
+     *
+     * @return false if the payload was empty, [DONE] or not valid JSON
+     */
+    public boolean parse(String chunk, StreamAccumulator acc) {
+        if (chunk == null || chunk.isBlank() || DONE.equals(chunk.trim())) {
+            return false;
+        }
+        try (JsonParser parser = jsonFactory.createParser(chunk)) {
+            return readChunk(parser, acc);
+        } catch (IOException e) {
+            // Not a valid SSE chunk, skip
+            return false;
+        }
+    }
+
+    /**
+     * Parse one SSE data payload straight from the bytes it arrived in.
+     */
+    public boolean parse(byte[] buf, int offset, int length, StreamAccumulator acc) {
+        if (length <= 0 || isDone(buf, offset, length)) {
+            return false;
+        }
+        try (JsonParser parser = jsonFactory.createParser(buf, offset, length)) {
+            return readChunk(parser, acc);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDone(byte[] buf, int offset, int length) {
+        if (length != DONE.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[offset + i] != DONE.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean readChunk(JsonParser parser, StreamAccumulator acc) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            return false;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("choices".equals(field) && value == JsonToken.START_ARRAY) {
+                readChoices(parser, acc);
+            } else if ("usage".equals(field) && value == JsonToken.START_OBJECT) {
+                readUsage(parser, acc);
+            } else if ("error".equals(field) && value != JsonToken.VALUE_NULL) {
+                acc.setErrorReported();
+                parser.skipChildren();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return true;
+    }
+
+    private void readChoices(JsonParser parser, StreamAccumulator acc) throws IOException {
+        boolean first = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+            if (first && token == JsonToken.START_OBJECT) {
+                readChoice(parser, acc);
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+    }
+
+    private void readChoice(JsonParser parser, StreamAccumulator acc) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                readDelta(parser, acc);
+            } else if ("finish_reason".equals(field) && value == JsonToken.VALUE_STRING) {
+                acc.setFinishReason(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readDelta(JsonParser parser, StreamAccumulator acc) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if ("content".equals(field) && value == JsonToken.VALUE_STRING) {
+                acc.appendContent(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readUsage(JsonParser parser, StreamAccumulator acc) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NUMBER_INT) {
+                int n = parser.getIntValue();
+                switch (field) {
+                    case "prompt_tokens", "input_tokens" -> acc.setPromptTokens(n);
+                    case "completion_tokens", "output_tokens" -> acc.setCompletionTokens(n);
+                    case "cache_read_input_tokens" -> acc.setCacheReadTokens(n);
+                    case "cache_creation_input_tokens" -> acc.setCacheCreationTokens(n);
+                    default -> { }
+                }
+            } else if ("prompt_tokens_details".equals(field) && value == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String detail = parser.currentName();
+                    JsonToken detailValue = parser.nextToken();
+                    if ("cached_tokens".equals(detail) && detailValue == JsonToken.VALUE_NUMBER_INT) {
+                        acc.setCacheReadTokens(parser.getIntValue());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+}
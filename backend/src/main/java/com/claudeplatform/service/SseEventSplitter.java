@@ -0,0 +1,73 @@
+package com.claudeplatform.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Re-cuts a chat stream's byte chunks on SSE event boundaries (a blank line), so each event can
+ * be given an id. Passthrough chunks are forwarded as they arrive from upstream and may end
+ * mid-event; the partial event is carried over to the next chunk.
+ */
+public class SseEventSplitter {
+
+    private byte[] carry = new byte[256];
+    private int carryLength;
+    // Non-CR bytes seen since the last LF, counting the carried-over part of the line
+    private int lineLength;
+
+    /**
+     * The events completed by {@code chunk}, each including its terminating blank line.
+     */
+    public List<byte[]> feed(byte[] chunk) {
+        List<byte[]> events = new ArrayList<>(2);
+        int eventStart = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            byte b = chunk[i];
+            if (b == '\n') {
+                if (lineLength == 0) {
+                    events.add(take(chunk, eventStart, i + 1));
+                    eventStart = i + 1;
+                }
+                lineLength = 0;
+            } else if (b != '\r') {
+                lineLength++;
+            }
+        }
+        if (eventStart < chunk.length) {
+            append(chunk, eventStart, chunk.length - eventStart);
+        }
+        return events;
+    }
+
+    /**
+     * Whatever is left once the stream ends without a final blank line, or null.
+     */
+    public byte[] remainder() {
+        if (carryLength == 0) {
+            return null;
+        }
+        byte[] rest = Arrays.copyOf(carry, carryLength);
+        carryLength = 0;
+        lineLength = 0;
+        return rest;
+    }
+
+    private byte[] take(byte[] chunk, int start, int end) {
+        if (carryLength == 0) {
+            return start == 0 && end == chunk.length ? chunk : Arrays.copyOfRange(chunk, start, end);
+        }
+        byte[] event = Arrays.copyOf(carry, carryLength + end - start);
+        System.arraycopy(chunk, start, event, carryLength, end - start);
+        carryLength = 0;
+        return event;
+    }
+
+    private void append(byte[] src, int offset, int length) {
+        if (carryLength + length > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        }
+        System.arraycopy(src, offset, carry, carryLength, length);
+        carryLength += length;
+    }
+}
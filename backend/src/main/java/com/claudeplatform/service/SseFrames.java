@@ -0,0 +1,90 @@
+package com.claudeplatform.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Pre-serialized SSE frames ("data:...\n\n") written by the chat stream.
+ * Constant frames are encoded once; per-stream frames are assembled from byte fragments
+ * rather than by string concatenation.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SseFrames {
+
+    private static final byte[] DATA_PREFIX = "data:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FRAME_END = "\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DONE = "data:[DONE]\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] METADATA_PREFIX =
+            "data:{\"metadata\":{\"conversationId\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final String METADATA_STREAM = "\",\"streamId\":\"";
+    private static final byte[] METADATA_SUFFIX = "\"}}\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ID_PREFIX = "id:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALLBACK_ERROR =
+            "data:{\"error\":{\"message\":\"Unknown error\",\"type\":\"stream_error\"}}\n\n"
+                    .getBytes(StandardCharsets.US_ASCII);
+
+    private final ObjectMapper objectMapper;
+
+    public byte[] done() {
+        return DONE;
+    }
+
+    /**
+     * SSE comment frame; clients ignore it, but writing it surfaces a dead connection.
+     */
+    public byte[] heartbeat() {
+        return HEARTBEAT;
+    }
+
+    /**
+     * First frame of a chat stream; {@code streamId} is included when the stream can be resumed.
+     */
+    public byte[] metadata(UUID conversationId, UUID streamId) {
+        String ids = streamId == null
+                ? conversationId.toString()
+                : conversationId + METADATA_STREAM + streamId;
+        return concat(METADATA_PREFIX, ids.getBytes(StandardCharsets.US_ASCII), METADATA_SUFFIX);
+    }
+
+    /**
+     * Prefix a complete SSE event with an "id:" line, which clients echo as Last-Event-ID.
+     */
+    public byte[] withId(long id, byte[] event) {
+        return concat(ID_PREFIX, (id + "\n").getBytes(StandardCharsets.US_ASCII), event);
+    }
+
+    public byte[] error(String message, String type) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(Map.of("error", Map.of("message", message, "type", type)));
+            return concat(DATA_PREFIX, json, FRAME_END);
+        } catch (JsonProcessingException e) {
+            log.warn("Failed to serialize SSE error frame", e);
+            return FALLBACK_ERROR;
+        }
+    }
+
+    /**
+     * Wrap an already-serialized JSON payload (or [DONE]) as a data frame.
+     */
+    public byte[] data(String payload) {
+        return concat(DATA_PREFIX, payload.getBytes(StandardCharsets.UTF_8), FRAME_END);
+    }
+
+    private static byte[] concat(byte[] head, byte[] body, byte[] tail) {
+        byte[] frame = new byte[head.length + body.length + tail.length];
+        System.arraycopy(head, 0, frame, 0, head.length);
+        System.arraycopy(body, 0, frame, head.length, body.length);
+        System.arraycopy(tail, 0, frame, head.length + body.length, tail.length);
+        return frame;
+    }
+}
@@ -0,0 +1,65 @@
+package com.claudeplatform.service;
+
+import java.util.Arrays;
+
+/**
+ * Finds complete "data:" lines in raw upstream SSE bytes and hands their payload to
+ * {@link SseDeltaParser} without decoding the chunk to a String. Lines that straddle
+ * two network chunks are carried over in a small per-stream buffer.
+ */
+public class SseLineScanner {
+
+    private final SseDeltaParser parser;
+    private final StreamAccumulator accumulator;
+    private byte[] carry = new byte[256];
+    private int carryLength;
+
+    public SseLineScanner(SseDeltaParser parser, StreamAccumulator accumulator) {
+        this.parser = parser;
+        this.accumulator = accumulator;
+    }
+
+    public void feed(byte[] chunk) {
+        int lineStart = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            if (chunk[i] != '\n') {
+                continue;
+            }
+            if (carryLength > 0) {
+                appendCarry(chunk, lineStart, i - lineStart);
+                dispatchLine(carry, 0, carryLength);
+                carryLength = 0;
+            } else {
+                dispatchLine(chunk, lineStart, i - lineStart);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < chunk.length) {
+            appendCarry(chunk, lineStart, chunk.length - lineStart);
+        }
+    }
+
+    private void dispatchLine(byte[] buf, int start, int length) {
+        if (length > 0 && buf[start + length - 1] == '\r') {
+            length--;
+        }
+        if (length < 5 || buf[start] != 'd' || buf[start + 1] != 'a' || buf[start + 2] != 't'
+                || buf[start + 3] != 'a' || buf[start + 4] != ':') {
+            return;
+        }
+        int offset = start + 5;
+        int end = start + length;
+        if (offset < end && buf[offset] == ' ') {
+            offset++;
+        }
+        parser.parse(buf, offset, end - offset, accumulator);
+    }
+
+    private void appendCarry(byte[] src, int offset, int length) {
+        if (carryLength + length > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + length));
+        }
+        System.arraycopy(src, offset, carry, carryLength, length);
+        carryLength += length;
+    }
+}
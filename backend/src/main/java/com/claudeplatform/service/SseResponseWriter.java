@@ -0,0 +1,95 @@
+package com.claudeplatform.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+
+/**
+ * Writes already-encoded SSE frames to the servlet response as raw bytes.
+ * Spring's Flux&lt;String&gt; SSE support would wrap every element in another "data:" frame,
+ * so the chat endpoint hands its byte frames to this writer instead.
+ * Heartbeat comments are interleaved while the stream is open. A write to a closed connection
+ * fails, which disposes the subscription and cancels the upstream exchange, so an abandoned
+ * stream is noticed within a couple of intervals instead of when generation ends.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SseResponseWriter {
+
+    private static final long NO_TIMEOUT = -1L;
+
+    private final SseFrames sseFrames;
+    private final SseCoalescer sseCoalescer;
+
+    @Value("${app.chat.heartbeat-interval-ms:5000}")
+    private long heartbeatIntervalMs;
+
+    public ResponseEntity<ResponseBodyEmitter> write(Flux<byte[]> frames) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(NO_TIMEOUT);
+
+        // Servlet writes block, so keep them off the Netty event loop that produces the frames
+        Disposable subscription = withHeartbeats(frames)
+                .publishOn(Schedulers.boundedElastic(), prefetch())
+                .subscribe(
+                        frame -> send(emitter, frame),
+                        error -> {
+                            log.debug("SSE response aborted: {}", error.getMessage());
+                            emitter.completeWithError(error);
+                        },
+                        emitter::complete);
+
+        emitter.onTimeout(subscription::dispose);
+        emitter.onError(error -> subscription.dispose());
+        emitter.onCompletion(subscription::dispose);
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.TEXT_EVENT_STREAM)
+                .header("Cache-Control", "no-cache")
+                .header("X-Accel-Buffering", "no")
+                .body(emitter);
+    }
+
+    /**
+     * Interleave heartbeat comments with the frames until they end; also used by the reactive
+     * chat endpoint, which writes to Netty directly.
+     */
+    public Flux<byte[]> withHeartbeats(Flux<byte[]> frames) {
+        if (heartbeatIntervalMs <= 0) {
+            return frames;
+        }
+        Duration interval = Duration.ofMillis(heartbeatIntervalMs);
+        return frames.publish(shared -> Flux.merge(sseCoalescer.isEnabled() ? 1 : Queues.XS_BUFFER_SIZE, shared,
+                Flux.interval(interval, interval)
+                        .map(tick -> sseFrames.heartbeat())
+                        // A heartbeat is pointless while a write is still pending
+                        .onBackpressureDrop()
+                        .takeUntilOther(shared.ignoreElements())), prefetch());
+    }
+
+    // With coalescing, request one frame at a time so a blocked write shows up upstream as missing
+    // demand (and the coalescer merges) instead of filling a queue of small frames
+    private int prefetch() {
+        return sseCoalescer.isEnabled() ? 1 : Queues.SMALL_BUFFER_SIZE;
+    }
+
+    private void send(ResponseBodyEmitter emitter, byte[] frame) {
+        try {
+            emitter.send(frame);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.claudeplatform.service;
+
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stream state filled in by {@link SseDeltaParser} as upstream chunks arrive.
+ * One instance per chat stream; chunks are delivered sequentially. Only the content is guarded,
+ * because a cancelled stream reads it from another thread while a chunk may still be parsed.
+ */
+@Getter
+public class StreamAccumulator {
+
+    private final StringBuilder content = new StringBuilder();
+    private String finishReason;
+    private boolean usageReported;
+    private int promptTokens;
+    private int completionTokens;
+    private int cacheReadTokens;
+    private int cacheCreationTokens;
+    private long firstContentNanos;
+    // An in-band error frame arrived (the upstream reports a failure mid-stream on a 2xx response)
+    private boolean errorReported;
+    // claude-code-api session that served the stream (X-Session-ID) and the instance it lives on, or null
+    private volatile String upstreamSessionId;
+    private volatile String upstreamEndpoint;
+
+    synchronized void appendContent(char[] chars, int offset, int length) {
+        if (firstContentNanos == 0 && length > 0) {
+            firstContentNanos = System.nanoTime();
+        }
+        content.append(chars, offset, length);
+    }
+
+    void setFinishReason(String finishReason) {
+        this.finishReason = finishReason;
+    }
+
+    void setPromptTokens(int promptTokens) {
+        this.promptTokens = promptTokens;
+        this.usageReported = true;
+    }
+
+    void setCompletionTokens(int completionTokens) {
+        this.completionTokens = completionTokens;
+        this.usageReported = true;
+    }
+
+    void setCacheReadTokens(int cacheReadTokens) {
+        this.cacheReadTokens = cacheReadTokens;
+    }
+
+    void setCacheCreationTokens(int cacheCreationTokens) {
+        this.cacheCreationTokens = cacheCreationTokens;
+    }
+
+    void setErrorReported() {
+        this.errorReported = true;
+    }
+
+    void setUpstreamSession(String upstreamSessionId, String upstreamEndpoint) {
+        this.upstreamSessionId = upstreamSessionId;
+        this.upstreamEndpoint = upstreamEndpoint;
+    }
+
+    /**
+     * Milliseconds from {@code startNanos} to the first content delta, or null if none arrived.
+     */
+    public Long timeToFirstTokenMs(long startNanos) {
+        return firstContentNanos != 0 ? TimeUnit.NANOSECONDS.toMillis(firstContentNanos - startNanos) : null;
+    }
+
+    public synchronized String contentAsString() {
+        return content.toString();
+    }
+}
@@ -0,0 +1,284 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+
+import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Durable queue of summarization jobs in the summarization_jobs table.
+ * At most one PENDING/RUNNING job exists per conversation (partial unique index), so repeated
+ * enqueues are no-ops. A poller claims due jobs with FOR UPDATE SKIP LOCKED and a lease, which
+ * lets several backend instances share the table; a RUNNING job whose lease has expired (e.g. the
+ * instance died mid-job) is simply claimed again. Jobs run as non-blocking pipelines, so the
+ * worker pool size bounds jobs in flight rather than threads.
+ * <p>
+ * While a job runs its lease is renewed on every heartbeat. The summary is stored in the same
+ * transaction that deletes the job row, guarded by lease owner and attempt, so a worker that lost
+ * its lease (a pause longer than the lease) cannot store a second summary; a failed renewal also
+ * cancels the job. A job is marked once that transaction has deleted its row, so a heartbeat
+ * between the commit and the job's completion callback does not take the gone row for a lost lease.
+ */
+@Service
+@Slf4j
+public class SummarizationJobService {
+
+    private static final String ENQUEUE =
+            "INSERT INTO summarization_jobs (conversation_id) VALUES (?) " +
+            "ON CONFLICT (conversation_id) WHERE status IN ('PENDING', 'RUNNING') DO NOTHING";
+
+    private static final String CLAIM =
+            "UPDATE summarization_jobs SET status = 'RUNNING', attempts = attempts + 1, lease_owner = ?, " +
+            "lease_expires_at = NOW() + (? * INTERVAL '1 millisecond'), updated_at = NOW() " +
+            "WHERE id IN (SELECT id FROM summarization_jobs " +
+            "  WHERE (status = 'PENDING' AND run_after <= NOW()) " +
+            "     OR (status = 'RUNNING' AND lease_expires_at < NOW()) " +
+            "  ORDER BY run_after LIMIT ? FOR UPDATE SKIP LOCKED) " +
+            "RETURNING id, conversation_id, attempts, run_after";
+
+    private static final String RENEW =
+            "UPDATE summarization_jobs SET lease_expires_at = NOW() + (? * INTERVAL '1 millisecond'), " +
+            "updated_at = NOW() WHERE id = ? AND lease_owner = ? AND attempts = ? AND status = 'RUNNING'";
+
+    private static final String COMPLETE =
+            "DELETE FROM summarization_jobs WHERE id = ? AND lease_owner = ? AND attempts = ?";
+
+    private static final String RETRY =
+            "UPDATE summarization_jobs SET status = 'PENDING', lease_owner = NULL, lease_expires_at = NULL, " +
+            "run_after = NOW() + (? * INTERVAL '1 millisecond'), last_error = ?, updated_at = NOW() " +
+            "WHERE id = ? AND lease_owner = ? AND attempts = ?";
+
+    private static final String FAIL =
+            "UPDATE summarization_jobs SET status = 'FAILED', lease_owner = NULL, lease_expires_at = NULL, " +
+            "last_error = ?, updated_at = NOW() WHERE id = ? AND lease_owner = ? AND attempts = ?";
+
+    private static final String DUE_STATS =
+            "SELECT COUNT(*), COALESCE(EXTRACT(EPOCH FROM NOW() - MIN(run_after)), 0) " +
+            "FROM summarization_jobs WHERE status = 'PENDING' AND run_after <= NOW()";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ContextManagementService contextManagementService;
+    private final String workerId;
+    private final AtomicInteger running = new AtomicInteger();
+    // Jobs this instance holds a lease on, with their pipelines
+    private final Map<Job, Disposable> leases = new ConcurrentHashMap<>();
+    // Jobs whose row a summary transaction deleted, until their completion callback runs
+    private final Set<Job> committed = ConcurrentHashMap.newKeySet();
+
+    private final Timer lagTimer;
+    private final MeterRegistry meterRegistry;
+    private final Counter retriedJobs;
+    private final Counter failedJobs;
+    private final Counter lostLeases;
+    private volatile long dueJobs;
+    private volatile double oldestDueSeconds;
+
+    @Value("${app.summarization.workers:4}")
+    private int workers;
+
+    @Value("${app.summarization.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${app.summarization.backoff-ms:5000}")
+    private long backoffMs;
+
+    @Value("${app.summarization.max-backoff-ms:300000}")
+    private long maxBackoffMs;
+
+    @Value("${app.summarization.lease-ms:300000}")
+    private long leaseMs;
+
+    public SummarizationJobService(JdbcTemplate jdbcTemplate,
+                                   ContextManagementService contextManagementService,
+                                   MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.contextManagementService = contextManagementService;
+        this.meterRegistry = meterRegistry;
+        this.workerId = hostName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+
+        Gauge.builder("summarization.jobs.running", running, AtomicInteger::get)
+                .description("Summarization jobs in flight on this instance").register(meterRegistry);
+        Gauge.builder("summarization.jobs.due", this, s -> s.dueJobs)
+                .description("Pending jobs whose run time has passed").register(meterRegistry);
+        Gauge.builder("summarization.jobs.oldest.due.seconds", this, s -> s.oldestDueSeconds)
+                .description("How long the oldest due job has been waiting").register(meterRegistry);
+        this.lagTimer = Timer.builder("summarization.job.lag")
+                .description("Time from a job becoming due to being claimed")
+                .register(meterRegistry);
+        this.retriedJobs = Counter.builder("summarization.jobs.retried").register(meterRegistry);
+        this.failedJobs = Counter.builder("summarization.jobs.failed").register(meterRegistry);
+        this.lostLeases = Counter.builder("summarization.jobs.lease.lost")
+                .description("Jobs dropped because another worker had taken over their lease")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Queue a summarization for this conversation unless one is already pending or running.
+     */
+    public void enqueue(UUID conversationId) {
+        int inserted = jdbcTemplate.update(ENQUEUE, conversationId);
+        if (inserted > 0) {
+            log.debug("Queued summarization for conversation {}", conversationId);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.summarization.poll-interval-ms:1000}")
+    public void poll() {
+        try {
+            refreshDueStats();
+            int free = workers - running.get();
+            if (free <= 0) {
+                return;
+            }
+            List<Job> jobs = jdbcTemplate.query(CLAIM, (rs, i) -> new Job(
+                    rs.getObject("id", UUID.class),
+                    rs.getObject("conversation_id", UUID.class),
+                    rs.getInt("attempts"),
+                    rs.getTimestamp("run_after")), workerId, leaseMs, free);
+            for (Job job : jobs) {
+                run(job);
+            }
+        } catch (Exception e) {
+            log.warn("Summarization job poll failed", e);
+        }
+    }
+
+    /**
+     * Extend the leases of the jobs running here; a job whose lease was taken over is cancelled.
+     */
+    @Scheduled(fixedDelayString = "${app.summarization.heartbeat-ms:60000}")
+    public void renewLeases() {
+        for (Map.Entry<Job, Disposable> entry : leases.entrySet()) {
+            Job job = entry.getKey();
+            if (committed.contains(job)) {
+                continue;
+            }
+            try {
+                // Checked again after RENEW: the summary may have committed while it waited on the row
+                if (jdbcTemplate.update(RENEW, leaseMs, job.id(), workerId, job.attempts()) == 0
+                        && !committed.contains(job) && leases.remove(job, entry.getValue())) {
+                    lostLeases.increment();
+                    log.warn("Lost the lease on summarization for conversation {}, cancelling it", job.conversationId());
+                    running.decrementAndGet();
+                    entry.getValue().dispose();
+                }
+            } catch (Exception e) {
+                log.warn("Failed to renew the lease on summarization for conversation {}", job.conversationId(), e);
+            }
+        }
+    }
+
+    private void run(Job job) {
+        running.incrementAndGet();
+        lagTimer.record(Math.max(0, System.currentTimeMillis() - job.runAfter().getTime()), TimeUnit.MILLISECONDS);
+        Timer.Sample sample = Timer.start(meterRegistry);
+        Disposable.Swap subscription = Disposables.swap();
+        leases.put(job, subscription);
+        // Deletes the job row in the summary's transaction; no row means the lease was taken over
+        Runnable complete = () -> {
+            if (jdbcTemplate.update(COMPLETE, job.id(), workerId, job.attempts()) == 0) {
+                throw new LeaseLostException();
+            }
+            committed.add(job);
+        };
+        subscription.update(contextManagementService.summarize(job.conversationId(), complete)
+                .subscribe(
+                        ignored -> { },
+                        error -> {
+                            // Unmarked only once out of leases, so no heartbeat sees the gap
+                            boolean held = leases.remove(job, subscription);
+                            committed.remove(job);
+                            if (!held) {
+                                return;
+                            }
+                            running.decrementAndGet();
+                            sample.stop(durationTimer("failure"));
+                            if (error instanceof LeaseLostException) {
+                                lostLeases.increment();
+                                log.warn("Summarization for conversation {} finished after its lease was taken over; "
+                                        + "discarded", job.conversationId());
+                            } else {
+                                onFailure(job, error);
+                            }
+                        },
+                        () -> {
+                            boolean held = leases.remove(job, subscription);
+                            committed.remove(job);
+                            if (!held) {
+                                return;
+                            }
+                            running.decrementAndGet();
+                            sample.stop(durationTimer("success"));
+                            // Nothing new to summarize: no summary transaction removed the row
+                            jdbcTemplate.update(COMPLETE, job.id(), workerId, job.attempts());
+                        }));
+    }
+
+    private void onFailure(Job job, Throwable error) {
+        String message = error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+        if (message.length() > 1000) {
+            message = message.substring(0, 1000);
+        }
+        if (job.attempts() >= maxAttempts) {
+            failedJobs.increment();
+            log.error("Summarization for conversation {} failed after {} attempts", job.conversationId(),
+                    job.attempts(), error);
+            jdbcTemplate.update(FAIL, message, job.id(), workerId, job.attempts());
+            return;
+        }
+        long delay = Math.min(maxBackoffMs, backoffMs << Math.min(job.attempts() - 1, 20));
+        retriedJobs.increment();
+        log.warn("Summarization for conversation {} failed (attempt {}), retrying in {} ms: {}",
+                job.conversationId(), job.attempts(), delay, message);
+        jdbcTemplate.update(RETRY, delay, message, job.id(), workerId, job.attempts());
+    }
+
+    private void refreshDueStats() {
+        jdbcTemplate.query(DUE_STATS, rs -> {
+            dueJobs = rs.getLong(1);
+            oldestDueSeconds = rs.getDouble(2);
+        });
+    }
+
+    private Timer durationTimer(String outcome) {
+        return Timer.builder("summarization.job.duration")
+                .description("Time to run one summarization job")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    private record Job(UUID id, UUID conversationId, int attempts, Timestamp runAfter) {
+    }
+
+    private static class LeaseLostException extends RuntimeException {
+
+        LeaseLostException() {
+            super("Summarization job lease was taken over", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.claudeplatform.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket kept as a single "theoretical arrival time" (the GCRA formulation).
+ * The bucket is full when the TAT is at or before now; each unit consumed pushes the TAT forward
+ * by one refill interval, and a request is refused when that would put the TAT more than the
+ * burst window ahead of now. Limits are passed per call so a reload takes effect immediately.
+ */
+public class TokenBucket {
+
+    private static final long MINUTE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+    /**
+     * Try to take {@code cost} units from a bucket refilled at {@code perMinute} units per minute
+     * that can hold {@code burstSeconds} worth of refill.
+     *
+     * @return nanos until the request would fit, or 0 if it was admitted
+     */
+    public long tryConsume(long cost, long perMinute, long burstSeconds) {
+        long interval = MINUTE_NANOS / Math.max(1, perMinute);
+        long tolerance = burstTolerance(interval, perMinute, burstSeconds);
+        while (true) {
+            long now = System.nanoTime();
+            long current = tat.get();
+            long next = Math.max(current, now) + cost * interval;
+            long ahead = next - now;
+            if (ahead > tolerance) {
+                return ahead - tolerance;
+            }
+            if (tat.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Charge units after the fact; the bucket may go into debt and refuse later requests.
+     */
+    public void consume(long cost, long perMinute) {
+        long interval = MINUTE_NANOS / Math.max(1, perMinute);
+        long now = System.nanoTime();
+        tat.accumulateAndGet(cost * interval, (current, delta) -> Math.max(current, now) + delta);
+    }
+
+    /**
+     * Give back units taken by {@link #tryConsume} when a later check refused the request.
+     */
+    public void refund(long cost, long perMinute) {
+        long interval = MINUTE_NANOS / Math.max(1, perMinute);
+        tat.addAndGet(-cost * interval);
+    }
+
+    /**
+     * @return nanos until the bucket can admit anything, 0 if it has headroom now
+     */
+    public long waitNanos(long perMinute, long burstSeconds) {
+        long interval = MINUTE_NANOS / Math.max(1, perMinute);
+        long ahead = Math.max(0, tat.get() - System.nanoTime());
+        return Math.max(0, ahead + interval - burstTolerance(interval, perMinute, burstSeconds));
+    }
+
+    public long remaining(long perMinute, long burstSeconds) {
+        long interval = MINUTE_NANOS / Math.max(1, perMinute);
+        long ahead = Math.max(0, tat.get() - System.nanoTime());
+        long tolerance = burstTolerance(interval, perMinute, burstSeconds);
+        return Math.max(0, (tolerance - ahead) / interval);
+    }
+
+    /**
+     * @return nanos until the bucket is full again
+     */
+    public long nanosUntilFull() {
+        return Math.max(0, tat.get() - System.nanoTime());
+    }
+
+    private static long burstTolerance(long interval, long perMinute, long burstSeconds) {
+        long capacity = Math.max(1, perMinute * burstSeconds / 60);
+        return capacity * interval;
+    }
+}
@@ -0,0 +1,301 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.dto.ChatRequest;
+import com.claudeplatform.model.entity.UsageLog;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The upstream half of a chat turn, shared by the servlet ({@link ChatProxyService}) and reactive
+ * ({@link ReactiveChatService}) chat paths: builds the /v1/chat/completions body, streams the
+ * response as SSE frames while filling a {@link StreamAccumulator}, maps upstream errors to SSE
+ * error frames and turns the accumulated result into usage numbers.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class UpstreamChatClient {
+
+    public static final String DEFAULT_MODEL = "claude-haiku-4-5-20251001";
+
+    private static final Duration STREAM_TIMEOUT = Duration.ofMinutes(5);
+    private static final String SESSION_HEADER = "X-Session-ID";
+
+    private final WebClient claudeCodeApiClient;
+    private final SseDeltaParser sseDeltaParser;
+    private final SseFrames sseFrames;
+    private final BpeTokenizer tokenizer;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.chat.passthrough:true}")
+    private boolean passthrough;
+
+    public Map<String, Object> requestBody(ChatRequest request, String model, ContextPacker.PackedContext context) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("model", model);
+        body.put("stream", true);
+
+        List<Map<String, Object>> messages = new ArrayList<>();
+        if (request.getMessages() != null) {
+            for (var msg : request.getMessages()) {
+                messages.add(Map.of("role", msg.getRole(), "content", msg.getContent()));
+            }
+        }
+        if (context.isStructured()) {
+            // Cache markers after the summary and after the older history block: everything up to
+            // the last marker stays the same for several turns
+            if (context.summary() != null) {
+                messages.add(cachedMessage("system", context.summary()));
+            }
+            List<ContextPacker.ContextMessage> cached = context.cachedHistory();
+            for (int i = 0; i < cached.size(); i++) {
+                ContextPacker.ContextMessage msg = cached.get(i);
+                messages.add(i == cached.size() - 1
+                        ? cachedMessage(msg.role(), msg.content())
+                        : Map.of("role", msg.role(), "content", msg.content()));
+            }
+            for (ContextPacker.ContextMessage msg : context.recentHistory()) {
+                messages.add(Map.of("role", msg.role(), "content", msg.content()));
+            }
+            messages.add(Map.of("role", "user", "content", context.current()));
+        } else {
+            messages.add(Map.of("role", "user", "content", context.prompt()));
+        }
+        body.put("messages", messages);
+        return body;
+    }
+
+    /**
+     * Body for a turn on a bound claude-code-api session, which already holds the conversation:
+     * only the caller-supplied messages and the new message are sent.
+     */
+    public Map<String, Object> sessionRequestBody(ChatRequest request, String model, String sessionId) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("model", model);
+        body.put("stream", true);
+        body.put("session_id", sessionId);
+
+        List<Map<String, Object>> messages = new ArrayList<>();
+        if (request.getMessages() != null) {
+            for (var msg : request.getMessages()) {
+                messages.add(Map.of("role", msg.getRole(), "content", msg.getContent()));
+            }
+        }
+        messages.add(Map.of("role", "user", "content", request.getMessage()));
+        body.put("messages", messages);
+        return body;
+    }
+
+    private static Map<String, Object> cachedMessage(String role, String text) {
+        return Map.of("role", role, "content", List.of(Map.of(
+                "type", "text",
+                "text", text,
+                "cache_control", Map.of("type", "ephemeral"))));
+    }
+
+    /**
+     * Stream a turn on a bound session ({@code sessionBody}), on the instance that holds it; if
+     * upstream no longer has the session (404) or it is busy with another request (409),
+     * {@code onUnavailable} runs and the turn is sent again with the full context ({@code body}).
+     * Nothing has been emitted at that point.
+     */
+    public Flux<byte[]> stream(Map<String, Object> sessionBody, String endpoint, Map<String, Object> body,
+                               StreamAccumulator accumulator, UpstreamConcurrencyLimiter.Permit permit,
+                               AtomicReference<UpstreamConcurrencyLimiter.Outcome> outcome,
+                               Runnable onUnavailable) {
+        return stream(sessionBody, endpoint, accumulator, permit, outcome)
+                .onErrorResume(SessionUnavailableException.class, e -> {
+                    log.info("Upstream session {} unavailable ({}), resending with full context",
+                            sessionBody.get("session_id"), e.getMessage());
+                    onUnavailable.run();
+                    return stream(body, accumulator, permit, outcome);
+                });
+    }
+
+    /**
+     * Stream one completion. Non-2xx responses become an SSE error frame followed by [DONE];
+     * {@code outcome} is set to what the response says about upstream load. The session that
+     * served the turn is recorded on the accumulator.
+     */
+    public Flux<byte[]> stream(Map<String, Object> body, StreamAccumulator accumulator,
+                               UpstreamConcurrencyLimiter.Permit permit,
+                               AtomicReference<UpstreamConcurrencyLimiter.Outcome> outcome) {
+        return stream(body, null, accumulator, permit, outcome);
+    }
+
+    private Flux<byte[]> stream(Map<String, Object> body, String endpoint, StreamAccumulator accumulator,
+                                UpstreamConcurrencyLimiter.Permit permit,
+                                AtomicReference<UpstreamConcurrencyLimiter.Outcome> outcome) {
+        return claudeCodeApiClient.post()
+                .uri("/v1/chat/completions")
+                .attributes(attributes -> {
+                    if (endpoint != null) {
+                        attributes.put(UpstreamPool.ENDPOINT_ATTRIBUTE, endpoint);
+                    }
+                })
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(body)
+                .exchangeToFlux(response -> {
+                    if (response.statusCode().is2xxSuccessful()) {
+                        HttpHeaders headers = response.headers().asHttpHeaders();
+                        accumulator.setUpstreamSession(headers.getFirst(SESSION_HEADER),
+                                headers.getFirst(UpstreamPool.ENDPOINT_HEADER));
+                        return (passthrough
+                                ? passthroughBody(response, accumulator)
+                                : decodedBody(response, accumulator))
+                                .doOnNext(chunk -> {
+                                    if (accumulator.getContent().length() > 0) {
+                                        permit.onFirstToken();
+                                    }
+                                });
+                    }
+                    int status = response.statusCode().value();
+                    if (body.containsKey("session_id") && (status == 404 || status == 409)) {
+                        return response.releaseBody().thenMany(Flux.error(new SessionUnavailableException(status)));
+                    }
+                    // 5xx/429 mean the upstream is struggling; other statuses say nothing about load
+                    if (response.statusCode().is5xxServerError() || response.statusCode().value() == 429) {
+                        outcome.set(UpstreamConcurrencyLimiter.Outcome.FAILURE);
+                    } else {
+                        outcome.set(UpstreamConcurrencyLimiter.Outcome.IGNORED);
+                    }
+                    // Non-2xx: read body and return as SSE error
+                    return response.bodyToMono(String.class)
+                            .defaultIfEmpty("{\"error\":\"Unknown error\"}")
+                            .flatMapMany(errorBody -> {
+                                log.error("Claude API error: HTTP {} - {}", response.statusCode(), errorBody);
+                                return errorFrames(response.statusCode().value(), errorBody);
+                            });
+                })
+                .timeout(STREAM_TIMEOUT);
+    }
+
+    /**
+     * SSE error frames for a stream that failed locally (timeout, connection error).
+     */
+    public Flux<byte[]> streamErrorFrames(Throwable error) {
+        String msg = error.getMessage() != null ? error.getMessage() : "Connection error";
+        if (msg.length() > 300) {
+            msg = msg.substring(0, 300);
+        }
+        return Flux.just(sseFrames.error(msg, "stream_error"), sseFrames.done());
+    }
+
+    /**
+     * Fill in token counts, preferring the usage block upstream sent with the final chunk. Without
+     * one, input is counted locally from what was actually sent (the packed context prompt plus
+     * any caller-supplied messages) and output from the accumulated response.
+     */
+    public void applyTokenUsage(UsageLog usageLog, StreamAccumulator accumulator, ChatRequest request,
+                                ContextPacker.PackedContext context, String fullResponse) {
+        int inputTokens;
+        int outputTokens;
+        if (accumulator.isUsageReported()) {
+            inputTokens = accumulator.getPromptTokens();
+            outputTokens = accumulator.getCompletionTokens();
+            usageLog.setCacheReadTokens(accumulator.getCacheReadTokens());
+            usageLog.setCacheCreationTokens(accumulator.getCacheCreationTokens());
+            usageLog.setUsageEstimated(false);
+        } else {
+            inputTokens = context.tokens();
+            if (request.getMessages() != null) {
+                for (var msg : request.getMessages()) {
+                    inputTokens += tokenizer.countTokens(msg.getContent());
+                }
+            }
+            outputTokens = tokenizer.countTokens(fullResponse);
+            usageLog.setUsageEstimated(true);
+        }
+        usageLog.setInputTokens(inputTokens);
+        usageLog.setOutputTokens(outputTokens);
+        usageLog.setTotalTokens(inputTokens + outputTokens);
+    }
+
+    /**
+     * Conversation title derived from the first user message.
+     */
+    public static String titleFor(String message) {
+        return message.length() > 50 ? message.substring(0, 50) + "..." : message;
+    }
+
+    private Flux<byte[]> errorFrames(int status, String errorBody) {
+        // Try to extract the actual error message from JSON
+        String errorMsg = "API error (HTTP " + status + ")";
+        String errorType = "api_error";
+        try {
+            JsonNode root = objectMapper.readTree(errorBody);
+            JsonNode detail = root.path("detail");
+            if (detail.isObject() && detail.has("error")) {
+                JsonNode err = detail.path("error");
+                if (err.has("message")) errorMsg = err.path("message").asText();
+                if (err.has("type")) errorType = err.path("type").asText();
+            } else if (root.has("error")) {
+                JsonNode err = root.path("error");
+                if (err.isObject() && err.has("message")) {
+                    errorMsg = err.path("message").asText();
+                    if (err.has("type")) errorType = err.path("type").asText();
+                } else if (err.isTextual()) {
+                    errorMsg = err.asText();
+                }
+            } else if (root.has("detail") && detail.isTextual()) {
+                errorMsg = detail.asText();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to parse error body", e);
+        }
+        return Flux.just(sseFrames.error(errorMsg, errorType), sseFrames.done());
+    }
+
+    /**
+     * Forward upstream SSE bytes unchanged; the scanner reads delta content from the same bytes.
+     */
+    private Flux<byte[]> passthroughBody(ClientResponse response, StreamAccumulator accumulator) {
+        SseLineScanner scanner = new SseLineScanner(sseDeltaParser, accumulator);
+        return response.bodyToFlux(DataBuffer.class)
+                .map(buffer -> {
+                    byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    return bytes;
+                })
+                .doOnNext(scanner::feed);
+    }
+
+    /**
+     * Decode each event to a String and re-frame it (used when passthrough is disabled).
+     */
+    private Flux<byte[]> decodedBody(ClientResponse response, StreamAccumulator accumulator) {
+        // WebClient strips the "data:" SSE prefix, so chunk is raw JSON
+        return response.bodyToFlux(String.class)
+                .doOnNext(chunk -> sseDeltaParser.parse(chunk, accumulator))
+                .map(sseFrames::data);
+    }
+
+    /**
+     * The bound session is gone upstream or busy; the turn can be resent without it.
+     */
+    private static final class SessionUnavailableException extends RuntimeException {
+
+        private SessionUnavailableException(int status) {
+            super("HTTP " + status, null, false, false);
+        }
+    }
+}
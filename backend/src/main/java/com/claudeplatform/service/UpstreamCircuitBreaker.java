@@ -0,0 +1,268 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Circuit breaker over one claude-code-api WebClient, as a filter. The outcome of each of the
+ * last {@code window-size} calls is kept; once at least {@code minimum-calls} are in and the
+ * share of failures (connection errors, timeouts, 5xx) or of slow calls reaches its threshold,
+ * the breaker opens and calls fail at once with a {@link ServiceOverloadedException} (503 with
+ * Retry-After, or the usual SSE error frame on a chat stream) instead of waiting on a hung
+ * upstream. After {@code open-ms} a few trial calls go through: all succeeding closes it, any
+ * failing or slow one opens it again.
+ * <p>
+ * A call is slow when it has not answered within {@code slow-call-ms}, and counts as such as soon
+ * as that passes rather than when it finally ends. "Answered" is the response headers, or for a
+ * streaming client the first body chunk, since a hung stream can send its headers and then
+ * nothing. A call cancelled before it answered, or refused by the local connection pool, is not
+ * counted.
+ */
+@Slf4j
+public class UpstreamCircuitBreaker implements ExchangeFilterFunction {
+
+    public enum State { CLOSED, HALF_OPEN, OPEN }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final String name;
+    private final boolean enabled;
+    private final boolean untilFirstChunk;
+    private final int minimumCalls;
+    private final double failureRate;
+    private final double slowCallRate;
+    private final long slowCallMs;
+    private final long openNanos;
+    private final int halfOpenCalls;
+
+    // Outcomes of the last calls, as a ring
+    private final byte[] window;
+    private int windowNext;
+    private int windowCount;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long generation;
+    private long openedAtNanos;
+    private int trials;
+    private int trialSuccesses;
+
+    private final Counter successes;
+    private final Counter failed;
+    private final Counter slow;
+    private final Counter rejected;
+
+    /**
+     * @param untilFirstChunk whether a call has answered only once its first body chunk arrives
+     */
+    public UpstreamCircuitBreaker(String name, MeterRegistry meterRegistry, boolean enabled, boolean untilFirstChunk,
+                                  int windowSize, int minimumCalls, double failureRate, double slowCallRate,
+                                  long slowCallMs, long openMs, int halfOpenCalls) {
+        this.name = name;
+        this.enabled = enabled;
+        this.untilFirstChunk = untilFirstChunk;
+        this.window = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRate = failureRate;
+        this.slowCallRate = slowCallRate;
+        this.slowCallMs = slowCallMs;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+
+        Gauge.builder("upstream.circuit.state", this, breaker -> breaker.state().ordinal())
+                .description("Circuit breaker state: 0 closed, 1 half-open, 2 open")
+                .tag("client", name).register(meterRegistry);
+        this.successes = Counter.builder("upstream.circuit.calls").tag("client", name)
+                .tag("outcome", "success").register(meterRegistry);
+        this.failed = Counter.builder("upstream.circuit.calls").tag("client", name)
+                .tag("outcome", "failure").register(meterRegistry);
+        this.slow = Counter.builder("upstream.circuit.calls").tag("client", name)
+                .tag("outcome", "slow").register(meterRegistry);
+        this.rejected = Counter.builder("upstream.circuit.rejected").tag("client", name)
+                .description("Calls refused while the circuit was open").register(meterRegistry);
+    }
+
+    public synchronized State state() {
+        return state;
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        if (!enabled) {
+            return next.exchange(request);
+        }
+        return Mono.defer(() -> {
+            Call call = tryAcquire();
+            if (call == null) {
+                rejected.increment();
+                return Mono.error(new ServiceOverloadedException(
+                        "Upstream " + name + " circuit is open", retryAfterSeconds()));
+            }
+            return next.exchange(request)
+                    .doOnNext(response -> {
+                        if (response.statusCode().is5xxServerError()) {
+                            call.record(FAILURE);
+                        } else if (!untilFirstChunk) {
+                            call.record(SUCCESS);
+                        }
+                    })
+                    .doOnError(e -> {
+                        if (UpstreamPool.isPoolExhausted(e)) {
+                            call.release();
+                        } else {
+                            call.record(FAILURE);
+                        }
+                    })
+                    .doOnCancel(call::release)
+                    .map(response -> untilFirstChunk && !call.isDone()
+                            ? response.mutate()
+                                    .body(body -> body
+                                            .doOnNext(chunk -> call.record(SUCCESS))
+                                            .doOnComplete(() -> call.record(SUCCESS))
+                                            .doOnError(e -> call.record(FAILURE))
+                                            .doOnCancel(call::release))
+                                    .build()
+                            : response);
+        });
+    }
+
+    private synchronized Call tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openNanos) {
+                return null;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trials >= halfOpenCalls) {
+                return null;
+            }
+            trials++;
+        }
+        return new Call(generation);
+    }
+
+    private synchronized void onResult(long callGeneration, byte outcome) {
+        (outcome == SUCCESS ? successes : outcome == FAILURE ? failed : slow).increment();
+        if (callGeneration != generation) {
+            // Started before the last state change; says nothing about the current state
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (outcome != SUCCESS) {
+                transition(State.OPEN);
+            } else if (++trialSuccesses >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (windowCount == window.length) {
+            forget(window[windowNext]);
+        } else {
+            windowCount++;
+        }
+        window[windowNext] = outcome;
+        windowNext = (windowNext + 1) % window.length;
+        if (outcome == FAILURE) {
+            failures++;
+        } else if (outcome == SLOW) {
+            slowCalls++;
+        }
+        if (windowCount >= minimumCalls
+                && (failures >= failureRate * windowCount || slowCalls >= slowCallRate * windowCount)) {
+            log.warn("Upstream {} circuit opening: {} failed and {} slow of the last {} calls",
+                    name, failures, slowCalls, windowCount);
+            transition(State.OPEN);
+        }
+    }
+
+    private synchronized void onRelease(long callGeneration) {
+        if (callGeneration == generation && state == State.HALF_OPEN) {
+            trials--;
+        }
+    }
+
+    private void forget(byte outcome) {
+        if (outcome == FAILURE) {
+            failures--;
+        } else if (outcome == SLOW) {
+            slowCalls--;
+        }
+    }
+
+    private void transition(State to) {
+        // Opening from closed is logged with its cause
+        if (to != State.OPEN || state != State.CLOSED) {
+            log.info("Upstream {} circuit {} -> {}", name, state, to);
+        }
+        state = to;
+        generation++;
+        trials = 0;
+        trialSuccesses = 0;
+        if (to == State.OPEN) {
+            openedAtNanos = System.nanoTime();
+        } else if (to == State.CLOSED) {
+            windowNext = 0;
+            windowCount = 0;
+            failures = 0;
+            slowCalls = 0;
+        }
+    }
+
+    private synchronized long retryAfterSeconds() {
+        long remaining = openNanos - (System.nanoTime() - openedAtNanos);
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining));
+    }
+
+    /**
+     * One admitted call; its first outcome (or release) is the one that counts.
+     */
+    private final class Call {
+
+        private final long generation;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final Disposable slowTimer;
+
+        private Call(long generation) {
+            this.generation = generation;
+            this.slowTimer = Schedulers.parallel().schedule(() -> record(SLOW), slowCallMs, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isDone() {
+            return done.get();
+        }
+
+        void record(byte outcome) {
+            if (done.compareAndSet(false, true)) {
+                slowTimer.dispose();
+                onResult(generation, outcome);
+            }
+        }
+
+        void release() {
+            if (done.compareAndSet(false, true)) {
+                slowTimer.dispose();
+                onRelease(generation);
+            }
+        }
+    }
+}
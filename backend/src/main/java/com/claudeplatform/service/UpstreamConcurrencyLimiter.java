@@ -0,0 +1,407 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive (AIMD) bound on concurrent calls to claude-code-api.
+ * Every upstream call holds a {@link Permit}. Successful calls with a time-to-first-token under
+ * the target grow the limit by roughly one per window; errors and slow first tokens shrink it
+ * multiplicatively. Callers beyond the limit wait in a bounded queue and are shed with a
+ * {@link ServiceOverloadedException} (503 + Retry-After) once their queue deadline passes.
+ * <p>
+ * Callers are split into {@link Priority} classes, each with its own queue and in-flight cap.
+ * Freed slots go to the waiting classes by smooth weighted round-robin, except that a waiter
+ * older than the aging threshold is served first so no class starves. Background work only
+ * starts when no foreground caller is waiting and a reserve of slots stays free, so a
+ * summarization never sits in front of a user's first token.
+ */
+@Service
+@Slf4j
+public class UpstreamConcurrencyLimiter {
+
+    public enum Outcome { SUCCESS, FAILURE, IGNORED }
+
+    public enum Priority { INTERACTIVE, API, BACKGROUND }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final EnumMap<Priority, Deque<Waiter>> waiters = new EnumMap<>(Priority.class);
+    private final int[] inFlightByPriority = new int[PRIORITIES.length];
+    private final int[] weights = new int[PRIORITIES.length];
+    private final double[] capRatios = new double[PRIORITIES.length];
+    private final int[] credits = new int[PRIORITIES.length];
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutMs;
+    private final long backgroundQueueTimeoutMs;
+    private final long agingNanos;
+    private final int backgroundReserve;
+    private final long ttftTargetNanos;
+    private final double backoffRatio;
+    private final long decreaseCooldownNanos;
+    private final long retryAfterSeconds;
+
+    private volatile double limit;
+    private volatile int inFlight;
+    private long lastDecreaseNanos;
+
+    private final EnumMap<Priority, Counter> shedCounters = new EnumMap<>(Priority.class);
+    private final Timer ttftTimer;
+
+    public UpstreamConcurrencyLimiter(
+            MeterRegistry meterRegistry,
+            @Value("${app.upstream.limiter.initial-limit:8}") int initialLimit,
+            @Value("${app.upstream.limiter.min-limit:2}") int minLimit,
+            @Value("${app.upstream.limiter.max-limit:32}") int maxLimit,
+            @Value("${app.upstream.limiter.max-queue:64}") int maxQueue,
+            @Value("${app.upstream.limiter.queue-timeout-ms:3000}") long queueTimeoutMs,
+            @Value("${app.upstream.limiter.ttft-target-ms:8000}") long ttftTargetMs,
+            @Value("${app.upstream.limiter.backoff-ratio:0.8}") double backoffRatio,
+            @Value("${app.upstream.limiter.decrease-cooldown-ms:1000}") long decreaseCooldownMs,
+            @Value("${app.upstream.limiter.retry-after-seconds:5}") long retryAfterSeconds,
+            @Value("${app.upstream.limiter.background-queue-timeout-ms:30000}") long backgroundQueueTimeoutMs,
+            @Value("${app.upstream.limiter.aging-ms:1500}") long agingMs,
+            @Value("${app.upstream.limiter.background-reserve:1}") int backgroundReserve,
+            @Value("${app.upstream.limiter.weights.interactive:6}") int interactiveWeight,
+            @Value("${app.upstream.limiter.weights.api:3}") int apiWeight,
+            @Value("${app.upstream.limiter.weights.background:1}") int backgroundWeight,
+            @Value("${app.upstream.limiter.caps.interactive:1.0}") double interactiveCap,
+            @Value("${app.upstream.limiter.caps.api:0.75}") double apiCap,
+            @Value("${app.upstream.limiter.caps.background:0.25}") double backgroundCap) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxQueue;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.ttftTargetNanos = TimeUnit.MILLISECONDS.toNanos(ttftTargetMs);
+        this.backoffRatio = backoffRatio;
+        this.decreaseCooldownNanos = TimeUnit.MILLISECONDS.toNanos(decreaseCooldownMs);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.lastDecreaseNanos = System.nanoTime() - decreaseCooldownNanos;
+        this.backgroundQueueTimeoutMs = backgroundQueueTimeoutMs;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMs);
+        this.backgroundReserve = backgroundReserve;
+        weights[Priority.INTERACTIVE.ordinal()] = Math.max(1, interactiveWeight);
+        weights[Priority.API.ordinal()] = Math.max(1, apiWeight);
+        weights[Priority.BACKGROUND.ordinal()] = Math.max(1, backgroundWeight);
+        capRatios[Priority.INTERACTIVE.ordinal()] = interactiveCap;
+        capRatios[Priority.API.ordinal()] = apiCap;
+        capRatios[Priority.BACKGROUND.ordinal()] = backgroundCap;
+        for (Priority priority : PRIORITIES) {
+            waiters.put(priority, new ArrayDeque<>());
+        }
+
+        Gauge.builder("upstream.limiter.limit", this, UpstreamConcurrencyLimiter::currentLimit)
+                .description("Current adaptive concurrency limit").register(meterRegistry);
+        Gauge.builder("upstream.limiter.inflight", this, UpstreamConcurrencyLimiter::inFlight)
+                .description("Upstream calls holding a permit").register(meterRegistry);
+        Gauge.builder("upstream.limiter.queued", this, UpstreamConcurrencyLimiter::queued)
+                .description("Callers waiting for a permit").register(meterRegistry);
+        for (Priority priority : PRIORITIES) {
+            String tag = priority.name().toLowerCase();
+            Gauge.builder("upstream.limiter.class.inflight", this, l -> l.inFlight(priority))
+                    .tag("priority", tag).register(meterRegistry);
+            Gauge.builder("upstream.limiter.class.queued", this, l -> l.queued(priority))
+                    .tag("priority", tag).register(meterRegistry);
+            shedCounters.put(priority, Counter.builder("upstream.limiter.shed")
+                    .description("Calls rejected with 503")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+        }
+        this.ttftTimer = Timer.builder("upstream.ttft")
+                .description("Time from admission to the first streamed token")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Acquire a permit, waiting up to the queue timeout on the calling thread.
+     */
+    public Permit acquire(Priority priority) {
+        try {
+            return acquireAsync(priority).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw overloaded();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceOverloadedException overloaded) {
+                throw overloaded;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Acquire a permit without blocking; the future fails with {@link ServiceOverloadedException}
+     * if the class's queue is full or its deadline passes first.
+     */
+    public CompletableFuture<Permit> acquireAsync(Priority priority) {
+        Waiter waiter;
+        List<Waiter> granted;
+        lock.lock();
+        try {
+            if (!hasWaitersAtOrAbove(priority) && fits(priority, false)) {
+                return CompletableFuture.completedFuture(admit(priority));
+            }
+            Deque<Waiter> queue = waiters.get(priority);
+            if (queue.size() >= maxQueue) {
+                shedCounters.get(priority).increment();
+                return CompletableFuture.failedFuture(overloaded());
+            }
+            waiter = new Waiter(priority);
+            queue.addLast(waiter);
+            // Higher classes may be waiting on their own cap rather than on the global limit
+            granted = grantWaiters();
+        } finally {
+            lock.unlock();
+        }
+        handOver(granted);
+        if (waiter.future.isDone()) {
+            return waiter.future;
+        }
+
+        long timeoutMs = priority == Priority.BACKGROUND ? backgroundQueueTimeoutMs : queueTimeoutMs;
+        CompletableFuture.delayedExecutor(timeoutMs, TimeUnit.MILLISECONDS).execute(() -> {
+            List<Waiter> unblocked;
+            lock.lock();
+            try {
+                // Still queued means not granted; dequeue before failing so callers never see a stale count
+                if (!waiters.get(priority).remove(waiter)) {
+                    return;
+                }
+                // A shed waiter may have been holding back lower classes
+                unblocked = grantWaiters();
+            } finally {
+                lock.unlock();
+            }
+            if (waiter.future.completeExceptionally(overloaded())) {
+                shedCounters.get(priority).increment();
+            }
+            handOver(unblocked);
+        });
+        return waiter.future;
+    }
+
+    public int currentLimit() {
+        return (int) limit;
+    }
+
+    public int inFlight() {
+        return inFlight;
+    }
+
+    public int queued() {
+        int total = 0;
+        for (Priority priority : PRIORITIES) {
+            total += queued(priority);
+        }
+        return total;
+    }
+
+    public int inFlight(Priority priority) {
+        return inFlightByPriority[priority.ordinal()];
+    }
+
+    public int queued(Priority priority) {
+        return waiters.get(priority).size();
+    }
+
+    private void release(Permit permit, Outcome outcome) {
+        List<Waiter> granted;
+        lock.lock();
+        try {
+            boolean saturated = inFlight >= currentLimit();
+            inFlight--;
+            inFlightByPriority[permit.priority.ordinal()]--;
+            adjustLimit(permit, outcome, saturated);
+            granted = grantWaiters();
+        } finally {
+            lock.unlock();
+        }
+        handOver(granted);
+    }
+
+    private void adjustLimit(Permit permit, Outcome outcome, boolean saturated) {
+        if (outcome == Outcome.IGNORED) {
+            return;
+        }
+        boolean slow = permit.ttftNanos > ttftTargetNanos;
+        if (outcome == Outcome.FAILURE || slow) {
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos >= decreaseCooldownNanos) {
+                double previous = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = now;
+                log.info("Upstream limit decreased {} -> {} ({})", (int) previous, currentLimit(),
+                        slow ? "slow first token" : "error");
+            }
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private Permit admit(Priority priority) {
+        inFlight++;
+        inFlightByPriority[priority.ordinal()]++;
+        return new Permit(priority);
+    }
+
+    /**
+     * Whether one more call of this class fits. Caps scale with the adaptive limit; background
+     * work additionally leaves a reserve free and, unless aged, yields to any foreground waiter.
+     */
+    private boolean fits(Priority priority, boolean aged) {
+        int currentLimit = currentLimit();
+        if (inFlight >= currentLimit) {
+            return false;
+        }
+        int cap = Math.max(1, (int) Math.ceil(currentLimit * capRatios[priority.ordinal()]));
+        if (inFlightByPriority[priority.ordinal()] >= cap) {
+            return false;
+        }
+        if (priority == Priority.BACKGROUND) {
+            if (inFlight >= Math.max(1, currentLimit - backgroundReserve)) {
+                return false;
+            }
+            return aged || !hasWaitersAtOrAbove(Priority.API);
+        }
+        return true;
+    }
+
+    private boolean hasWaitersAtOrAbove(Priority priority) {
+        for (int i = 0; i <= priority.ordinal(); i++) {
+            if (!waiters.get(PRIORITIES[i]).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Waiter> grantWaiters() {
+        List<Waiter> granted = new ArrayList<>();
+        Waiter next;
+        while ((next = pickNext()) != null) {
+            waiters.get(next.priority).pollFirst();
+            inFlight++;
+            inFlightByPriority[next.priority.ordinal()]++;
+            granted.add(next);
+        }
+        return granted;
+    }
+
+    /**
+     * Choose the next queue head to admit: the oldest aged head if any, otherwise smooth weighted
+     * round-robin over the classes whose head currently fits.
+     */
+    private Waiter pickNext() {
+        long now = System.nanoTime();
+        Waiter oldestAged = null;
+        int totalWeight = 0;
+        Priority best = null;
+        for (Priority priority : PRIORITIES) {
+            Waiter head = waiters.get(priority).peekFirst();
+            if (head == null) {
+                continue;
+            }
+            boolean aged = now - head.enqueuedNanos >= agingNanos;
+            if (!fits(priority, aged)) {
+                continue;
+            }
+            if (aged && (oldestAged == null || head.enqueuedNanos < oldestAged.enqueuedNanos)) {
+                oldestAged = head;
+            }
+            int i = priority.ordinal();
+            credits[i] += weights[i];
+            totalWeight += weights[i];
+            if (best == null || credits[i] > credits[best.ordinal()]) {
+                best = priority;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        Priority chosen = oldestAged != null ? oldestAged.priority : best;
+        credits[chosen.ordinal()] -= totalWeight;
+        return waiters.get(chosen).peekFirst();
+    }
+
+    // Complete outside the lock: completion may run the waiter's continuation on this thread
+    private void handOver(List<Waiter> granted) {
+        for (Waiter waiter : granted) {
+            Permit permit = new Permit(waiter.priority);
+            if (!waiter.future.complete(permit)) {
+                // Timed out between being granted and completed; give the slot back
+                permit.release(Outcome.IGNORED);
+            }
+        }
+    }
+
+    private ServiceOverloadedException overloaded() {
+        return new ServiceOverloadedException("Upstream is at capacity, please retry shortly", retryAfterSeconds);
+    }
+
+    /**
+     * One admitted upstream call. Release exactly once; further calls are ignored.
+     */
+    public class Permit {
+
+        private final Priority priority;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile long ttftNanos;
+
+        private Permit(Priority priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * Record time-to-first-token on the first call; later calls are no-ops.
+         */
+        public void onFirstToken() {
+            if (ttftNanos == 0) {
+                ttftNanos = System.nanoTime() - startNanos;
+                if (priority != Priority.BACKGROUND) {
+                    ttftTimer.record(ttftNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        public void release(Outcome outcome) {
+            if (released.compareAndSet(false, true)) {
+                UpstreamConcurrencyLimiter.this.release(this, outcome);
+            }
+        }
+    }
+
+    private static final class Waiter {
+
+        private final Priority priority;
+        private final long enqueuedNanos = System.nanoTime();
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+
+        private Waiter(Priority priority) {
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Hedged requests for non-streaming claude-code-api calls. The call goes to one instance; if it
+ * has not answered after the configured percentile of recent latencies (at least
+ * {@code min-delay-ms}), the same call is sent to a second instance and whichever answers first
+ * wins, the other being cancelled. A first attempt that fails before then is retried on the second
+ * instance at that point. Off by default; needs more than one instance in {@link UpstreamPool},
+ * and enough recent latencies to take a percentile from.
+ */
+@Component
+@Slf4j
+public class UpstreamHedging {
+
+    private static final int MIN_SAMPLES = 20;
+
+    private final UpstreamPool upstreamPool;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMs;
+
+    // Latencies of recent successful attempts, as a ring
+    private final long[] latencies;
+    private int next;
+    private int count;
+
+    public UpstreamHedging(UpstreamPool upstreamPool,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.claude-code-api.hedging.enabled:false}") boolean enabled,
+                           @Value("${app.claude-code-api.hedging.percentile:0.95}") double percentile,
+                           @Value("${app.claude-code-api.hedging.min-delay-ms:2000}") long minDelayMs,
+                           @Value("${app.claude-code-api.hedging.window:100}") int window) {
+        this.upstreamPool = upstreamPool;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+        this.latencies = new long[Math.max(MIN_SAMPLES, window)];
+    }
+
+    /**
+     * Run {@code call}, hedged if enabled.
+     *
+     * @param name metric tag for the kind of call
+     * @param call the request, pinned to the given instance (null for no pin)
+     */
+    public <T> Mono<T> call(String name, Function<String, Mono<T>> call) {
+        if (!enabled || upstreamPool.size() < 2) {
+            return call.apply(null);
+        }
+        return Mono.defer(() -> {
+            Long delay = hedgeDelayMs();
+            String primary = upstreamPool.pick(null);
+            if (delay == null) {
+                return timed(call.apply(primary));
+            }
+            AtomicReference<Throwable> firstError = new AtomicReference<>();
+            Mono<T> first = timed(call.apply(primary)).doOnError(firstError::set);
+            Mono<T> hedge = Mono.delay(Duration.ofMillis(delay))
+                    .then(Mono.defer(() -> {
+                        String secondary = upstreamPool.pick(primary);
+                        if (secondary.equals(primary)) {
+                            // No other instance available: the first attempt stands alone
+                            return Mono.<T>empty();
+                        }
+                        Counter.builder("upstream.hedge.requests").tag("call", name)
+                                .description("Hedged second attempts sent").register(meterRegistry).increment();
+                        log.debug("Hedging {} call to {} after {} ms on {}", name, secondary, delay, primary);
+                        return timed(call.apply(secondary))
+                                .doOnNext(value -> Counter.builder("upstream.hedge.wins").tag("call", name)
+                                        .description("Hedged second attempts that answered first")
+                                        .register(meterRegistry).increment());
+                    }));
+            // When neither answers, fail with the first attempt's own error
+            return Mono.firstWithValue(first, hedge)
+                    .onErrorMap(NoSuchElementException.class,
+                            e -> firstError.get() != null ? firstError.get() : e);
+        });
+    }
+
+    private <T> Mono<T> timed(Mono<T> attempt) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return attempt.doOnNext(value -> record((System.nanoTime() - start) / 1_000_000));
+        });
+    }
+
+    private synchronized void record(long latencyMs) {
+        latencies[next] = latencyMs;
+        next = (next + 1) % latencies.length;
+        count = Math.min(count + 1, latencies.length);
+    }
+
+    // Null until there are enough samples to trust the percentile
+    private synchronized Long hedgeDelayMs() {
+        if (count < MIN_SAMPLES) {
+            return null;
+        }
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(count - 1, Math.ceil(percentile * count) - 1);
+        return Math.max(minDelayMs, sorted[Math.max(0, index)]);
+    }
+}
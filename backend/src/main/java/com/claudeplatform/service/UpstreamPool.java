@@ -0,0 +1,354 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-side load balancing over the claude-code-api instances, as a filter on the upstream
+ * WebClient: each request's scheme, host and port are replaced with those of the chosen instance.
+ * <p>
+ * A request pinned with {@link #ENDPOINT_ATTRIBUTE} goes to that instance while it is available
+ * (a bound CLI session or a login flow lives on one instance); the others go to the less loaded
+ * of two random available instances, counting requests whose response body is still open.
+ * The serving instance is reported back in the {@value #ENDPOINT_HEADER} response header.
+ * An instance is unavailable while its {@code /health} check fails or while it is ejected after
+ * consecutive connection errors or 5xx responses; ejection lasts longer each time, and the last
+ * available instance is never ejected. With no instance available, all of them are used.
+ * A single configured URL behaves exactly like the plain client.
+ */
+@Service
+@Slf4j
+public class UpstreamPool implements ExchangeFilterFunction {
+
+    public static final String ENDPOINT_ATTRIBUTE = UpstreamPool.class.getName() + ".endpoint";
+    public static final String ENDPOINT_HEADER = "X-Upstream-Endpoint";
+
+    // Reactor Netty shades reactor-pool, so its exceptions are matched by name
+    private static final Set<String> POOL_EXHAUSTED =
+            Set.of("PoolAcquirePendingLimitException", "PoolAcquireTimeoutException");
+
+    private final List<Endpoint> endpoints;
+    private final WebClient healthClient;
+    private final HttpClient streamHttpClient;
+    private final int warmupConnections;
+    private final Duration healthTimeout;
+    private final int unhealthyThreshold;
+    private final int ejectionFailures;
+    private final long ejectionBaseNanos;
+    private final long ejectionMaxNanos;
+
+    public UpstreamPool(MeterRegistry meterRegistry,
+                        HttpClient claudeCodeApiControlHttpClient,
+                        HttpClient claudeCodeApiStreamHttpClient,
+                        @Value("${app.claude-code-api.url}") String url,
+                        @Value("${app.claude-code-api.urls:}") String urls,
+                        @Value("${app.claude-code-api.pool.health-timeout-ms:2000}") long healthTimeoutMs,
+                        @Value("${app.claude-code-api.pool.unhealthy-threshold:2}") int unhealthyThreshold,
+                        @Value("${app.claude-code-api.pool.ejection-failures:5}") int ejectionFailures,
+                        @Value("${app.claude-code-api.pool.ejection-base-ms:30000}") long ejectionBaseMs,
+                        @Value("${app.claude-code-api.pool.ejection-max-ms:300000}") long ejectionMaxMs,
+                        @Value("${app.claude-code-api.http.stream.warmup-connections:4}") int warmupConnections) {
+        List<String> configured = Arrays.stream(urls.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .toList();
+        List<Endpoint> pool = new ArrayList<>();
+        for (String base : configured.isEmpty() ? List.of(url) : configured) {
+            pool.add(new Endpoint(URI.create(base), meterRegistry));
+        }
+        this.endpoints = List.copyOf(pool);
+        // Probes address each instance directly, so they bypass this filter
+        this.healthClient = WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(claudeCodeApiControlHttpClient))
+                .build();
+        this.streamHttpClient = claudeCodeApiStreamHttpClient;
+        this.warmupConnections = warmupConnections;
+        this.healthTimeout = Duration.ofMillis(healthTimeoutMs);
+        this.unhealthyThreshold = Math.max(1, unhealthyThreshold);
+        this.ejectionFailures = Math.max(1, ejectionFailures);
+        this.ejectionBaseNanos = TimeUnit.MILLISECONDS.toNanos(ejectionBaseMs);
+        this.ejectionMaxNanos = Math.max(ejectionBaseNanos, TimeUnit.MILLISECONDS.toNanos(ejectionMaxMs));
+        log.info("claude-code-api pool: {}", endpoints.stream().map(Endpoint::id).toList());
+    }
+
+    /**
+     * Id of the first configured instance, for state that must stay on one instance.
+     */
+    public String primary() {
+        return endpoints.get(0).id();
+    }
+
+    @Override
+    public Mono<ClientResponse> filter(ClientRequest request, ExchangeFunction next) {
+        // Chosen per subscription, so a retried request can land elsewhere
+        return Mono.defer(() -> {
+            Endpoint endpoint = choose(request.attribute(ENDPOINT_ATTRIBUTE).map(Object::toString).orElse(null), null);
+            URI target = UriComponentsBuilder.fromUri(request.url())
+                    .scheme(endpoint.base.getScheme())
+                    .host(endpoint.base.getHost())
+                    .port(endpoint.base.getPort())
+                    .build(true)
+                    .toUri();
+            ClientRequest routed = ClientRequest.from(request).url(target).build();
+            endpoint.outstanding.incrementAndGet();
+            AtomicBoolean done = new AtomicBoolean();
+            Runnable finish = () -> {
+                if (done.compareAndSet(false, true)) {
+                    endpoint.outstanding.decrementAndGet();
+                }
+            };
+            long start = System.nanoTime();
+            return next.exchange(routed)
+                    .doOnNext(response -> {
+                        endpoint.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        if (response.statusCode().is5xxServerError()) {
+                            onFailure(endpoint);
+                        } else {
+                            onSuccess(endpoint);
+                        }
+                    })
+                    .doOnError(e -> {
+                        // A full local connection pool says nothing about the instance
+                        if (!isPoolExhausted(e)) {
+                            onFailure(endpoint);
+                        }
+                        finish.run();
+                    })
+                    .doOnCancel(finish)
+                    .map(response -> response.mutate()
+                            .header(ENDPOINT_HEADER, endpoint.id())
+                            // Streams hold the instance until their body is consumed or released
+                            .body(body -> body.doFinally(signal -> finish.run()))
+                            .build());
+        });
+    }
+
+    /**
+     * Whether {@code error} is a connection pool refusing to hand out a connection, possibly
+     * wrapped in a WebClient request exception.
+     */
+    public static boolean isPoolExhausted(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause() == e ? null : e.getCause()) {
+            if (POOL_EXHAUSTED.contains(e.getClass().getSimpleName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Id of the instance a request would go to now, other than {@code excluded} when there is a
+     * choice; pin the request to it to send it there.
+     */
+    public String pick(String excluded) {
+        return choose(null, excluded).id();
+    }
+
+    /**
+     * The pinned instance if it is available, otherwise the less loaded of two random available
+     * instances (leaving out {@code excluded} unless it is the only one).
+     */
+    Endpoint choose(String pinned, String excluded) {
+        long now = System.nanoTime();
+        List<Endpoint> available = new ArrayList<>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now) && !endpoint.id().equals(excluded)) {
+                if (endpoint.id().equals(pinned)) {
+                    return endpoint;
+                }
+                available.add(endpoint);
+            }
+        }
+        if (available.isEmpty() && excluded != null) {
+            return choose(pinned, null);
+        }
+        if (available.isEmpty()) {
+            // Fail open: a wrong guess costs one request, refusing all of them costs more
+            available = endpoints;
+        }
+        int size = available.size();
+        if (size == 1) {
+            return available.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(size);
+        int b = random.nextInt(size - 1);
+        if (b >= a) {
+            b++;
+        }
+        Endpoint first = available.get(a);
+        Endpoint second = available.get(b);
+        return second.outstanding.get() < first.outstanding.get() ? second : first;
+    }
+
+    private void onSuccess(Endpoint endpoint) {
+        endpoint.successes.increment();
+        endpoint.consecutiveFailures.set(0);
+    }
+
+    private void onFailure(Endpoint endpoint) {
+        endpoint.failures.increment();
+        if (endpoint.consecutiveFailures.incrementAndGet() < ejectionFailures) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!endpoint.isAvailable(now) || availableCount(now) <= 1) {
+                return;
+            }
+            int times = endpoint.ejections.getAndIncrement();
+            long duration = Math.min(ejectionMaxNanos, ejectionBaseNanos << Math.min(times, 16));
+            endpoint.ejectedUntilNanos = now + duration;
+            endpoint.consecutiveFailures.set(0);
+            endpoint.ejectionCounter.increment();
+            log.warn("Ejecting claude-code-api instance {} for {} ms after {} consecutive failures",
+                    endpoint.id(), TimeUnit.NANOSECONDS.toMillis(duration), ejectionFailures);
+        }
+    }
+
+    private int availableCount(long now) {
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open {@code warmup-connections} keep-alive connections to every instance in the stream pool
+     * (concurrent health requests), so the first chat turns do not pay for connection setup.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (warmupConnections <= 0) {
+            return;
+        }
+        streamHttpClient.warmup()
+                .thenMany(Flux.fromIterable(endpoints)
+                        .flatMap(endpoint -> Flux.range(0, warmupConnections)
+                                .flatMap(i -> streamHttpClient.get()
+                                        .uri(UriComponentsBuilder.fromUri(endpoint.base).path("/health").build().toUri())
+                                        .responseSingle((response, body) -> body.then(Mono.just(response.status())))
+                                        .filter(status -> status.code() < 500)
+                                        .onErrorResume(e -> Mono.empty()))))
+                .count()
+                .subscribe(opened -> log.info("Warmed up {} claude-code-api stream connections", opened));
+    }
+
+    /**
+     * Probe every instance's {@code /health}. An instance is marked down after
+     * {@code unhealthy-threshold} failed probes in a row and up again on the first good one; a
+     * healthy probe after an ejection has expired also resets the ejection backoff.
+     */
+    @Scheduled(fixedDelayString = "${app.claude-code-api.pool.health-interval-ms:5000}")
+    public void checkHealth() {
+        if (endpoints.size() == 1) {
+            return;
+        }
+        for (Endpoint endpoint : endpoints) {
+            healthClient.get()
+                    .uri(UriComponentsBuilder.fromUri(endpoint.base).path("/health").build().toUri())
+                    .retrieve()
+                    .toBodilessEntity()
+                    .timeout(healthTimeout)
+                    .subscribe(response -> onProbe(endpoint, true), e -> onProbe(endpoint, false));
+        }
+    }
+
+    private void onProbe(Endpoint endpoint, boolean ok) {
+        if (ok) {
+            endpoint.failedProbes.set(0);
+            if (!endpoint.healthy) {
+                log.info("claude-code-api instance {} is healthy again", endpoint.id());
+            }
+            endpoint.healthy = true;
+            if (endpoint.ejectedUntilNanos - System.nanoTime() < 0) {
+                endpoint.ejections.set(0);
+            }
+        } else if (endpoint.failedProbes.incrementAndGet() >= unhealthyThreshold && endpoint.healthy) {
+            log.warn("claude-code-api instance {} failed {} health checks", endpoint.id(), unhealthyThreshold);
+            endpoint.healthy = false;
+        }
+    }
+
+    static final class Endpoint {
+
+        private final URI base;
+        private final String id;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final AtomicInteger failedProbes = new AtomicInteger();
+        private final AtomicInteger ejections = new AtomicInteger();
+        private volatile boolean healthy = true;
+        private volatile long ejectedUntilNanos = System.nanoTime();
+
+        private final Counter successes;
+        private final Counter failures;
+        private final Counter ejectionCounter;
+        private final Timer latency;
+
+        private Endpoint(URI base, MeterRegistry meterRegistry) {
+            this.base = base;
+            this.id = base.getAuthority();
+            Gauge.builder("upstream.endpoint.outstanding", outstanding, AtomicInteger::get)
+                    .description("Open requests to a claude-code-api instance")
+                    .tag("endpoint", id).register(meterRegistry);
+            Gauge.builder("upstream.endpoint.available", this, e -> e.isAvailable(System.nanoTime()) ? 1 : 0)
+                    .description("Whether a claude-code-api instance is healthy and not ejected")
+                    .tag("endpoint", id).register(meterRegistry);
+            this.successes = Counter.builder("upstream.endpoint.requests").tag("endpoint", id)
+                    .tag("outcome", "success").register(meterRegistry);
+            this.failures = Counter.builder("upstream.endpoint.requests").tag("endpoint", id)
+                    .tag("outcome", "failure").register(meterRegistry);
+            this.ejectionCounter = Counter.builder("upstream.endpoint.ejections").tag("endpoint", id)
+                    .description("Times a claude-code-api instance was ejected for consecutive failures")
+                    .register(meterRegistry);
+            this.latency = Timer.builder("upstream.endpoint.latency").tag("endpoint", id)
+                    .description("Time to response headers from a claude-code-api instance")
+                    .publishPercentiles(0.5, 0.95).register(meterRegistry);
+        }
+
+        String id() {
+            return id;
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && now - ejectedUntilNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session affinity between conversations and claude-code-api sessions. A turn that completes
+ * binds its conversation to the session that served it, together with the seq of the reply; the
+ * next turn reuses the session, sending only the new message, if it is still warm: same model,
+ * idle for less than the TTL, under the turn limit and no message since the one it last saw
+ * (a turn served elsewhere, from the completion cache or cancelled breaks the chain). Otherwise
+ * the binding is dropped and the turn goes out with the context rebuilt from the summary and
+ * recent messages, which starts a new session.
+ * A failed or cancelled turn drops its session, since its upstream state is unknown; dropped and
+ * idle sessions are also ended upstream. Bindings live in memory and are mirrored to
+ * active_sessions for the admin view.
+ * A session lives on one claude-code-api instance, so its turns and its end are pinned there
+ * through {@link UpstreamPool}.
+ */
+@Service
+@Slf4j
+public class UpstreamSessionService {
+
+    private static final String UPSERT =
+            "INSERT INTO active_sessions (user_id, session_id, endpoint, model, conversation_id, last_seq, turns, " +
+            "started_at, last_activity_at) VALUES (?, ?, ?, ?, ?, ?, ?, NOW(), NOW()) " +
+            "ON CONFLICT (conversation_id) DO UPDATE SET session_id = EXCLUDED.session_id, " +
+            "endpoint = EXCLUDED.endpoint, model = EXCLUDED.model, last_seq = EXCLUDED.last_seq, " +
+            "turns = EXCLUDED.turns, " +
+            "started_at = CASE WHEN active_sessions.session_id = EXCLUDED.session_id " +
+            "THEN active_sessions.started_at ELSE NOW() END, last_activity_at = NOW()";
+
+    private static final String DELETE =
+            "DELETE FROM active_sessions WHERE conversation_id = ? AND session_id = ?";
+
+    // Rows of instances that went away without ending their sessions
+    private static final String PURGE_STALE =
+            "DELETE FROM active_sessions WHERE last_activity_at < NOW() - (? * INTERVAL '1 millisecond')";
+
+    // A turn that holds its session longer than this never finished (the stream timeout is 5 min)
+    private static final long BUSY_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final WebClient claudeCodeApiControlClient;
+    private final ContextManagementService contextManagementService;
+    private final Scheduler persistenceScheduler;
+    private final boolean enabled;
+    private final long idleTtlMs;
+    private final long idleTtlNanos;
+    private final int maxTurns;
+    private final int maxSessions;
+
+    private final Map<UUID, Binding> bindings = new ConcurrentHashMap<>();
+
+    private final Counter warmTurns;
+    private final Counter coldTurns;
+    private final Counter unavailable;
+    private final Counter evictions;
+
+    public UpstreamSessionService(JdbcTemplate jdbcTemplate,
+                                  WebClient claudeCodeApiControlClient,
+                                  ContextManagementService contextManagementService,
+                                  Scheduler persistenceScheduler,
+                                  WriteBehindService writeBehindService,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${app.chat.session-affinity.enabled:true}") boolean enabled,
+                                  @Value("${app.chat.session-affinity.idle-ttl-ms:300000}") long idleTtlMs,
+                                  @Value("${app.chat.session-affinity.max-turns:50}") int maxTurns,
+                                  @Value("${app.chat.session-affinity.max-sessions:10000}") int maxSessions) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.claudeCodeApiControlClient = claudeCodeApiControlClient;
+        this.contextManagementService = contextManagementService;
+        this.persistenceScheduler = persistenceScheduler;
+        this.enabled = enabled;
+        this.idleTtlMs = idleTtlMs;
+        this.idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(idleTtlMs);
+        this.maxTurns = maxTurns;
+        this.maxSessions = maxSessions;
+
+        Gauge.builder("chat.upstream.sessions.bound", bindings, Map::size)
+                .description("Conversations bound to a warm claude-code-api session").register(meterRegistry);
+        this.warmTurns = Counter.builder("chat.upstream.session.turns").tag("session", "warm")
+                .description("Chat turns by whether they reused a bound upstream session").register(meterRegistry);
+        this.coldTurns = Counter.builder("chat.upstream.session.turns").tag("session", "cold")
+                .description("Chat turns by whether they reused a bound upstream session").register(meterRegistry);
+        this.unavailable = Counter.builder("chat.upstream.session.unavailable")
+                .description("Bound sessions upstream no longer had or was busy with, so the turn was resent")
+                .register(meterRegistry);
+        this.evictions = Counter.builder("chat.upstream.session.evictions")
+                .description("Bindings dropped as idle, stale or out of turns").register(meterRegistry);
+        writeBehindService.onResequenced(this::invalidate);
+    }
+
+    /**
+     * An upstream session and the instance it lives on ({@link UpstreamPool} id, null if unknown).
+     */
+    public record Session(String id, String endpoint) {
+    }
+
+    private record Binding(Session session, UUID userId, String model, long lastSeq, int turns,
+                           long lastUsedNanos, boolean busy) {
+
+        Binding acquired() {
+            return new Binding(session, userId, model, lastSeq, turns, System.nanoTime(), true);
+        }
+    }
+
+    /**
+     * The session that served a stream, or null if upstream did not report one.
+     */
+    public static Session served(StreamAccumulator accumulator) {
+        String id = accumulator.getUpstreamSessionId();
+        return id != null ? new Session(id, accumulator.getUpstreamEndpoint()) : null;
+    }
+
+    private boolean isActive() {
+        return enabled && contextManagementService.isContextEnabled();
+    }
+
+    /**
+     * The session to run this turn on, or null to send the full context. A returned session is
+     * held for the turn until {@link #bind} or {@link #discard}.
+     *
+     * @param historySeq seq of the newest message before the current one
+     */
+    public Session acquire(UUID conversationId, String model, long historySeq) {
+        if (!isActive()) {
+            return null;
+        }
+        Session[] acquired = new Session[1];
+        Binding[] dropped = new Binding[1];
+        bindings.computeIfPresent(conversationId, (id, binding) -> {
+            if (binding.busy()) {
+                // Another turn of this conversation is running on it
+                return binding;
+            }
+            if (binding.model().equals(model) && binding.lastSeq() == historySeq && binding.turns() < maxTurns
+                    && System.nanoTime() - binding.lastUsedNanos() < idleTtlNanos) {
+                acquired[0] = binding.session();
+                return binding.acquired();
+            }
+            dropped[0] = binding;
+            return null;
+        });
+        if (dropped[0] != null) {
+            log.debug("Dropping upstream session {} of conversation {}", dropped[0].session().id(), conversationId);
+            evictions.increment();
+            end(conversationId, dropped[0].session());
+        }
+        (acquired[0] != null ? warmTurns : coldTurns).increment();
+        return acquired[0];
+    }
+
+    /**
+     * Bind the conversation to the session that served a completed turn. If another turn of the
+     * conversation is running on the bound session, that binding is kept and this session ended.
+     *
+     * @param lastSeq seq of the turn's reply
+     */
+    public void bind(UUID conversationId, UUID userId, String model, Session session, long lastSeq) {
+        if (!isActive() || session == null) {
+            return;
+        }
+        Binding[] replaced = new Binding[1];
+        int[] turns = new int[1];
+        bindings.compute(conversationId, (id, current) -> {
+            if (current == null && bindings.size() >= maxSessions) {
+                return null;
+            }
+            boolean sameSession = current != null && current.session().id().equals(session.id());
+            if (current != null && !sameSession) {
+                if (current.busy()) {
+                    // Ending it now would cut the other turn's stream
+                    turns[0] = -1;
+                    return current;
+                }
+                replaced[0] = current;
+            }
+            turns[0] = sameSession ? current.turns() + 1 : 1;
+            return new Binding(session, userId, model, lastSeq, turns[0], System.nanoTime(), false);
+        });
+        if (turns[0] <= 0) {
+            // At capacity, or the conversation's session is busy: leave this one unbound
+            endUpstream(session);
+            return;
+        }
+        if (replaced[0] != null) {
+            endUpstream(replaced[0].session());
+        }
+        Mono.fromRunnable(() -> jdbcTemplate.update(UPSERT, userId, session.id(), session.endpoint(), model,
+                        conversationId, lastSeq, turns[0]))
+                .subscribeOn(persistenceScheduler)
+                .subscribe(null, e -> log.warn("Failed to record upstream session {} of conversation {}",
+                        session.id(), conversationId, e));
+    }
+
+    /**
+     * Drop the sessions of a turn that failed or was cancelled.
+     *
+     * @param acquired the session returned by {@link #acquire}, or null
+     * @param served   the session upstream reported for the turn, or null
+     */
+    public void discard(UUID conversationId, Session acquired, Session served) {
+        if (acquired != null) {
+            drop(conversationId, acquired);
+        }
+        if (served != null && (acquired == null || !served.id().equals(acquired.id()))) {
+            drop(conversationId, served);
+        }
+    }
+
+    /**
+     * The acquired session was gone or busy upstream; the turn is being resent without it.
+     */
+    public void unavailable(UUID conversationId, Session session) {
+        unavailable.increment();
+        drop(conversationId, session);
+    }
+
+    // Another writer stored a message the bound session never saw. A busy binding is left to its turn.
+    private void invalidate(UUID conversationId) {
+        Binding[] dropped = new Binding[1];
+        bindings.computeIfPresent(conversationId, (id, binding) -> {
+            if (binding.busy()) {
+                return binding;
+            }
+            dropped[0] = binding;
+            return null;
+        });
+        if (dropped[0] != null) {
+            evictions.increment();
+            end(conversationId, dropped[0].session());
+        }
+    }
+
+    private void drop(UUID conversationId, Session session) {
+        bindings.computeIfPresent(conversationId,
+                (id, binding) -> binding.session().id().equals(session.id()) ? null : binding);
+        end(conversationId, session);
+    }
+
+    /**
+     * End sessions that sat idle past the TTL (or whose turn never finished) and clear rows other
+     * instances left behind.
+     */
+    @Scheduled(fixedDelayString = "${app.chat.session-affinity.sweep-interval-ms:60000}")
+    public void evictIdle() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (Map.Entry<UUID, Binding> entry : bindings.entrySet()) {
+            Binding binding = entry.getValue();
+            long idle = now - binding.lastUsedNanos();
+            if ((binding.busy() ? idle > BUSY_TIMEOUT_NANOS : idle > idleTtlNanos)
+                    && bindings.remove(entry.getKey(), binding)) {
+                evictions.increment();
+                end(entry.getKey(), binding.session());
+            }
+        }
+        int purged = jdbcTemplate.update(PURGE_STALE, 2 * idleTtlMs);
+        if (purged > 0) {
+            log.info("Purged {} stale upstream session rows", purged);
+        }
+    }
+
+    private void end(UUID conversationId, Session session) {
+        Mono.fromRunnable(() -> jdbcTemplate.update(DELETE, conversationId, session.id()))
+                .subscribeOn(persistenceScheduler)
+                .subscribe(null, e -> log.warn("Failed to delete upstream session row {}", session.id(), e));
+        endUpstream(session);
+    }
+
+    private void endUpstream(Session session) {
+        claudeCodeApiControlClient.delete()
+                .uri("/v1/sessions/{sessionId}", session.id())
+                .attributes(attributes -> {
+                    if (session.endpoint() != null) {
+                        attributes.put(UpstreamPool.ENDPOINT_ATTRIBUTE, session.endpoint());
+                    }
+                })
+                .retrieve()
+                .toBodilessEntity()
+                .subscribe(null, e -> log.debug("Failed to end upstream session {}: {}", session.id(), e.getMessage()));
+    }
+}
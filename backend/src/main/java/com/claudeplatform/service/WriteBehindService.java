@@ -0,0 +1,491 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import com.claudeplatform.model.entity.Message;
+import com.claudeplatform.model.entity.UsageLog;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.scheduler.Scheduler;
+
+import java.sql.Types;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Batched write-behind stage for chat persistence.
+ * Message inserts, conversation touches and usage logs are queued by the chat path and written
+ * by a single flusher thread as JDBC batches, flushed when the batch is full or the flush interval
+ * elapses. Because there is one queue and one flusher, writes for a conversation reach the database
+ * in the order they were queued. Nothing bypasses the queue: when it is full, a new turn's message
+ * is refused with a 503 and every other write waits for room.
+ * <p>
+ * Messages get their per-conversation sequence number on enqueue. The last assigned number is
+ * kept for the most recently used conversations, so MAX(seq) is read only for a conversation not
+ * seen lately; a conversation with writes in flight is never forgotten.
+ */
+@Service
+@Slf4j
+public class WriteBehindService {
+
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO messages (id, conversation_id, seq, role, content, token_count, truncated, created_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int[] MESSAGE_TYPES = {Types.OTHER, Types.OTHER, Types.BIGINT, Types.VARCHAR,
+            Types.VARCHAR, Types.INTEGER, Types.BOOLEAN, Types.TIMESTAMP_WITH_TIMEZONE};
+
+    // Fallback when the assigned seq collides (a writer outside this stage got there first)
+    private static final String INSERT_MESSAGE_NEXT_SEQ =
+            "INSERT INTO messages (id, conversation_id, seq, role, content, token_count, truncated, created_at) " +
+            "VALUES (?, ?, (SELECT COALESCE(MAX(seq), 0) + 1 FROM messages WHERE conversation_id = ?), ?, ?, ?, ?, ?) " +
+            "RETURNING seq";
+    private static final int[] MESSAGE_NEXT_SEQ_TYPES = {Types.OTHER, Types.OTHER, Types.OTHER, Types.VARCHAR,
+            Types.VARCHAR, Types.INTEGER, Types.BOOLEAN, Types.TIMESTAMP_WITH_TIMEZONE};
+
+    private static final String MAX_SEQ = "SELECT COALESCE(MAX(seq), 0) FROM messages WHERE conversation_id = ?";
+
+    private static final String TOUCH_CONVERSATION =
+            "UPDATE conversations SET updated_at = ?, " +
+            "title = CASE WHEN title = 'New Conversation' THEN COALESCE(CAST(? AS VARCHAR), title) ELSE title END " +
+            "WHERE id = ?";
+    private static final int[] TOUCH_TYPES = {Types.TIMESTAMP_WITH_TIMEZONE, Types.VARCHAR, Types.OTHER};
+
+    private static final String INSERT_USAGE =
+            "INSERT INTO usage_logs (id, user_id, conversation_id, model, input_tokens, output_tokens, " +
+            "total_tokens, response_time_ms, ttft_ms, context_tokens, cache_read_tokens, cache_creation_tokens, " +
+            "usage_estimated, status, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int[] USAGE_TYPES = {Types.OTHER, Types.OTHER, Types.OTHER, Types.VARCHAR, Types.INTEGER,
+            Types.INTEGER, Types.INTEGER, Types.BIGINT, Types.BIGINT, Types.INTEGER, Types.INTEGER, Types.INTEGER,
+            Types.BOOLEAN, Types.VARCHAR, Types.TIMESTAMP_WITH_TIMEZONE};
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Scheduler persistenceScheduler;
+    private final BlockingQueue<WriteOp> queue;
+    private final ConcurrentHashMap<UUID, Integer> pendingByConversation = new ConcurrentHashMap<>();
+    private final List<Consumer<UUID>> resequencedListeners = new CopyOnWriteArrayList<>();
+    // Last assigned seq per conversation, in LRU order; guarded by itself
+    private final LinkedHashMap<UUID, AtomicLong> lastSeqByConversation = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final Timer flushTimer;
+    private final DistributionSummary batchSizes;
+    private final Counter droppedWrites;
+    private final Counter overflowWrites;
+    private final Counter rejectedWrites;
+
+    @Value("${app.write-behind.batch-size:200}")
+    private int batchSize;
+
+    @Value("${app.write-behind.flush-interval-ms:100}")
+    private long flushIntervalMs;
+
+    @Value("${app.write-behind.enqueue-timeout-ms:500}")
+    private long enqueueTimeoutMs;
+
+    @Value("${app.write-behind.await-timeout-ms:2000}")
+    private long awaitTimeoutMs;
+
+    @Value("${app.write-behind.seq-tracker-max-entries:10000}")
+    private int maxSeqTrackers;
+
+    private volatile boolean running = true;
+    private Thread flusher;
+
+    public WriteBehindService(JdbcTemplate jdbcTemplate,
+                              PlatformTransactionManager transactionManager,
+                              MeterRegistry meterRegistry,
+                              Scheduler persistenceScheduler,
+                              @Value("${app.write-behind.queue-capacity:10000}") int queueCapacity) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.persistenceScheduler = persistenceScheduler;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Gauge.builder("chat.writebehind.queue.depth", queue, BlockingQueue::size)
+                .description("Writes waiting to be flushed")
+                .register(meterRegistry);
+        this.flushTimer = Timer.builder("chat.writebehind.flush")
+                .description("Time to write one batch")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("chat.writebehind.batch.size")
+                .register(meterRegistry);
+        this.droppedWrites = Counter.builder("chat.writebehind.dropped")
+                .description("Writes that failed even when retried one by one")
+                .register(meterRegistry);
+        this.overflowWrites = Counter.builder("chat.writebehind.overflow")
+                .description("Writes that waited past the enqueue timeout for room in the queue")
+                .register(meterRegistry);
+        this.rejectedWrites = Counter.builder("chat.writebehind.rejected")
+                .description("New messages refused because the queue stayed full")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    void start() {
+        flusher = new Thread(this::runFlusher, "write-behind-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    void stop() throws InterruptedException {
+        running = false;
+        flusher.interrupt();
+        flusher.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * Queue a message insert, assigning it the next sequence number of its conversation.
+     *
+     * @param rejectWhenFull whether to fail with {@link ServiceOverloadedException} if the queue
+     *                       is still full after the enqueue timeout, instead of waiting for room
+     */
+    public void enqueueMessage(Message message, boolean rejectWhenFull) {
+        MessageWrite op = new MessageWrite(message);
+        // Count the write as pending first so the tracker cannot be trimmed while seq is assigned
+        track(op);
+        long seq;
+        try {
+            seq = nextSeq(message.getConversationId());
+        } catch (RuntimeException e) {
+            untrack(op.conversationId());
+            throw e;
+        }
+        message.setSeq(seq);
+        if (!rejectWhenFull) {
+            put(op);
+        } else if (!offer(op)) {
+            AtomicLong lastSeq;
+            synchronized (lastSeqByConversation) {
+                lastSeq = lastSeqByConversation.get(op.conversationId());
+            }
+            if (lastSeq != null) {
+                // Give the number back unless a later message already took the next one
+                lastSeq.compareAndSet(seq, seq - 1);
+            }
+            untrack(op.conversationId());
+            rejectedWrites.increment();
+            throw new ServiceOverloadedException("Chat persistence is saturated", 1);
+        }
+    }
+
+    /**
+     * Bump the conversation's updated_at, and set its title if it still has the default one.
+     */
+    public void enqueueConversationTouch(UUID conversationId, String titleIfNew) {
+        enqueue(new ConversationTouch(conversationId, titleIfNew, OffsetDateTime.now()));
+    }
+
+    /**
+     * Queue a usage row; {@code afterFlush} runs once every write queued before it has committed.
+     */
+    public void enqueueUsage(UsageLog usageLog, Runnable afterFlush) {
+        enqueue(new UsageWrite(usageLog, afterFlush));
+    }
+
+    /**
+     * Block until every write already queued for this conversation has been committed,
+     * so a new turn reads the previous turn's messages.
+     */
+    public void awaitFlushed(UUID conversationId) {
+        if (!pendingByConversation.containsKey(conversationId)) {
+            return;
+        }
+        Barrier barrier = new Barrier(new CompletableFuture<>());
+        enqueue(barrier);
+        try {
+            barrier.done().get(awaitTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Timed out waiting for pending writes of conversation {}", conversationId);
+        }
+    }
+
+    /**
+     * Register a callback for a conversation whose message had to be stored under a later seq
+     * than it was given on enqueue, because another writer took that one. The message's seq has
+     * been corrected by then, but anything built from the conversation's rows meanwhile misses
+     * the other writer's message. Runs on the flusher thread, so it must not block.
+     */
+    public void onResequenced(Consumer<UUID> listener) {
+        resequencedListeners.add(listener);
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private long nextSeq(UUID conversationId) {
+        AtomicLong lastSeq;
+        synchronized (lastSeqByConversation) {
+            lastSeq = lastSeqByConversation.get(conversationId);
+        }
+        if (lastSeq == null) {
+            // Not tracked, so nothing of this conversation is queued and the table is current
+            Long max = jdbcTemplate.queryForObject(MAX_SEQ, Long.class, conversationId);
+            AtomicLong seeded = new AtomicLong(max != null ? max : 0);
+            synchronized (lastSeqByConversation) {
+                lastSeq = lastSeqByConversation.putIfAbsent(conversationId, seeded);
+                if (lastSeq == null) {
+                    lastSeq = seeded;
+                    trimSeqTrackers();
+                }
+            }
+        }
+        return lastSeq.incrementAndGet();
+    }
+
+    // Forget the least recently used conversations over the bound, skipping any with writes in
+    // flight: MAX(seq) would not see their queued messages yet. Called holding the tracker lock.
+    private void trimSeqTrackers() {
+        Iterator<UUID> oldest = lastSeqByConversation.keySet().iterator();
+        while (lastSeqByConversation.size() > maxSeqTrackers && oldest.hasNext()) {
+            if (!pendingByConversation.containsKey(oldest.next())) {
+                oldest.remove();
+            }
+        }
+    }
+
+    private void enqueue(WriteOp op) {
+        track(op);
+        put(op);
+    }
+
+    private void track(WriteOp op) {
+        if (op.conversationId() != null) {
+            pendingByConversation.merge(op.conversationId(), 1, Integer::sum);
+        }
+    }
+
+    private void untrack(UUID conversationId) {
+        pendingByConversation.computeIfPresent(conversationId, (id, n) -> n > 1 ? n - 1 : null);
+    }
+
+    // Queue the op, waiting at most the enqueue timeout for room
+    private boolean offer(WriteOp op) {
+        try {
+            return queue.offer(op, enqueueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Queue the op, waiting as long as it takes: the flusher is the only writer, so order is kept
+    private void put(WriteOp op) {
+        if (offer(op)) {
+            return;
+        }
+        overflowWrites.increment();
+        log.warn("Write-behind queue full ({}), waiting to queue {}", queue.size(), op.getClass().getSimpleName());
+        try {
+            queue.put(op);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while queueing {} for conversation {}, dropping it",
+                    op.getClass().getSimpleName(), op.conversationId());
+            droppedWrites.increment();
+            if (op.conversationId() != null) {
+                untrack(op.conversationId());
+            }
+        }
+    }
+
+    private void runFlusher() {
+        List<WriteOp> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteOp first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < batchSize && !(batch.get(batch.size() - 1) instanceof Barrier)) {
+                    long remaining = deadline - System.nanoTime();
+                    WriteOp next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutdown: drain whatever is left without waiting
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<WriteOp> batch) {
+        List<Object[]> messages = new ArrayList<>();
+        List<Object[]> touches = new ArrayList<>();
+        List<Object[]> usages = new ArrayList<>();
+        for (WriteOp op : batch) {
+            if (op instanceof MessageWrite m) {
+                messages.add(m.toRow());
+            } else if (op instanceof ConversationTouch t) {
+                touches.add(t.toRow());
+            } else if (op instanceof UsageWrite u) {
+                usages.add(u.toRow());
+            }
+        }
+
+        long start = System.nanoTime();
+        // Conversations with a write that was dropped; later hooks of theirs do not run
+        Set<UUID> dropped = new HashSet<>();
+        boolean retried = false;
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                if (!messages.isEmpty()) jdbcTemplate.batchUpdate(INSERT_MESSAGE, messages, MESSAGE_TYPES);
+                if (!touches.isEmpty()) jdbcTemplate.batchUpdate(TOUCH_CONVERSATION, touches, TOUCH_TYPES);
+                if (!usages.isEmpty()) jdbcTemplate.batchUpdate(INSERT_USAGE, usages, USAGE_TYPES);
+            });
+        } catch (Exception e) {
+            log.error("Write-behind batch of {} failed, retrying one by one", batch.size(), e);
+            retried = true;
+        } finally {
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            batchSizes.record(batch.size());
+        }
+
+        for (WriteOp op : batch) {
+            if (retried && !writeSingle(op)) {
+                dropped.add(op.conversationId());
+            }
+            if (op.conversationId() != null) {
+                untrack(op.conversationId());
+            }
+            if (op instanceof Barrier b) {
+                b.done().complete(null);
+            } else if (op instanceof UsageWrite u && u.afterFlush() != null && !dropped.contains(u.conversationId())) {
+                persistenceScheduler.schedule(u.afterFlush());
+            }
+        }
+    }
+
+    /**
+     * @return whether the write went through
+     */
+    private boolean writeSingle(WriteOp op) {
+        try {
+            if (op instanceof MessageWrite m) {
+                try {
+                    jdbcTemplate.update(INSERT_MESSAGE, m.toRow(), MESSAGE_TYPES);
+                } catch (DuplicateKeyException e) {
+                    log.warn("Sequence {} already taken in conversation {}, appending instead",
+                            m.message().getSeq(), m.conversationId());
+                    Long seq = jdbcTemplate.queryForObject(INSERT_MESSAGE_NEXT_SEQ, m.toNextSeqRow(),
+                            MESSAGE_NEXT_SEQ_TYPES, Long.class);
+                    resequenced(m.message(), seq);
+                }
+            } else if (op instanceof ConversationTouch t) {
+                jdbcTemplate.update(TOUCH_CONVERSATION, t.toRow(), TOUCH_TYPES);
+            } else if (op instanceof UsageWrite u) {
+                jdbcTemplate.update(INSERT_USAGE, u.toRow(), USAGE_TYPES);
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("Dropping {} for conversation {}", op.getClass().getSimpleName(), op.conversationId(), e);
+            droppedWrites.increment();
+            return false;
+        }
+    }
+
+    private void resequenced(Message message, long seq) {
+        message.setSeq(seq);
+        AtomicLong lastSeq;
+        synchronized (lastSeqByConversation) {
+            lastSeq = lastSeqByConversation.get(message.getConversationId());
+        }
+        if (lastSeq != null) {
+            // Messages enqueued from now on go after it
+            lastSeq.accumulateAndGet(seq, Math::max);
+        }
+        for (Consumer<UUID> listener : resequencedListeners) {
+            try {
+                listener.accept(message.getConversationId());
+            } catch (RuntimeException e) {
+                log.warn("Resequence listener failed for conversation {}", message.getConversationId(), e);
+            }
+        }
+    }
+
+    private sealed interface WriteOp permits MessageWrite, ConversationTouch, UsageWrite, Barrier {
+        UUID conversationId();
+    }
+
+    private record MessageWrite(Message message) implements WriteOp {
+        public UUID conversationId() {
+            return message.getConversationId();
+        }
+
+        Object[] toRow() {
+            return new Object[]{message.getId(), message.getConversationId(), message.getSeq(), message.getRole(),
+                    message.getContent(), message.getTokenCount(), message.getTruncated(), message.getCreatedAt()};
+        }
+
+        Object[] toNextSeqRow() {
+            return new Object[]{message.getId(), message.getConversationId(), message.getConversationId(),
+                    message.getRole(), message.getContent(), message.getTokenCount(), message.getTruncated(),
+                    message.getCreatedAt()};
+        }
+    }
+
+    private record ConversationTouch(UUID conversationId, String titleIfNew, OffsetDateTime at) implements WriteOp {
+        Object[] toRow() {
+            return new Object[]{at, titleIfNew, conversationId};
+        }
+    }
+
+    private record UsageWrite(UsageLog usageLog, Runnable afterFlush) implements WriteOp {
+        public UUID conversationId() {
+            return usageLog.getConversationId();
+        }
+
+        Object[] toRow() {
+            UsageLog u = usageLog;
+            return new Object[]{u.getId() != null ? u.getId() : UUID.randomUUID(), u.getUserId(),
+                    u.getConversationId(), u.getModel(), u.getInputTokens(), u.getOutputTokens(),
+                    u.getTotalTokens(), u.getResponseTimeMs(), u.getTtftMs(), u.getContextTokens(),
+                    u.getCacheReadTokens(), u.getCacheCreationTokens(), u.getUsageEstimated(), u.getStatus(),
+                    u.getCreatedAt() != null ? u.getCreatedAt() : OffsetDateTime.now()};
+        }
+    }
+
+    private record Barrier(CompletableFuture<Void> done) implements WriteOp {
+        public UUID conversationId() {
+            return null;
+        }
+    }
+}
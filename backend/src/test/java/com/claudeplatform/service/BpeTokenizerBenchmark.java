@@ -0,0 +1,72 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of estimating tokens for a 4,000-char message: the former length/4 rule against
+ * {@link BpeTokenizer} counting from scratch and answering from its cache (a message kept in
+ * context is counted once, then hit on every later turn).
+ * <pre>
+ *   backend/scripts/run_benchmarks.sh BpeTokenizerBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BpeTokenizerBenchmark {
+
+    private static final int LENGTH = 4000;
+
+    @Param({"english", "korean", "code"})
+    public String kind;
+
+    private BpeTokenizer tokenizer;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        tokenizer = new BpeTokenizer(new SimpleMeterRegistry(), 1024);
+        String sample = switch (kind) {
+            case "english" -> "The scheduler retries failed jobs with exponential backoff, "
+                    + "but it gives up after five attempts and records the last error. ";
+            case "korean" -> "요약 작업은 대화가 임계값을 넘으면 큐에 들어가고, "
+                    + "실패하면 지수 백오프로 다시 시도한 뒤 마지막 오류를 기록합니다. ";
+            default -> "    if (attempt >= maxAttempts) {\n"
+                    + "        log.warn(\"Giving up on job {} after {} attempts\", job.id(), attempt);\n"
+                    + "        return Mono.empty();\n    }\n";
+        };
+        text = sample.repeat(LENGTH / sample.length() + 1).substring(0, LENGTH);
+        tokenizer.countTokens(text);
+    }
+
+    @Benchmark
+    public int lengthOverFour() {
+        return text.length() / 4;
+    }
+
+    @Benchmark
+    public int bpeUncached() {
+        return tokenizer.countUncached(text);
+    }
+
+    @Benchmark
+    public int bpeCached() {
+        return tokenizer.countTokens(text);
+    }
+}
@@ -0,0 +1,38 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BpeTokenizerTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final BpeTokenizer tokenizer = new BpeTokenizer(meterRegistry, 1024);
+
+    @Test
+    void countsCachedTextsOnce() {
+        String text = "The quick brown fox jumps over the lazy dog, again and again.";
+
+        int first = tokenizer.countTokens(text);
+        int second = tokenizer.countTokens(new String(text));
+
+        assertThat(second).isEqualTo(first).isEqualTo(tokenizer.countUncached(text));
+        assertThat(meterRegistry.get("tokenizer.cache.requests").tag("result", "hit").functionCounter().count())
+                .isEqualTo(1);
+    }
+
+    @Test
+    void doesNotShareCountsBetweenTextsWithTheSameStringHash() {
+        // "a " and "`?" have the same String.hashCode, so these do too, at the same length
+        String words = "a ".repeat(24) + "fn main() { return 0; }";
+        String symbols = "`?".repeat(24) + "fn main() { return 0; }";
+        String mixed = "a ".repeat(12) + "`?".repeat(12) + "fn main() { return 0; }";
+        assertThat(words.hashCode()).isEqualTo(symbols.hashCode()).isEqualTo(mixed.hashCode());
+        assertThat(tokenizer.countUncached(words)).isNotEqualTo(tokenizer.countUncached(symbols));
+
+        for (String text : new String[] {words, symbols, mixed}) {
+            assertThat(tokenizer.countTokens(text)).isEqualTo(tokenizer.countUncached(text));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.NotFoundException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class ChatStreamRegistryTest {
+
+    private final Sinks.Many<byte[]> upstream = Sinks.many().unicast().onBackpressureBuffer();
+    private final AtomicBoolean upstreamCancelled = new AtomicBoolean();
+    private final UUID streamId = UUID.randomUUID();
+    private final UUID userId = UUID.randomUUID();
+
+    private ChatStreamRegistry registry(long detachGraceMs) {
+        return registry(detachGraceMs, 1 << 20);
+    }
+
+    private ChatStreamRegistry registry(long detachGraceMs, long clientBufferBytes) {
+        return new ChatStreamRegistry(new SseFrames(new ObjectMapper()), new SimpleMeterRegistry(),
+                true, 1 << 20, 1 << 24, 60000, detachGraceMs, clientBufferBytes);
+    }
+
+    private Flux<byte[]> open(ChatStreamRegistry registry) {
+        return registry.open(streamId, null, userId, null,
+                () -> upstream.asFlux().doOnCancel(() -> upstreamCancelled.set(true)));
+    }
+
+    @Test
+    void cancelsTheUpstreamAsSoonAsTheLastClientLeavesByDefault() {
+        ChatStreamRegistry registry = registry(0);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        Disposable client = open(registry).subscribe(frame -> received.add(text(frame)));
+
+        upstream.tryEmitNext(event("one"));
+        client.dispose();
+
+        assertThat(received).containsExactly("id:1\ndata:one\n\n");
+        assertThat(upstreamCancelled).isTrue();
+    }
+
+    @Test
+    void keepsGeneratingThroughTheGracePeriodForAReconnect() {
+        ChatStreamRegistry registry = registry(60000);
+        open(registry).subscribe().dispose();
+        upstream.tryEmitNext(event("one"));
+        upstream.tryEmitNext(event("two"));
+
+        List<String> resumed = Collections.synchronizedList(new ArrayList<>());
+        registry.resume(streamId, null, userId, 1).subscribe(frame -> resumed.add(text(frame)));
+        upstream.tryEmitComplete();
+
+        assertThat(upstreamCancelled).isFalse();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> resumed.size() == 1);
+        assertThat(resumed).containsExactly("id:2\ndata:two\n\n");
+    }
+
+    @Test
+    void onlyLetsTheKeyAndUserThatStartedAStreamResumeOrCancelIt() {
+        ChatStreamRegistry registry = registry(60000);
+        UUID apiKeyId = UUID.randomUUID();
+        registry.open(streamId, apiKeyId, userId, null, () -> upstream.asFlux()).subscribe();
+        UUID otherUser = UUID.randomUUID();
+
+        assertThatThrownBy(() -> registry.resume(streamId, apiKeyId, otherUser, 0))
+                .isInstanceOf(NotFoundException.class);
+        assertThatThrownBy(() -> registry.resume(streamId, null, userId, 0))
+                .isInstanceOf(NotFoundException.class);
+        assertThatThrownBy(() -> registry.cancel(streamId, apiKeyId, otherUser))
+                .isInstanceOf(NotFoundException.class);
+        assertThat(registry.resume(streamId, apiKeyId, userId, 0)).isNotNull();
+    }
+
+    @Test
+    void bindsWebUiStreamsToTheirUser() {
+        ChatStreamRegistry registry = registry(60000);
+        open(registry).subscribe();
+
+        assertThatThrownBy(() -> registry.cancel(streamId, null, UUID.randomUUID()))
+                .isInstanceOf(NotFoundException.class);
+        assertThat(upstreamCancelled).isFalse();
+        registry.cancel(streamId, null, userId);
+        assertThat(upstreamCancelled).isTrue();
+    }
+
+    @Test
+    void dropsAClientThatFallsBehindAndLetsItResumeFromTheRing() {
+        // Each frame is "id:N\ndata:eventN\n\n", 18 bytes; the client may hold three
+        ChatStreamRegistry registry = registry(0, 60);
+        List<String> slow = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean slowCompleted = new AtomicBoolean();
+        BaseSubscriber<byte[]> client = new BaseSubscriber<>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+            }
+
+            @Override
+            protected void hookOnNext(byte[] frame) {
+                slow.add(text(frame));
+            }
+
+            @Override
+            protected void hookOnComplete() {
+                slowCompleted.set(true);
+            }
+        };
+        open(registry).subscribe(client);
+
+        for (int i = 1; i <= 5; i++) {
+            upstream.tryEmitNext(event("event" + i));
+        }
+        client.request(Long.MAX_VALUE);
+
+        // It gets what it was already holding, then its response ends; generation goes on
+        assertThat(slow).containsExactly("id:1\ndata:event1\n\n", "id:2\ndata:event2\n\n",
+                "id:3\ndata:event3\n\n");
+        assertThat(slowCompleted).isTrue();
+        assertThat(upstreamCancelled).isFalse();
+
+        List<String> resumed = Collections.synchronizedList(new ArrayList<>());
+        registry.resume(streamId, null, userId, 3).subscribe(frame -> resumed.add(text(frame)));
+        assertThat(resumed).containsExactly("id:4\ndata:event4\n\n", "id:5\ndata:event5\n\n");
+    }
+
+    private static byte[] event(String data) {
+        return ("data:" + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] frame) {
+        return new String(frame, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,81 @@
+package com.claudeplatform.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.SignalType;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ChatTurnFinalizerTest {
+
+    private final CompletionCache completionCache = mock(CompletionCache.class);
+    private final IdempotencyService idempotencyService = mock(IdempotencyService.class);
+    private final UpstreamSessionService upstreamSessionService = mock(UpstreamSessionService.class);
+    private final ChatTurnFinalizer finalizer =
+            new ChatTurnFinalizer(completionCache, idempotencyService, upstreamSessionService);
+    private final SseDeltaParser parser = new SseDeltaParser(new ObjectMapper());
+    private final CompletionCache.Fill fill = mock(CompletionCache.Fill.class);
+
+    @Test
+    void cachesACompletedReply() {
+        StreamAccumulator acc = new StreamAccumulator();
+        parser.parse(SseDeltaParserTest.chunk("Hello"), acc);
+
+        finalizer.finish(SignalType.ON_COMPLETE, turn(acc), (cancelled, succeeded) -> { });
+
+        verify(completionCache).put(eq(fill), eq("Hello"), anyInt());
+    }
+
+    @Test
+    void doesNotCacheA2xxStreamThatEndedInAnErrorFrame() {
+        StreamAccumulator acc = new StreamAccumulator();
+        parser.parse(SseDeltaParserTest.chunk("Hel"), acc);
+        parser.parse("{\"error\":{\"message\":\"Streaming failed\",\"code\":\"stream_error\"}}", acc);
+
+        finalizer.finish(SignalType.ON_COMPLETE, turn(acc), (cancelled, succeeded) -> { });
+
+        verify(completionCache, never()).put(any(), anyString(), anyInt());
+    }
+
+    @Test
+    void doesNotCacheAnEmptyReply() {
+        finalizer.finish(SignalType.ON_COMPLETE, turn(new StreamAccumulator()), (cancelled, succeeded) -> { });
+
+        verify(completionCache, never()).put(any(), anyString(), anyInt());
+    }
+
+    @Test
+    void keepsTheIdempotencyClaimOnlyForAReply() {
+        StreamAccumulator replied = new StreamAccumulator();
+        parser.parse(SseDeltaParserTest.chunk("Hello"), replied);
+        StreamAccumulator failed = new StreamAccumulator();
+        parser.parse("{\"error\":{\"message\":\"Streaming failed\",\"code\":\"stream_error\"}}", failed);
+        IdempotencyService.Claim kept = mock(IdempotencyService.Claim.class);
+        IdempotencyService.Claim released = mock(IdempotencyService.Claim.class);
+
+        finalizer.finish(SignalType.ON_COMPLETE, turn(replied, kept), (cancelled, succeeded) -> { });
+        finalizer.finish(SignalType.ON_COMPLETE, turn(failed, released), (cancelled, succeeded) -> { });
+
+        verify(idempotencyService).complete(kept);
+        verify(idempotencyService).release(released);
+        verify(idempotencyService, never()).complete(released);
+    }
+
+    private ChatTurnFinalizer.Upstream turn(StreamAccumulator acc) {
+        return turn(acc, null);
+    }
+
+    private ChatTurnFinalizer.Upstream turn(StreamAccumulator acc, IdempotencyService.Claim claim) {
+        return new ChatTurnFinalizer.Upstream(UUID.randomUUID(), acc, mock(UpstreamConcurrencyLimiter.Permit.class),
+                new AtomicReference<>(UpstreamConcurrencyLimiter.Outcome.SUCCESS), fill, claim, null);
+    }
+}
@@ -0,0 +1,96 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ConversationSummary;
+import com.claudeplatform.model.entity.Message;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ContextPackerTest {
+
+    private final BpeTokenizer tokenizer = new BpeTokenizer(new SimpleMeterRegistry(), 1024);
+    private final ContextPacker packer = new ContextPacker(tokenizer, new SimpleMeterRegistry(),
+            6000, "haiku=4000,sonnet=8000", 6, 2000, false);
+    private final UUID conversationId = UUID.randomUUID();
+
+    @Test
+    void sendsALoneMessageAsItIsEvenOverBudget() {
+        String message = words("question", 400);
+
+        ContextPacker.PackedContext packed = packer.packAlone(message, 100);
+
+        assertThat(packed.prompt()).isEqualTo(message);
+        assertThat(packed.truncated()).isFalse();
+        assertThat(packed.tokens()).isGreaterThan(100);
+    }
+
+    @Test
+    void dropsContextRatherThanCuttingTheCurrentMessage() {
+        String message = words("question", 400);
+
+        ContextPacker.PackedContext packed = packer.pack(summary("earlier we talked"), history(4), message, 200);
+
+        assertThat(packed.prompt()).endsWith("[CURRENT MESSAGE]\n" + message);
+        assertThat(packed.prompt()).doesNotContain("earlier we talked", "[RECENT MESSAGES]");
+        assertThat(packed.historyMessages()).isZero();
+        assertThat(packed.truncated()).isTrue();
+    }
+
+    @Test
+    void spendsWhatIsLeftOnTheSummaryThenTheNewestTurns() {
+        List<Message> history = history(6);
+
+        ContextPacker.PackedContext all = packer.pack(summary("earlier we talked"), history, "next?", 6000);
+        ContextPacker.PackedContext tight = packer.pack(summary("earlier we talked"), history, "next?", 150);
+
+        assertThat(all.prompt()).contains("earlier we talked", "message 1 ", "message 6 ");
+        assertThat(all.historyMessages()).isEqualTo(6);
+        assertThat(all.truncated()).isFalse();
+        assertThat(tight.prompt()).contains("earlier we talked", "message 6 ").doesNotContain("message 1 ");
+        assertThat(tight.prompt()).endsWith("[CURRENT MESSAGE]\nnext?");
+        assertThat(tight.tokens()).isLessThanOrEqualTo(150);
+        assertThat(tight.truncated()).isTrue();
+    }
+
+    @Test
+    void rejectsAMessageTooLargeForTheModel() {
+        packer.checkMessage(words("word", 100));
+
+        assertThatThrownBy(() -> packer.checkMessage(words("word", 5000)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("at most 2000");
+    }
+
+    @Test
+    void picksTheBudgetByModelAndOnlyLetsCallersLowerIt() {
+        assertThat(packer.budgetFor("claude-haiku-4", null)).isEqualTo(4000);
+        assertThat(packer.budgetFor("claude-sonnet-4", 20000)).isEqualTo(8000);
+        assertThat(packer.budgetFor("claude-sonnet-4", 1000)).isEqualTo(1000);
+        assertThat(packer.budgetFor("unknown", null)).isEqualTo(6000);
+    }
+
+    private ConversationSummary summary(String text) {
+        return ConversationSummary.builder().conversationId(conversationId).summaryText(text)
+                .coveredUntilSeq(0L).coveredTokenCount(10).summaryVersion(1).build();
+    }
+
+    private List<Message> history(int count) {
+        List<Message> messages = new ArrayList<>();
+        for (int seq = 1; seq <= count; seq++) {
+            messages.add(Message.builder().conversationId(conversationId).seq((long) seq)
+                    .role(seq % 2 == 1 ? "user" : "assistant")
+                    .content("message " + seq + " " + words("detail", 30)).build());
+        }
+        return messages;
+    }
+
+    private static String words(String word, int count) {
+        return (word + " ").repeat(count).trim();
+    }
+}
@@ -0,0 +1,104 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.ConversationSummary;
+import com.claudeplatform.model.entity.Message;
+import com.claudeplatform.repository.ConversationSummaryRepository;
+import com.claudeplatform.repository.MessageRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Limit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ConversationContextCacheTest {
+
+    private final ConversationSummaryRepository summaryRepository = mock(ConversationSummaryRepository.class);
+    private final MessageRepository messageRepository = mock(MessageRepository.class);
+    private final ConversationContextCache cache = new ConversationContextCache(summaryRepository,
+            messageRepository, mock(WriteBehindService.class), new SimpleMeterRegistry(),
+            16, 6, 100, 1 << 20, 600000);
+    private final UUID conversationId = UUID.randomUUID();
+    // Rows "in the database", oldest first
+    private final List<Message> rows = new ArrayList<>();
+
+    ConversationContextCacheTest() {
+        when(summaryRepository.findTopByConversationIdAndStatusOrderBySummaryVersionDesc(any(), anyString()))
+                .thenReturn(Optional.empty());
+        when(messageRepository.findByConversationIdAndSeqGreaterThanOrderBySeqDesc(eq(conversationId), anyLong(),
+                any(Limit.class))).thenAnswer(invocation -> tail());
+        when(messageRepository.sumTokenCountAfterSeq(eq(conversationId), anyLong()))
+                .thenAnswer(invocation -> rows.stream().mapToInt(Message::getTokenCount).sum());
+    }
+
+    @Test
+    void servesWarmConversationsFromMemoryAndAppliesNewMessages() {
+        rows.add(message(1));
+        cache.get(conversationId);
+
+        cache.onMessage(message(2));
+        ConversationContextCache.Snapshot snapshot = cache.get(conversationId);
+
+        assertThat(snapshot.recentMessages()).extracting(Message::getSeq).containsExactly(1L, 2L);
+        assertThat(snapshot.unsummarizedTokens()).isEqualTo(20);
+        verify(messageRepository, times(1)).findByConversationIdAndSeqGreaterThanOrderBySeqDesc(
+                eq(conversationId), anyLong(), any(Limit.class));
+    }
+
+    @Test
+    void doesNotCacheALoadThatAMessageRacedWith() {
+        rows.add(message(1));
+        Message raced = message(2);
+        // The message is queued after the tail was read but before the load is cached
+        when(messageRepository.sumTokenCountAfterSeq(eq(conversationId), anyLong())).thenAnswer(invocation -> {
+            cache.onMessage(raced);
+            rows.add(raced);
+            return 10;
+        }).thenAnswer(invocation -> rows.stream().mapToInt(Message::getTokenCount).sum());
+
+        ConversationContextCache.Snapshot first = cache.get(conversationId);
+        ConversationContextCache.Snapshot second = cache.get(conversationId);
+
+        assertThat(first.recentMessages()).extracting(Message::getSeq).containsExactly(1L);
+        assertThat(second.recentMessages()).extracting(Message::getSeq).containsExactly(1L, 2L);
+        assertThat(second.unsummarizedTokens()).isEqualTo(20);
+    }
+
+    @Test
+    void doesNotCacheALoadThatASummaryRacedWith() {
+        rows.add(message(1));
+        long stamp = cache.writeStamp();
+        cache.onSummary(ConversationSummary.builder().conversationId(conversationId).summaryText("s")
+                .coveredUntilSeq(1L).coveredTokenCount(10).summaryVersion(1).build());
+
+        cache.fill(conversationId, stamp, null, rows, 10);
+
+        assertThat(cache.getIfCached(conversationId)).isNull();
+        cache.fill(conversationId, cache.writeStamp(), null, rows, 10);
+        assertThat(cache.getIfCached(conversationId)).isNotNull();
+    }
+
+    private List<Message> tail() {
+        List<Message> newestFirst = new ArrayList<>(rows);
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    private Message message(long seq) {
+        return Message.builder().id(UUID.randomUUID()).conversationId(conversationId).seq(seq)
+                .role("user").content("message " + seq).tokenCount(10).build();
+    }
+}
@@ -0,0 +1,148 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ConflictException;
+import com.claudeplatform.model.dto.ChatRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IdempotencyServiceTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final ChatStreamRegistry chatStreamRegistry = mock(ChatStreamRegistry.class);
+    private final IdempotencyService service = new IdempotencyService(jdbcTemplate, new ObjectMapper(),
+            chatStreamRegistry, mock(SseCoalescer.class), Schedulers.immediate(), new SimpleMeterRegistry(), 100);
+    private final UUID apiKeyId = UUID.randomUUID();
+
+    IdempotencyServiceTest() {
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "retentionMs", 60000L);
+        ReflectionTestUtils.setField(service, "inProgressTtlMs", 60000L);
+        ReflectionTestUtils.setField(service, "maxResponseBytes", 16);
+        when(chatStreamRegistry.isEnabled()).thenReturn(true);
+        when(jdbcTemplate.update(startsWith("INSERT INTO chat_idempotency_keys"), any(Object[].class))).thenReturn(1);
+    }
+
+    @Test
+    void startsTheFirstRequestAndAttachesLocalRetriesToItsStream() {
+        IdempotencyService.Claim first = service.claim(apiKeyId, "key-1", request("hello"));
+        IdempotencyService.Claim retry = service.claim(apiKeyId, "key-1", request("hello"));
+
+        assertThat(first.isStarted()).isTrue();
+        assertThat(retry.isStarted()).isFalse();
+        assertThat(retry.streamId()).isEqualTo(first.streamId());
+        assertThat(retry.response()).isNull();
+    }
+
+    @Test
+    void refusesTheSameKeyForADifferentRequest() {
+        service.claim(apiKeyId, "key-1", request("hello"));
+
+        assertThatThrownBy(() -> service.claim(apiKeyId, "key-1", request("something else")))
+                .isInstanceOf(ConflictException.class)
+                .hasMessageContaining("different request");
+    }
+
+    @Test
+    void storesTheCapturedResponseOnceAndIgnoresALaterRelease() {
+        IdempotencyService.Claim claim = service.claim(apiKeyId, "key-1", request("hello"));
+        claim.capture(bytes("data:a\n\n"));
+        claim.capture(bytes("data:b\n\n"));
+
+        service.complete(claim);
+        service.release(claim);
+
+        verify(jdbcTemplate).update(startsWith("UPDATE chat_idempotency_keys SET status = 'COMPLETED'"),
+                eq(bytes("data:a\n\ndata:b\n\n")), eq(60000L), any(), eq("key-1"), eq(claim.streamId()));
+        verify(jdbcTemplate, never()).update(startsWith("DELETE"), any(Object[].class));
+    }
+
+    @Test
+    void keepsNoResponseThatOutgrewTheLimit() {
+        IdempotencyService.Claim claim = service.claim(apiKeyId, "key-1", request("hello"));
+        claim.capture(bytes("data:a\n\n"));
+        claim.capture(bytes("data:0123456789\n\n"));
+        claim.capture(bytes("data:b\n\n"));
+
+        service.complete(claim);
+
+        verify(jdbcTemplate).update(startsWith("UPDATE chat_idempotency_keys SET status = 'COMPLETED'"),
+                isNull(), eq(60000L), any(), eq("key-1"), eq(claim.streamId()));
+    }
+
+    @Test
+    void replaysACompletedKeyFromTheTable() {
+        long requestHash = service.claim(UUID.randomUUID(), "probe", request("hello")).requestHash();
+        when(jdbcTemplate.update(startsWith("INSERT INTO chat_idempotency_keys"), any(Object[].class))).thenReturn(0);
+        UUID streamId = UUID.randomUUID();
+        byte[] response = bytes("data:done\n\n");
+        findReturns(requestHash, "COMPLETED", "other-instance", streamId, response);
+
+        IdempotencyService.Claim claim = service.claim(apiKeyId, "key-1", request("hello"));
+
+        assertThat(claim.isStarted()).isFalse();
+        assertThat(claim.response()).isEqualTo(response);
+        assertThat(service.replay(claim, apiKeyId, null).blockFirst()).isEqualTo(response);
+    }
+
+    @Test
+    void refusesAKeyRunningOnAnotherInstance() {
+        long requestHash = service.claim(UUID.randomUUID(), "probe", request("hello")).requestHash();
+        when(jdbcTemplate.update(startsWith("INSERT INTO chat_idempotency_keys"), any(Object[].class))).thenReturn(0);
+        findReturns(requestHash, "IN_PROGRESS", "other-instance", UUID.randomUUID(), null);
+
+        assertThatThrownBy(() -> service.claim(apiKeyId, "key-1", request("hello")))
+                .isInstanceOf(ConflictException.class)
+                .hasMessageContaining("still in progress");
+    }
+
+    // Another request holds the key: the expired-row UPDATE misses too and the claim reads this row
+    @SuppressWarnings("unchecked")
+    private void findReturns(long requestHash, String status, String owner, UUID streamId, byte[] response) {
+        when(jdbcTemplate.update(startsWith("UPDATE chat_idempotency_keys SET request_hash"), any(Object[].class)))
+                .thenReturn(0);
+        when(jdbcTemplate.query(startsWith("SELECT"), any(RowMapper.class), any(Object[].class)))
+                .thenAnswer(invocation -> {
+                    ResultSet rs = mock(ResultSet.class);
+                    when(rs.getLong(1)).thenReturn(requestHash);
+                    when(rs.getString(2)).thenReturn(status);
+                    when(rs.getString(3)).thenReturn(owner);
+                    when(rs.getObject(4, UUID.class)).thenReturn(streamId);
+                    when(rs.getBytes(5)).thenReturn(response);
+                    when(rs.getTimestamp(6)).thenReturn(new Timestamp(System.currentTimeMillis() + 60000));
+                    RowMapper<Object> mapper = invocation.getArgument(1);
+                    return List.of(mapper.mapRow(rs, 0));
+                });
+    }
+
+    private static ChatRequest request(String message) {
+        ChatRequest request = new ChatRequest();
+        request.setMessage(message);
+        return request;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.model.entity.AppSetting;
+import com.claudeplatform.repository.ApiKeyRepository;
+import com.claudeplatform.repository.AppSettingRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RateLimitServiceTest {
+
+    private final ApiKeyRepository apiKeyRepository = mock(ApiKeyRepository.class);
+    private final AppSettingRepository appSettingRepository = mock(AppSettingRepository.class);
+    private final RateLimitService service = new RateLimitService(apiKeyRepository, appSettingRepository);
+
+    @BeforeEach
+    void setUp() {
+        when(apiKeyRepository.findActiveWithRateLimits()).thenReturn(List.of());
+        when(appSettingRepository.findBySettingKeyStartingWith(anyString())).thenReturn(List.of());
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "keyRequestsPerMinute", 600L);
+        ReflectionTestUtils.setField(service, "keyTokensPerMinute", 0L);
+        ReflectionTestUtils.setField(service, "userRequestsPerMinute", 0L);
+        ReflectionTestUtils.setField(service, "userTokensPerMinute", 0L);
+        ReflectionTestUtils.setField(service, "burstSeconds", 6L);
+        service.init();
+    }
+
+    @Test
+    void reloadKeepsWhatWasConsumed() {
+        UUID key = UUID.randomUUID();
+        UUID user = UUID.randomUUID();
+        // 600/min with a 6 s burst: 60 requests, then one per 100 ms
+        for (int i = 0; i < 60; i++) {
+            assertThat(service.tryAcquire(key, user).allowed()).isTrue();
+        }
+
+        service.reload();
+
+        RateLimitService.Decision refused = service.tryAcquire(key, user);
+        assertThat(refused.allowed()).isFalse();
+        assertThat(refused.retryAfterSeconds()).isEqualTo(1);
+    }
+
+    @Test
+    void reloadAppliesNewLimitsToExistingBuckets() {
+        UUID key = UUID.randomUUID();
+        UUID user = UUID.randomUUID();
+        for (int i = 0; i < 60; i++) {
+            service.tryAcquire(key, user);
+        }
+        assertThat(service.tryAcquire(key, user).allowed()).isFalse();
+
+        when(appSettingRepository.findBySettingKeyStartingWith(anyString())).thenReturn(List.of(
+                AppSetting.builder().settingKey("rate_limit.key_rpm").settingValue("1200").build(),
+                AppSetting.builder().settingKey("rate_limit.burst_seconds").settingValue("12").build()));
+        service.reload();
+
+        RateLimitService.Decision decision = service.tryAcquire(key, user);
+        assertThat(decision.allowed()).isTrue();
+        assertThat(decision.requestLimit()).isEqualTo(1200);
+    }
+
+    @Test
+    void concurrentReloadsNeverHandOutAFreshBucket() throws InterruptedException {
+        UUID key = UUID.randomUUID();
+        UUID user = UUID.randomUUID();
+        AtomicInteger admitted = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                while (running.get()) {
+                    if (service.tryAcquire(key, user).allowed()) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            await(start);
+            while (running.get()) {
+                service.reload();
+            }
+        }));
+        threads.forEach(Thread::start);
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(300);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+
+        // The burst plus one request per 100 ms of refill, nothing more
+        assertThat(admitted.get()).isBetween(60, 60 + (int) (elapsedMs / 100) + 1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
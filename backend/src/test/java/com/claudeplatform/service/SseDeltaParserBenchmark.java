@@ -0,0 +1,72 @@
+package com.claudeplatform.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-chunk cost of reading a stream delta: the former tree path (a new ObjectMapper and
+ * JsonNode tree per chunk, and the same with a shared mapper) against {@link SseDeltaParser} on
+ * the decoded String and on the raw bytes. Run with {@code -prof gc} to compare allocation:
+ * <pre>
+ *   backend/scripts/run_benchmarks.sh SseDeltaParserBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseDeltaParserBenchmark {
+
+    private final ObjectMapper sharedMapper = new ObjectMapper();
+    private final SseDeltaParser parser = new SseDeltaParser(sharedMapper);
+
+    private String chunk;
+    private byte[] chunkBytes;
+
+    @Setup
+    public void setUp() {
+        chunk = SseDeltaParserTest.chunk("Here is the next part of the answer, with \\\"quotes\\\" and a newline\\n");
+        chunkBytes = chunk.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String treeWithNewMapper() throws Exception {
+        JsonNode root = new ObjectMapper().readTree(chunk);
+        return root.path("choices").path(0).path("delta").path("content").asText(null);
+    }
+
+    @Benchmark
+    public String treeWithSharedMapper() throws Exception {
+        JsonNode root = sharedMapper.readTree(chunk);
+        return root.path("choices").path(0).path("delta").path("content").asText(null);
+    }
+
+    @Benchmark
+    public StreamAccumulator streamingFromString() {
+        StreamAccumulator acc = new StreamAccumulator();
+        parser.parse(chunk, acc);
+        return acc;
+    }
+
+    @Benchmark
+    public StreamAccumulator streamingFromBytes() {
+        StreamAccumulator acc = new StreamAccumulator();
+        parser.parse(chunkBytes, 0, chunkBytes.length, acc);
+        return acc;
+    }
+}
@@ -0,0 +1,118 @@
+package com.claudeplatform.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SseDeltaParserTest {
+
+    private final SseDeltaParser parser = new SseDeltaParser(new ObjectMapper());
+
+    @Test
+    void accumulatesContentSplitAcrossChunks() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        assertThat(parser.parse(chunk("Hel"), acc)).isTrue();
+        assertThat(parser.parse(chunk("lo, "), acc)).isTrue();
+        assertThat(parser.parse(chunk("world"), acc)).isTrue();
+
+        assertThat(acc.contentAsString()).isEqualTo("Hello, world");
+    }
+
+    @Test
+    void decodesEscapedContent() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        parser.parse(chunk("line \\\"one\\\"\\n\\ttab \\\\ caf\\u00e9 \\ud83d\\ude00"), acc);
+
+        assertThat(acc.contentAsString()).isEqualTo("line \"one\"\n\ttab \\ café 😀");
+    }
+
+    @Test
+    void readsFinishReasonAndUsage() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        parser.parse("{\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"stop\"}],"
+                + "\"usage\":{\"prompt_tokens\":12,\"completion_tokens\":34,"
+                + "\"prompt_tokens_details\":{\"cached_tokens\":8}}}", acc);
+
+        assertThat(acc.getFinishReason()).isEqualTo("stop");
+        assertThat(acc.isUsageReported()).isTrue();
+        assertThat(acc.getPromptTokens()).isEqualTo(12);
+        assertThat(acc.getCompletionTokens()).isEqualTo(34);
+        assertThat(acc.getCacheReadTokens()).isEqualTo(8);
+    }
+
+    @Test
+    void notesAnInBandErrorFrame() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        parser.parse(chunk("partial"), acc);
+        assertThat(acc.isErrorReported()).isFalse();
+        parser.parse("{\"error\":{\"message\":\"Streaming failed\",\"type\":\"api_error\","
+                + "\"code\":\"stream_error\"}}", acc);
+
+        assertThat(acc.isErrorReported()).isTrue();
+        assertThat(acc.contentAsString()).isEqualTo("partial");
+    }
+
+    @Test
+    void readsOnlyTheFirstChoice() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        parser.parse("{\"choices\":[{\"delta\":{\"content\":\"a\"}},{\"delta\":{\"content\":\"b\"}}]}", acc);
+
+        assertThat(acc.contentAsString()).isEqualTo("a");
+    }
+
+    @Test
+    void skipsDoneBlankAndInvalidPayloads() {
+        StreamAccumulator acc = new StreamAccumulator();
+
+        assertThat(parser.parse("[DONE]", acc)).isFalse();
+        assertThat(parser.parse("  ", acc)).isFalse();
+        assertThat(parser.parse("{\"choices\":[{\"delta\":{\"content\":\"cut", acc)).isFalse();
+        byte[] done = "data: [DONE]".getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.parse(done, 6, done.length - 6, acc)).isFalse();
+    }
+
+    @Test
+    void parsesFromAByteSlice() {
+        StreamAccumulator acc = new StreamAccumulator();
+        byte[] line = ("data: " + chunk("slice é")).getBytes(StandardCharsets.UTF_8);
+
+        assertThat(parser.parse(line, 6, line.length - 6, acc)).isTrue();
+
+        assertThat(acc.contentAsString()).isEqualTo("slice é");
+    }
+
+    @Test
+    void scannerJoinsLinesSplitAcrossNetworkChunks() {
+        StreamAccumulator acc = new StreamAccumulator();
+        SseLineScanner scanner = new SseLineScanner(parser, acc);
+        byte[] stream = ("data: " + chunk("caf\\u00e9 ") + "\r\n\r\n"
+                + "data: " + chunk("naïve \\\"q\\\"") + "\n\n"
+                + "data: [DONE]\n\n").getBytes(StandardCharsets.UTF_8);
+
+        // Split every few bytes, including inside the multi-byte "ï" and the escapes
+        for (int i = 0; i < stream.length; i += 3) {
+            byte[] piece = new byte[Math.min(3, stream.length - i)];
+            System.arraycopy(stream, i, piece, 0, piece.length);
+            scanner.feed(piece);
+        }
+
+        assertThat(acc.contentAsString()).isEqualTo("café naïve \"q\"");
+    }
+
+    /**
+     * A stream chunk whose delta content is {@code content}, already JSON-escaped.
+     */
+    static String chunk(String content) {
+        return "{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1700000000,"
+                + "\"model\":\"claude-sonnet-4\",\"choices\":[{\"index\":0,\"delta\":{\"content\":\""
+                + content + "\"},\"finish_reason\":null}]}";
+    }
+}
@@ -0,0 +1,64 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class SummarizationJobServiceTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final ContextManagementService contextManagementService = mock(ContextManagementService.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SummarizationJobService service =
+            new SummarizationJobService(jdbcTemplate, contextManagementService, meterRegistry);
+
+    @Test
+    void aHeartbeatAfterTheSummaryCommittedDoesNotCountALostLease() throws Exception {
+        ReflectionTestUtils.setField(service, "workers", 1);
+        ReflectionTestUtils.setField(service, "leaseMs", 300000L);
+        claimOneJob();
+        when(jdbcTemplate.update(startsWith("DELETE FROM summarization_jobs"), any(Object[].class))).thenReturn(1);
+        // The job row is gone, so a renewal matches nothing
+        when(jdbcTemplate.update(startsWith("UPDATE summarization_jobs SET lease_expires_at"), any(Object[].class)))
+                .thenReturn(0);
+        // The summary transaction commits, then a heartbeat runs before the pipeline completes
+        when(contextManagementService.summarize(any(UUID.class), any(Runnable.class)))
+                .thenAnswer(invocation -> Mono.fromRunnable(() -> {
+                    invocation.<Runnable>getArgument(1).run();
+                    service.renewLeases();
+                }));
+
+        service.poll();
+
+        assertThat(meterRegistry.get("summarization.jobs.lease.lost").counter().count()).isZero();
+        assertThat(meterRegistry.get("summarization.jobs.running").gauge().value()).isZero();
+        assertThat(meterRegistry.get("summarization.job.duration").tag("outcome", "success").timer().count())
+                .isEqualTo(1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void claimOneJob() throws Exception {
+        ResultSet row = mock(ResultSet.class);
+        when(row.getObject("id", UUID.class)).thenReturn(UUID.randomUUID());
+        when(row.getObject("conversation_id", UUID.class)).thenReturn(UUID.randomUUID());
+        when(row.getInt("attempts")).thenReturn(1);
+        when(row.getTimestamp("run_after")).thenReturn(new Timestamp(System.currentTimeMillis()));
+        when(jdbcTemplate.query(startsWith("UPDATE summarization_jobs SET status = 'RUNNING'"), any(RowMapper.class),
+                any(Object[].class)))
+                .thenAnswer(invocation -> List.of(invocation.<RowMapper<Object>>getArgument(1).mapRow(row, 0)));
+    }
+}
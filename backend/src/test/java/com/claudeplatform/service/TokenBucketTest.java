@@ -0,0 +1,75 @@
+package com.claudeplatform.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void admitsTheBurstThenRefusesWithTheWaitUntilRefill() {
+        TokenBucket bucket = new TokenBucket();
+
+        // 60/min with a 10 s burst holds 10 units, refilled one per second
+        for (int i = 0; i < 10; i++) {
+            assertThat(bucket.tryConsume(1, 60, 10)).isZero();
+        }
+        long wait = bucket.tryConsume(1, 60, 10);
+
+        assertThat(wait).isPositive().isLessThanOrEqualTo(SECOND);
+        assertThat(bucket.remaining(60, 10)).isZero();
+    }
+
+    @Test
+    void refillsOverTime() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket();
+        // 6000/min: one unit per 10 ms, burst of one
+        assertThat(bucket.tryConsume(1, 6000, 0)).isZero();
+        assertThat(bucket.tryConsume(1, 6000, 0)).isPositive();
+
+        Thread.sleep(20);
+
+        assertThat(bucket.tryConsume(1, 6000, 0)).isZero();
+    }
+
+    @Test
+    void debtFromChargedUnitsBlocksUntilPaidOff() {
+        TokenBucket bucket = new TokenBucket();
+        assertThat(bucket.waitNanos(60, 10)).isZero();
+
+        bucket.consume(15, 60);
+
+        // 15 units charged against a 10-unit burst: about 6 s until one unit fits again
+        assertThat(bucket.waitNanos(60, 10)).isBetween(5 * SECOND, 6 * SECOND);
+        assertThat(bucket.nanosUntilFull()).isBetween(14 * SECOND, 15 * SECOND);
+    }
+
+    @Test
+    void refundGivesUnitsBack() {
+        TokenBucket bucket = new TokenBucket();
+        bucket.tryConsume(1, 60, 2);
+        bucket.tryConsume(1, 60, 2);
+        assertThat(bucket.tryConsume(1, 60, 2)).isPositive();
+
+        bucket.refund(1, 60);
+
+        assertThat(bucket.tryConsume(1, 60, 2)).isZero();
+    }
+
+    @Test
+    void newLimitsApplyToTheExistingBucket() {
+        TokenBucket bucket = new TokenBucket();
+        for (int i = 0; i < 5; i++) {
+            bucket.tryConsume(1, 60, 5);
+        }
+        assertThat(bucket.tryConsume(1, 60, 5)).isPositive();
+
+        // The bucket keeps its 5 s of use; a longer burst window makes room under the new limit
+        assertThat(bucket.tryConsume(1, 600, 10)).isZero();
+        assertThat(bucket.remaining(600, 10)).isBetween(45L, 50L);
+    }
+}
@@ -0,0 +1,148 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.ExchangeFunction;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class UpstreamCircuitBreakerTest {
+
+    private final ClientRequest request = ClientRequest.create(HttpMethod.GET, URI.create("http://upstream/chat")).build();
+    private final AtomicInteger exchanges = new AtomicInteger();
+
+    private UpstreamCircuitBreaker breaker(boolean untilFirstChunk, long slowCallMs, long openMs, int halfOpenCalls) {
+        return new UpstreamCircuitBreaker("test", new SimpleMeterRegistry(), true, untilFirstChunk,
+                10, 4, 0.5, 0.5, slowCallMs, openMs, halfOpenCalls);
+    }
+
+    @Test
+    void opensOnceEnoughOfTheLastCallsFailedAndThenRefusesWithoutCalling() {
+        UpstreamCircuitBreaker breaker = breaker(false, 10000, 60000, 1);
+
+        call(breaker, HttpStatus.INTERNAL_SERVER_ERROR);
+        call(breaker, HttpStatus.INTERNAL_SERVER_ERROR);
+        call(breaker, HttpStatus.OK);
+        // Two of three failed, but fewer than minimum-calls are in
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.CLOSED);
+        call(breaker, HttpStatus.OK);
+
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.OPEN);
+        assertThatThrownBy(() -> call(breaker, HttpStatus.OK))
+                .isInstanceOf(ServiceOverloadedException.class)
+                .satisfies(e -> assertThat(((ServiceOverloadedException) e).getRetryAfterSeconds()).isPositive());
+        assertThat(exchanges).hasValue(4);
+    }
+
+    @Test
+    void closesAfterTheTrialCallsSucceedAndReopensOnAFailedOne() {
+        UpstreamCircuitBreaker breaker = breaker(false, 10000, 0, 2);
+        open(breaker);
+
+        call(breaker, HttpStatus.OK);
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.HALF_OPEN);
+        call(breaker, HttpStatus.OK);
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.CLOSED);
+
+        open(breaker);
+        call(breaker, HttpStatus.BAD_GATEWAY);
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void admitsOnlyHalfOpenCallsTrialsAndFreesTheSlotOfACancelledOne() {
+        UpstreamCircuitBreaker breaker = breaker(false, 10000, 0, 1);
+        open(breaker);
+
+        Disposable trial = breaker.filter(request, r -> Mono.never()).subscribe();
+        assertThatThrownBy(() -> call(breaker, HttpStatus.OK)).isInstanceOf(ServiceOverloadedException.class);
+        trial.dispose();
+        call(breaker, HttpStatus.OK);
+
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void countsACallAsSlowAsSoonAsItsTimeRunsOut() {
+        UpstreamCircuitBreaker breaker = breaker(false, 50, 60000, 1);
+
+        for (int i = 0; i < 4; i++) {
+            breaker.filter(request, r -> Mono.never()).subscribe();
+        }
+
+        await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> breaker.state() == UpstreamCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    void waitsForTheFirstChunkOnAStreamingClient() {
+        UpstreamCircuitBreaker answering = breaker(true, 50, 60000, 1);
+        UpstreamCircuitBreaker hanging = breaker(true, 50, 60000, 1);
+
+        for (int i = 0; i < 4; i++) {
+            answering.filter(request, r -> Mono.just(ClientResponse.create(HttpStatus.OK).body("data:x\n\n").build()))
+                    .flatMapMany(response -> response.bodyToFlux(String.class))
+                    .blockLast();
+            // Headers arrive, then nothing
+            hanging.filter(request, r -> Mono.just(ClientResponse.create(HttpStatus.OK).body(Flux.never()).build()))
+                    .flatMapMany(response -> response.bodyToFlux(String.class))
+                    .subscribe();
+        }
+
+        await().atMost(5, TimeUnit.SECONDS)
+                .until(() -> hanging.state() == UpstreamCircuitBreaker.State.OPEN);
+        assertThat(answering.state()).isEqualTo(UpstreamCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void ignoresALocalConnectionPoolThatIsFull() {
+        UpstreamCircuitBreaker breaker = breaker(false, 10000, 60000, 1);
+
+        for (int i = 0; i < 4; i++) {
+            fail(breaker, new PoolAcquirePendingLimitException());
+        }
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.CLOSED);
+
+        for (int i = 0; i < 4; i++) {
+            fail(breaker, new IOException("Connection refused"));
+        }
+        assertThat(breaker.state()).isEqualTo(UpstreamCircuitBreaker.State.OPEN);
+    }
+
+    private void open(UpstreamCircuitBreaker breaker) {
+        while (breaker.state() != UpstreamCircuitBreaker.State.OPEN) {
+            call(breaker, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void call(UpstreamCircuitBreaker breaker, HttpStatus status) {
+        ExchangeFunction next = r -> {
+            exchanges.incrementAndGet();
+            return Mono.just(ClientResponse.create(status).build());
+        };
+        breaker.filter(request, next).block();
+    }
+
+    private void fail(UpstreamCircuitBreaker breaker, Throwable error) {
+        breaker.filter(request, r -> Mono.error(error)).onErrorResume(e -> Mono.empty()).block();
+    }
+
+    // Matched by simple name, like Reactor Netty's shaded reactor-pool exception
+    private static final class PoolAcquirePendingLimitException extends RuntimeException {
+    }
+}
@@ -0,0 +1,169 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import com.claudeplatform.service.UpstreamConcurrencyLimiter.Outcome;
+import com.claudeplatform.service.UpstreamConcurrencyLimiter.Permit;
+import com.claudeplatform.service.UpstreamConcurrencyLimiter.Priority;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class UpstreamConcurrencyLimiterTest {
+
+    private static UpstreamConcurrencyLimiter limiter(int initial, int min, int max, int maxQueue,
+                                                      long queueTimeoutMs, double apiCap, double backgroundCap) {
+        return new UpstreamConcurrencyLimiter(new SimpleMeterRegistry(), initial, min, max, maxQueue,
+                queueTimeoutMs, 8000, 0.5, 0, 5, queueTimeoutMs, 60000, 1, 6, 3, 1, 1.0, apiCap, backgroundCap);
+    }
+
+    private static UpstreamConcurrencyLimiter fixed(int limit) {
+        return limiter(limit, limit, limit, 64, 60000, 1.0, 1.0);
+    }
+
+    @Test
+    void queuesPastTheLimitAndHandsFreedSlotsOver() {
+        UpstreamConcurrencyLimiter limiter = fixed(2);
+        Permit first = limiter.acquire(Priority.INTERACTIVE);
+        limiter.acquire(Priority.INTERACTIVE);
+
+        CompletableFuture<Permit> waiting = limiter.acquireAsync(Priority.INTERACTIVE);
+        assertThat(waiting).isNotDone();
+        assertThat(limiter.queued()).isEqualTo(1);
+
+        first.release(Outcome.IGNORED);
+
+        assertThat(waiting).isCompleted();
+        assertThat(limiter.inFlight()).isEqualTo(2);
+        assertThat(limiter.queued()).isZero();
+    }
+
+    @Test
+    void releasingTwiceFreesOneSlot() {
+        UpstreamConcurrencyLimiter limiter = fixed(2);
+        Permit permit = limiter.acquire(Priority.API);
+        limiter.acquire(Priority.API);
+
+        permit.release(Outcome.SUCCESS);
+        permit.release(Outcome.SUCCESS);
+
+        assertThat(limiter.inFlight()).isEqualTo(1);
+        assertThat(limiter.inFlight(Priority.API)).isEqualTo(1);
+    }
+
+    @Test
+    void shedsWhenTheQueueIsFull() {
+        UpstreamConcurrencyLimiter limiter = limiter(1, 1, 1, 1, 60000, 1.0, 1.0);
+        limiter.acquire(Priority.INTERACTIVE);
+        limiter.acquireAsync(Priority.INTERACTIVE);
+
+        assertThatThrownBy(() -> limiter.acquire(Priority.INTERACTIVE))
+                .isInstanceOf(ServiceOverloadedException.class);
+    }
+
+    @Test
+    void shedsWaitersPastTheirDeadline() {
+        UpstreamConcurrencyLimiter limiter = limiter(1, 1, 1, 8, 50, 1.0, 1.0);
+        limiter.acquire(Priority.INTERACTIVE);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> limiter.acquire(Priority.INTERACTIVE))
+                .isInstanceOf(ServiceOverloadedException.class)
+                .satisfies(e -> assertThat(((ServiceOverloadedException) e).getRetryAfterSeconds()).isEqualTo(5));
+
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(50);
+        assertThat(limiter.queued()).isZero();
+        assertThat(limiter.inFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void backsOffMultiplicativelyAndGrowsAdditively() {
+        UpstreamConcurrencyLimiter limiter = limiter(8, 2, 10, 64, 60000, 1.0, 1.0);
+
+        limiter.acquire(Priority.INTERACTIVE).release(Outcome.FAILURE);
+        assertThat(limiter.currentLimit()).isEqualTo(4);
+        limiter.acquire(Priority.INTERACTIVE).release(Outcome.FAILURE);
+        limiter.acquire(Priority.INTERACTIVE).release(Outcome.FAILURE);
+        assertThat(limiter.currentLimit()).isEqualTo(2);
+
+        // Growth only counts calls made while the limit was the bottleneck
+        limiter.acquire(Priority.INTERACTIVE).release(Outcome.SUCCESS);
+        assertThat(limiter.currentLimit()).isEqualTo(2);
+        for (int i = 0; i < 4; i++) {
+            Permit a = limiter.acquire(Priority.INTERACTIVE);
+            Permit b = limiter.acquire(Priority.INTERACTIVE);
+            a.release(Outcome.SUCCESS);
+            b.release(Outcome.IGNORED);
+        }
+        assertThat(limiter.currentLimit()).isEqualTo(3);
+    }
+
+    @Test
+    void sharesFreedSlotsByWeight() {
+        UpstreamConcurrencyLimiter limiter = fixed(1);
+        Permit running = limiter.acquire(Priority.INTERACTIVE);
+        List<Priority> grants = Collections.synchronizedList(new ArrayList<>());
+        List<Permit> granted = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 20; i++) {
+            for (Priority priority : List.of(Priority.INTERACTIVE, Priority.API)) {
+                limiter.acquireAsync(priority).thenAccept(permit -> {
+                    grants.add(priority);
+                    granted.add(permit);
+                });
+            }
+        }
+
+        // Each release admits exactly one waiter, which is released in turn
+        running.release(Outcome.IGNORED);
+        for (int i = 0; i < 17; i++) {
+            granted.get(i).release(Outcome.IGNORED);
+        }
+
+        // Weights 6:3
+        assertThat(grants).hasSize(18);
+        assertThat(grants.stream().filter(p -> p == Priority.INTERACTIVE).count()).isEqualTo(12);
+        assertThat(grants.stream().filter(p -> p == Priority.API).count()).isEqualTo(6);
+    }
+
+    @Test
+    void backgroundWaitsForForegroundAndLeavesAReserve() {
+        UpstreamConcurrencyLimiter limiter = limiter(3, 3, 3, 64, 60000, 1.0, 1.0);
+        Permit interactive = limiter.acquire(Priority.INTERACTIVE);
+        Permit background = limiter.acquire(Priority.BACKGROUND);
+
+        // Two of three slots busy: the last one is the reserve
+        CompletableFuture<Permit> secondBackground = limiter.acquireAsync(Priority.BACKGROUND);
+        assertThat(secondBackground).isNotDone();
+        assertThat(limiter.acquire(Priority.INTERACTIVE)).isNotNull();
+
+        CompletableFuture<Permit> api = limiter.acquireAsync(Priority.API);
+        interactive.release(Outcome.IGNORED);
+        // The freed slot goes to the foreground waiter even though background queued first
+        assertThat(api).isCompleted();
+        assertThat(secondBackground).isNotDone();
+
+        background.release(Outcome.IGNORED);
+        api.join().release(Outcome.IGNORED);
+        assertThat(secondBackground).isCompleted();
+    }
+
+    @Test
+    void capsEachClassBelowTheLimit() {
+        UpstreamConcurrencyLimiter limiter = limiter(4, 4, 4, 64, 60000, 0.5, 0.25);
+        limiter.acquire(Priority.API);
+        limiter.acquire(Priority.API);
+
+        CompletableFuture<Permit> thirdApi = limiter.acquireAsync(Priority.API);
+
+        assertThat(thirdApi).isNotDone();
+        assertThat(limiter.acquire(Priority.INTERACTIVE)).isNotNull();
+        assertThat(limiter.inFlight(Priority.API)).isEqualTo(2);
+    }
+}
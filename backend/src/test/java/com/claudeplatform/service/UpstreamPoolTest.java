@@ -0,0 +1,221 @@
+package com.claudeplatform.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class UpstreamPoolTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+
+    private final List<Stub> stubs = new ArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CountDownLatch releaseStreams = new CountDownLatch(1);
+    private WebClient webClient;
+
+    @AfterEach
+    void tearDown() {
+        releaseStreams.countDown();
+        stubs.forEach(Stub::stop);
+    }
+
+    @Test
+    void sendsUnpinnedRequestsToTheLessLoadedOfTwoInstances() {
+        start(3);
+        Disposable first = openStream(stubs.get(0).id());
+        Disposable second = openStream(stubs.get(0).id());
+        await().atMost(TIMEOUT).until(() -> outstanding(stubs.get(0).id()) == 2);
+
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            served.add(call("/ok", null));
+        }
+
+        // Whichever pair is drawn, the busy instance loses to the idle one
+        assertThat(served).doesNotContain(stubs.get(0).id())
+                .contains(stubs.get(1).id(), stubs.get(2).id());
+        first.dispose();
+        second.dispose();
+    }
+
+    @Test
+    void keepsAPinnedRequestOnItsInstanceEvenWhenItIsBusier() {
+        start(2);
+        Disposable stream = openStream(stubs.get(1).id());
+        await().atMost(TIMEOUT).until(() -> outstanding(stubs.get(1).id()) == 1);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(call("/ok", stubs.get(1).id())).isEqualTo(stubs.get(1).id());
+        }
+        stream.dispose();
+    }
+
+    @Test
+    void ejectsAnInstanceAfterFiveConsecutiveFailuresButNeverTheLastOne() {
+        start(2);
+        stubs.get(1).failing = true;
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(call("/ok", stubs.get(1).id())).isEqualTo(stubs.get(1).id());
+        }
+        assertThat(available(stubs.get(1).id())).isEqualTo(1);
+        call("/ok", stubs.get(1).id());
+
+        // Ejected: even a request pinned to it now goes to the other instance
+        assertThat(available(stubs.get(1).id())).isZero();
+        assertThat(meterRegistry.get("upstream.endpoint.ejections").tag("endpoint", stubs.get(1).id())
+                .counter().count()).isEqualTo(1);
+        assertThat(call("/ok", stubs.get(1).id())).isEqualTo(stubs.get(0).id());
+
+        stubs.get(0).failing = true;
+        for (int i = 0; i < 10; i++) {
+            call("/ok", null);
+        }
+        assertThat(available(stubs.get(0).id())).isEqualTo(1);
+    }
+
+    @Test
+    void countsOpenRequestsUntilTheirBodyIsDoneOrDropped() {
+        start(2);
+        String id = stubs.get(0).id();
+        Disposable cancelled = openStream(id);
+        Disposable released = openStream(id);
+        await().atMost(TIMEOUT).until(() -> outstanding(id) == 2);
+
+        cancelled.dispose();
+        await().atMost(TIMEOUT).until(() -> outstanding(id) == 1);
+        releaseStreams.countDown();
+        await().atMost(TIMEOUT).until(() -> outstanding(id) == 0);
+
+        stubs.get(0).failing = true;
+        call("/ok", id);
+        stubs.get(1).stop();
+        webClient.get().uri("/ok")
+                .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, stubs.get(1).id())
+                .retrieve().toBodilessEntity()
+                .onErrorResume(e -> Mono.empty())
+                .block(TIMEOUT);
+
+        assertThat(outstanding(id)).isZero();
+        assertThat(outstanding(stubs.get(1).id())).isZero();
+        assertThat(released.isDisposed()).isTrue();
+    }
+
+    private void start(int count) {
+        for (int i = 0; i < count; i++) {
+            stubs.add(new Stub(releaseStreams));
+        }
+        String urls = stubs.stream().map(stub -> "http://" + stub.id()).collect(Collectors.joining(","));
+        // Unpooled: a kept-alive connection to a stub stopped by an earlier test must not be reused
+        HttpClient httpClient = HttpClient.create(ConnectionProvider.newConnection());
+        UpstreamPool pool = new UpstreamPool(meterRegistry, httpClient, httpClient, "http://" + stubs.get(0).id(), urls,
+                2000, 2, 5, 30000, 300000, 0);
+        webClient = WebClient.builder()
+                .baseUrl("http://" + stubs.get(0).id())
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .filter(pool)
+                .build();
+    }
+
+    // The instance that served the request, from the header the pool adds
+    private String call(String path, String pinned) {
+        return webClient.get().uri(path)
+                .attributes(attributes -> {
+                    if (pinned != null) {
+                        attributes.put(UpstreamPool.ENDPOINT_ATTRIBUTE, pinned);
+                    }
+                })
+                .exchangeToMono(response -> response.releaseBody()
+                        .thenReturn(response.headers().asHttpHeaders().getFirst(UpstreamPool.ENDPOINT_HEADER)))
+                .block(TIMEOUT);
+    }
+
+    // A streamed response that stays open until releaseStreams or disposal
+    private Disposable openStream(String pinned) {
+        return webClient.get().uri("/stream")
+                .attribute(UpstreamPool.ENDPOINT_ATTRIBUTE, pinned)
+                .retrieve()
+                .bodyToFlux(String.class)
+                .subscribe();
+    }
+
+    private double outstanding(String id) {
+        return meterRegistry.get("upstream.endpoint.outstanding").tag("endpoint", id).gauge().value();
+    }
+
+    private double available(String id) {
+        return meterRegistry.get("upstream.endpoint.available").tag("endpoint", id).gauge().value();
+    }
+
+    private static final class Stub {
+
+        private final HttpServer server;
+        private final String id;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private volatile boolean failing;
+
+        private Stub(CountDownLatch releaseStreams) {
+            try {
+                server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            server.createContext("/ok", exchange -> respond(exchange, failing ? 500 : 200));
+            server.createContext("/stream", exchange -> {
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write("data:start\n\n".getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                    releaseStreams.await(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException ignored) {
+                    // The client went away
+                }
+            });
+            server.setExecutor(executor);
+            server.start();
+            id = "127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        private static void respond(HttpExchange exchange, int status) throws IOException {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+        }
+
+        private String id() {
+            return id;
+        }
+
+        private void stop() {
+            if (!executor.isShutdown()) {
+                server.stop(0);
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.claudeplatform.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class UpstreamSessionServiceTest {
+
+    private static final String MODEL = "claude-sonnet-4";
+
+    // Paths of the session DELETEs sent upstream
+    private final List<String> ended = Collections.synchronizedList(new ArrayList<>());
+    private final UpstreamSessionService service;
+
+    UpstreamSessionServiceTest() {
+        ContextManagementService contextManagementService = mock(ContextManagementService.class);
+        when(contextManagementService.isContextEnabled()).thenReturn(true);
+        WebClient controlClient = WebClient.builder()
+                .exchangeFunction(request -> {
+                    ended.add(request.url().getPath());
+                    return Mono.just(ClientResponse.create(HttpStatus.NO_CONTENT).build());
+                })
+                .build();
+        service = new UpstreamSessionService(mock(JdbcTemplate.class), controlClient, contextManagementService,
+                Schedulers.immediate(), mock(WriteBehindService.class), new SimpleMeterRegistry(),
+                true, 300000, 50, 100);
+    }
+
+    @Test
+    void reusesTheBoundSessionWhileNothingWasAddedSince() {
+        UUID conversationId = UUID.randomUUID();
+        UpstreamSessionService.Session session = new UpstreamSessionService.Session("s1", null);
+        service.bind(conversationId, UUID.randomUUID(), MODEL, session, 2);
+
+        assertThat(service.acquire(conversationId, MODEL, 4)).isNull();
+        service.bind(conversationId, UUID.randomUUID(), MODEL, session, 2);
+        assertThat(service.acquire(conversationId, MODEL, 2)).isEqualTo(session);
+    }
+
+    @Test
+    void keepsABusyBindingAndEndsTheSessionOfAConcurrentTurnInstead() {
+        UUID conversationId = UUID.randomUUID();
+        UUID userId = UUID.randomUUID();
+        UpstreamSessionService.Session first = new UpstreamSessionService.Session("first", null);
+        UpstreamSessionService.Session second = new UpstreamSessionService.Session("second", null);
+        service.bind(conversationId, userId, MODEL, first, 2);
+
+        // Turn A runs on the bound session; turn B went out cold and finishes first
+        assertThat(service.acquire(conversationId, MODEL, 2)).isEqualTo(first);
+        service.bind(conversationId, userId, MODEL, second, 4);
+
+        assertThat(ended).containsExactly("/v1/sessions/second");
+        service.bind(conversationId, userId, MODEL, first, 6);
+        assertThat(service.acquire(conversationId, MODEL, 6)).isEqualTo(first);
+        assertThat(ended).containsExactly("/v1/sessions/second");
+    }
+}
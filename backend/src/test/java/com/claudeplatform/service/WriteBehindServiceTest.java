@@ -0,0 +1,220 @@
+package com.claudeplatform.service;
+
+import com.claudeplatform.exception.ServiceOverloadedException;
+import com.claudeplatform.model.entity.Message;
+import com.claudeplatform.model.entity.UsageLog;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WriteBehindServiceTest {
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    // Seqs of message rows in the order they reached the database, and the threads that wrote them
+    private final List<Long> writtenSeqs = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> writerThreads = Collections.synchronizedList(new ArrayList<>());
+    private WriteBehindService service;
+
+    private void start(int capacity, int batchSize) {
+        when(jdbcTemplate.queryForObject(startsWith("SELECT COALESCE(MAX(seq)"), eq(Long.class), any(Object[].class)))
+                .thenAnswer(invocation -> writtenSeqs.stream().mapToLong(Long::longValue).max().orElse(0));
+        when(jdbcTemplate.batchUpdate(startsWith("INSERT INTO messages"), anyList(), any(int[].class)))
+                .thenAnswer(invocation -> {
+                    List<Object[]> rows = invocation.getArgument(1);
+                    writerThreads.add(Thread.currentThread().getName());
+                    rows.forEach(row -> writtenSeqs.add((Long) row[2]));
+                    return new int[rows.size()];
+                });
+        service = new WriteBehindService(jdbcTemplate, mock(PlatformTransactionManager.class),
+                new SimpleMeterRegistry(), Schedulers.immediate(), capacity);
+        ReflectionTestUtils.setField(service, "batchSize", batchSize);
+        ReflectionTestUtils.setField(service, "flushIntervalMs", 5L);
+        ReflectionTestUtils.setField(service, "enqueueTimeoutMs", 50L);
+        ReflectionTestUtils.setField(service, "awaitTimeoutMs", 5000L);
+        ReflectionTestUtils.setField(service, "maxSeqTrackers", 100);
+        service.start();
+    }
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        if (service != null) {
+            service.stop();
+        }
+    }
+
+    @Test
+    void keepsConversationOrderWhenTheQueueOverflows() {
+        start(4, 2);
+        UUID conversationId = UUID.randomUUID();
+
+        for (int i = 0; i < 200; i++) {
+            service.enqueueMessage(message(conversationId), false);
+        }
+        service.awaitFlushed(conversationId);
+
+        assertThat(writtenSeqs).hasSize(200);
+        for (int i = 0; i < 200; i++) {
+            assertThat(writtenSeqs.get(i)).isEqualTo(i + 1L);
+        }
+        assertThat(writerThreads).containsOnly("write-behind-flusher");
+    }
+
+    @Test
+    void refusesNewTurnsWhileFullAndGivesTheSeqBack() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        start(1, 1);
+        UUID blocker = UUID.randomUUID();
+        when(jdbcTemplate.update(startsWith("UPDATE conversations"), any(Object[].class), any(int[].class)))
+                .thenReturn(1);
+        when(jdbcTemplate.batchUpdate(startsWith("UPDATE conversations"), anyList(), any(int[].class)))
+                .thenAnswer(invocation -> {
+                    release.await(5, TimeUnit.SECONDS);
+                    return new int[1];
+                });
+        UUID conversationId = UUID.randomUUID();
+
+        // One touch holds the flusher, the next fills the queue, and a reply waits for room
+        service.enqueueConversationTouch(blocker, null);
+        Thread.sleep(50);
+        service.enqueueConversationTouch(blocker, null);
+        Thread reply = new Thread(() -> service.enqueueMessage(message(conversationId), false));
+        reply.start();
+        while (reply.getState() != Thread.State.WAITING) {
+            Thread.sleep(5);
+        }
+
+        assertThatThrownBy(() -> service.enqueueMessage(message(conversationId), true))
+                .isInstanceOf(ServiceOverloadedException.class);
+
+        release.countDown();
+        reply.join(5000);
+        service.enqueueMessage(message(conversationId), true);
+        service.awaitFlushed(conversationId);
+
+        // The refused message gave its seq back, so there is no gap
+        assertThat(writtenSeqs).containsExactly(1L, 2L);
+    }
+
+    @Test
+    void readsMaxSeqOnlyForAConversationNotSeenLately() {
+        start(16, 16);
+        ReflectionTestUtils.setField(service, "maxSeqTrackers", 1);
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+
+        service.enqueueMessage(message(first), false);
+        service.awaitFlushed(first);
+        service.enqueueMessage(message(first), false);
+        service.awaitFlushed(first);
+        verify(jdbcTemplate, times(1)).queryForObject(startsWith("SELECT COALESCE(MAX(seq)"), eq(Long.class),
+                any(Object[].class));
+
+        // Tracking the second conversation pushes the idle first one out
+        service.enqueueMessage(message(second), false);
+        service.awaitFlushed(second);
+        service.enqueueMessage(message(first), false);
+        service.awaitFlushed(first);
+
+        verify(jdbcTemplate, times(3)).queryForObject(startsWith("SELECT COALESCE(MAX(seq)"), eq(Long.class),
+                any(Object[].class));
+    }
+
+    @Test
+    void takesTheSeqTheDatabaseGaveWhenTheAssignedOneWasTaken() {
+        start(16, 16);
+        when(jdbcTemplate.batchUpdate(startsWith("INSERT INTO messages"), anyList(), any(int[].class)))
+                .thenThrow(new DuplicateKeyException("messages_conversation_id_seq_key"));
+        when(jdbcTemplate.update(startsWith("INSERT INTO messages"), any(Object[].class), any(int[].class)))
+                .thenThrow(new DuplicateKeyException("messages_conversation_id_seq_key"));
+        when(jdbcTemplate.queryForObject(startsWith("INSERT INTO messages"), any(Object[].class), any(int[].class),
+                eq(Long.class))).thenReturn(7L);
+        List<UUID> resequenced = Collections.synchronizedList(new ArrayList<>());
+        service.onResequenced(resequenced::add);
+        UUID conversationId = UUID.randomUUID();
+        Message message = message(conversationId);
+
+        service.enqueueMessage(message, false);
+        service.awaitFlushed(conversationId);
+
+        assertThat(message.getSeq()).isEqualTo(7L);
+        assertThat(resequenced).containsExactly(conversationId);
+        Message next = message(conversationId);
+        service.enqueueMessage(next, false);
+        assertThat(next.getSeq()).isEqualTo(8L);
+    }
+
+    @Test
+    void runsAfterFlushOnlyOnceTheUsageRowIsCommitted() {
+        start(16, 16);
+        when(jdbcTemplate.batchUpdate(startsWith("INSERT INTO usage_logs"), anyList(), any(int[].class)))
+                .thenThrow(new IllegalStateException("batch failed"));
+        UUID failing = UUID.randomUUID();
+        UUID passing = UUID.randomUUID();
+        when(jdbcTemplate.update(startsWith("INSERT INTO usage_logs"), any(Object[].class), any(int[].class)))
+                .thenAnswer(invocation -> {
+                    Object[] row = invocation.getArgument(1);
+                    if (failing.equals(row[2])) {
+                        throw new IllegalStateException("row failed");
+                    }
+                    return 1;
+                });
+        when(jdbcTemplate.update(startsWith("INSERT INTO messages"), any(Object[].class), any(int[].class)))
+                .thenReturn(1);
+        AtomicBoolean failingHookRan = new AtomicBoolean();
+        AtomicBoolean passingHookRan = new AtomicBoolean();
+
+        service.enqueueUsage(usage(failing), () -> failingHookRan.set(true));
+        service.enqueueUsage(usage(passing), () -> passingHookRan.set(true));
+        // Hooks run in queue order, so once the second has run the first has had its chance
+        await().atMost(5, TimeUnit.SECONDS).untilTrue(passingHookRan);
+
+        assertThat(failingHookRan).isFalse();
+    }
+
+    private static Message message(UUID conversationId) {
+        return Message.builder()
+                .id(UUID.randomUUID())
+                .conversationId(conversationId)
+                .role("user")
+                .content("hi")
+                .tokenCount(1)
+                .truncated(false)
+                .createdAt(OffsetDateTime.now())
+                .build();
+    }
+
+    private static UsageLog usage(UUID conversationId) {
+        return UsageLog.builder()
+                .userId(UUID.randomUUID())
+                .conversationId(conversationId)
+                .model("claude-sonnet-4")
+                .status("SUCCESS")
+                .build();
+    }
+}
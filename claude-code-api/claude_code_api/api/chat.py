@@ -2,7 +2,7 @@
 
 import hashlib
 import json
-from typing import Any, Dict, Optional, Tuple
+from typing import Any, Dict, List, Optional, Tuple
 
 import structlog
 from fastapi import APIRouter, HTTPException, Request, status
@@ -18,6 +18,7 @@ from claude_code_api.core.session_manager import SessionManager
 from claude_code_api.models.claude import get_default_model, validate_claude_model
 from claude_code_api.models.openai import (
     ChatCompletionRequest,
+    ChatMessage,
     ChatCompletionResponse,
     ErrorResponse,
 )
@@ -90,7 +91,15 @@ async def _log_raw_request(req: Request) -> None:
     )
 
 
-def _extract_prompts(request: ChatCompletionRequest) -> Tuple[str, str]:
+def _extract_prompts(
+    request: ChatCompletionRequest,
+) -> Tuple[str, Optional[str], Optional[str]]:
+    """Split messages into the CLI prompt, system prompt and appended context.
+
+    A caller's system prompt replaces the CLI's own. The cache-marked prefix
+    (summary and earlier turns) is context, not instructions, so it is appended
+    instead and the CLI keeps its default system prompt and tool guidance.
+    """
     if not request.messages:
         raise _http_error(
             status.HTTP_400_BAD_REQUEST,
@@ -107,13 +116,53 @@ def _extract_prompts(request: ChatCompletionRequest) -> Tuple[str, str]:
             "missing_user_message",
         )
     user_prompt = user_messages[-1].get_text_content()
-    system_messages = [msg for msg in request.messages if msg.role == "system"]
+    system_messages = [
+        msg
+        for msg in request.messages
+        if msg.role == "system" and not msg.has_cache_marker()
+    ]
     system_prompt = (
-        system_messages[0].get_text_content()
+        "\n\n".join(msg.get_text_content() for msg in system_messages)
         if system_messages
         else request.system_prompt
     )
-    return user_prompt, system_prompt
+    context = [
+        msg.get_text_content()
+        for msg in request.messages
+        if msg.role == "system" and msg.has_cache_marker()
+    ]
+
+    # Earlier turns up to the last cache marker are a prefix that stays the same
+    # across requests, so they join the appended system prompt, which the CLI
+    # caches; later turns change every request and go in front of the current
+    # message.
+    last_user = max(
+        i for i, msg in enumerate(request.messages) if msg.role == "user"
+    )
+    history = [
+        msg
+        for msg in request.messages[:last_user]
+        if msg.role in ("user", "assistant")
+    ]
+    cached_until = max(
+        (i + 1 for i, msg in enumerate(history) if msg.has_cache_marker()), default=0
+    )
+    if cached_until:
+        context.append("[EARLIER MESSAGES]\n" + _transcript(history[:cached_until]))
+    if cached_until < len(history):
+        user_prompt = (
+            "[RECENT MESSAGES]\n"
+            + _transcript(history[cached_until:])
+            + "\n\n[CURRENT MESSAGE]\n"
+            + user_prompt
+        )
+    return user_prompt, system_prompt, "\n\n".join(context) or None
+
+
+def _transcript(messages: List[ChatMessage]) -> str:
+    return "\n".join(
+        f"{msg.role.upper()}: {msg.get_text_content()}" for msg in messages
+    )
 
 
 async def _resolve_session(
@@ -324,7 +373,7 @@ async def create_chat_completion(request: ChatCompletionRequest, req: Request) -
         )
         response_model = claude_model or get_default_model()
 
-        user_prompt, system_prompt = _extract_prompts(request)
+        user_prompt, system_prompt, context_prompt = _extract_prompts(request)
 
         # Handle project context
         project_id = request.project_id or f"default-{client_id}"
@@ -339,6 +388,12 @@ async def create_chat_completion(request: ChatCompletionRequest, req: Request) -
             system_prompt=system_prompt,
         )
 
+        # A continued session resumes its CLI conversation, which already holds
+        # the history, so the request only carries the new message
+        resume_session_id = (
+            session_manager.resume_id(session_id) if request.session_id else None
+        )
+
         # Start Claude Code process
         try:
 
@@ -351,7 +406,9 @@ async def create_chat_completion(request: ChatCompletionRequest, req: Request) -
                 prompt=user_prompt,
                 model=claude_model,
                 system_prompt=system_prompt,
+                append_system_prompt=context_prompt,
                 on_cli_session_id=_register_cli_session,
+                resume_session_id=resume_session_id,
             )
         except ClaudeSessionConflictError as e:
             logger.warning(
@@ -80,8 +80,17 @@ class ClaudeProcess:
         prompt: str,
         model: Optional[str] = None,
         system_prompt: Optional[str] = None,
+        resume_session_id: Optional[str] = None,
+        append_system_prompt: Optional[str] = None,
     ) -> bool:
-        """Start Claude CLI subprocess."""
+        """Start Claude CLI subprocess.
+
+        ``system_prompt`` replaces the CLI's default system prompt, while
+        ``append_system_prompt`` is added after whichever one is in effect.
+        With ``resume_session_id`` the CLI continues that conversation, so the
+        prompt only needs the new message; otherwise the new conversation gets
+        a session ID chosen here, so it can be resumed later.
+        """
         self.last_error = None
 
         claude_binary = _find_claude_binary()
@@ -98,12 +107,21 @@ class ClaudeProcess:
 
         if system_prompt:
             cmd.extend(["--system-prompt", system_prompt])
+        if append_system_prompt:
+            cmd.extend(["--append-system-prompt", append_system_prompt])
+
+        cli_session_id = resume_session_id or str(uuid.uuid4())
+        if resume_session_id:
+            cmd.extend(["--resume", resume_session_id])
+        else:
+            cmd.extend(["--session-id", cli_session_id])
 
         logger.info(
             "Starting Claude CLI subprocess",
             session_id=self.session_id,
             model=resolved_model,
             binary=claude_binary,
+            resumed=bool(resume_session_id),
         )
 
         try:
@@ -120,7 +138,7 @@ class ClaudeProcess:
 
             self.is_running = True
 
-            self.cli_session_id = str(uuid.uuid4())
+            self.cli_session_id = cli_session_id
             if self._on_cli_session_id:
                 self._on_cli_session_id(self.cli_session_id)
 
@@ -335,7 +353,9 @@ class ClaudeManager:
         prompt: str,
         model: Optional[str] = None,
         system_prompt: Optional[str] = None,
+        append_system_prompt: Optional[str] = None,
         on_cli_session_id: Optional[Callable[[str], None]] = None,
+        resume_session_id: Optional[str] = None,
     ) -> ClaudeProcess:
         """Create new Claude session via CLI."""
         async with self._session_lock:
@@ -363,9 +383,12 @@ class ClaudeManager:
                 on_end=self._cleanup_process,
             )
 
-            success = await process.start(
-                prompt=prompt, model=model, system_prompt=system_prompt
-            )
+            start_kwargs = {"prompt": prompt, "model": model, "system_prompt": system_prompt}
+            if resume_session_id:
+                start_kwargs["resume_session_id"] = resume_session_id
+            if append_system_prompt:
+                start_kwargs["append_system_prompt"] = append_system_prompt
+            success = await process.start(**start_kwargs)
             if not success:
                 raise ClaudeProcessStartError(
                     process.last_error or "Failed to start CLI process"
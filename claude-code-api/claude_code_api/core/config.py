@@ -132,6 +132,8 @@ class Settings(BaseSettings):
     host: str = "0.0.0.0"
     port: int = 8000
     debug: bool = False
+    # Longer than the backend's idle eviction, so pooled connections are not closed under it
+    keep_alive_timeout_seconds: int = 75
 
     # Authentication
     api_keys: List[str] = Field(default_factory=list)
@@ -52,6 +52,8 @@ class SessionManager:
     def __init__(self):
         self.active_sessions: Dict[str, SessionInfo] = {}
         self.cli_session_index: Dict[str, str] = {}
+        # Newest CLI session of each API session, which is the one to resume
+        self.latest_cli_session: Dict[str, str] = {}
         self.session_map_path = settings.session_map_path
         self._persist_lock = Lock()
         self.cleanup_task: Optional[asyncio.Task] = None
@@ -99,6 +101,13 @@ class SessionManager:
                 for cli_id, api_id in mapping.items()
                 if cli_id and api_id
             }
+        latest = data.get("api_to_cli") if isinstance(data, dict) else None
+        if isinstance(latest, dict):
+            self.latest_cli_session = {
+                str(api_id): str(cli_id)
+                for api_id, cli_id in latest.items()
+                if api_id and cli_id
+            }
 
     def _persist_cli_session_map(self):
         if not self.session_map_path:
@@ -106,7 +115,10 @@ class SessionManager:
         try:
             directory = os.path.dirname(self.session_map_path) or os.getcwd()
             os.makedirs(directory, exist_ok=True)
-            payload = {"cli_to_api": self.cli_session_index}
+            payload = {
+                "cli_to_api": self.cli_session_index,
+                "api_to_cli": self.latest_cli_session,
+            }
 
             with self._persist_lock:
                 lock_path = f"{self.session_map_path}.lock"
@@ -273,6 +285,7 @@ class SessionManager:
             await db_manager.deactivate_session(resolved_id)
             if session_info.cli_session_id:
                 self.cli_session_index.pop(session_info.cli_session_id, None)
+            if self.latest_cli_session.pop(resolved_id, None) or session_info.cli_session_id:
                 self._persist_cli_session_map()
             del self.active_sessions[resolved_id]
 
@@ -318,8 +331,16 @@ class SessionManager:
         if session_info:
             session_info.cli_session_id = cli_session_id
         self.cli_session_index[cli_session_id] = api_session_id
+        self.latest_cli_session[api_session_id] = cli_session_id
         self._persist_cli_session_map()
 
+    def resume_id(self, api_session_id: str) -> Optional[str]:
+        """CLI session to resume for a continued API session, if one is known."""
+        session_info = self.active_sessions.get(api_session_id)
+        if session_info and session_info.cli_session_id:
+            return session_info.cli_session_id
+        return self.latest_cli_session.get(api_session_id)
+
     def _resolve_session_id(self, session_id: str) -> Optional[str]:
         if session_id in self.active_sessions:
             return session_id
@@ -242,6 +242,7 @@ if __name__ == "__main__":
         "claude_code_api.main:app",
         host=settings.host,
         port=settings.port,
+        timeout_keep_alive=settings.keep_alive_timeout_seconds,
         reload=True,
         log_level=settings.log_level.lower(),
     )
@@ -109,6 +109,12 @@ class ChatMessage(BaseModel):
         else:
             return str(self.content)
 
+    def has_cache_marker(self) -> bool:
+        """Whether any content block carries a cache_control marker."""
+        return isinstance(self.content, list) and any(
+            isinstance(item, dict) and "cache_control" in item for item in self.content
+        )
+
 
 class ChatCompletionRequest(BaseModel):
     """Chat completion request model."""
@@ -270,6 +270,29 @@ class OpenAIConverter:
             "choices": [{"index": 0, "delta": {}, "finish_reason": finish_reason}],
         }
 
+    @staticmethod
+    def usage_from_result(usage: Optional[Dict[str, Any]]) -> Optional[Dict[str, Any]]:
+        """Convert the usage block of a Claude result message to OpenAI usage.
+
+        Claude reports cached prompt tokens apart from input_tokens; OpenAI's
+        prompt_tokens includes them, with the cached share in prompt_tokens_details.
+        """
+        if not usage:
+            return None
+        input_tokens = int(usage.get("input_tokens") or 0)
+        cache_read = int(usage.get("cache_read_input_tokens") or 0)
+        cache_creation = int(usage.get("cache_creation_input_tokens") or 0)
+        output_tokens = int(usage.get("output_tokens") or 0)
+        prompt_tokens = input_tokens + cache_read + cache_creation
+        return {
+            "prompt_tokens": prompt_tokens,
+            "completion_tokens": output_tokens,
+            "total_tokens": prompt_tokens + output_tokens,
+            "prompt_tokens_details": {"cached_tokens": cache_read},
+            "cache_read_input_tokens": cache_read,
+            "cache_creation_input_tokens": cache_creation,
+        }
+
     @staticmethod
     def calculate_usage(parser: ClaudeOutputParser) -> Dict[str, int]:
         """Calculate token usage from parser."""
@@ -68,6 +68,7 @@ class OpenAIStreamConverter:
         self.chunk_index = 0
         self.parser = ClaudeOutputParser()
         self.tool_call_index = 0
+        self.usage: Optional[Dict[str, Any]] = None
 
     def _build_chunk(
         self, delta: Dict[str, Any], finish_reason: Optional[str] = None
@@ -186,6 +187,7 @@ class OpenAIStreamConverter:
                         saw_assistant_text = True
 
                 if self.parser.is_final_message(message):
+                    self.usage = OpenAIConverter.usage_from_result(message.usage)
                     break
 
             # Check for silent errors (no content and no error sent)
@@ -200,9 +202,10 @@ class OpenAIStreamConverter:
             # Send final chunk
             if not saw_error:
                 finish_reason = "tool_calls" if saw_tool_calls else "stop"
-                yield SSEFormatter.format_event(
-                    self._build_chunk({}, finish_reason=finish_reason)
-                )
+                final_chunk = self._build_chunk({}, finish_reason=finish_reason)
+                if self.usage:
+                    final_chunk["usage"] = self.usage
+                yield SSEFormatter.format_event(final_chunk)
 
             # Send completion signal
             yield SSEFormatter.format_completion()
@@ -244,6 +247,7 @@ class StreamingManager:
 
         heartbeat_task: Optional[asyncio.Task] = None
         stream_task: Optional[asyncio.Task] = None
+        finished = False
         try:
             # Start heartbeat task
             heartbeat_task = asyncio.create_task(
@@ -254,6 +258,7 @@ class StreamingManager:
             while True:
                 chunk = await heartbeat_queue.get()
                 if chunk is None:
+                    finished = True
                     break
                 yield chunk
 
@@ -263,6 +268,11 @@ class StreamingManager:
             )
             yield SSEFormatter.format_error("Streaming failed")
         finally:
+            # The client went away before the CLI finished: stop it instead of letting it
+            # generate for nobody. Shielded so a cancelled response still completes the stop.
+            if not finished and claude_process.is_running:
+                with contextlib.suppress(asyncio.CancelledError):
+                    await asyncio.shield(claude_process.stop())
             if heartbeat_task:
                 heartbeat_task.cancel()
             if stream_task:
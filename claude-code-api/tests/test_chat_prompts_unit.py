@@ -0,0 +1,62 @@
+"""Unit tests for turning chat messages into the CLI prompt and system prompts."""
+
+from claude_code_api.api.chat import _extract_prompts
+from claude_code_api.models.openai import ChatCompletionRequest
+
+
+def _cached(role, text):
+    return {
+        "role": role,
+        "content": [
+            {"type": "text", "text": text, "cache_control": {"type": "ephemeral"}}
+        ],
+    }
+
+
+def test_single_message_is_sent_as_is():
+    request = ChatCompletionRequest(messages=[{"role": "user", "content": "hi"}])
+    assert _extract_prompts(request) == ("hi", None, None)
+
+
+def test_history_up_to_last_cache_marker_is_appended_to_the_default_system_prompt():
+    request = ChatCompletionRequest(
+        messages=[
+            _cached("system", "summary"),
+            {"role": "user", "content": "q1"},
+            _cached("assistant", "a1"),
+            {"role": "user", "content": "q2"},
+            {"role": "assistant", "content": "a2"},
+            {"role": "user", "content": "q3"},
+        ]
+    )
+    user_prompt, system_prompt, context_prompt = _extract_prompts(request)
+    assert system_prompt is None
+    assert context_prompt == "summary\n\n[EARLIER MESSAGES]\nUSER: q1\nASSISTANT: a1"
+    assert user_prompt == (
+        "[RECENT MESSAGES]\nUSER: q2\nASSISTANT: a2\n\n[CURRENT MESSAGE]\nq3"
+    )
+
+
+def test_cached_prefix_is_unchanged_when_the_tail_grows():
+    prefix = [_cached("system", "summary"), _cached("user", "q1")]
+    first = ChatCompletionRequest(messages=prefix + [{"role": "user", "content": "q2"}])
+    second = ChatCompletionRequest(
+        messages=prefix
+        + [
+            {"role": "user", "content": "q2"},
+            {"role": "assistant", "content": "a2"},
+            {"role": "user", "content": "q3"},
+        ]
+    )
+    assert _extract_prompts(first)[2] == _extract_prompts(second)[2]
+
+
+def test_caller_system_prompt_still_replaces_the_default():
+    request = ChatCompletionRequest(
+        messages=[
+            {"role": "system", "content": "be brief"},
+            _cached("system", "summary"),
+            {"role": "user", "content": "q1"},
+        ]
+    )
+    assert _extract_prompts(request) == ("q1", "be brief", "summary")
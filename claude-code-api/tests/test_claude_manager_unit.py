@@ -51,6 +51,34 @@ def test_decode_output_line():
     assert data["type"] == "text"
 
 
+@pytest.mark.asyncio
+async def test_start_appends_context_to_the_default_system_prompt(monkeypatch, tmp_path):
+    commands = []
+
+    async def fake_exec(*cmd, **_kwargs):
+        commands.append(list(cmd))
+        raise OSError("not started")
+
+    monkeypatch.setattr(cm, "_find_claude_binary", lambda: "claude")
+    monkeypatch.setattr(cm.asyncio, "create_subprocess_exec", fake_exec)
+    process = cm.ClaudeProcess(session_id="sess", project_path=str(tmp_path))
+
+    await process.start(
+        "prompt", model="claude-sonnet-4-5-20250929", append_system_prompt="summary"
+    )
+    assert "--system-prompt" not in commands[0]
+    assert commands[0][commands[0].index("--append-system-prompt") + 1] == "summary"
+
+    await process.start(
+        "prompt",
+        model="claude-sonnet-4-5-20250929",
+        system_prompt="be brief",
+        append_system_prompt="summary",
+    )
+    assert commands[1][commands[1].index("--system-prompt") + 1] == "be brief"
+    assert "--append-system-prompt" in commands[1]
+
+
 @pytest.mark.asyncio
 async def test_create_session_rejects_duplicate_active_session(monkeypatch, tmp_path):
     manager = cm.ClaudeManager()
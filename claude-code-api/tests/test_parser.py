@@ -7,6 +7,7 @@ from claude_code_api.models.claude import ClaudeMessage, ClaudeToolUse
 from claude_code_api.utils.parser import (
     ClaudeOutputParser,
     MessageAggregator,
+    OpenAIConverter,
     estimate_tokens,
     extract_error_from_message,
     format_timestamp,
@@ -168,3 +169,23 @@ def test_message_aggregator():
 def test_parse_line_invalid_json():
     parser = ClaudeOutputParser()
     assert parser.parse_line("{not-json}") is None
+
+
+def test_usage_from_result_counts_cached_prompt_tokens():
+    usage = OpenAIConverter.usage_from_result(
+        {
+            "input_tokens": 10,
+            "cache_read_input_tokens": 300,
+            "cache_creation_input_tokens": 50,
+            "output_tokens": 40,
+        }
+    )
+    assert usage["prompt_tokens"] == 360
+    assert usage["completion_tokens"] == 40
+    assert usage["total_tokens"] == 400
+    assert usage["prompt_tokens_details"] == {"cached_tokens": 300}
+    assert usage["cache_creation_input_tokens"] == 50
+
+    assert OpenAIConverter.usage_from_result(None) is None
+    assert OpenAIConverter.usage_from_result({}) is None
+
@@ -97,3 +97,20 @@ async def test_persist_cli_session_map_writes_expected_payload(tmp_path):
     assert list((tmp_path / "maps").glob("session_map_*.tmp")) == []
 
     await manager.cleanup_all()
+
+
+@pytest.mark.asyncio
+async def test_resume_id_follows_latest_cli_session_across_restart(tmp_path):
+    manager = SessionManager()
+    manager.session_map_path = str(tmp_path / "session_map.json")
+    manager.register_cli_session("api-1", "cli-1")
+    manager.register_cli_session("api-1", "cli-2")
+    assert manager.resume_id("api-1") == "cli-2"
+    await manager.cleanup_all()
+
+    restarted = SessionManager()
+    restarted.session_map_path = manager.session_map_path
+    restarted._load_cli_session_map()
+    assert restarted.resume_id("api-1") == "cli-2"
+    assert restarted.resume_id("api-2") is None
+    await restarted.cleanup_all()
@@ -0,0 +1,3 @@
+-- Per-API-key rate limit overrides (NULL = use the default from app_settings / application.yml)
+ALTER TABLE api_keys ADD COLUMN IF NOT EXISTS rate_limit_rpm INT;
+ALTER TABLE api_keys ADD COLUMN IF NOT EXISTS rate_limit_tpm INT;
@@ -0,0 +1,22 @@
+-- Durable summarization job queue (claimed with FOR UPDATE SKIP LOCKED + lease)
+CREATE TABLE IF NOT EXISTS summarization_jobs (
+    id UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
+    conversation_id UUID NOT NULL REFERENCES conversations(id) ON DELETE CASCADE,
+    status VARCHAR(20) NOT NULL DEFAULT 'PENDING',
+    attempts INT NOT NULL DEFAULT 0,
+    run_after TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+    lease_owner VARCHAR(100),
+    lease_expires_at TIMESTAMPTZ,
+    last_error TEXT,
+    created_at TIMESTAMPTZ DEFAULT NOW(),
+    updated_at TIMESTAMPTZ DEFAULT NOW()
+);
+
+-- One active job per conversation; enqueue relies on this for dedup
+CREATE UNIQUE INDEX IF NOT EXISTS uq_summarization_jobs_active
+    ON summarization_jobs(conversation_id) WHERE status IN ('PENDING', 'RUNNING');
+CREATE INDEX IF NOT EXISTS idx_summarization_jobs_due
+    ON summarization_jobs(run_after) WHERE status IN ('PENDING', 'RUNNING');
+
+-- Summaries are no longer written as IN_PROGRESS; retire rows orphaned by earlier restarts
+UPDATE conversation_summaries SET status = 'FAILED' WHERE status = 'IN_PROGRESS';
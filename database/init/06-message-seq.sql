@@ -0,0 +1,27 @@
+-- Per-conversation message sequence numbers so context can be read as an indexed tail
+ALTER TABLE messages ADD COLUMN IF NOT EXISTS seq BIGINT;
+
+UPDATE messages m
+SET seq = o.rn
+FROM (
+    SELECT id, ROW_NUMBER() OVER (PARTITION BY conversation_id ORDER BY created_at, id) AS rn
+    FROM messages
+) o
+WHERE m.id = o.id AND m.seq IS NULL;
+
+ALTER TABLE messages ALTER COLUMN seq SET NOT NULL;
+
+CREATE UNIQUE INDEX IF NOT EXISTS uq_messages_conversation_seq ON messages(conversation_id, seq);
+-- Covered by the (conversation_id, seq) index
+DROP INDEX IF EXISTS idx_messages_conversation_id;
+
+-- Summary coverage as a sequence number instead of a message lookup
+ALTER TABLE conversation_summaries ADD COLUMN IF NOT EXISTS covered_until_seq BIGINT NOT NULL DEFAULT 0;
+
+UPDATE conversation_summaries s
+SET covered_until_seq = m.seq
+FROM messages m
+WHERE m.id = s.covered_until_message_id AND s.covered_until_seq = 0;
+
+CREATE INDEX IF NOT EXISTS idx_conv_summaries_latest
+    ON conversation_summaries(conversation_id, status, summary_version DESC);
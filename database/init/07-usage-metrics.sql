@@ -0,0 +1,8 @@
+-- Upstream-reported usage and latency per chat turn.
+-- ttft_ms is NULL when no content arrived; usage_estimated marks rows counted locally because
+-- upstream sent no usage block.
+ALTER TABLE usage_logs ADD COLUMN IF NOT EXISTS ttft_ms BIGINT;
+ALTER TABLE usage_logs ADD COLUMN IF NOT EXISTS context_tokens INTEGER DEFAULT 0;
+ALTER TABLE usage_logs ADD COLUMN IF NOT EXISTS cache_read_tokens INTEGER DEFAULT 0;
+ALTER TABLE usage_logs ADD COLUMN IF NOT EXISTS cache_creation_tokens INTEGER DEFAULT 0;
+ALTER TABLE usage_logs ADD COLUMN IF NOT EXISTS usage_estimated BOOLEAN DEFAULT FALSE;
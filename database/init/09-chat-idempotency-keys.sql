@@ -0,0 +1,17 @@
+-- Idempotency-Key records for POST /api/chat/completions, scoped by API key (nil UUID for the
+-- web UI). An IN_PROGRESS row belongs to the instance streaming it (owner); a COMPLETED one
+-- keeps the SSE response to replay until it expires.
+CREATE TABLE IF NOT EXISTS chat_idempotency_keys (
+    scope UUID NOT NULL,
+    idempotency_key VARCHAR(255) NOT NULL,
+    request_hash BIGINT NOT NULL,
+    status VARCHAR(20) NOT NULL DEFAULT 'IN_PROGRESS',
+    owner VARCHAR(100) NOT NULL,
+    stream_id UUID NOT NULL,
+    response BYTEA,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT NOW(),
+    expires_at TIMESTAMPTZ NOT NULL,
+    PRIMARY KEY (scope, idempotency_key)
+);
+
+CREATE INDEX IF NOT EXISTS idx_chat_idempotency_keys_expires ON chat_idempotency_keys(expires_at);
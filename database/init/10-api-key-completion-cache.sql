@@ -0,0 +1,2 @@
+-- Per-API-key opt-in/out of the completion cache (NULL = use app.chat.completion-cache.default-for-keys)
+ALTER TABLE api_keys ADD COLUMN IF NOT EXISTS completion_cache BOOLEAN;
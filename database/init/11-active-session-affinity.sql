@@ -0,0 +1,8 @@
+-- Conversation bound to a claude-code-api session: the last message seq the session has seen
+-- and how many turns it has served
+ALTER TABLE active_sessions ADD COLUMN IF NOT EXISTS conversation_id UUID REFERENCES conversations(id) ON DELETE CASCADE;
+ALTER TABLE active_sessions ADD COLUMN IF NOT EXISTS last_seq BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE active_sessions ADD COLUMN IF NOT EXISTS turns INT NOT NULL DEFAULT 0;
+
+CREATE UNIQUE INDEX IF NOT EXISTS uq_active_sessions_conversation ON active_sessions(conversation_id);
+CREATE INDEX IF NOT EXISTS idx_active_sessions_last_activity ON active_sessions(last_activity_at);
@@ -0,0 +1,2 @@
+-- claude-code-api instance (host:port) that holds the session
+ALTER TABLE active_sessions ADD COLUMN IF NOT EXISTS endpoint VARCHAR(255);
@@ -27,6 +27,7 @@ export interface Message {
   role: 'user' | 'assistant';
   content: string;
   tokenCount?: number;
+  truncated?: boolean;
   createdAt: string;
 }
 